@@ -0,0 +1,181 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 KuiGang Wang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package lt.benchmark;
+
+import java.io.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * source files to compile in the benchmarks.<br>
+ * a corpus is either generated with given size and features, or read from the latte-library sources.
+ */
+public class Corpus {
+        /**
+         * file name =&gt; source written with indentation
+         */
+        public final Map<String, String> indentSources = new LinkedHashMap<String, String>();
+        /**
+         * file name =&gt; the same source written with braces. it's empty for the library corpus
+         */
+        public final Map<String, String> braceSources = new LinkedHashMap<String, String>();
+
+        /**
+         * generate a corpus
+         *
+         * @param files         file count
+         * @param classes       classes in each file
+         * @param methods       methods in each class
+         * @param lambdaDensity ratio of methods containing a lambda, from 0 to 1
+         * @param generics      define a generic class in each file and use it in the methods
+         * @return the corpus
+         */
+        public static Corpus synthetic(int files, int classes, int methods, double lambdaDensity, boolean generics) {
+                Corpus corpus = new Corpus();
+                for (int f = 0; f < files; ++f) {
+                        String fileName = "f" + f + ".lt";
+                        corpus.indentSources.put(fileName, generateFile(f, classes, methods, lambdaDensity, generics, false));
+                        corpus.braceSources.put(fileName, generateFile(f, classes, methods, lambdaDensity, generics, true));
+                }
+                return corpus;
+        }
+
+        /**
+         * read all latte files in the directory
+         *
+         * @param dir latte-library source directory
+         * @return the corpus
+         * @throws IOException exception when reading files
+         */
+        public static Corpus library(File dir) throws IOException {
+                if (!dir.isDirectory()) throw new FileNotFoundException(dir.getAbsolutePath());
+                Corpus corpus = new Corpus();
+                readLatteFiles(dir, "", corpus.indentSources);
+                return corpus;
+        }
+
+        /**
+         * the files are keyed by their paths relative to the source directory, files in different packages may have the same name
+         */
+        private static void readLatteFiles(File dir, String prefix, Map<String, String> sources) throws IOException {
+                File[] files = dir.listFiles();
+                if (files == null) return;
+                for (File f : files) {
+                        if (f.isDirectory()) {
+                                readLatteFiles(f, prefix + f.getName() + "/", sources);
+                        } else if (f.getName().endsWith(".lt")) {
+                                sources.put(prefix + f.getName(), read(f));
+                        }
+                }
+        }
+
+        private static String read(File file) throws IOException {
+                Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+                try {
+                        StringBuilder sb = new StringBuilder();
+                        char[] buf = new char[4096];
+                        int n;
+                        while ((n = reader.read(buf)) != -1) {
+                                sb.append(buf, 0, n);
+                        }
+                        return sb.toString();
+                } finally {
+                        reader.close();
+                }
+        }
+
+        private static String generateFile(int f, int classes, int methods, double lambdaDensity, boolean generics, boolean brace) {
+                SourceWriter w = new SourceWriter(brace);
+                w.line("package bench");
+                w.line("");
+                String generic = "G" + f;
+                if (generics) {
+                        w.open("class " + generic + "<:T:>");
+                        w.line("def get(t:T):T = t");
+                        w.close();
+                }
+                for (int c = 0; c < classes; ++c) {
+                        w.open("class C" + f + "_" + c + "(base:int)");
+                        for (int m = 0; m < methods; ++m) {
+                                // spread the lambdas evenly over the methods
+                                boolean lambda = Math.floor((m + 1) * lambdaDensity) > Math.floor(m * lambdaDensity);
+                                if (lambda) {
+                                        w.open("def m" + m + "(x:int)");
+                                        w.line("f = (a) -> a + x");
+                                        w.line("return f(base)");
+                                } else {
+                                        w.open("def m" + m + "(x:int):int");
+                                        if (generics) {
+                                                w.line("y = " + generic + "<:int:>().get(x) + base");
+                                        } else {
+                                                w.line("y = x + base");
+                                        }
+                                        if (c > 0) {
+                                                w.line("y += C" + f + "_" + (c - 1) + "(base).hashCode()");
+                                        }
+                                        w.open("if y > 10");
+                                        w.line("return y - 1");
+                                        w.close();
+                                        w.line("return y * " + m);
+                                }
+                                w.close();
+                        }
+                        w.close();
+                }
+                return w.toString();
+        }
+
+        private static class SourceWriter {
+                private final boolean brace;
+                private final StringBuilder sb = new StringBuilder();
+                private int indent = 0;
+
+                SourceWriter(boolean brace) {
+                        this.brace = brace;
+                }
+
+                void line(String line) {
+                        for (int i = 0; i < indent; ++i) {
+                                sb.append("    ");
+                        }
+                        sb.append(line).append('\n');
+                }
+
+                void open(String line) {
+                        line(brace ? line + " {" : line);
+                        ++indent;
+                }
+
+                void close() {
+                        --indent;
+                        if (brace) line("}");
+                }
+
+                @Override
+                public String toString() {
+                        return sb.toString();
+                }
+        }
+}
@@ -0,0 +1,56 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 KuiGang Wang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package lt.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * the corpus shared by all benchmarks.<br>
+ * set `corpus` to `library` to compile the latte-library sources,
+ * the directory is retrieved from system property `latte.library`.
+ * parameters of the synthetic corpus are defined in {@link SyntheticCorpusState}
+ */
+@State(Scope.Benchmark)
+public class CorpusState {
+        /**
+         * synthetic or library
+         */
+        @Param({"synthetic", "library"})
+        public String corpus;
+
+        public Corpus sources;
+
+        @Setup(Level.Trial)
+        public void generateCorpus(SyntheticCorpusState synthetic) throws IOException {
+                if ("library".equals(corpus)) {
+                        sources = Corpus.library(new File(System.getProperty("latte.library", "../latte-library/src/main/latte")));
+                } else if ("synthetic".equals(corpus)) {
+                        sources = synthetic.sources;
+                } else throw new IllegalArgumentException("unknown corpus " + corpus);
+        }
+}
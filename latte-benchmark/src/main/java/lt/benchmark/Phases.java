@@ -0,0 +1,114 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 KuiGang Wang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package lt.benchmark;
+
+import lt.compiler.*;
+import lt.compiler.lexical.ElementStartNode;
+import lt.compiler.semantic.STypeDef;
+import lt.compiler.syntactic.Statement;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * runs each compiling phase separately
+ */
+public class Phases {
+        private Phases() {
+        }
+
+        private static ErrorManager errorManager() {
+                ErrorManager err = new ErrorManager(true);
+                err.out = ErrorManager.Out.allNull();
+                return err;
+        }
+
+        /**
+         * scan the sources into token trees
+         *
+         * @param sources file name =&gt; source
+         * @param brace   use {@link BraceScanner} instead of {@link IndentScanner}
+         * @return file name =&gt; token tree
+         * @throws IOException     exception when reading the source
+         * @throws SyntaxException compile error
+         */
+        public static Map<String, ElementStartNode> scan(Map<String, String> sources, boolean brace) throws IOException, SyntaxException {
+                ErrorManager err = errorManager();
+                Map<String, ElementStartNode> roots = new LinkedHashMap<String, ElementStartNode>();
+                for (Map.Entry<String, String> entry : sources.entrySet()) {
+                        StringReader reader = new StringReader(entry.getValue());
+                        Scanner scanner = brace
+                                ? new BraceScanner(entry.getKey(), reader, new Properties(), err)
+                                : new IndentScanner(entry.getKey(), reader, new Properties(), err);
+                        roots.put(entry.getKey(), scanner.scan());
+                }
+                return roots;
+        }
+
+        /**
+         * parse the token trees into statements
+         *
+         * @param roots file name =&gt; token tree
+         * @return file name =&gt; statements
+         * @throws SyntaxException compile error
+         */
+        public static Map<String, List<Statement>> parse(Map<String, ElementStartNode> roots) throws SyntaxException {
+                ErrorManager err = errorManager();
+                Map<String, List<Statement>> statements = new HashMap<String, List<Statement>>();
+                for (Map.Entry<String, ElementStartNode> entry : roots.entrySet()) {
+                        statements.put(entry.getKey(), new Parser(entry.getValue(), err).parse());
+                }
+                return statements;
+        }
+
+        /**
+         * run the semantic analysis
+         *
+         * @param statements file name =&gt; statements
+         * @return the processor which already finished parsing
+         * @throws SyntaxException compile error
+         */
+        public static SemanticProcessor analyse(Map<String, List<Statement>> statements) throws SyntaxException {
+                SemanticProcessor processor = new SemanticProcessor(statements, Phases.class.getClassLoader(), errorManager());
+                processor.parse();
+                return processor;
+        }
+
+        /**
+         * generate byte codes
+         *
+         * @param processor the processor which already finished parsing
+         * @return type name =&gt; byte code
+         */
+        public static Map<String, byte[]> generate(SemanticProcessor processor) {
+                Set<STypeDef> types = processor.typeDefSet;
+                return new CodeGenerator(types, processor.getTypes()).generate();
+        }
+}
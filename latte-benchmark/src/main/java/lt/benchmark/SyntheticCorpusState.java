@@ -0,0 +1,51 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 KuiGang Wang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package lt.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * the generated corpus. it's used directly by benchmarks which need brace sources
+ */
+@State(Scope.Benchmark)
+public class SyntheticCorpusState {
+        @Param({"20"})
+        public int files;
+        @Param({"10"})
+        public int classes;
+        @Param({"10"})
+        public int methods;
+        @Param({"0.2"})
+        public double lambdaDensity;
+        @Param({"true"})
+        public boolean generics;
+
+        public Corpus sources;
+
+        @Setup(Level.Trial)
+        public void generateCorpus() {
+                sources = Corpus.synthetic(files, classes, methods, lambdaDensity, generics);
+        }
+}
@@ -10,6 +10,7 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 public class Entry {
         public static void main(String[] args) throws Exception {
@@ -47,9 +48,10 @@ public class Entry {
                 if (command.equals("help") || command.equals("-help") || command.equals("--help") || command.equals("-h") || command.equals("/h") || command.equals("/help")) {// help
                         System.out.println("" +
                                 "usage: -s <script-location> [arguments [,...]]\n" +
-                                "       -c <source-directory> [-r] [-o <output-directory>] [-cp <classpath[:...]>]\n" +
+                                "       -c <source-directory> [-r] [-i] [-d] [-o <output-directory>] [-cp <classpath[:...]>]\n" +
                                 "       ClassName [-cp <classpath[:...]>]\n" +
                                 "       -gb <project-directory>\n" +
+                                "       -daemon [port]\n" +
                                 "       -repl\n" +
                                 "       -v | -version\n" +
                                 "       -e <statements>\n" +
@@ -57,10 +59,13 @@ public class Entry {
                                 "-s       Specify the script location and run the script\n" +
                                 "-c       Specify the source file directory and compile *.lt files\n" +
                                 "-r       [option] Add sub directory files to compiling list.\n" +
+                                "-i       [option] Compile incrementally. Only modified files and files depending on them are compiled\n" +
+                                "-d       [option] Compile with the running compile daemon if it exists\n" +
                                 "-o       [option] Specify the output directory. (the source-directory/target/classes/ as default)\n" +
                                 "-cp      [option] The classpath. use ':' to separate the class-paths\n" +
                                 "-repl    Start the repl (or run the program with 0 arguments)\n" +
                                 "-gb      Generate build.lts and run.lts in the given directory\n" +
+                                "-daemon  Start a compile daemon listening on the loopback address\n" +
                                 "-e       Evaluate the given statement and print the result\n" +
                                 "-version Show current version\n");
 
@@ -103,6 +108,8 @@ public class Entry {
                         }
 
                         boolean recursive = false;
+                        boolean incremental = false;
+                        boolean daemon = false;
                         String outputDir = sourceDir + File.separator + "target" + File.separator + "classes";
                         List<URL> classPaths = new ArrayList<URL>();
 
@@ -111,6 +118,12 @@ public class Entry {
                                 if (cmd.equals("-r")) {
                                         recursive = true;
 
+                                } else if (cmd.equals("-i")) {
+                                        incremental = true;
+
+                                } else if (cmd.equals("-d")) {
+                                        daemon = true;
+
                                 } else if (cmd.equals("-o")) {
                                         if (args.length - 1 == i) {
                                                 System.err.println("invalid option -o. the output directory should be specified");
@@ -143,15 +156,30 @@ public class Entry {
                                 }
                         }
 
-                        Compiler compiler = new Compiler();
                         File outputDirFile = new File(outputDir);
                         if (!outputDirFile.exists()) //noinspection ResultOfMethodCallIgnored
                                 outputDirFile.mkdirs();
+                        Map<String, File> files = Utils.filesInDirectory(sourceDir, ".*\\.(lt|latte)", recursive);
+
+                        if (daemon) {
+                                CompileDaemon.Result result = CompileDaemon.compile(files, outputDirFile, classPaths, true, incremental);
+                                if (result != null) {
+                                        System.out.print(result.output);
+                                        if (!result.success) {
+                                                System.err.println("[ERROR] " + result.error);
+                                        }
+                                        return;
+                                }
+                                // the daemon is not running
+                        }
+
+                        Compiler compiler = new Compiler();
                         compiler.config.result.outputDir = outputDirFile;
                         compiler.config.classpath = classPaths;
+                        compiler.config.result.incremental = incremental;
 
                         try {
-                                compiler.compile(Utils.filesInDirectory(sourceDir, ".*\\.(lt|latte)", recursive));
+                                compiler.compile(files);
                         } catch (Exception e) {
                                 if (e instanceof SyntaxException) {
                                         System.err.println("[ERROR] " + e.getMessage());
@@ -160,6 +188,30 @@ public class Entry {
                                 }
                         }
 
+                } else if (command.equals("-daemon")) {
+                        int port = 0;
+                        if (args.length > 1) {
+                                try {
+                                        port = Integer.parseInt(args[1].trim());
+                                } catch (NumberFormatException e) {
+                                        System.err.println("invalid command -daemon. the port should be an integer");
+                                        System.err.println("see --help");
+                                        return;
+                                }
+                        }
+                        final CompileDaemon compileDaemon = new CompileDaemon(port, 1);
+                        System.out.println("[INFO] compile daemon is listening on 127.0.0.1:" + compileDaemon.start());
+                        Runtime.getRuntime().addShutdownHook(new Thread() {
+                                @Override
+                                public void run() {
+                                        try {
+                                                compileDaemon.stop();
+                                        } catch (IOException ignore) {
+                                        }
+                                }
+                        });
+                        compileDaemon.serve();
+
                 } else if (command.equals("-gb")) {
                         final List<String> theFilesToBeGenerated = Arrays.asList("build.lts", "run.lts");
 
@@ -26,6 +26,7 @@ package lt.compiler;
 
 import lt.compiler.semantic.*;
 import lt.compiler.semantic.builtin.*;
+import lt.compiler.semantic.helper.ClassFileInfo;
 import lt.compiler.util.Consts;
 import lt.compiler.util.LocalVariables;
 import lt.dependencies.asm.*;
@@ -40,6 +41,26 @@ public class CodeGenerator {
         private final Set<STypeDef> types;
         private final Map<String, STypeDef> typeDefMap;
         private static final int VERSION = Opcodes.V1_6;
+        /**
+         * only let asm compute stack map frames for methods that may branch.
+         * branchless methods need no frame, so asm's data flow analysis (and the class loading
+         * it does to merge types) is skipped for them. methods that branch still go through
+         * COMPUTE_FRAMES, so the effect on compiling time is small
+         */
+        public boolean selectiveFrames = false;
+        /**
+         * clear instructions of a type after its byte code is generated,
+         * the instruction trees can be collected before the whole generating process finishes
+         */
+        public boolean releaseInstructions = false;
+        /**
+         * run the {@link Optimizer} on instructions of each type before generating its byte code
+         */
+        public boolean optimize = true;
+        /**
+         * record time and allocation of each type into the profile if it's not null
+         */
+        public CompileProfile profile = null;
 
         /**
          * create the code generator with types to generate
@@ -162,6 +183,7 @@ public class CodeGenerator {
         public Map<String, byte[]> generate() {
                 Map<String, byte[]> result = new HashMap<String, byte[]>();
                 for (STypeDef type : types) {
+                        CompileProfile.Mark mark = profile == null ? null : profile.start();
                         ClassWriter classWriter = new SClassWriter(ClassWriter.COMPUTE_FRAMES, typeDefMap);
 
                         List<SModifier> modifiers;                // modifier
@@ -201,6 +223,7 @@ public class CodeGenerator {
                                 generateAnnotation(classWriter, (SAnnoDef) type);
                                 classWriter.visitEnd();
                                 result.put(type.fullName(), classWriter.toByteArray());
+                                if (mark != null) profile.record(CompileProfile.CODE_GEN, type.fullName(), mark);
                                 continue;
                         }
 
@@ -218,6 +241,14 @@ public class CodeGenerator {
                                         annotationIsVisible(anno));
                                 buildAnnotation(annotationVisitor, anno);
                         }
+                        // generic template
+                        if (type instanceof SClassDef && ((SClassDef) type).templateAST() != null) {
+                                classWriter.visitAttribute(new ClassFileInfo.BytesAttribute(Consts.AST_ATTRIBUTE, ((SClassDef) type).templateAST()));
+                        }
+
+                        if (optimize) {
+                                optimize(staticIns, exceptionTables, constructors, methods);
+                        }
 
                         buildStatic(classWriter, staticIns, exceptionTables, staticMeta);
                         buildField(classWriter, fields);
@@ -228,10 +259,64 @@ public class CodeGenerator {
                         classWriter.visitEnd();
 
                         result.put(type.fullName(), classWriter.toByteArray());
+                        if (mark != null) profile.record(CompileProfile.CODE_GEN, type.fullName(), mark);
+
+                        if (releaseInstructions) {
+                                releaseInstructions(staticIns, exceptionTables, constructors, methods);
+                        }
                 }
                 return result;
         }
 
+        /**
+         * clear the instructions and exception tables which are already written into the class
+         *
+         * @param staticIns       static instructions
+         * @param exceptionTables static exception tables
+         * @param constructors    constructors, null if it's not a class
+         * @param methods         methods
+         */
+        private void releaseInstructions(List<Instruction> staticIns,
+                                         List<ExceptionTable> exceptionTables,
+                                         List<SConstructorDef> constructors,
+                                         List<SMethodDef> methods) {
+                staticIns.clear();
+                exceptionTables.clear();
+                if (constructors != null) {
+                        for (SConstructorDef cons : constructors) {
+                                cons.statements().clear();
+                                cons.exceptionTables().clear();
+                        }
+                }
+                for (SMethodDef method : methods) {
+                        method.statements().clear();
+                        method.exceptionTables().clear();
+                }
+        }
+
+        /**
+         * optimize instructions of the static block, constructors and methods
+         *
+         * @param staticIns       static instructions
+         * @param exceptionTables static exception tables
+         * @param constructors    constructors, null if it's not a class
+         * @param methods         methods
+         */
+        private void optimize(List<Instruction> staticIns,
+                              List<ExceptionTable> exceptionTables,
+                              List<SConstructorDef> constructors,
+                              List<SMethodDef> methods) {
+                new Optimizer(staticIns, exceptionTables).optimize();
+                if (constructors != null) {
+                        for (SConstructorDef cons : constructors) {
+                                new Optimizer(cons.statements(), cons.exceptionTables()).optimize();
+                        }
+                }
+                for (SMethodDef method : methods) {
+                        new Optimizer(method.statements(), method.exceptionTables()).optimize();
+                }
+        }
+
         private void generateAnnotation(ClassWriter classWriter, SAnnoDef sAnnoDef) {
                 classWriter.visit(VERSION,
                         Opcodes.ACC_INTERFACE | Opcodes.ACC_ANNOTATION | Opcodes.ACC_ABSTRACT | Opcodes.ACC_PUBLIC,
@@ -1623,6 +1708,76 @@ public class CodeGenerator {
                 info.pop(1);
         }
 
+        /**
+         * build Switch.<br>
+         * <br>
+         * key ---- the int value<br>
+         * TableSwitch if the keys are dense, otherwise LookupSwitch
+         * (the same cost estimation as javac)
+         *
+         * @param methodVisitor method visitor
+         * @param info          method info
+         * @param aSwitch       Ins.Switch
+         */
+        private void buildSwitch(MethodVisitor methodVisitor, CodeInfo info, Ins.Switch aSwitch) {
+                buildValueAccess(methodVisitor, info, aSwitch.key(), true);
+
+                // keys should be sorted
+                TreeMap<Integer, Label> keyToLabel = new TreeMap<Integer, Label>();
+                for (int i = 0; i < aSwitch.keys().size(); ++i) {
+                        keyToLabel.put(aSwitch.keys().get(i), getOrCreateLabel(info, aSwitch.targets().get(i)));
+                }
+                Label dflt = getOrCreateLabel(info, aSwitch.defaultTarget());
+
+                if (keyToLabel.isEmpty()) {
+                        methodVisitor.visitInsn(Opcodes.POP);
+                        info.pop(1);
+                        methodVisitor.visitJumpInsn(Opcodes.GOTO, dflt);
+                        return;
+                }
+
+                int lo = keyToLabel.firstKey();
+                int hi = keyToLabel.lastKey();
+                int n = keyToLabel.size();
+                long tableSpaceCost = 4 + ((long) hi - lo + 1);
+                long tableTimeCost = 3;
+                long lookupSpaceCost = 3 + 2 * (long) n;
+                long lookupTimeCost = n;
+                if (tableSpaceCost + 3 * tableTimeCost <= lookupSpaceCost + 3 * lookupTimeCost) {
+                        Label[] labels = new Label[hi - lo + 1];
+                        for (int k = lo; k <= hi; ++k) {
+                                Label l = keyToLabel.get(k);
+                                labels[k - lo] = l == null ? dflt : l;
+                        }
+                        methodVisitor.visitTableSwitchInsn(lo, hi, dflt, labels);
+                } else {
+                        int[] keys = new int[n];
+                        Label[] labels = new Label[n];
+                        int i = 0;
+                        for (Map.Entry<Integer, Label> entry : keyToLabel.entrySet()) {
+                                keys[i] = entry.getKey();
+                                labels[i] = entry.getValue();
+                                ++i;
+                        }
+                        methodVisitor.visitLookupSwitchInsn(dflt, keys, labels);
+                }
+                info.pop(1);
+        }
+
+        /**
+         * @param info method info
+         * @param ins  the instruction to jump to
+         * @return label of the instruction, a new label is recorded if it doesn't exist
+         */
+        private Label getOrCreateLabel(CodeInfo info, Instruction ins) {
+                if (info.insToLabel.containsKey(ins)) {
+                        return info.insToLabel.get(ins).label;
+                }
+                Label l = new Label();
+                info.insToLabel.put(ins, new CodeInfo.Container(l));
+                return l;
+        }
+
         /**
          * build one Instruction.
          *
@@ -1641,6 +1796,7 @@ public class CodeGenerator {
          * @see lt.compiler.semantic.Ins.IfNonNull
          * @see lt.compiler.semantic.Ins.IfACmpNe
          * @see lt.compiler.semantic.Ins.Goto
+         * @see lt.compiler.semantic.Ins.Switch
          * @see lt.compiler.semantic.Ins.Nop
          * @see lt.compiler.semantic.Ins.AThrow
          * @see lt.compiler.semantic.Ins.ExStore
@@ -1742,6 +1898,8 @@ public class CodeGenerator {
                         // info.push(1);
                         methodVisitor.visitJumpInsn(Opcodes.GOTO, l);
                         // info.pop(1);
+                } else if (ins instanceof Ins.Switch) {
+                        buildSwitch(methodVisitor, info, (Ins.Switch) ins);
                 } else if (ins instanceof Ins.Nop) {
                         methodVisitor.visitInsn(Opcodes.NOP);
                 } else if (ins instanceof Ins.AThrow) {
@@ -1861,6 +2019,120 @@ public class CodeGenerator {
                 methodVisitor.visitMaxs(info.getMaxStack(), info.getMaxLocal());
         }
 
+        /**
+         * decide whether to compute frames for the method to visit.
+         *
+         * @param classWriter     class writer
+         * @param instructions    instructions of the method
+         * @param exceptionTables exception tables of the method
+         */
+        private void prepareFrames(ClassWriter classWriter, List<Instruction> instructions, List<ExceptionTable> exceptionTables) {
+                if (!selectiveFrames) return;
+                boolean mayBranch = !exceptionTables.isEmpty();
+                for (Instruction ins : instructions) {
+                        if (mayBranch) break;
+                        mayBranch = mayBranch(ins);
+                }
+                classWriter.setComputeFrames(mayBranch);
+        }
+
+        /**
+         * check whether the generated byte code of the instruction/value may contain jumps.
+         * unknown instructions and values are considered as branches
+         *
+         * @param ins instruction or value
+         * @return false if it's certain that no jump would be generated
+         */
+        private boolean mayBranch(Object ins) {
+                if (ins == null
+                        || ins instanceof Ins.This
+                        || ins instanceof Ins.GetStatic
+                        || ins instanceof Ins.TLoad
+                        || ins instanceof Ins.GetClass
+                        || ins instanceof StringConstantValue
+                        || ins instanceof PrimitiveValue
+                        || ins instanceof NullValue
+                        || ins instanceof Ins.Nop
+                        || ins instanceof Ins.Pop
+                        || ins instanceof Ins.ExStore
+                        || ins instanceof Ins.MonitorExit) {
+                        return false;
+                } else if (ins instanceof Ins.Invoke) {
+                        if (ins instanceof Ins.InvokeWithTarget && mayBranch(((Ins.InvokeWithTarget) ins).target())) {
+                                return true;
+                        }
+                        if (ins instanceof Ins.InvokeWithCapture && mayBranch(((Ins.InvokeWithCapture) ins).capturedArguments())) {
+                                return true;
+                        }
+                        return mayBranch(((Ins.Invoke) ins).arguments());
+                } else if (ins instanceof Ins.New) {
+                        return mayBranch(((Ins.New) ins).args());
+                } else if (ins instanceof Ins.Cast) {
+                        return mayBranch(((Ins.Cast) ins).value());
+                } else if (ins instanceof Ins.TwoVarOp) {
+                        return mayBranch(((Ins.TwoVarOp) ins).a()) || mayBranch(((Ins.TwoVarOp) ins).b());
+                } else if (ins instanceof ValuePack) {
+                        for (Instruction i : ((ValuePack) ins).instructions()) {
+                                if (mayBranch(i)) return true;
+                        }
+                        return false;
+                } else if (ins instanceof Ins.GetField) {
+                        return mayBranch(((Ins.GetField) ins).object());
+                } else if (ins instanceof Ins.TALoad) {
+                        return mayBranch(((Ins.TALoad) ins).arr()) || mayBranch(((Ins.TALoad) ins).index());
+                } else if (ins instanceof Ins.ArrayLength) {
+                        return mayBranch(((Ins.ArrayLength) ins).arrayValue());
+                } else if (ins instanceof Ins.OneVarOp) {
+                        return mayBranch(((Ins.OneVarOp) ins).value());
+                } else if (ins instanceof Ins.NewArray) {
+                        return mayBranch(((Ins.NewArray) ins).initValues());
+                } else if (ins instanceof Ins.ANewArray) {
+                        return mayBranch(((Ins.ANewArray) ins).initValues());
+                } else if (ins instanceof Ins.NewList) {
+                        return mayBranch(((Ins.NewList) ins).initValues());
+                } else if (ins instanceof Ins.NewMap) {
+                        for (Map.Entry<Value, Value> entry : ((Ins.NewMap) ins).initValues().entrySet()) {
+                                if (mayBranch(entry.getKey()) || mayBranch(entry.getValue())) return true;
+                        }
+                        return false;
+                } else if (ins instanceof Ins.CheckCast) {
+                        return mayBranch(((Ins.CheckCast) ins).theValueToCheck());
+                } else if (ins instanceof Ins.InstanceOf) {
+                        return mayBranch(((Ins.InstanceOf) ins).object());
+                } else if (ins instanceof ValueAnotherType) {
+                        return mayBranch(((ValueAnotherType) ins).value());
+                } else if (ins instanceof Ins.PointerGetCastHelper) {
+                        return mayBranch(((Ins.PointerGetCastHelper) ins).before())
+                                || mayBranch(((Ins.PointerGetCastHelper) ins).after());
+                } else if (ins instanceof Ins.TReturn) {
+                        return mayBranch(((Ins.TReturn) ins).value());
+                } else if (ins instanceof Ins.TStore) {
+                        return mayBranch(((Ins.TStore) ins).newValue());
+                } else if (ins instanceof Ins.PutField) {
+                        return mayBranch(((Ins.PutField) ins).obj()) || mayBranch(((Ins.PutField) ins).value());
+                } else if (ins instanceof Ins.PutStatic) {
+                        return mayBranch(((Ins.PutStatic) ins).value());
+                } else if (ins instanceof Ins.TAStore) {
+                        return mayBranch(((Ins.TAStore) ins).array())
+                                || mayBranch(((Ins.TAStore) ins).index())
+                                || mayBranch(((Ins.TAStore) ins).value());
+                } else if (ins instanceof Ins.AThrow) {
+                        return mayBranch(((Ins.AThrow) ins).exception());
+                } else if (ins instanceof Ins.MonitorEnter) {
+                        return mayBranch(((Ins.MonitorEnter) ins).valueToMonitor());
+                } else {
+                        // jumps, logic and/or and unknown instructions
+                        return true;
+                }
+        }
+
+        private boolean mayBranch(List<?> values) {
+                for (Object v : values) {
+                        if (mayBranch(v)) return true;
+                }
+                return false;
+        }
+
         /**
          * build static block (clinit).
          *
@@ -1869,6 +2141,7 @@ public class CodeGenerator {
          * @param exceptionTable exception table
          */
         private void buildStatic(ClassWriter classWriter, List<Instruction> staticIns, List<ExceptionTable> exceptionTable, InvokableMeta meta) {
+                prepareFrames(classWriter, staticIns, exceptionTable);
                 MethodVisitor methodVisitor = classWriter.visitMethod(Opcodes.ACC_STATIC, "<clinit>", "()V", null, null);
                 buildInstructions(methodVisitor, new CodeInfo(0, null, meta), staticIns, exceptionTable, VoidType.get());
                 methodVisitor.visitEnd();
@@ -1882,6 +2155,7 @@ public class CodeGenerator {
          */
         private void buildConstructor(ClassWriter classWriter, List<SConstructorDef> constructors) {
                 for (SConstructorDef cons : constructors) {
+                        prepareFrames(classWriter, cons.statements(), cons.exceptionTables());
                         MethodVisitor methodVisitor = classWriter.visitMethod(
                                 acc(cons.modifiers()),
                                 "<init>",
@@ -1936,6 +2210,7 @@ public class CodeGenerator {
          */
         private void buildMethod(ClassWriter classWriter, List<SMethodDef> methods) {
                 for (SMethodDef method : methods) {
+                        prepareFrames(classWriter, method.statements(), method.exceptionTables());
                         MethodVisitor methodVisitor = classWriter.visitMethod(
                                 acc(method.modifiers()),
                                 method.name(),
@@ -0,0 +1,294 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 KuiGang Wang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package lt.compiler;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+
+/**
+ * records wall time, cpu time and allocated bytes of the compiling phases.<br>
+ * a record either covers a whole phase (its name is null), or one file/type in the phase.
+ * cpu time and allocated bytes are measured on the current thread, so items should be
+ * recorded by the thread which processed them.
+ */
+public class CompileProfile {
+        public static final String SCAN = "scan";
+        public static final String PARSE = "parse";
+        public static final String SEMANTIC_STEP_1 = "semantic.step1";
+        public static final String SEMANTIC_STEP_2 = "semantic.step2";
+        public static final String SEMANTIC_STEP_3 = "semantic.step3";
+        public static final String SEMANTIC_STEP_4 = "semantic.step4";
+        public static final String CODE_GEN = "codegen";
+        public static final String WRITE = "write";
+
+        /**
+         * phases in the compiling order
+         */
+        public static final List<String> PHASES = Collections.unmodifiableList(Arrays.asList(
+                SCAN, PARSE, SEMANTIC_STEP_1, SEMANTIC_STEP_2, SEMANTIC_STEP_3, SEMANTIC_STEP_4, CODE_GEN, WRITE
+        ));
+
+        private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        /**
+         * the bean to retrieve allocated bytes, or null if it's not supported by the jvm
+         */
+        private static final com.sun.management.ThreadMXBean allocationMXBean;
+
+        static {
+                com.sun.management.ThreadMXBean bean = null;
+                try {
+                        if (threadMXBean instanceof com.sun.management.ThreadMXBean
+                                && ((com.sun.management.ThreadMXBean) threadMXBean).isThreadAllocatedMemorySupported()) {
+                                bean = (com.sun.management.ThreadMXBean) threadMXBean;
+                                bean.setThreadAllocatedMemoryEnabled(true);
+                        }
+                } catch (Throwable ignore) {
+                        // not HotSpot
+                        bean = null;
+                }
+                allocationMXBean = bean;
+                if (threadMXBean.isCurrentThreadCpuTimeSupported() && !threadMXBean.isThreadCpuTimeEnabled()) {
+                        threadMXBean.setThreadCpuTimeEnabled(true);
+                }
+        }
+
+        /**
+         * the state of current thread when a phase/item starts
+         */
+        public static class Mark {
+                private final long wallTime;
+                private final long cpuTime;
+                private final long allocatedBytes;
+
+                private Mark(long wallTime, long cpuTime, long allocatedBytes) {
+                        this.wallTime = wallTime;
+                        this.cpuTime = cpuTime;
+                        this.allocatedBytes = allocatedBytes;
+                }
+        }
+
+        public static class Record {
+                public final String phase;
+                /**
+                 * the file/type name, or null if the record covers the whole phase
+                 */
+                public final String name;
+                /**
+                 * nanoseconds
+                 */
+                public final long wallTime;
+                /**
+                 * nanoseconds, -1 if it's not supported
+                 */
+                public final long cpuTime;
+                /**
+                 * -1 if it's not supported
+                 */
+                public final long allocatedBytes;
+
+                public Record(String phase, String name, long wallTime, long cpuTime, long allocatedBytes) {
+                        this.phase = phase;
+                        this.name = name;
+                        this.wallTime = wallTime;
+                        this.cpuTime = cpuTime;
+                        this.allocatedBytes = allocatedBytes;
+                }
+        }
+
+        /**
+         * a record summing up one phase
+         */
+        public static class Summary extends Record {
+                /**
+                 * count of file/type records in the phase
+                 */
+                public final int items;
+
+                public Summary(String phase, int items, long wallTime, long cpuTime, long allocatedBytes) {
+                        super(phase, null, wallTime, cpuTime, allocatedBytes);
+                        this.items = items;
+                }
+        }
+
+        public final List<Record> records = Collections.synchronizedList(new ArrayList<Record>());
+
+        private static long cpuTime() {
+                return threadMXBean.isCurrentThreadCpuTimeSupported() ? threadMXBean.getCurrentThreadCpuTime() : -1;
+        }
+
+        private static long allocatedBytes() {
+                return allocationMXBean == null ? -1 : allocationMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+
+        /**
+         * start measuring on current thread
+         *
+         * @return the mark to pass to {@link #record(String, String, Mark)}
+         */
+        public Mark start() {
+                return new Mark(System.nanoTime(), cpuTime(), allocatedBytes());
+        }
+
+        /**
+         * record the phase/item started at the mark. it should be invoked on the thread which created the mark
+         *
+         * @param phase phase name
+         * @param name  file/type name, or null for the whole phase
+         * @param mark  the mark
+         */
+        public void record(String phase, String name, Mark mark) {
+                long cpu = mark.cpuTime == -1 ? -1 : cpuTime() - mark.cpuTime;
+                long alloc = mark.allocatedBytes == -1 ? -1 : allocatedBytes() - mark.allocatedBytes;
+                records.add(new Record(phase, name, System.nanoTime() - mark.wallTime, cpu, alloc));
+        }
+
+        /**
+         * sum up the records of the phase.<br>
+         * the wall time is retrieved from the phase record if present, otherwise it's the sum of items.
+         * cpu time and allocated bytes are the sum of items if there are any, because the items
+         * may be processed by other threads
+         *
+         * @param phase phase name
+         * @return the summary, or null if the phase is not recorded
+         */
+        public Summary summary(String phase) {
+                Record phaseRecord = null;
+                int items = 0;
+                long wall = 0;
+                long cpu = 0;
+                long alloc = 0;
+                synchronized (records) {
+                        for (Record r : records) {
+                                if (!r.phase.equals(phase)) continue;
+                                if (r.name == null) {
+                                        phaseRecord = r;
+                                        continue;
+                                }
+                                ++items;
+                                wall += r.wallTime;
+                                cpu = (cpu == -1 || r.cpuTime == -1) ? -1 : cpu + r.cpuTime;
+                                alloc = (alloc == -1 || r.allocatedBytes == -1) ? -1 : alloc + r.allocatedBytes;
+                        }
+                }
+                if (phaseRecord == null && items == 0) return null;
+                if (phaseRecord != null) {
+                        wall = phaseRecord.wallTime;
+                        if (items == 0) {
+                                cpu = phaseRecord.cpuTime;
+                                alloc = phaseRecord.allocatedBytes;
+                        }
+                }
+                return new Summary(phase, items, wall, cpu, alloc);
+        }
+
+        /**
+         * print the summary of each phase
+         *
+         * @param err the summary is printed with {@link ErrorManager#info(String)}
+         */
+        public void printSummary(ErrorManager err) {
+                err.info("compiling profile:");
+                for (String phase : PHASES) {
+                        Summary r = summary(phase);
+                        if (r == null) continue;
+                        err.info(String.format("  %-15s wall %9.3f ms  cpu %9s ms  alloc %10s KB  items %s",
+                                phase, r.wallTime / 1000000.0,
+                                r.cpuTime == -1 ? "-" : String.format("%.3f", r.cpuTime / 1000000.0),
+                                r.allocatedBytes == -1 ? "-" : String.valueOf(r.allocatedBytes / 1024),
+                                r.items));
+                }
+        }
+
+        /**
+         * @return the phase summaries and all records in json format
+         */
+        public String toJson() {
+                StringBuilder sb = new StringBuilder();
+                sb.append("{\n  \"phases\": [");
+                boolean first = true;
+                for (String phase : PHASES) {
+                        Summary r = summary(phase);
+                        if (r == null) continue;
+                        if (!first) sb.append(',');
+                        first = false;
+                        sb.append("\n    {\"phase\": ").append(jsonString(phase))
+                                .append(", \"items\": ").append(r.items);
+                        appendMeasurement(sb, r);
+                }
+                sb.append("\n  ],\n  \"records\": [");
+                first = true;
+                synchronized (records) {
+                        for (Record r : records) {
+                                if (!first) sb.append(',');
+                                first = false;
+                                sb.append("\n    {\"phase\": ").append(jsonString(r.phase))
+                                        .append(", \"name\": ").append(r.name == null ? "null" : jsonString(r.name));
+                                appendMeasurement(sb, r);
+                        }
+                }
+                sb.append("\n  ]\n}\n");
+                return sb.toString();
+        }
+
+        private static void appendMeasurement(StringBuilder sb, Record r) {
+                sb.append(", \"wallTime\": ").append(r.wallTime)
+                        .append(", \"cpuTime\": ").append(r.cpuTime)
+                        .append(", \"allocatedBytes\": ").append(r.allocatedBytes)
+                        .append('}');
+        }
+
+        private static String jsonString(String s) {
+                StringBuilder sb = new StringBuilder(s.length() + 2);
+                sb.append('"');
+                for (int i = 0; i < s.length(); ++i) {
+                        char c = s.charAt(i);
+                        switch (c) {
+                                case '"':
+                                        sb.append("\\\"");
+                                        break;
+                                case '\\':
+                                        sb.append("\\\\");
+                                        break;
+                                case '\n':
+                                        sb.append("\\n");
+                                        break;
+                                case '\r':
+                                        sb.append("\\r");
+                                        break;
+                                case '\t':
+                                        sb.append("\\t");
+                                        break;
+                                default:
+                                        if (c < 0x20) {
+                                                sb.append(String.format("\\u%04x", (int) c));
+                                        } else {
+                                                sb.append(c);
+                                        }
+                        }
+                }
+                return sb.append('"').toString();
+        }
+}
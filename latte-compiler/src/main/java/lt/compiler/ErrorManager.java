@@ -56,7 +56,11 @@ public class ErrorManager {
 
         private boolean fastFail;
         public Out out = new Out();
-        public final List<CompilingError> errorList = new ArrayList<CompilingError>();
+        /**
+         * errors recorded when fastFail is false.
+         * the list is synchronized because step 4 of the semantic processor may run on several threads
+         */
+        public final List<CompilingError> errorList = Collections.synchronizedList(new ArrayList<CompilingError>());
 
         public final StringBuilder sb = new StringBuilder();
 
@@ -161,7 +165,7 @@ public class ErrorManager {
                 return buildErrInfo(lineCol.fileName, lineCol.line, lineCol.column);
         }
 
-        private void print(String msg, PrintStream out) {
+        private synchronized void print(String msg, PrintStream out) {
                 if (out != null) {
                         msg = "[" + df.format(new Date()) + "]" + msg;
                         out.println(msg);
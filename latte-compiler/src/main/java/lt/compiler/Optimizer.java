@@ -0,0 +1,978 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 KuiGang Wang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package lt.compiler;
+
+import lt.compiler.semantic.*;
+import lt.compiler.semantic.builtin.*;
+
+import java.util.*;
+
+/**
+ * optimizes instructions of a method before generating byte code.<br>
+ * <ol>
+ * <li>fold constant arithmetic, casts, comparisons, logic and, and concatenation of constant strings</li>
+ * <li>remove branches with constant conditions</li>
+ * <li>remove values which are discarded and have no side effect, e.g. <code>Unit.get()</code></li>
+ * <li>remove unreachable instructions, jumps to the next instruction and unused nops</li>
+ * </ol>
+ * instructions are removed only on top level (and from the end of value packs on top level),
+ * the stack is always empty between top level instructions.
+ * instructions referenced by jumps or exception tables are never removed.
+ */
+public class Optimizer {
+        private final List<Instruction> instructions;
+        private final List<ExceptionTable> exceptionTables;
+        /**
+         * instruction =&gt; count of jumps and exception tables referencing it
+         */
+        private final Map<Instruction, Integer> references = new IdentityHashMap<Instruction, Integer>();
+
+        public Optimizer(List<Instruction> instructions, List<ExceptionTable> exceptionTables) {
+                this.instructions = instructions;
+                this.exceptionTables = exceptionTables;
+        }
+
+        public void optimize() {
+                countReferences();
+                for (int i = 0; i < instructions.size(); ++i) {
+                        Instruction ins = instructions.get(i);
+                        if (ins instanceof Value) {
+                                Value v = fold((Value) ins);
+                                if (v == ins || isReferenced(ins)) continue;
+                                if (v instanceof Instruction) {
+                                        instructions.set(i, (Instruction) v);
+                                } else {
+                                        // values which are not instructions are constants,
+                                        // they are discarded on top level
+                                        instructions.remove(i--);
+                                }
+                        } else {
+                                foldChildren(ins);
+                        }
+                }
+
+                boolean changed;
+                do {
+                        countReferences();
+                        changed = removeConstantBranches();
+                        changed |= removeDiscardedValues();
+                        changed |= removeUnreachable();
+                        changed |= removeUselessJumps();
+                } while (changed);
+        }
+
+        private boolean isReferenced(Instruction ins) {
+                return references.containsKey(ins);
+        }
+
+        private void countReferences() {
+                references.clear();
+                List<Object> nodes = new ArrayList<Object>();
+                for (Instruction ins : instructions) {
+                        walk(ins, nodes);
+                }
+                countJumps(nodes, references);
+                for (ExceptionTable tbl : exceptionTables) {
+                        increase(references, tbl.getFrom());
+                        increase(references, tbl.getTo());
+                        increase(references, tbl.getTarget());
+                }
+        }
+
+        private static void increase(Map<Instruction, Integer> map, Instruction ins) {
+                Integer count = map.get(ins);
+                map.put(ins, count == null ? 1 : count + 1);
+        }
+
+        private static void countJumps(List<Object> nodes, Map<Instruction, Integer> map) {
+                for (Object node : nodes) {
+                        if (node instanceof Ins.Switch) {
+                                for (Instruction target : ((Ins.Switch) node).targets()) {
+                                        increase(map, target);
+                                }
+                                increase(map, ((Ins.Switch) node).defaultTarget());
+                                continue;
+                        }
+                        Instruction target = jumpTarget(node);
+                        if (target != null) {
+                                increase(map, target);
+                        }
+                }
+        }
+
+        /**
+         * @param node instruction or value
+         * @return the instruction to jump to, or null if it's not a jump
+         */
+        private static Instruction jumpTarget(Object node) {
+                if (node instanceof Ins.Goto) return ((Ins.Goto) node).gotoIns();
+                if (node instanceof Ins.IfEq) return ((Ins.IfEq) node).gotoIns();
+                if (node instanceof Ins.IfNe) return ((Ins.IfNe) node).gotoIns();
+                if (node instanceof Ins.IfNull) return ((Ins.IfNull) node).gotoIns();
+                if (node instanceof Ins.IfNonNull) return ((Ins.IfNonNull) node).gotoIns();
+                if (node instanceof Ins.IfACmpNe) return ((Ins.IfACmpNe) node).gotoIns();
+                return null;
+        }
+
+        /**
+         * add the node and all values/instructions inside it into the list
+         *
+         * @param node  instruction or value
+         * @param nodes the list to fill
+         */
+        static void walk(Object node, List<Object> nodes) {
+                if (node == null) return;
+                nodes.add(node);
+                if (node instanceof ValuePack) {
+                        for (Instruction i : ((ValuePack) node).instructions()) walk(i, nodes);
+                } else if (node instanceof Ins.Invoke) {
+                        if (node instanceof Ins.InvokeWithTarget) walk(((Ins.InvokeWithTarget) node).target(), nodes);
+                        if (node instanceof Ins.InvokeWithCapture) walkAll(((Ins.InvokeWithCapture) node).capturedArguments(), nodes);
+                        walkAll(((Ins.Invoke) node).arguments(), nodes);
+                } else if (node instanceof Ins.New) {
+                        walkAll(((Ins.New) node).args(), nodes);
+                } else if (node instanceof Ins.NewArray) {
+                        walkAll(((Ins.NewArray) node).initValues(), nodes);
+                } else if (node instanceof Ins.ANewArray) {
+                        walkAll(((Ins.ANewArray) node).initValues(), nodes);
+                } else if (node instanceof Ins.NewList) {
+                        walkAll(((Ins.NewList) node).initValues(), nodes);
+                } else if (node instanceof Ins.NewMap) {
+                        for (Map.Entry<Value, Value> entry : ((Ins.NewMap) node).initValues().entrySet()) {
+                                walk(entry.getKey(), nodes);
+                                walk(entry.getValue(), nodes);
+                        }
+                } else if (node instanceof Ins.TwoVarOp) {
+                        walk(((Ins.TwoVarOp) node).a(), nodes);
+                        walk(((Ins.TwoVarOp) node).b(), nodes);
+                } else if (node instanceof Ins.OneVarOp) {
+                        walk(((Ins.OneVarOp) node).value(), nodes);
+                } else if (node instanceof Ins.Cast) {
+                        walk(((Ins.Cast) node).value(), nodes);
+                } else if (node instanceof Ins.CheckCast) {
+                        walk(((Ins.CheckCast) node).theValueToCheck(), nodes);
+                } else if (node instanceof ValueAnotherType) {
+                        walk(((ValueAnotherType) node).value(), nodes);
+                } else if (node instanceof Ins.LogicAnd) {
+                        walk(((Ins.LogicAnd) node).b1(), nodes);
+                        walk(((Ins.LogicAnd) node).b2(), nodes);
+                } else if (node instanceof Ins.LogicOr) {
+                        walk(((Ins.LogicOr) node).v1(), nodes);
+                        walk(((Ins.LogicOr) node).v2(), nodes);
+                } else if (node instanceof Ins.PointerGetCastHelper) {
+                        walk(((Ins.PointerGetCastHelper) node).before(), nodes);
+                        walk(((Ins.PointerGetCastHelper) node).after(), nodes);
+                } else if (node instanceof Ins.GetField) {
+                        walk(((Ins.GetField) node).object(), nodes);
+                } else if (node instanceof Ins.TALoad) {
+                        walk(((Ins.TALoad) node).arr(), nodes);
+                        walk(((Ins.TALoad) node).index(), nodes);
+                } else if (node instanceof Ins.ArrayLength) {
+                        walk(((Ins.ArrayLength) node).arrayValue(), nodes);
+                } else if (node instanceof Ins.InstanceOf) {
+                        walk(((Ins.InstanceOf) node).object(), nodes);
+                } else if (node instanceof Ins.TReturn) {
+                        walk(((Ins.TReturn) node).value(), nodes);
+                } else if (node instanceof Ins.TStore) {
+                        walk(((Ins.TStore) node).newValue(), nodes);
+                } else if (node instanceof Ins.PutField) {
+                        walk(((Ins.PutField) node).obj(), nodes);
+                        walk(((Ins.PutField) node).value(), nodes);
+                } else if (node instanceof Ins.PutStatic) {
+                        walk(((Ins.PutStatic) node).value(), nodes);
+                } else if (node instanceof Ins.TAStore) {
+                        walk(((Ins.TAStore) node).array(), nodes);
+                        walk(((Ins.TAStore) node).index(), nodes);
+                        walk(((Ins.TAStore) node).value(), nodes);
+                } else if (node instanceof Ins.AThrow) {
+                        walk(((Ins.AThrow) node).exception(), nodes);
+                } else if (node instanceof Ins.MonitorEnter) {
+                        walk(((Ins.MonitorEnter) node).valueToMonitor(), nodes);
+                } else if (node instanceof Ins.IfEq) {
+                        walk(((Ins.IfEq) node).condition(), nodes);
+                } else if (node instanceof Ins.IfNe) {
+                        walk(((Ins.IfNe) node).condition(), nodes);
+                } else if (node instanceof Ins.IfNull) {
+                        walk(((Ins.IfNull) node).object(), nodes);
+                } else if (node instanceof Ins.IfNonNull) {
+                        walk(((Ins.IfNonNull) node).object(), nodes);
+                } else if (node instanceof Ins.IfACmpNe) {
+                        walk(((Ins.IfACmpNe) node).value1(), nodes);
+                        walk(((Ins.IfACmpNe) node).value2(), nodes);
+                } else if (node instanceof Ins.Switch) {
+                        walk(((Ins.Switch) node).key(), nodes);
+                } else if (node instanceof Ins.ExStore
+                        || node instanceof Ins.GetClass
+                        || node instanceof Ins.MonitorExit
+                        || node instanceof Ins.Pop) {
+                        // no values inside
+                        // the value of MonitorExit is held by the MonitorEnter, which is a top level instruction
+                }
+        }
+
+        private static void walkAll(List<Value> values, List<Object> nodes) {
+                for (Value v : values) walk(v, nodes);
+        }
+
+        /**
+         * fold the values inside the instruction which is not a value
+         *
+         * @param ins instruction
+         */
+        private void foldChildren(Instruction ins) {
+                if (ins instanceof Ins.TStore) {
+                        Ins.TStore store = (Ins.TStore) ins;
+                        store.setNewValue(fold(store.newValue()));
+                } else if (ins instanceof Ins.PutField) {
+                        Ins.PutField put = (Ins.PutField) ins;
+                        fold(put.obj());
+                        put.setValue(fold(put.value()));
+                } else if (ins instanceof Ins.PutStatic) {
+                        Ins.PutStatic put = (Ins.PutStatic) ins;
+                        put.setValue(fold(put.value()));
+                } else if (ins instanceof Ins.TReturn) {
+                        Ins.TReturn ret = (Ins.TReturn) ins;
+                        if (ret.value() != null) {
+                                ret.setReturnValue(fold(ret.value()));
+                        }
+                } else if (ins instanceof Ins.IfEq) {
+                        Ins.IfEq ifEq = (Ins.IfEq) ins;
+                        ifEq.setCondition(fold(ifEq.condition()));
+                } else if (ins instanceof Ins.IfNe) {
+                        Ins.IfNe ifNe = (Ins.IfNe) ins;
+                        ifNe.setCondition(fold(ifNe.condition()));
+                } else if (ins instanceof Ins.IfNull) {
+                        fold(((Ins.IfNull) ins).object());
+                } else if (ins instanceof Ins.IfNonNull) {
+                        fold(((Ins.IfNonNull) ins).object());
+                } else if (ins instanceof Ins.IfACmpNe) {
+                        fold(((Ins.IfACmpNe) ins).value1());
+                        fold(((Ins.IfACmpNe) ins).value2());
+                } else if (ins instanceof Ins.Switch) {
+                        Ins.Switch aSwitch = (Ins.Switch) ins;
+                        aSwitch.setKey(fold(aSwitch.key()));
+                } else if (ins instanceof Ins.TAStore) {
+                        fold(((Ins.TAStore) ins).array());
+                        fold(((Ins.TAStore) ins).index());
+                        fold(((Ins.TAStore) ins).value());
+                } else if (ins instanceof Ins.AThrow) {
+                        fold(((Ins.AThrow) ins).exception());
+                } else if (ins instanceof Ins.MonitorEnter) {
+                        fold(((Ins.MonitorEnter) ins).valueToMonitor());
+                } else if (ins instanceof Ins.ExStore
+                        || ins instanceof Ins.MonitorExit
+                        || ins instanceof Ins.Pop) {
+                        // no values inside, see walk(Object, List)
+                }
+        }
+
+        private void foldAll(List<Value> values) {
+                for (int i = 0; i < values.size(); ++i) {
+                        values.set(i, fold(values.get(i)));
+                }
+        }
+
+        /**
+         * fold the value. values which have no setter are rebuilt when their children change.
+         *
+         * @param v value
+         * @return the folded value, or the value itself if it's not changed
+         */
+        private Value fold(Value v) {
+                if (v instanceof ValuePack) {
+                        List<Instruction> list = ((ValuePack) v).instructions();
+                        for (int i = 0; i < list.size(); ++i) {
+                                Instruction ins = list.get(i);
+                                if (ins instanceof Value) {
+                                        Value folded = fold((Value) ins);
+                                        if (folded != ins && !isReferenced(ins)) {
+                                                list.set(i, folded instanceof Instruction
+                                                        ? (Instruction) folded
+                                                        : new ValueAnotherType(((Value) ins).type(), folded, ins.line_col()));
+                                        }
+                                } else {
+                                        foldChildren(ins);
+                                }
+                        }
+                        return v;
+                } else if (v instanceof Ins.Invoke) {
+                        Ins.Invoke invoke = (Ins.Invoke) v;
+                        if (invoke instanceof Ins.InvokeWithTarget) {
+                                Ins.InvokeWithTarget withTarget = (Ins.InvokeWithTarget) invoke;
+                                withTarget.setTarget(fold(withTarget.target()));
+                        }
+                        if (invoke instanceof Ins.InvokeWithCapture) {
+                                foldAll(((Ins.InvokeWithCapture) invoke).capturedArguments());
+                        }
+                        foldAll(invoke.arguments());
+                        if (invoke instanceof Ins.InvokeStatic) {
+                                Value result = calculate((Ins.InvokeStatic) invoke);
+                                if (result != null) return result;
+                        }
+                        return v;
+                } else if (v instanceof Ins.New) {
+                        foldAll(((Ins.New) v).args());
+                        return v;
+                } else if (v instanceof Ins.NewArray) {
+                        foldAll(((Ins.NewArray) v).initValues());
+                        return v;
+                } else if (v instanceof Ins.ANewArray) {
+                        foldAll(((Ins.ANewArray) v).initValues());
+                        return v;
+                } else if (v instanceof Ins.NewList) {
+                        foldAll(((Ins.NewList) v).initValues());
+                        return v;
+                } else if (v instanceof Ins.NewMap) {
+                        for (Map.Entry<Value, Value> entry : ((Ins.NewMap) v).initValues().entrySet()) {
+                                fold(entry.getKey());
+                                entry.setValue(fold(entry.getValue()));
+                        }
+                        return v;
+                } else if (v instanceof Ins.TwoVarOp) {
+                        Ins.TwoVarOp op = (Ins.TwoVarOp) v;
+                        Value a = fold(op.a());
+                        Value b = fold(op.b());
+                        Value result = calculate(a, b, op.op(), op.type());
+                        if (result != null) return result;
+                        if (a == op.a() && b == op.b()) return v;
+                        return new Ins.TwoVarOp(a, b, op.op(), op.type(), op.line_col());
+                } else if (v instanceof Ins.OneVarOp) {
+                        Ins.OneVarOp op = (Ins.OneVarOp) v;
+                        Value value = fold(op.value());
+                        Value result = calculate(value, op.op());
+                        if (result != null) return result;
+                        if (value == op.value()) return v;
+                        return new Ins.OneVarOp(value, op.op(), op.type(), op.line_col());
+                } else if (v instanceof Ins.Cast) {
+                        Ins.Cast cast = (Ins.Cast) v;
+                        Value value = fold(cast.value());
+                        Value result = cast(value, cast.castMode());
+                        if (result != null) return result;
+                        if (value == cast.value()) return v;
+                        return new Ins.Cast(cast.type(), value, cast.castMode(), cast.line_col());
+                } else if (v instanceof Ins.CheckCast) {
+                        Ins.CheckCast checkCast = (Ins.CheckCast) v;
+                        Value value = fold(checkCast.theValueToCheck());
+                        if (value == checkCast.theValueToCheck()) return v;
+                        return new Ins.CheckCast(value, checkCast.type(), checkCast.line_col());
+                } else if (v instanceof ValueAnotherType) {
+                        ValueAnotherType another = (ValueAnotherType) v;
+                        Value value = fold(another.value());
+                        if (value == another.value()) return v;
+                        return new ValueAnotherType(another.type(), value, another.line_col());
+                } else if (v instanceof Ins.LogicAnd) {
+                        Ins.LogicAnd and = (Ins.LogicAnd) v;
+                        Value b1 = fold(and.b1());
+                        Value b2 = fold(and.b2());
+                        if (b1 instanceof BoolValue) {
+                                if (((BoolValue) b1).getValue() == 0) return b1;
+                                if (b2.type() instanceof BoolTypeDef) return b2;
+                        }
+                        if (b2 instanceof BoolValue && ((BoolValue) b2).getValue() != 0 && b1.type() instanceof BoolTypeDef) {
+                                return b1;
+                        }
+                        if (b1 == and.b1() && b2 == and.b2()) return v;
+                        return new Ins.LogicAnd(b1, b2, and.line_col());
+                } else if (v instanceof Ins.LogicOr) {
+                        // v1 is returned as the result if it's true, so only the children are folded
+                        fold(((Ins.LogicOr) v).v1());
+                        fold(((Ins.LogicOr) v).v2());
+                        return v;
+                } else if (v instanceof Ins.GetField) {
+                        fold(((Ins.GetField) v).object());
+                        return v;
+                } else if (v instanceof Ins.TALoad) {
+                        fold(((Ins.TALoad) v).arr());
+                        fold(((Ins.TALoad) v).index());
+                        return v;
+                } else if (v instanceof Ins.ArrayLength) {
+                        fold(((Ins.ArrayLength) v).arrayValue());
+                        return v;
+                } else if (v instanceof Ins.InstanceOf) {
+                        fold(((Ins.InstanceOf) v).object());
+                        return v;
+                } else if (v instanceof Ins.GetClass) {
+                        // a class constant
+                        return v;
+                }
+                return v;
+        }
+
+        private static Integer intOf(Value v) {
+                if (v instanceof IntValue) return ((IntValue) v).getValue();
+                if (v instanceof ShortValue) return ((ShortValue) v).getValue();
+                if (v instanceof ByteValue) return ((ByteValue) v).getValue();
+                if (v instanceof CharValue) return ((CharValue) v).getValue();
+                if (v instanceof BoolValue) return ((BoolValue) v).getValue();
+                return null;
+        }
+
+        /**
+         * @param r    result of an int operation
+         * @param type the result type
+         * @return the constant, or null if the type is not int or bool
+         */
+        private static Value intResult(int r, STypeDef type) {
+                if (type instanceof IntTypeDef) return new IntValue(r);
+                if (type instanceof BoolTypeDef) return new BoolValue(r != 0);
+                return null;
+        }
+
+        private static int compare(double a, double b) {
+                // NaN is considered greater, the same as dcmpg/fcmpg
+                if (a < b) return -1;
+                if (a == b) return 0;
+                return 1;
+        }
+
+        /**
+         * calculate two constants
+         *
+         * @param a    a
+         * @param b    b
+         * @param op   {@link lt.compiler.semantic.Ins.TwoVarOp#op()}
+         * @param type result type
+         * @return the result, or null if it cannot be calculated at compile time
+         */
+        private static Value calculate(Value a, Value b, int op, STypeDef type) {
+                Integer ia = intOf(a);
+                Integer ib = intOf(b);
+                if (ia != null && ib != null) {
+                        int x = ia;
+                        int y = ib;
+                        switch (op) {
+                                case Ins.TwoVarOp.Iadd:
+                                        return intResult(x + y, type);
+                                case Ins.TwoVarOp.Isub:
+                                        return intResult(x - y, type);
+                                case Ins.TwoVarOp.Imul:
+                                        return intResult(x * y, type);
+                                case Ins.TwoVarOp.Idiv:
+                                        return y == 0 ? null : intResult(x / y, type);
+                                case Ins.TwoVarOp.Irem:
+                                        return y == 0 ? null : intResult(x % y, type);
+                                case Ins.TwoVarOp.Ishl:
+                                        return intResult(x << y, type);
+                                case Ins.TwoVarOp.Ishr:
+                                        return intResult(x >> y, type);
+                                case Ins.TwoVarOp.Iushr:
+                                        return intResult(x >>> y, type);
+                                case Ins.TwoVarOp.Iand:
+                                        return intResult(x & y, type);
+                                case Ins.TwoVarOp.Ior:
+                                        return intResult(x | y, type);
+                                case Ins.TwoVarOp.Ixor:
+                                        return intResult(x ^ y, type);
+                                default:
+                                        return null;
+                        }
+                }
+                if (a instanceof LongValue && (b instanceof LongValue || ib != null)) {
+                        long x = ((LongValue) a).getValue();
+                        long y = ib == null ? ((LongValue) b).getValue() : ib;
+                        long r;
+                        switch (op) {
+                                case Ins.TwoVarOp.Lcmp:
+                                        return new IntValue(x < y ? -1 : (x == y ? 0 : 1));
+                                case Ins.TwoVarOp.Lshl:
+                                        return new LongValue(x << y);
+                                case Ins.TwoVarOp.Lshr:
+                                        return new LongValue(x >> y);
+                                case Ins.TwoVarOp.Lushr:
+                                        return new LongValue(x >>> y);
+                        }
+                        if (ib != null) return null;
+                        switch (op) {
+                                case Ins.TwoVarOp.Ladd:
+                                        r = x + y;
+                                        break;
+                                case Ins.TwoVarOp.Lsub:
+                                        r = x - y;
+                                        break;
+                                case Ins.TwoVarOp.Lmul:
+                                        r = x * y;
+                                        break;
+                                case Ins.TwoVarOp.Ldiv:
+                                        if (y == 0) return null;
+                                        r = x / y;
+                                        break;
+                                case Ins.TwoVarOp.Lrem:
+                                        if (y == 0) return null;
+                                        r = x % y;
+                                        break;
+                                case Ins.TwoVarOp.Land:
+                                        r = x & y;
+                                        break;
+                                case Ins.TwoVarOp.Lor:
+                                        r = x | y;
+                                        break;
+                                case Ins.TwoVarOp.Lxor:
+                                        r = x ^ y;
+                                        break;
+                                default:
+                                        return null;
+                        }
+                        return new LongValue(r);
+                }
+                if (a instanceof FloatValue && b instanceof FloatValue) {
+                        float x = ((FloatValue) a).getValue();
+                        float y = ((FloatValue) b).getValue();
+                        switch (op) {
+                                case Ins.TwoVarOp.Fadd:
+                                        return new FloatValue(x + y);
+                                case Ins.TwoVarOp.Fsub:
+                                        return new FloatValue(x - y);
+                                case Ins.TwoVarOp.Fmul:
+                                        return new FloatValue(x * y);
+                                case Ins.TwoVarOp.Fdiv:
+                                        return new FloatValue(x / y);
+                                case Ins.TwoVarOp.Frem:
+                                        return new FloatValue(x % y);
+                                case Ins.TwoVarOp.Fcmpg:
+                                        return new IntValue(compare(x, y));
+                                default:
+                                        return null;
+                        }
+                }
+                if (a instanceof DoubleValue && b instanceof DoubleValue) {
+                        double x = ((DoubleValue) a).getValue();
+                        double y = ((DoubleValue) b).getValue();
+                        switch (op) {
+                                case Ins.TwoVarOp.Dadd:
+                                        return new DoubleValue(x + y);
+                                case Ins.TwoVarOp.Dsub:
+                                        return new DoubleValue(x - y);
+                                case Ins.TwoVarOp.Dmul:
+                                        return new DoubleValue(x * y);
+                                case Ins.TwoVarOp.Ddiv:
+                                        return new DoubleValue(x / y);
+                                case Ins.TwoVarOp.Drem:
+                                        return new DoubleValue(x % y);
+                                case Ins.TwoVarOp.Dcmpg:
+                                        return new IntValue(compare(x, y));
+                                default:
+                                        return null;
+                        }
+                }
+                return null;
+        }
+
+        /**
+         * calculate negative value of a constant
+         *
+         * @param v  value
+         * @param op {@link lt.compiler.semantic.Ins.OneVarOp#op()}
+         * @return the result, or null if it cannot be calculated at compile time
+         */
+        private static Value calculate(Value v, int op) {
+                if (op == Ins.OneVarOp.Ineg && v instanceof IntValue) return new IntValue(-((IntValue) v).getValue());
+                if (op == Ins.OneVarOp.Lneg && v instanceof LongValue) return new LongValue(-((LongValue) v).getValue());
+                if (op == Ins.OneVarOp.Fneg && v instanceof FloatValue) return new FloatValue(-((FloatValue) v).getValue());
+                if (op == Ins.OneVarOp.Dneg && v instanceof DoubleValue) return new DoubleValue(-((DoubleValue) v).getValue());
+                return null;
+        }
+
+        /**
+         * cast a constant
+         *
+         * @param v        value
+         * @param castMode {@link lt.compiler.semantic.Ins.Cast#castMode()}
+         * @return the result, or null if it cannot be calculated at compile time
+         */
+        private static Value cast(Value v, int castMode) {
+                Integer i = intOf(v);
+                if (i != null) {
+                        switch (castMode) {
+                                case Ins.Cast.CAST_INT_TO_LONG:
+                                        return new LongValue(i);
+                                case Ins.Cast.CAST_INT_TO_FLOAT:
+                                        return new FloatValue(i);
+                                case Ins.Cast.CAST_INT_TO_DOUBLE:
+                                        return new DoubleValue(i);
+                                case Ins.Cast.CAST_INT_TO_BYTE:
+                                        return new ByteValue((byte) (int) i);
+                                case Ins.Cast.CAST_INT_TO_CHAR:
+                                        return new CharValue((char) (int) i);
+                                case Ins.Cast.CAST_INT_TO_SHORT:
+                                        return new ShortValue((short) (int) i);
+                                default:
+                                        return null;
+                        }
+                } else if (v instanceof LongValue) {
+                        long l = ((LongValue) v).getValue();
+                        switch (castMode) {
+                                case Ins.Cast.CAST_LONG_TO_INT:
+                                        return new IntValue((int) l);
+                                case Ins.Cast.CAST_LONG_TO_FLOAT:
+                                        return new FloatValue(l);
+                                case Ins.Cast.CAST_LONG_TO_DOUBLE:
+                                        return new DoubleValue(l);
+                                default:
+                                        return null;
+                        }
+                } else if (v instanceof FloatValue) {
+                        float f = ((FloatValue) v).getValue();
+                        switch (castMode) {
+                                case Ins.Cast.CAST_FLOAT_TO_INT:
+                                        return new IntValue((int) f);
+                                case Ins.Cast.CAST_FLOAT_TO_LONG:
+                                        return new LongValue((long) f);
+                                case Ins.Cast.CAST_FLOAT_TO_DOUBLE:
+                                        return new DoubleValue(f);
+                                default:
+                                        return null;
+                        }
+                } else if (v instanceof DoubleValue) {
+                        double d = ((DoubleValue) v).getValue();
+                        switch (castMode) {
+                                case Ins.Cast.CAST_DOUBLE_TO_INT:
+                                        return new IntValue((int) d);
+                                case Ins.Cast.CAST_DOUBLE_TO_LONG:
+                                        return new LongValue((long) d);
+                                case Ins.Cast.CAST_DOUBLE_TO_FLOAT:
+                                        return new FloatValue((float) d);
+                                default:
+                                        return null;
+                        }
+                }
+                return null;
+        }
+
+        private static boolean isMethod(Ins.Invoke invoke, String declaringType, String name, int paramCount) {
+                if (!(invoke.invokable() instanceof SMethodDef)) return false;
+                SMethodDef method = (SMethodDef) invoke.invokable();
+                return method.name().equals(name)
+                        && method.declaringType().fullName().equals(declaringType)
+                        && invoke.arguments().size() == paramCount;
+        }
+
+        /**
+         * @param invoker the invoker argument of <code>Dynamic.invoke</code>
+         * @return true if the invoker imports exactly the built-in implicit classes,
+         * then <code>add</code> on a string is resolved to {@link lt.lang.implicit.RichString#add(Object)} at runtime
+         */
+        private static boolean importsBuiltInImplicitOnly(Value invoker) {
+                if (!(invoker instanceof Ins.GetClass)) return false;
+                for (SAnno anno : ((Ins.GetClass) invoker).targetType().annos()) {
+                        if (!anno.type().fullName().equals("lt.runtime.ImplicitImports")) continue;
+                        Set<String> names = new HashSet<String>();
+                        for (Value v : anno.values().values()) {
+                                if (!(v instanceof SArrayValue)) return false;
+                                for (Value c : ((SArrayValue) v).values()) {
+                                        if (!(c instanceof Ins.GetClass)) return false;
+                                        names.add(((Ins.GetClass) c).targetType().fullName());
+                                }
+                        }
+                        return names.equals(SemanticProcessor.BUILT_IN_IMPLICIT);
+                }
+                return false;
+        }
+
+        /**
+         * calculate invocations on constants, including
+         * <code>LtRuntime.compare</code> and <code>Dynamic.invoke</code> which adds a constant to a string constant.
+         * the latter is only calculated when the invoker imports no other implicit class, see {@link #importsBuiltInImplicitOnly(Value)}
+         *
+         * @param invoke the invocation
+         * @return the result, or null if it cannot be calculated at compile time
+         */
+        private static Value calculate(Ins.InvokeStatic invoke) {
+                List<Value> args = invoke.arguments();
+                if (isMethod(invoke, "lt.runtime.LtRuntime", "compare", 2)) {
+                        if (!(args.get(0) instanceof IntValue) || !(args.get(1) instanceof IntValue)) return null;
+                        int result = ((IntValue) args.get(0)).getValue();
+                        int mode = ((IntValue) args.get(1)).getValue();
+                        return new BoolValue(
+                                ((mode & SemanticProcessor.COMPARE_MODE_EQ) != 0 && result == 0)
+                                        || ((mode & SemanticProcessor.COMPARE_MODE_GT) != 0 && result > 0)
+                                        || ((mode & SemanticProcessor.COMPARE_MODE_LT) != 0 && result < 0));
+                }
+                if (isMethod(invoke, "lt.runtime.Dynamic", "invoke", 9)) {
+                        // Dynamic.invoke(targetClass, o, isStatic, functionalObject, invoker, method, primitives, args, canInvokeImport)
+                        if (!(args.get(1) instanceof StringConstantValue)
+                                || !new BoolValue(false).equals(args.get(2))
+                                || !(args.get(3) instanceof NullValue)
+                                || !new StringConstantValue("add").equals(args.get(5))
+                                || !(args.get(7) instanceof Ins.ANewArray)
+                                || !new BoolValue(false).equals(args.get(8))
+                                || !importsBuiltInImplicitOnly(args.get(4))) return null;
+                        StringConstantValue target = (StringConstantValue) args.get(1);
+                        List<Value> invokeArgs = ((Ins.ANewArray) args.get(7)).initValues();
+                        if (invokeArgs.size() != 1 || !(target.type() instanceof SClassDef)) return null;
+                        String str = stringOf(invokeArgs.get(0));
+                        if (str == null) return null;
+                        // String + o
+                        StringConstantValue result = new StringConstantValue(target.getStr() + str);
+                        result.setType((SClassDef) target.type());
+                        return result;
+                }
+                return null;
+        }
+
+        /**
+         * @param v a string constant or a boxed primitive constant
+         * @return the string form of the value, or null if it's not a constant
+         */
+        private static String stringOf(Value v) {
+                if (v instanceof StringConstantValue) return ((StringConstantValue) v).getStr();
+                if (!(v instanceof Ins.InvokeStatic)) return null;
+                Ins.InvokeStatic box = (Ins.InvokeStatic) v;
+                if (box.arguments().size() != 1 || !(box.invokable() instanceof SMethodDef)) return null;
+                SMethodDef method = (SMethodDef) box.invokable();
+                if (!method.name().equals("valueOf") || !method.declaringType().fullName().startsWith("java.lang.")) {
+                        return null;
+                }
+                return constantToString(box.arguments().get(0));
+        }
+
+        /**
+         * @param v a value
+         * @return the string form of the value if it's a string constant or a primitive constant, otherwise null
+         */
+        static String constantToString(Value v) {
+                if (v instanceof StringConstantValue) return ((StringConstantValue) v).getStr();
+                if (v instanceof BoolValue) return String.valueOf(((BoolValue) v).getValue() != 0);
+                if (v instanceof CharValue) return String.valueOf((char) ((CharValue) v).getValue());
+                if (v instanceof IntValue || v instanceof ShortValue || v instanceof ByteValue) return String.valueOf(intOf(v));
+                if (v instanceof LongValue) return String.valueOf(((LongValue) v).getValue());
+                if (v instanceof FloatValue) return String.valueOf(((FloatValue) v).getValue());
+                if (v instanceof DoubleValue) return String.valueOf(((DoubleValue) v).getValue());
+                return null;
+        }
+
+        /**
+         * @param v value
+         * @return true if the value can be removed when it's discarded
+         */
+        private static boolean isPure(Value v) {
+                if (v instanceof PrimitiveValue
+                        || v instanceof StringConstantValue
+                        || v instanceof NullValue
+                        || v instanceof Ins.TLoad
+                        || v instanceof Ins.This) {
+                        return true;
+                } else if (v instanceof Ins.CheckCast) {
+                        Value value = ((Ins.CheckCast) v).theValueToCheck();
+                        return value.type() != null && v.type().isAssignableFrom(value.type()) && isPure(value);
+                } else if (v instanceof ValueAnotherType) {
+                        return isPure(((ValueAnotherType) v).value());
+                } else if (v instanceof Ins.Cast) {
+                        return isPure(((Ins.Cast) v).value());
+                } else if (v instanceof Ins.OneVarOp) {
+                        return isPure(((Ins.OneVarOp) v).value());
+                } else if (v instanceof Ins.TwoVarOp) {
+                        int op = ((Ins.TwoVarOp) v).op();
+                        // division by zero
+                        return op != Ins.TwoVarOp.Idiv && op != Ins.TwoVarOp.Irem
+                                && op != Ins.TwoVarOp.Ldiv && op != Ins.TwoVarOp.Lrem
+                                && isPure(((Ins.TwoVarOp) v).a()) && isPure(((Ins.TwoVarOp) v).b());
+                } else if (v instanceof Ins.GetStatic) {
+                        // the unit instance
+                        return ((Ins.GetStatic) v).field().declaringType().fullName().equals("lt.lang.Unit");
+                } else if (v instanceof Ins.PointerGetCastHelper) {
+                        return isPure(((Ins.PointerGetCastHelper) v).after());
+                } else if (v instanceof Ins.InvokeVirtual) {
+                        // retrieve value from a pointer local variable
+                        return isMethod((Ins.Invoke) v, "lt.lang.Pointer", "get", 0)
+                                && isPure(((Ins.InvokeVirtual) v).target());
+                } else if (v instanceof Ins.InvokeStatic) {
+                        Ins.InvokeStatic invoke = (Ins.InvokeStatic) v;
+                        if (isMethod(invoke, "lt.lang.Unit", "get", 0)) return true;
+                        // boxing
+                        return invoke.arguments().size() == 1
+                                && invoke.invokable() instanceof SMethodDef
+                                && ((SMethodDef) invoke.invokable()).name().equals("valueOf")
+                                && invoke.arguments().get(0).type() instanceof PrimitiveTypeDef
+                                && invoke.invokable().declaringType().fullName().startsWith("java.lang.")
+                                && isPure(invoke.arguments().get(0));
+                }
+                return false;
+        }
+
+        /**
+         * ifEq(true) and ifNe(false) are removed, ifEq(false) and ifNe(true) are transformed into goto
+         *
+         * @return true if any instruction is changed
+         */
+        private boolean removeConstantBranches() {
+                boolean changed = false;
+                for (int i = 0; i < instructions.size(); ++i) {
+                        Instruction ins = instructions.get(i);
+                        Integer condition;
+                        Instruction target;
+                        boolean jumpIfTrue;
+                        if (ins instanceof Ins.IfEq) {
+                                condition = intOf(((Ins.IfEq) ins).condition());
+                                target = ((Ins.IfEq) ins).gotoIns();
+                                jumpIfTrue = false;
+                        } else if (ins instanceof Ins.IfNe) {
+                                condition = intOf(((Ins.IfNe) ins).condition());
+                                target = ((Ins.IfNe) ins).gotoIns();
+                                jumpIfTrue = true;
+                        } else continue;
+                        if (condition == null) continue;
+                        if (isReferenced(ins)) {
+                                // e.g. `while true`, the loop jumps back to the condition
+                                if (!replaceGotoTarget(i)) continue;
+                                ++i;
+                        }
+
+                        if ((condition != 0) == jumpIfTrue) {
+                                instructions.set(i, new Ins.Goto(target));
+                        } else {
+                                instructions.remove(i--);
+                        }
+                        changed = true;
+                }
+                return changed;
+        }
+
+        /**
+         * insert a nop before the instruction, and let all jumps to the instruction jump to the nop
+         *
+         * @param index index of the instruction
+         * @return false if the instruction is referenced by jumps other than goto or exception tables
+         */
+        private boolean replaceGotoTarget(int index) {
+                Instruction ins = instructions.get(index);
+                List<Object> nodes = new ArrayList<Object>();
+                for (Instruction i : instructions) {
+                        walk(i, nodes);
+                }
+                List<Ins.Goto> gotoList = new ArrayList<Ins.Goto>();
+                for (Object node : nodes) {
+                        if (node instanceof Ins.Goto && ((Ins.Goto) node).gotoIns() == ins) {
+                                gotoList.add((Ins.Goto) node);
+                        }
+                }
+                if (!references.get(ins).equals(gotoList.size())) return false;
+
+                Ins.Nop nop = new Ins.Nop();
+                for (Ins.Goto g : gotoList) {
+                        g.setGotoIns(nop);
+                }
+                instructions.add(index, nop);
+                references.remove(ins);
+                references.put(nop, gotoList.size());
+                return true;
+        }
+
+        /**
+         * remove values without side effect on top level, and the last values of value packs on top level.<br>
+         * the stack is cleared after each top level instruction, so values left by the packs are simply popped
+         *
+         * @return true if any instruction is changed
+         */
+        private boolean removeDiscardedValues() {
+                boolean changed = false;
+                for (int i = 0; i < instructions.size(); ++i) {
+                        Instruction ins = instructions.get(i);
+                        if (isReferenced(ins) || !(ins instanceof Value)) continue;
+                        if (isPure((Value) ins)) {
+                                instructions.remove(i--);
+                                changed = true;
+                        } else {
+                                while (ins instanceof ValuePack) {
+                                        List<Instruction> list = ((ValuePack) ins).instructions();
+                                        if (list.size() < 2) break;
+                                        Instruction last = list.get(list.size() - 1);
+                                        if (!isReferenced(last) && last instanceof Value && isPure((Value) last)) {
+                                                list.remove(list.size() - 1);
+                                                changed = true;
+                                        } else {
+                                                ins = last;
+                                        }
+                                }
+                        }
+                }
+                return changed;
+        }
+
+        /**
+         * remove instructions after goto/switch/return/throw, until an instruction referenced by others
+         *
+         * @return true if any instruction is changed
+         */
+        private boolean removeUnreachable() {
+                boolean changed = false;
+                for (int i = 0; i < instructions.size() - 1; ++i) {
+                        Instruction ins = instructions.get(i);
+                        if (!(ins instanceof Ins.Goto || ins instanceof Ins.Switch
+                                || ins instanceof Ins.TReturn || ins instanceof Ins.AThrow)) continue;
+                        while (i + 1 < instructions.size() && !isReferencedFromOutside(instructions.get(i + 1))) {
+                                instructions.remove(i + 1);
+                                changed = true;
+                        }
+                }
+                return changed;
+        }
+
+        /**
+         * @param ins instruction
+         * @return true if the instruction or instructions inside it are referenced by jumps outside it or exception tables
+         */
+        private boolean isReferencedFromOutside(Instruction ins) {
+                List<Object> nodes = new ArrayList<Object>();
+                walk(ins, nodes);
+                Map<Instruction, Integer> inside = new IdentityHashMap<Instruction, Integer>();
+                countJumps(nodes, inside);
+                for (Object node : nodes) {
+                        if (node instanceof Instruction) {
+                                Integer count = references.get(node);
+                                if (count != null && !count.equals(inside.get(node))) return true;
+                        }
+                }
+                return false;
+        }
+
+        /**
+         * remove goto whose target is the next instruction (only nops between them),
+         * and nops not referenced by any jump or exception table
+         *
+         * @return true if any instruction is changed
+         */
+        private boolean removeUselessJumps() {
+                boolean changed = false;
+                for (int i = 0; i < instructions.size(); ++i) {
+                        Instruction ins = instructions.get(i);
+                        if (isReferenced(ins)) continue;
+                        if (ins instanceof Ins.Nop) {
+                                instructions.remove(i--);
+                                changed = true;
+                        } else if (ins instanceof Ins.Goto) {
+                                Instruction target = ((Ins.Goto) ins).gotoIns();
+                                for (int j = i + 1; j < instructions.size() && instructions.get(j) instanceof Ins.Nop; ++j) {
+                                        if (instructions.get(j) == target) {
+                                                instructions.remove(i--);
+                                                changed = true;
+                                                break;
+                                        }
+                                }
+                        }
+                }
+                return changed;
+        }
+}
@@ -27,7 +27,10 @@ package lt.compiler;
 import lt.compiler.semantic.*;
 import lt.compiler.semantic.builtin.*;
 import lt.compiler.semantic.helper.ASTGHolder;
+import lt.compiler.semantic.helper.ClassFileInfo;
 import lt.compiler.semantic.helper.HalfAppliedTypes;
+import lt.compiler.semantic.helper.PackageIndex;
+import lt.compiler.semantic.helper.TemplateCodec;
 import lt.compiler.syntactic.*;
 import lt.compiler.syntactic.def.*;
 import lt.compiler.syntactic.literal.BoolLiteral;
@@ -41,6 +44,7 @@ import lt.compiler.syntactic.pre.Modifier;
 import lt.compiler.syntactic.pre.PackageDeclare;
 import lt.compiler.util.BindList;
 import lt.compiler.util.Consts;
+import lt.compiler.util.ReassignedNames;
 import lt.dependencies.asm.MethodVisitor;
 import lt.generator.SourceGenerator;
 import lt.lang.GenericTemplate;
@@ -56,9 +60,8 @@ import java.lang.annotation.Retention;
 import java.lang.reflect.*;
 import java.net.URL;
 import java.util.*;
-import java.util.jar.JarFile;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * semantic processor
@@ -87,35 +90,66 @@ public class SemanticProcessor {
          * maps full name to type<br>
          * one type should only exist once in a Processor
          */
-        public Map<String, STypeDef> types = new HashMap<String, STypeDef>();
+        public Map<String, STypeDef> types = new ConcurrentHashMap<String, STypeDef>();
         /**
          * full name to {@link ClassDef} from {@link Parser}
          */
-        public Map<String, ASTGHolder<ClassDef>> originalClasses = new HashMap<String, ASTGHolder<ClassDef>>();
+        public Map<String, ASTGHolder<ClassDef>> originalClasses = new ConcurrentHashMap<String, ASTGHolder<ClassDef>>();
         /**
          * full name to {@link InterfaceDef} from {@link Parser}
          */
-        public Map<String, ASTGHolder<InterfaceDef>> originalInterfaces = new HashMap<String, ASTGHolder<InterfaceDef>>();
+        public Map<String, ASTGHolder<InterfaceDef>> originalInterfaces = new ConcurrentHashMap<String, ASTGHolder<InterfaceDef>>();
         /**
          * full name to {@link FunDef} from {@link Parser}
          */
-        public Map<String, ASTGHolder<FunDef>> originalFunctions = new HashMap<String, ASTGHolder<FunDef>>();
+        public Map<String, ASTGHolder<FunDef>> originalFunctions = new ConcurrentHashMap<String, ASTGHolder<FunDef>>();
         /**
          * full name to {@link ObjectDef} from {@link Parser}
          */
-        public Map<String, ASTGHolder<ObjectDef>> originalObjects = new HashMap<String, ASTGHolder<ObjectDef>>();
+        public Map<String, ASTGHolder<ObjectDef>> originalObjects = new ConcurrentHashMap<String, ASTGHolder<ObjectDef>>();
         /**
          * full name to {@link AnnotationDef} from {@link Parser}
          */
-        public Map<String, ASTGHolder<AnnotationDef>> originalAnnotations = new HashMap<String, ASTGHolder<AnnotationDef>>();
+        public Map<String, ASTGHolder<AnnotationDef>> originalAnnotations = new ConcurrentHashMap<String, ASTGHolder<AnnotationDef>>();
         /**
          * {@link SMethodDef} to it's containing statements
          */
-        public Map<SMethodDef, List<Statement>> methodToStatements = new HashMap<SMethodDef, List<Statement>>();
+        public Map<SMethodDef, List<Statement>> methodToStatements = new ConcurrentHashMap<SMethodDef, List<Statement>>();
         /**
          * file name to Import info
          */
         public Map<String, List<Import>> fileNameToImport = new HashMap<String, List<Import>>();
+        /**
+         * Import info to file name, used to find which file is referring a type
+         */
+        private final Map<List<Import>, String> importToFileName = new IdentityHashMap<List<Import>, String>();
+        /**
+         * file name to names of the types it refers to.<br>
+         * it's only filled when {@link #recordDependencies} is true
+         */
+        public final Map<String, Set<String>> fileNameToDependencies = new ConcurrentHashMap<String, Set<String>>();
+        /**
+         * generic template name to the file defining it.<br>
+         * it's only filled when {@link #recordDependencies} is true
+         */
+        public final Map<String, String> templateToFileName = new ConcurrentHashMap<String, String>();
+        /**
+         * record the types each file refers to, the result is stored in {@link #fileNameToDependencies}
+         */
+        public boolean recordDependencies = false;
+        /**
+         * annotation name =&gt; (field name =&gt; default value). recorded when reading annotations from class files
+         */
+        private final Map<String, Map<String, Object>> compiledAnnotationDefaults = new ConcurrentHashMap<String, Map<String, Object>>();
+        /**
+         * methods found in types from class path, which cannot change during the compilation.
+         * see {@link #findMethodFromTypeWithArguments(LineCol, String, List, STypeDef, STypeDef, int, List, boolean)}
+         */
+        private final Map<MethodLookupKey, List<SMethodDef>> methodLookupCache = new ConcurrentHashMap<MethodLookupKey, List<SMethodDef>>();
+        /**
+         * (candidates, argument count) =&gt; the best match. see {@link #findBestMatch(List, List, LineCol)}
+         */
+        private final Map<List<Object>, SMethodDef> bestMatchCache = new ConcurrentHashMap<List<Object>, SMethodDef>();
         /**
          * file name to package name
          */
@@ -124,11 +158,11 @@ public class SemanticProcessor {
          * a set of types that should be return value of {@link #parse()} method.<br>
          * these types are to be compiled into byte codes
          */
-        public final Set<STypeDef> typeDefSet = new HashSet<STypeDef>();
+        public final Set<STypeDef> typeDefSet = Collections.newSetFromMap(new ConcurrentHashMap<STypeDef, Boolean>());
         /**
          * invokable =&gt; (the-invokable-to-invoke =&gt; the current default parameter).
          */
-        public Map<SInvokable, Map<SInvokable, Expression>> defaultParamInvokable = new HashMap<SInvokable, Map<SInvokable, Expression>>();
+        public Map<SInvokable, Map<SInvokable, Expression>> defaultParamInvokable = new ConcurrentHashMap<SInvokable, Map<SInvokable, Expression>>();
         /**
          * retrieve existing classes from this class loader
          */
@@ -138,13 +172,53 @@ public class SemanticProcessor {
          */
         public final ErrorManager err;
         /**
-         * access which represents a type can be converted into instantiation
+         * access which represents a type can be converted into instantiation.<br>
+         * the flag is switched when parsing expressions, so it's recorded for each thread
+         */
+        private final ThreadLocal<Boolean> enableTypeAccess = new ThreadLocal<Boolean>() {
+                @Override
+                protected Boolean initialValue() {
+                        return true;
+                }
+        };
+        /**
+         * thread count for parsing statements in step 4. the types are parsed one by one if it's less than 2
+         */
+        public int threads = 1;
+        /**
+         * remove statements of a method from {@link #methodToStatements} once the method is parsed
+         */
+        public boolean releaseAST = false;
+        /**
+         * record time and allocation of each step and each type into the profile if it's not null
+         */
+        public CompileProfile profile = null;
+        /**
+         * packages in the jre, shared by all processors
+         */
+        private static volatile Set<String> jrePackages;
+        /**
+         * the processor to retrieve shared types from, see {@link SharedTypes}.
+         * it's null if the types are not shared, or for the shared processor itself
+         */
+        private final SemanticProcessor sharedProcessor;
+        /**
+         * the holder of the shared processor. only used by the shared processor
+         */
+        private final SharedTypes owner;
+        /**
+         * names that are not shared types. only used by the shared processor
+         */
+        private final Set<String> notSharedNames = new HashSet<String>();
+        /**
+         * annotation types of which default values and annotations are filled. only used by the shared processor
          */
-        public boolean enableTypeAccess = true;
+        private final Set<String> filledAnnotations = new HashSet<String>();
         /**
-         * source files
+         * methods overriding methods of the shared types. the shared methods are not modified,
+         * otherwise they would keep methods of all compiling processes
          */
-        private static List<ZipFile> sourceClasses = new LinkedList<ZipFile>();
+        private final Map<SMethodDef, List<SMethodDef>> overriddenSharedMethods = new IdentityHashMap<SMethodDef, List<SMethodDef>>();
         private boolean alreadyWarnJar = false;
 
         /**
@@ -155,9 +229,29 @@ public class SemanticProcessor {
          * @param err             error manager. the fast fail would be set to `true`
          */
         public SemanticProcessor(Map<String, List<Statement>> mapOfStatements, ClassLoader classLoader, ErrorManager err) {
+                this(mapOfStatements, classLoader, err, (SharedTypes) null);
+        }
+
+        /**
+         * initialize the Processor
+         *
+         * @param mapOfStatements a map of fileName to statements
+         * @param classLoader     retrieve loaded classes from this class loader
+         * @param err             error manager. the fast fail would be set to `true`
+         * @param sharedTypes     retrieve types of the compiler's class loader from it, or null to build all types
+         */
+        public SemanticProcessor(Map<String, List<Statement>> mapOfStatements, ClassLoader classLoader, ErrorManager err,
+                                 SharedTypes sharedTypes) {
+                this(mapOfStatements, classLoader, err, sharedTypes == null ? null : sharedTypes.processor(), null);
+        }
+
+        private SemanticProcessor(Map<String, List<Statement>> mapOfStatements, ClassLoader classLoader, ErrorManager err,
+                                  SemanticProcessor sharedProcessor, SharedTypes owner) {
                 this.mapOfStatements = mapOfStatements;
                 this.classLoader = classLoader;
                 this.err = err;
+                this.sharedProcessor = sharedProcessor;
+                this.owner = owner;
                 err.setFastFail(true);
                 // initiate types map
                 // primitive and void
@@ -202,6 +296,87 @@ public class SemanticProcessor {
                 return b;
         }
 
+        /**
+         * @param owner the holder of the shared processor
+         * @return a new processor holding types of the compiler's class loader
+         */
+        static SemanticProcessor newSharedProcessor(SharedTypes owner) {
+                ErrorManager err = new ErrorManager(true);
+                err.out = ErrorManager.Out.allNull();
+                return new SemanticProcessor(
+                        Collections.<String, List<Statement>>emptyMap(), SemanticProcessor.class.getClassLoader(), err, null, owner);
+        }
+
+        /**
+         * retrieve the type from the shared processor. it's invoked on the shared processor
+         *
+         * @param clsName class name
+         * @return the type, or null if the type is not visible from the compiler's class loader,
+         * or it's a generic template (the AST should be recorded by the caller)
+         */
+        private synchronized STypeDef getSharedType(String clsName) {
+                STypeDef type = types.get(clsName);
+                if (type != null) {
+                        return notSharedNames.contains(clsName) ? null : type;
+                }
+                if (notSharedNames.contains(clsName)) return null;
+                if (owner.isUnshared(clsName)) return null;
+                try {
+                        type = getTypeWithName(clsName, Collections.<STypeDef>emptyList(), true, LineCol.SYNTHETIC);
+                } catch (SyntaxException e) {
+                        // some classes that the type refers to are not visible from the compiler's class loader
+                        // types built in this process may be incomplete, so the shared processor is dropped
+                        owner.unshare(clsName, this);
+                        return null;
+                }
+                if (type == null || isRecordedTemplate(clsName)) {
+                        notSharedNames.add(clsName);
+                        return null;
+                }
+                if (types.size() > owner.maxTypes()) {
+                        // later processors start with a new shared processor
+                        owner.drop(this);
+                }
+                return type;
+        }
+
+        private boolean isRecordedTemplate(String clsName) {
+                return originalClasses.containsKey(clsName)
+                        || originalInterfaces.containsKey(clsName)
+                        || originalObjects.containsKey(clsName)
+                        || originalFunctions.containsKey(clsName)
+                        || originalAnnotations.containsKey(clsName);
+        }
+
+        /**
+         * @param type the type
+         * @return true if the type is retrieved from the shared processor
+         */
+        private boolean isSharedType(STypeDef type) {
+                return sharedProcessor != null && sharedProcessor.types.get(type.fullName()) == type;
+        }
+
+        /**
+         * fill default values and annotations of the shared annotation types. it's invoked on the shared processor
+         *
+         * @throws SyntaxException compile error
+         */
+        private synchronized void fillSharedAnnotations() throws SyntaxException {
+                List<SAnnoDef> toFill = new ArrayList<SAnnoDef>();
+                for (STypeDef typeDef : types.values()) {
+                        if (typeDef instanceof SAnnoDef && !filledAnnotations.contains(typeDef.fullName())) {
+                                toFill.add((SAnnoDef) typeDef);
+                        }
+                }
+                for (SAnnoDef annoDef : toFill) {
+                        fillCompiledAnnotation(annoDef);
+                }
+                for (SAnnoDef annoDef : toFill) {
+                        parseAnnoValues(annoDef.annos());
+                        filledAnnotations.add(annoDef.fullName());
+                }
+        }
+
         /**
          * get the map of defined types.
          *
@@ -211,6 +386,21 @@ public class SemanticProcessor {
                 return types;
         }
 
+        /**
+         * drop all AST retained by the processor. it should be invoked after {@link #parse()},
+         * the processor can no longer parse any input after this method is called.
+         */
+        public void releaseAST() {
+                mapOfStatements.clear();
+                originalClasses.clear();
+                originalInterfaces.clear();
+                originalFunctions.clear();
+                originalObjects.clear();
+                originalAnnotations.clear();
+                methodToStatements.clear();
+                defaultParamInvokable.clear();
+        }
+
         /**
          * parse the input AST into STypeDef objects.<br>
          * the parsing process are divided into 4 steps.<br>
@@ -229,6 +419,7 @@ public class SemanticProcessor {
          * @throws SyntaxException compile error
          */
         public Set<STypeDef> parse() throws SyntaxException {
+                CompileProfile.Mark mark = startProfiling();
                 Map<String, List<ClassDef>> fileNameToClassDef = new HashMap<String, List<ClassDef>>();
                 Map<String, List<InterfaceDef>> fileNameToInterfaceDef = new HashMap<String, List<InterfaceDef>>();
                 Map<String, List<FunDef>> fileNameToFunctions = new HashMap<String, List<FunDef>>();
@@ -254,6 +445,7 @@ public class SemanticProcessor {
 
                         // put into map
                         fileNameToImport.put(fileName, imports);
+                        importToFileName.put(imports, fileName);
                         fileNameToClassDef.put(fileName, classDefs);
                         fileNameToInterfaceDef.put(fileName, interfaceDefs);
                         fileNameToFunctions.put(fileName, funDefs);
@@ -462,8 +654,15 @@ public class SemanticProcessor {
                         }
                 }
 
+                recordProfile(CompileProfile.SEMANTIC_STEP_1, null, mark);
+
+                mark = startProfiling();
                 step2(fileNameToPackageName);
+                recordProfile(CompileProfile.SEMANTIC_STEP_2, null, mark);
+                mark = startProfiling();
                 step3();
+                recordProfile(CompileProfile.SEMANTIC_STEP_3, null, mark);
+                mark = startProfiling();
                 // ensures some annotations are loaded
                 getTypeWithName(ImplicitImports.class.getName(), LineCol.SYNTHETIC);
                 getTypeWithName(StaticImports.class.getName(), LineCol.SYNTHETIC);
@@ -473,10 +672,21 @@ public class SemanticProcessor {
                 addImportImplicit();
                 addImportStatic();
                 addRetention();
+                recordProfile(CompileProfile.SEMANTIC_STEP_4, null, mark);
 
                 return typeDefSet;
         }
 
+        private CompileProfile.Mark startProfiling() {
+                return profile == null ? null : profile.start();
+        }
+
+        private void recordProfile(String phase, String name, CompileProfile.Mark mark) {
+                if (mark != null) {
+                        profile.record(phase, name, mark);
+                }
+        }
+
         private void recordClass(ClassDef c, String pkg, List<STypeDef> generics) throws SyntaxException {
                 recordClass(c, pkg, generics, false);
         }
@@ -1040,15 +1250,14 @@ public class SemanticProcessor {
         }
 
         public static boolean packageExistsInClassPath(String pkg, ClassLoader classLoader) {
-                if (classLoader == null) return false;
-                String path = pkg.replace(".", "/");
-                URL url = classLoader.getResource(path);
-                return url != null || packageExistsInClassPath(pkg, classLoader.getParent());
+                return PackageIndex.existsInClassPath(pkg, classLoader);
         }
 
         public boolean packageExistInJRE(String pkg) {
                 if (alreadyWarnJar) return true;
-                if (sourceClasses.isEmpty()) {
+                Set<String> packages = jrePackages;
+                if (packages == null) {
+                        List<File> sourceClasses = new ArrayList<File>();
                         String homePath = System.getProperty("java.home");
                         if (homePath == null) {
                                 err.warning("Cannot find java home via System.getProperty('java.home')");
@@ -1118,30 +1327,28 @@ public class SemanticProcessor {
                                         alreadyWarnJar = true;
                                         return true;
                                 }
-                                try {
-                                        sourceClasses.add(new JarFile(rtFile));
-                                } catch (IOException e) {
-                                        err.warning("Occurred exception " + e + " when opening rt.jar");
-                                        alreadyWarnJar = true;
-                                        return true;
-                                }
+                                sourceClasses.add(rtFile);
                         } else {
                                 // check java 9 mods
-                                if (!findJava9(homePathFile)) {
+                                if (!findJava9JMods(homePathFile, sourceClasses)) {
                                         err.warning(homePath + "/lib/rt.jar not exist");
                                         alreadyWarnJar = true;
                                         return true;
                                 }
                         }
+                        try {
+                                packages = PackageIndex.of(sourceClasses);
+                        } catch (IOException e) {
+                                err.warning("Occurred exception " + e + " when reading " + sourceClasses);
+                                alreadyWarnJar = true;
+                                return true;
+                        }
+                        jrePackages = packages;
                 }
-                return findPackage(pkg, sourceClasses);
-        }
-
-        private boolean findJava9(File home) {
-                return findJava9JMods(home);
+                return packages.contains(pkg);
         }
 
-        private boolean findJava9JMods(File home) {
+        private static boolean findJava9JMods(File home, List<File> sourceClasses) {
                 File[] jmodsDirA = home.listFiles(new FileFilter() {
                         @Override
                         public boolean accept(File file) {
@@ -1161,38 +1368,12 @@ public class SemanticProcessor {
                 if (mods == null || mods.length == 0) {
                         return false;
                 }
-                for (File f : mods) {
-                        try {
-                                sourceClasses.add(new ZipFile(f));
-                        } catch (IOException e) {
-                                return false;
-                        }
-                }
+                // sort the files to keep the index key stable
+                Arrays.sort(mods);
+                sourceClasses.addAll(Arrays.asList(mods));
                 return true;
         }
 
-        private static boolean findPackage(String pkg, List<ZipFile> files) {
-                for (ZipFile f : files) {
-                        if (findPackage(pkg, f.entries())) {
-                                return true;
-                        }
-                }
-                return false;
-        }
-
-        private static boolean findPackage(String pkg, Enumeration<? extends ZipEntry> entries) {
-                while (entries.hasMoreElements()) {
-                        ZipEntry entry = entries.nextElement();
-                        if (entry.getName().startsWith(pkg.replace(".", "/"))) {
-                                return true;
-                        }
-                        if (entry.getName().startsWith("classes/" + pkg.replace(".", "/"))) {
-                                return true;
-                        }
-                }
-                return false;
-        }
-
         /**
          * ======= step 2 =======
          * build fields,methods,constructors,parameters,parent-classes,super-interfaces,annotations.
@@ -1913,34 +2094,13 @@ public class SemanticProcessor {
                 }
                 // compiled annotations
                 // fill the values directly
+                // the shared annotation types are filled by the shared processor only once
+                if (sharedProcessor != null) {
+                        sharedProcessor.fillSharedAnnotations();
+                }
                 for (STypeDef typeDef : types.values()) {
-                        if (typeDef instanceof SAnnoDef) {
-                                boolean isCompiledAnnotation = true;
-                                SAnnoDef annoDef = (SAnnoDef) typeDef;
-                                Class<?> cls = null;
-                                try {
-                                        cls = loadClass(annoDef.fullName());
-                                } catch (ClassNotFoundException e) {
-                                        isCompiledAnnotation = false;
-                                }
-                                // parse field default values
-                                if (isCompiledAnnotation) {
-                                        for (SAnnoField f : annoDef.annoFields()) {
-                                                try {
-                                                        Method annoM = cls.getDeclaredMethod(f.name());
-                                                        try {
-                                                                Object o = annoM.getDefaultValue();
-                                                                if (null != o) {
-                                                                        Value value = parseValueFromObject(o);
-                                                                        f.setDefaultValue(value);
-                                                                }
-                                                        } catch (TypeNotPresentException ignore) {
-                                                        }
-                                                } catch (NoSuchMethodException e) {
-                                                        throw new LtBug(e);
-                                                }
-                                        }
-                                }
+                        if (typeDef instanceof SAnnoDef && !isSharedType(typeDef)) {
+                                fillCompiledAnnotation((SAnnoDef) typeDef);
                         }
                 }
                 // fill true value to not compiled annotations
@@ -1969,13 +2129,56 @@ public class SemanticProcessor {
                 }
                 // parse annotations presented on this type
                 for (STypeDef typeDef : types.values()) {
-                        if (typeDef instanceof SAnnoDef) {
+                        if (typeDef instanceof SAnnoDef && !isSharedType(typeDef)) {
                                 SAnnoDef annoDef = (SAnnoDef) typeDef;
                                 parseAnnoValues(annoDef.annos());
                         }
                 }
         }
 
+        /**
+         * fill default values of the annotation fields if it's a compiled annotation
+         *
+         * @param annoDef the annotation type
+         * @throws SyntaxException compile error
+         */
+        private void fillCompiledAnnotation(SAnnoDef annoDef) throws SyntaxException {
+                Map<String, Object> defaults = compiledAnnotationDefaults.get(annoDef.fullName());
+                if (defaults != null) {
+                        // read from class file
+                        for (SAnnoField f : annoDef.annoFields()) {
+                                Object o = defaults.get(f.name());
+                                if (null != o) {
+                                        f.setDefaultValue(parseValueFromObject(o, f.type()));
+                                }
+                        }
+                        return;
+                }
+                Class<?> cls;
+                try {
+                        cls = loadClass(annoDef.fullName());
+                } catch (ClassNotFoundException e) {
+                        // not compiled annotation
+                        return;
+                }
+                // parse field default values
+                for (SAnnoField f : annoDef.annoFields()) {
+                        try {
+                                Method annoM = cls.getDeclaredMethod(f.name());
+                                try {
+                                        Object o = annoM.getDefaultValue();
+                                        if (null != o) {
+                                                Value value = parseValueFromObject(o);
+                                                f.setDefaultValue(value);
+                                        }
+                                } catch (TypeNotPresentException ignore) {
+                                }
+                        } catch (NoSuchMethodException e) {
+                                throw new LtBug(e);
+                        }
+                }
+        }
+
         private Value transformIntoAnnoValidValue(Value value, LineCol lineCol) throws SyntaxException {
                 if (value.type() instanceof PrimitiveTypeDef) return value;
                 if (value instanceof StringConstantValue) return value;
@@ -2022,215 +2225,286 @@ public class SemanticProcessor {
                 // then
                 // foreach typeDefSet, parse their statements
                 List<STypeDef> typeDefList = new ArrayList<STypeDef>(typeDefSet);
-                for (STypeDef sTypeDef : typeDefList) {
-                        if (isGenericTemplateType(sTypeDef)) {
-                                typeDefSet.remove(sTypeDef);
-                                generateGenericTemplateClass(sTypeDef);
-                                continue;
+                if (threads < 2 || typeDefList.size() < 2) {
+                        for (STypeDef sTypeDef : typeDefList) {
+                                if (!parseAndProfileTypeStatements(sTypeDef)) return;
                         }
-                        if (sTypeDef instanceof SClassDef) {
-                                SClassDef sClassDef = (SClassDef) sTypeDef;
-                                ASTGHolder<ClassDef> classHolder = originalClasses.get(sClassDef.fullName());
-                                ASTGHolder<ObjectDef> objectHolder = originalObjects.get(sClassDef.fullName());
-                                ClassDef astClass = (null == classHolder) ? null : classHolder.s;
-                                ObjectDef astObject = (null == objectHolder) ? null : objectHolder.s;
-
-                                parseAnnoValues(sClassDef.annos());
-
-                                // initiate the type scope
-                                SemanticScope scope = new SemanticScope(sTypeDef, null);
-
-                                // parse constructors
-                                for (SConstructorDef constructorToFillStatements : sClassDef.constructors()) {
-                                        // if is not empty then continue
-                                        if (!constructorToFillStatements.statements().isEmpty())
-                                                continue;
-                                        // initiate constructor scope
-                                        SemanticScope constructorScope = new SemanticScope(scope, constructorToFillStatements.meta());
-                                        constructorScope.setThis(new Ins.This(sTypeDef)); // set `this`
-                                        for (SParameter param : constructorToFillStatements.getParameters()) {
-                                                constructorScope.putLeftValue(param.name(), param);
-                                        }
+                } else {
+                        parseTypeStatementsInParallel(typeDefList);
+                }
+        }
 
-                                        if (defaultParamInvokable.containsKey(constructorToFillStatements)) {
-                                                fillDefaultParamMethod(constructorToFillStatements, constructorScope);
-                                        } else {
-                                                // parse invoke super constructor statement
-                                                SClassDef parent = sClassDef.parent();
-                                                Ins.InvokeSpecial invokeConstructor = null;
-
-                                                assert (astClass == null && astObject != null) || (astClass != null && astObject == null);
-
-                                                AST.Invocation superWithInvocation = (
-                                                        astClass == null) ? astObject.superWithInvocation
-                                                        : astClass.superWithInvocation;
-
-                                                if (null == superWithInvocation) {
-                                                        // invoke super();
-                                                        for (SConstructorDef cons : parent.constructors()) {
-                                                                if (cons.getParameters().size() == 0) {
-                                                                        invokeConstructor = new Ins.InvokeSpecial(new Ins.This(sClassDef), cons,
-                                                                                sClassDef.line_col());
-                                                                        break;
-                                                                }
-                                                        }
-                                                } else {
-                                                        // invoke super with args
-                                                        for (SConstructorDef cons : parent.constructors()) {
-                                                                if (cons.getParameters().size() == superWithInvocation.args.size()) {
-                                                                        invokeConstructor = new Ins.InvokeSpecial(new Ins.This(sClassDef), cons,
-                                                                                superWithInvocation.line_col());
-
-                                                                        List<SParameter> parameters = cons.getParameters();
-                                                                        List<Expression> args = superWithInvocation.args;
-                                                                        for (int i = 0; i < parameters.size(); ++i) {
-                                                                                Value v = parseValueFromExpression(args.get(i), parameters.get(i).type(), constructorScope);
-                                                                                invokeConstructor.arguments().add(v);
-                                                                        }
-                                                                        break;
-                                                                }
+        /**
+         * parse statements of the types with a thread pool.<br>
+         * all signatures are fixed after step 3, and one type is always parsed by one thread,
+         * because inner methods and lambda methods are added into the type which is being parsed.<br>
+         * the result is the same as parsing the types one by one: when a type fails,
+         * the types after it in the list are not parsed, and the failure of the first type in the list is reported
+         *
+         * @param typeDefList types to parse
+         * @throws SyntaxException exception
+         */
+        private void parseTypeStatementsInParallel(List<STypeDef> typeDefList) throws SyntaxException {
+                ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, typeDefList.size()));
+                // index of the first type which stops step 4
+                final AtomicInteger stopIndex = new AtomicInteger(Integer.MAX_VALUE);
+                try {
+                        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+                        for (int i = 0; i < typeDefList.size(); ++i) {
+                                final int index = i;
+                                final STypeDef sTypeDef = typeDefList.get(i);
+                                futures.add(pool.submit(new Callable<Boolean>() {
+                                        @Override
+                                        public Boolean call() throws Exception {
+                                                if (index > stopIndex.get()) return true;
+                                                boolean goOn = false;
+                                                try {
+                                                        goOn = parseAndProfileTypeStatements(sTypeDef);
+                                                } finally {
+                                                        if (!goOn) {
+                                                                int stop;
+                                                                do {
+                                                                        stop = stopIndex.get();
+                                                                } while (index < stop && !stopIndex.compareAndSet(stop, index));
                                                         }
                                                 }
-                                                if (null == invokeConstructor) {
-                                                        err.SyntaxException("no suitable super constructor to invoke in " + sClassDef, sClassDef.line_col());
-                                                        return;
-                                                }
-                                                constructorToFillStatements.statements().add(invokeConstructor);
-
-                                                // put field
-                                                for (SParameter param : constructorToFillStatements.getParameters()) {
-                                                        SFieldDef f = null;
-                                                        for (SFieldDef field : sClassDef.fields()) {
-                                                                if (field.name().equals(param.name())) {
-                                                                        f = field;
-                                                                        break;
-                                                                }
-                                                        }
-                                                        if (f == null) throw new LtBug("f should not be null");
+                                                return goOn;
+                                        }
+                                }));
+                        }
+                        for (Future<Boolean> f : futures) {
+                                try {
+                                        if (!f.get()) return;
+                                } catch (ExecutionException e) {
+                                        Throwable t = e.getCause();
+                                        if (t instanceof SyntaxException) throw (SyntaxException) t;
+                                        if (t instanceof RuntimeException) throw (RuntimeException) t;
+                                        if (t instanceof Error) throw (Error) t;
+                                        throw new LtBug(t);
+                                } catch (InterruptedException e) {
+                                        throw new LtBug(e);
+                                }
+                        }
+                } finally {
+                        pool.shutdownNow();
+                }
+        }
 
-                                                        Ins.PutField putField = new Ins.PutField(f, constructorScope.getThis(),
-                                                                new Ins.TLoad(param, constructorScope, LineCol.SYNTHETIC), LineCol.SYNTHETIC, err);
-                                                        constructorToFillStatements.statements().add(putField);
-                                                }
+        private boolean parseAndProfileTypeStatements(STypeDef sTypeDef) throws SyntaxException {
+                CompileProfile.Mark mark = startProfiling();
+                boolean goOn = parseTypeStatements(sTypeDef);
+                recordProfile(CompileProfile.SEMANTIC_STEP_4, sTypeDef.fullName(), mark);
+                return goOn;
+        }
 
-                                                // a new constructor scope
-                                                // the parameters are ignored and all variables are fields
-                                                constructorScope = new SemanticScope(scope, constructorToFillStatements.meta());
-                                                constructorScope.setThis(new Ins.This(sTypeDef)); // set `this`
-                                                for (SParameter param : constructorToFillStatements.getParameters()) {
-                                                        constructorScope.putLeftValue(constructorScope.generateTempName(), param);
-                                                }
+        /**
+         * parse annotation values and statements of constructors, methods and static scope of the type
+         *
+         * @param sTypeDef the type to parse
+         * @return false if an error is recorded and step 4 should stop
+         * @throws SyntaxException exception
+         */
+        private boolean parseTypeStatements(STypeDef sTypeDef) throws SyntaxException {
+                if (isGenericTemplateType(sTypeDef)) {
+                        typeDefSet.remove(sTypeDef);
+                        generateGenericTemplateClass(sTypeDef);
+                        return true;
+                }
+                if (sTypeDef instanceof SClassDef) {
+                        SClassDef sClassDef = (SClassDef) sTypeDef;
+                        ASTGHolder<ClassDef> classHolder = originalClasses.get(sClassDef.fullName());
+                        ASTGHolder<ObjectDef> objectHolder = originalObjects.get(sClassDef.fullName());
+                        ClassDef astClass = (null == classHolder) ? null : classHolder.s;
+                        ObjectDef astObject = (null == objectHolder) ? null : objectHolder.s;
 
-                                                paramValueAvaliable(constructorToFillStatements.getParameters(),
-                                                        constructorToFillStatements.statements(), constructorScope,
-                                                        constructorToFillStatements.line_col());
+                        parseAnnoValues(sClassDef.annos());
 
-                                                // parse this constructor
-                                                List<Statement> statements = (
-                                                        astClass == null) ? astObject.statements
-                                                        : astClass.statements;
-                                                for (Statement stmt : statements) {
-                                                        parseStatement(
-                                                                stmt,
-                                                                VoidType.get(),
-                                                                constructorScope,
-                                                                constructorToFillStatements.statements(),
-                                                                constructorToFillStatements.exceptionTables(),
-                                                                null, null,
-                                                                true);
-                                                }
-                                        }
-                                }
+                        // initiate the type scope
+                        SemanticScope scope = new SemanticScope(sTypeDef, null);
 
-                                // parse method
-                                // use traditional for loop because the method list might be modified
-                                int methodSize = sClassDef.methods().size();
-                                List<SMethodDef> methods = sClassDef.methods();
-                                for (int i = 0; i < methodSize; i++) {
-                                        SMethodDef method = methods.get(i);
-                                        parseAnnoValues(method.annos());
-                                        parseMethod(method, methodToStatements.get(method), scope);
+                        // parse constructors
+                        for (SConstructorDef constructorToFillStatements : sClassDef.constructors()) {
+                                // if is not empty then continue
+                                if (!constructorToFillStatements.statements().isEmpty())
+                                        continue;
+                                // initiate constructor scope
+                                SemanticScope constructorScope = new SemanticScope(scope, constructorToFillStatements.meta());
+                                constructorScope.setThis(new Ins.This(sTypeDef)); // set `this`
+                                for (SParameter param : constructorToFillStatements.getParameters()) {
+                                        constructorScope.putLeftValue(param.name(), param);
                                 }
 
-                                // if not function
-                                if (sClassDef.classType() != SClassDef.FUN) {
+                                if (defaultParamInvokable.containsKey(constructorToFillStatements)) {
+                                        fillDefaultParamMethod(constructorToFillStatements, constructorScope);
+                                } else {
+                                        // parse invoke super constructor statement
+                                        SClassDef parent = sClassDef.parent();
+                                        Ins.InvokeSpecial invokeConstructor = null;
+
                                         assert (astClass == null && astObject != null) || (astClass != null && astObject == null);
 
-                                        List<Statement> statements = (
-                                                astClass == null) ? astObject.statements
-                                                : astClass.statements;
-                                        // parse static
-                                        SemanticScope staticScope = new SemanticScope(scope, sClassDef.staticMeta());
-
-                                        if (sClassDef.classType() == SClassDef.OBJECT) {
-                                                SFieldDef singletonInstanceField = null;
-                                                for (SFieldDef f : sClassDef.fields()) {
-                                                        if (f.name().equals(CompileUtil.SingletonFieldName)) {
-                                                                singletonInstanceField = f;
+                                        AST.Invocation superWithInvocation = (
+                                                astClass == null) ? astObject.superWithInvocation
+                                                : astClass.superWithInvocation;
+
+                                        if (null == superWithInvocation) {
+                                                // invoke super();
+                                                for (SConstructorDef cons : parent.constructors()) {
+                                                        if (cons.getParameters().size() == 0) {
+                                                                invokeConstructor = new Ins.InvokeSpecial(new Ins.This(sClassDef), cons,
+                                                                        sClassDef.line_col());
                                                                 break;
                                                         }
                                                 }
-                                                if (singletonInstanceField == null)
-                                                        throw new LtBug("object class should have field " + CompileUtil.SingletonFieldName);
-                                                Ins.New aNew = new Ins.New(
-                                                        sClassDef.constructors().get(0), LineCol.SYNTHETIC
-                                                );
-                                                Ins.PutStatic ps = new Ins.PutStatic(singletonInstanceField,
-                                                        aNew, LineCol.SYNTHETIC, err);
-                                                sClassDef.staticStatements().add(ps);
+                                        } else {
+                                                // invoke super with args
+                                                for (SConstructorDef cons : parent.constructors()) {
+                                                        if (cons.getParameters().size() == superWithInvocation.args.size()) {
+                                                                invokeConstructor = new Ins.InvokeSpecial(new Ins.This(sClassDef), cons,
+                                                                        superWithInvocation.line_col());
+
+                                                                List<SParameter> parameters = cons.getParameters();
+                                                                List<Expression> args = superWithInvocation.args;
+                                                                for (int i = 0; i < parameters.size(); ++i) {
+                                                                        Value v = parseValueFromExpression(args.get(i), parameters.get(i).type(), constructorScope);
+                                                                        invokeConstructor.arguments().add(v);
+                                                                }
+                                                                break;
+                                                        }
+                                                }
+                                        }
+                                        if (null == invokeConstructor) {
+                                                err.SyntaxException("no suitable super constructor to invoke in " + sClassDef, sClassDef.line_col());
+                                                return false;
                                         }
+                                        constructorToFillStatements.statements().add(invokeConstructor);
 
-                                        for (Statement statement : statements) {
-                                                if (statement instanceof AST.StaticScope) {
-                                                        AST.StaticScope sta = (AST.StaticScope) statement;
-                                                        for (Statement stmt : sta.statements) {
-                                                                parseStatement(
-                                                                        stmt,
-                                                                        VoidType.get(),
-                                                                        staticScope,
-                                                                        sClassDef.staticStatements(),
-                                                                        sClassDef.staticExceptionTable(),
-                                                                        null, null,
-                                                                        true);
+                                        // put field
+                                        for (SParameter param : constructorToFillStatements.getParameters()) {
+                                                SFieldDef f = null;
+                                                for (SFieldDef field : sClassDef.fields()) {
+                                                        if (field.name().equals(param.name())) {
+                                                                f = field;
+                                                                break;
                                                         }
                                                 }
+                                                if (f == null) throw new LtBug("f should not be null");
+
+                                                Ins.PutField putField = new Ins.PutField(f, constructorScope.getThis(),
+                                                        new Ins.TLoad(param, constructorScope, LineCol.SYNTHETIC), LineCol.SYNTHETIC, err);
+                                                constructorToFillStatements.statements().add(putField);
                                         }
-                                }
-                        } else if (sTypeDef instanceof SInterfaceDef) {
-                                SInterfaceDef sInterfaceDef = (SInterfaceDef) sTypeDef;
-                                ASTGHolder<InterfaceDef> holder = originalInterfaces.get(sInterfaceDef.fullName());
-                                InterfaceDef astInterface = holder.s;
 
-                                parseAnnoValues(sInterfaceDef.annos());
+                                        // a new constructor scope
+                                        // the parameters are ignored and all variables are fields
+                                        constructorScope = new SemanticScope(scope, constructorToFillStatements.meta());
+                                        constructorScope.setThis(new Ins.This(sTypeDef)); // set `this`
+                                        for (SParameter param : constructorToFillStatements.getParameters()) {
+                                                constructorScope.putLeftValue(constructorScope.generateTempName(), param);
+                                        }
 
-                                SemanticScope scope = new SemanticScope(sInterfaceDef, null);
+                                        paramValueAvaliable(constructorToFillStatements.getParameters(),
+                                                constructorToFillStatements.statements(), constructorScope,
+                                                constructorToFillStatements.line_col());
 
-                                // parse method
-                                // use traditional for loop because the method list might be modified
-                                int methodSize = sInterfaceDef.methods().size();
-                                List<SMethodDef> methods = sInterfaceDef.methods();
-                                for (int i = 0; i < methodSize; ++i) {
-                                        SMethodDef method = methods.get(i);
-                                        parseMethod(method, methodToStatements.get(method), scope);
+                                        // parse this constructor
+                                        List<Statement> statements = (
+                                                astClass == null) ? astObject.statements
+                                                : astClass.statements;
+                                        for (Statement stmt : statements) {
+                                                parseStatement(
+                                                        stmt,
+                                                        VoidType.get(),
+                                                        constructorScope,
+                                                        constructorToFillStatements.statements(),
+                                                        constructorToFillStatements.exceptionTables(),
+                                                        null, null,
+                                                        true);
+                                        }
                                 }
+                        }
+
+                        // parse method
+                        // use traditional for loop because the method list might be modified
+                        int methodSize = sClassDef.methods().size();
+                        List<SMethodDef> methods = sClassDef.methods();
+                        for (int i = 0; i < methodSize; i++) {
+                                SMethodDef method = methods.get(i);
+                                parseAnnoValues(method.annos());
+                                parseMethod(method, methodToStatements.get(method), scope);
+                                if (releaseAST) methodToStatements.remove(method);
+                        }
+
+                        // if not function
+                        if (sClassDef.classType() != SClassDef.FUN) {
+                                assert (astClass == null && astObject != null) || (astClass != null && astObject == null);
 
+                                List<Statement> statements = (
+                                        astClass == null) ? astObject.statements
+                                        : astClass.statements;
                                 // parse static
-                                SemanticScope staticScope = new SemanticScope(scope, sInterfaceDef.staticMeta());
-                                for (Statement statement : astInterface.statements) {
-                                        if (statement instanceof AST.StaticScope) {
-                                                for (Statement statementInStatic : ((AST.StaticScope) statement).statements) {
-                                                        parseStatement(
-                                                                statementInStatic,
+                                SemanticScope staticScope = new SemanticScope(scope, sClassDef.staticMeta());
+
+                                if (sClassDef.classType() == SClassDef.OBJECT) {
+                                        SFieldDef singletonInstanceField = null;
+                                        for (SFieldDef f : sClassDef.fields()) {
+                                                if (f.name().equals(CompileUtil.SingletonFieldName)) {
+                                                        singletonInstanceField = f;
+                                                        break;
+                                                }
+                                        }
+                                        if (singletonInstanceField == null)
+                                                throw new LtBug("object class should have field " + CompileUtil.SingletonFieldName);
+                                        Ins.New aNew = new Ins.New(
+                                                sClassDef.constructors().get(0), LineCol.SYNTHETIC
+                                        );
+                                        Ins.PutStatic ps = new Ins.PutStatic(singletonInstanceField,
+                                                aNew, LineCol.SYNTHETIC, err);
+                                        sClassDef.staticStatements().add(ps);
+                                }
+
+                                for (Statement statement : statements) {
+                                        if (statement instanceof AST.StaticScope) {
+                                                AST.StaticScope sta = (AST.StaticScope) statement;
+                                                for (Statement stmt : sta.statements) {
+                                                        parseStatement(
+                                                                stmt,
                                                                 VoidType.get(),
                                                                 staticScope,
-                                                                sInterfaceDef.staticStatements(),
-                                                                sInterfaceDef.staticExceptionTable(),
+                                                                sClassDef.staticStatements(),
+                                                                sClassDef.staticExceptionTable(),
                                                                 null, null,
                                                                 true);
                                                 }
-                                        } else {
+                                        }
+                                }
+                        }
+                } else if (sTypeDef instanceof SInterfaceDef) {
+                        SInterfaceDef sInterfaceDef = (SInterfaceDef) sTypeDef;
+                        ASTGHolder<InterfaceDef> holder = originalInterfaces.get(sInterfaceDef.fullName());
+                        InterfaceDef astInterface = holder.s;
+
+                        parseAnnoValues(sInterfaceDef.annos());
+
+                        SemanticScope scope = new SemanticScope(sInterfaceDef, null);
+
+                        // parse method
+                        // use traditional for loop because the method list might be modified
+                        int methodSize = sInterfaceDef.methods().size();
+                        List<SMethodDef> methods = sInterfaceDef.methods();
+                        for (int i = 0; i < methodSize; ++i) {
+                                SMethodDef method = methods.get(i);
+                                parseMethod(method, methodToStatements.get(method), scope);
+                                if (releaseAST) methodToStatements.remove(method);
+                        }
+
+                        // parse static
+                        SemanticScope staticScope = new SemanticScope(scope, sInterfaceDef.staticMeta());
+                        for (Statement statement : astInterface.statements) {
+                                if (statement instanceof AST.StaticScope) {
+                                        for (Statement statementInStatic : ((AST.StaticScope) statement).statements) {
                                                 parseStatement(
-                                                        statement,
+                                                        statementInStatic,
                                                         VoidType.get(),
                                                         staticScope,
                                                         sInterfaceDef.staticStatements(),
@@ -2238,11 +2512,21 @@ public class SemanticProcessor {
                                                         null, null,
                                                         true);
                                         }
+                                } else {
+                                        parseStatement(
+                                                statement,
+                                                VoidType.get(),
+                                                staticScope,
+                                                sInterfaceDef.staticStatements(),
+                                                sInterfaceDef.staticExceptionTable(),
+                                                null, null,
+                                                true);
                                 }
-                        } else if (!(sTypeDef instanceof SAnnoDef)) {
-                                throw new LtBug("wrong STypeDefType " + sTypeDef.getClass());
                         }
+                } else if (!(sTypeDef instanceof SAnnoDef)) {
+                        throw new LtBug("wrong STypeDefType " + sTypeDef.getClass());
                 }
+                return true;
         }
 
         private void generateGenericTemplateClass(STypeDef sTypeDef) throws SyntaxException {
@@ -2268,22 +2552,13 @@ public class SemanticProcessor {
                 } else {
                         throw new LtBug("unknown sTypeDef " + sTypeDef);
                 }
-                String str = serializeObjectToString(defi);
 
                 // class
                 SClassDef c = new SClassDef(SClassDef.NORMAL, LineCol.SYNTHETIC);
                 c.setFullName(sTypeDef.fullName());
                 c.modifiers().add(SModifier.PUBLIC);
-                // field
-                SFieldDef f = new SFieldDef(LineCol.SYNTHETIC);
-                f.setName(Consts.AST_FIELD);
-                f.setType(getTypeWithName("java.lang.String", LineCol.SYNTHETIC));
-                f.modifiers().add(SModifier.PUBLIC);
-                f.modifiers().add(SModifier.STATIC);
-                c.fields().add(f);
-                f.setDeclaringType(c);
-                c.staticStatements().add(new Ins.PutStatic(f, new StringConstantValue(str), LineCol.SYNTHETIC, err));
-                f.alreadyAssigned();
+                // ast
+                c.setTemplateAST(TemplateCodec.encode(defi));
                 // anno
                 SAnnoDef aDef = (SAnnoDef) getTypeWithName(GenericTemplate.class.getName(), LineCol.SYNTHETIC);
                 SAnno a = new SAnno();
@@ -2292,6 +2567,9 @@ public class SemanticProcessor {
                 a.setPresent(c);
 
                 typeDefSet.add(c);
+                if (recordDependencies && defi.line_col().fileName != null) {
+                        templateToFileName.put(c.fullName(), defi.line_col().fileName);
+                }
         }
 
         /**
@@ -2316,7 +2594,7 @@ public class SemanticProcessor {
                         // do check
                         for (SMethodDef m : abstractMethods) {
                                 boolean found = false;
-                                for (SMethodDef overridden : m.overridden()) {
+                                for (SMethodDef overridden : overriddenMethods(m)) {
                                         if (overridden.declaringType().equals(c)) {
                                                 found = true;
                                                 break;
@@ -2843,6 +3121,10 @@ public class SemanticProcessor {
                 if (!methodDef.getReturnType().equals(VoidType.get())) {
                         transformLastExpToReturn(statements);
                 }
+                methodDef.meta().reassignedNames = ReassignedNames.of(statements);
+                if (methodDef.meta().selfName == null && cannotBeOverridden(methodDef)) {
+                        methodDef.meta().selfName = methodDef.name();
+                }
 
                 SemanticScope scope = new SemanticScope(superScope, methodDef.meta());
                 if (!methodDef.modifiers().contains(SModifier.STATIC)) {
@@ -2863,16 +3145,14 @@ public class SemanticProcessor {
                         for (SParameter p : methodDef.getParameters()) {
                                 if (p.canChange() && !isPointerType(p.type()) && CompileUtil.isValidName(p.name())) {
                                         // get the value and put into container
-                                        PointerType t = new PointerType(p.type());
-                                        if (types.containsKey(t.toString())) {
-                                                t = (PointerType) types.get(t.toString());
-                                        } else {
-                                                types.put(t.toString(), t);
-                                        }
+                                        PointerType t = getPointerType(p.type());
 
                                         LocalVariable local = new LocalVariable(t, p.canChange());
                                         scope.putLeftValue(p.name(), local);
                                         local.setWrappingParam(p);
+                                        // the parameter is already checked
+                                        if (p.isNotNull()) scope.getMeta().nonnullLocalVar.add(local);
+                                        if (p.isNotEmpty()) scope.getMeta().nonemptyLocalVar.add(local);
 
                                         // local = new Pointer(p)
                                         Ins.TStore tStore = new Ins.TStore(
@@ -2900,10 +3180,133 @@ public class SemanticProcessor {
                                                 false);
                                 }
                         }
+
+                        InvokableMeta meta = methodDef.meta();
+                        if (meta.tailCallStart != null) {
+                                // eliminated tail calls jump to the beginning
+                                methodDef.statements().add(0, meta.tailCallStart);
+                        }
+                        recordSelfInvocations(methodDef);
+                        for (SAnno anno : methodDef.annos()) {
+                                if (anno.type().fullName().equals("lt.lang.TailRec")) {
+                                        if (!cannotBeOverridden(methodDef)) {
+                                                err.SyntaxException("@TailRec method " + methodDef.name() + " should be static, private or val",
+                                                        methodDef.line_col());
+                                                return;
+                                        }
+                                        if (!meta.selfInvocations.isEmpty()) {
+                                                err.SyntaxException("recursive call is not in tail position",
+                                                        meta.selfInvocations.get(0).line_col());
+                                                return;
+                                        }
+                                }
+                        }
+                }
+        }
+
+        /**
+         * @param method the method
+         * @return true if invoking the method on `this` always invokes the method itself
+         */
+        private static boolean cannotBeOverridden(SMethodDef method) {
+                return method.modifiers().contains(SModifier.STATIC)
+                        || method.modifiers().contains(SModifier.PRIVATE)
+                        || method.modifiers().contains(SModifier.FINAL)
+                        || (method.declaringType() instanceof SClassDef
+                        && ((SClassDef) method.declaringType()).modifiers().contains(SModifier.FINAL));
+        }
+
+        /**
+         * record invocations of the method itself or of methods enclosing it,
+         * which are left in the instructions after tail calls are eliminated.
+         * the instructions are checked after parsing, so values parsed but not used are ignored
+         *
+         * @param method the parsed method
+         */
+        private static void recordSelfInvocations(SMethodDef method) {
+                List<Object> nodes = new ArrayList<Object>();
+                for (Instruction ins : method.statements()) {
+                        Optimizer.walk(ins, nodes);
+                }
+                for (Object node : nodes) {
+                        if (!(node instanceof Ins.Invoke)) continue;
+                        InvokableMeta invoked = ((Ins.Invoke) node).invokable().meta();
+                        for (InvokableMeta m = method.meta(); m != null; m = m.enclosing) {
+                                if (m == invoked) {
+                                        m.selfInvocations.add((Ins.Invoke) node);
+                                        break;
+                                }
+                        }
+                }
+        }
+
+        /**
+         * compile a returned self invocation into assignments to the parameters
+         * and a jump to the beginning of the method
+         *
+         * @param v            the returned value
+         * @param scope        current scope
+         * @param instructions instruction list
+         * @param lineCol      line and column of the return statement
+         * @return true if the tail call is eliminated
+         * @throws SyntaxException compile error
+         */
+        private boolean eliminateTailCall(Value v, SemanticScope scope, List<Instruction> instructions, LineCol lineCol) throws SyntaxException {
+                InvokableMeta meta = scope.getMeta();
+                if (meta.tailCallBarrier != 0 || !(v instanceof Ins.Invoke)) return false;
+                Ins.Invoke invoke = (Ins.Invoke) v;
+                if (invoke.invokable().meta() != meta || !(invoke.invokable() instanceof SMethodDef)) return false;
+                SMethodDef method = (SMethodDef) invoke.invokable();
+                if (!cannotBeOverridden(method)) return false;
+                if (method.modifiers().contains(SModifier.STATIC)) {
+                        if (!(invoke instanceof Ins.InvokeStatic) && !(invoke instanceof Ins.InvokeWithCapture)) return false;
+                } else if (!(invoke instanceof Ins.InvokeWithTarget)
+                        || !(((Ins.InvokeWithTarget) invoke).target() instanceof Ins.This)) {
+                        return false;
+                }
+
+                List<Value> args = new ArrayList<Value>();
+                if (invoke instanceof Ins.InvokeWithCapture) {
+                        args.addAll(((Ins.InvokeWithCapture) invoke).capturedArguments());
+                }
+                args.addAll(invoke.arguments());
+                List<SParameter> params = method.getParameters();
+                if (args.size() != params.size()) return false;
+
+                // evaluate all arguments before any parameter is assigned
+                List<LocalVariable> newValues = new ArrayList<LocalVariable>();
+                for (int i = 0; i < args.size(); ++i) {
+                        Value arg = args.get(i);
+                        SParameter param = params.get(i);
+                        if (arg instanceof Ins.TLoad && ((Ins.TLoad) arg).value() == param) {
+                                // passed as it is
+                                newValues.add(null);
+                                continue;
+                        }
+                        LocalVariable tmp = new LocalVariable(param.type(), false);
+                        scope.putLeftValue(scope.generateTempName(), tmp);
+                        instructions.add(new Ins.TStore(tmp, arg, scope, lineCol, err));
+                        newValues.add(tmp);
+                }
+                for (int i = 0; i < params.size(); ++i) {
+                        LocalVariable tmp = newValues.get(i);
+                        if (tmp == null) continue;
+                        SParameter param = params.get(i);
+                        // `val` parameters are assigned as well, the next round is a new invocation
+                        boolean canChange = param.canChange();
+                        param.setCanChange(true);
+                        instructions.add(new Ins.TStore(param, new Ins.TLoad(tmp, scope, lineCol), scope, lineCol, err));
+                        param.setCanChange(canChange);
+                }
+
+                if (meta.tailCallStart == null) {
+                        meta.tailCallStart = new Ins.Nop();
                 }
+                instructions.add(new Ins.Goto(meta.tailCallStart));
+                return true;
         }
 
-        private SConstructorDef java_lang_NullPointerException_cons;
+        private volatile SConstructorDef java_lang_NullPointerException_cons;
 
         private SConstructorDef getJava_lang_NullPointerException_cons() throws SyntaxException {
                 if (java_lang_NullPointerException_cons == null) {
@@ -2918,7 +3321,7 @@ public class SemanticProcessor {
                 return java_lang_NullPointerException_cons;
         }
 
-        private SConstructorDef java_lang_IllegalArgumentException_cons;
+        private volatile SConstructorDef java_lang_IllegalArgumentException_cons;
 
         private SConstructorDef getJava_lang_IllegalArgumentException_cons() throws SyntaxException {
                 if (java_lang_IllegalArgumentException_cons == null) {
@@ -3025,7 +3428,7 @@ public class SemanticProcessor {
                                         for (Map.Entry<String, Object> entry : sAnno.alreadyCompiledAnnotationValueMap().entrySet()) {
                                                 if (entry.getKey().equals(f.name())) {
                                                         // find annotation field
-                                                        Value v = parseValueFromObject(entry.getValue());
+                                                        Value v = parseValueFromObject(entry.getValue(), f.type());
                                                         map.put(f, v);
                                                         continue out;
                                                 }
@@ -3296,7 +3699,7 @@ public class SemanticProcessor {
                 return s.length() == 1;
         }
 
-        private SClassDef Throwable_Class;
+        private volatile SClassDef Throwable_Class;
 
         public SClassDef getThrowable_Class() throws SyntaxException {
                 if (Throwable_Class == null) {
@@ -3349,11 +3752,20 @@ public class SemanticProcessor {
                                 instructions.add((Instruction) v);
                         } // else ignore the result
                 } else if (statement instanceof AST.Return) {
-                        parseInstructionFromReturn((AST.Return) statement, methodReturnType, scope, instructions);
+                        AST.Return ret = (AST.Return) statement;
+                        if (ret.exp instanceof AST.PatternMatching && mayContainSelfTailCall((AST.PatternMatching) ret.exp, scope)) {
+                                parseInstructionFromReturnedPatternMatching((AST.PatternMatching) ret.exp, methodReturnType, scope,
+                                        instructions, exceptionTable, breakIns, continueIns);
+                        } else {
+                                parseInstructionFromReturn(ret, methodReturnType, scope, instructions);
+                        }
 
                 } else if (statement instanceof AST.If) {
                         parseInstructionFromIf((AST.If) statement, methodReturnType, scope,
                                 instructions, exceptionTable, breakIns, continueIns);
+                } else if (statement instanceof AST.Switch) {
+                        parseInstructionFromSwitch((AST.Switch) statement, methodReturnType, scope,
+                                instructions, exceptionTable, breakIns, continueIns);
                 } else if (statement instanceof AST.While) {
                         // while or do while
                         parseInstructionFromWhile((AST.While) statement, methodReturnType, scope, instructions, exceptionTable);
@@ -3376,14 +3788,26 @@ public class SemanticProcessor {
                         Ins.AThrow aThrow = new Ins.AThrow(throwable, statement.line_col());
                         instructions.add(aThrow);
                 } else if (statement instanceof AST.Try) {
-                        parseInstructionFromTry((AST.Try) statement, methodReturnType, scope, instructions, exceptionTable, breakIns, continueIns);
+                        // returns inside try/synchronized are handled by the blocks
+                        // so tail calls inside them cannot be eliminated
+                        ++scope.getMeta().tailCallBarrier;
+                        try {
+                                parseInstructionFromTry((AST.Try) statement, methodReturnType, scope, instructions, exceptionTable, breakIns, continueIns);
+                        } finally {
+                                --scope.getMeta().tailCallBarrier;
+                        }
                 } else if (statement instanceof AST.Synchronized) {
-                        parseInstructionFromSynchronized((AST.Synchronized) statement,
-                                methodReturnType,
-                                scope,
-                                instructions,
-                                exceptionTable,
-                                breakIns, continueIns);
+                        ++scope.getMeta().tailCallBarrier;
+                        try {
+                                parseInstructionFromSynchronized((AST.Synchronized) statement,
+                                        methodReturnType,
+                                        scope,
+                                        instructions,
+                                        exceptionTable,
+                                        breakIns, continueIns);
+                        } finally {
+                                --scope.getMeta().tailCallBarrier;
+                        }
                 } else if (statement instanceof MethodDef) {
                         if (!doNotParseMethodDef)
                                 parseInnerMethod((MethodDef) statement, scope, false);
@@ -3407,7 +3831,7 @@ public class SemanticProcessor {
         /**
          * {@link LtRuntime#castToBool(Object)}
          */
-        private SMethodDef Lang_castToBool;
+        private volatile SMethodDef Lang_castToBool;
 
         /**
          * @return {@link LtRuntime#castToThrowable(Object)}
@@ -3430,7 +3854,7 @@ public class SemanticProcessor {
         /**
          * {@link LtRuntime#castToThrowable(Object)}
          */
-        private SMethodDef Lang_castToThrowable;
+        private volatile SMethodDef Lang_castToThrowable;
 
         /**
          * @return {@link LtRuntime#castToThrowable(Object)}
@@ -3450,6 +3874,45 @@ public class SemanticProcessor {
                 return Lang_castToThrowable;
         }
 
+        /**
+         * check whether the local variable is never assigned after its definition in current method
+         *
+         * @param name  variable name
+         * @param scope current scope
+         * @return true if the name is known not to be assigned again
+         */
+        private boolean isNeverReassigned(String name, SemanticScope scope) {
+                InvokableMeta meta = scope.getMeta();
+                return meta != null && meta.reassignedNames != null && !meta.reassignedNames.contains(name);
+        }
+
+        /**
+         * @param type the type
+         * @return true if the type is a final class
+         */
+        private static boolean isFinalClass(STypeDef type) {
+                return type instanceof SClassDef && ((SClassDef) type).modifiers().contains(SModifier.FINAL);
+        }
+
+        /**
+         * check whether the local variable can be captured by value instead of sharing its pointer.
+         * the variable should be a pointer local which is never assigned again in the method body
+         *
+         * @param name  variable name
+         * @param scope current scope
+         * @return true if the value can be copied into the inner method
+         * @throws SyntaxException compile error
+         */
+        private boolean canCaptureByValue(String name, SemanticScope scope) throws SyntaxException {
+                InvokableMeta meta = scope.getMeta();
+                if (!isNeverReassigned(name, scope)) return false;
+                LeftValue v = scope.getLeftValue(name);
+                return v instanceof LocalVariable
+                        && v.type() instanceof PointerType
+                        && !meta.pointerLocalVar.contains(v)
+                        && !isPointerType(((PointerType) v.type()).getPointingType());
+        }
+
         /**
          * parse inner method<br>
          * the inner method name is automatically generated<br>
@@ -3541,45 +4004,32 @@ public class SemanticProcessor {
                 LinkedHashMap<String, STypeDef> localVariables = scope.getLocalVariables();
                 List<VariableDef> param4Locals = new ArrayList<VariableDef>();
                 List<PointerType> realPointerTypes = new ArrayList<PointerType>();
+                List<STypeDef> realTypes = new ArrayList<STypeDef>();
+                List<Boolean> readOnly = new ArrayList<Boolean>();
                 for (Map.Entry<String, STypeDef> entry : localVariables.entrySet()) {
                         String k = entry.getKey();
                         STypeDef v = entry.getValue();
                         if (!CompileUtil.isValidName(k)) continue;
                         if (k.equals("$")) continue;
+                        boolean byValue = canCaptureByValue(k, scope);
+                        if (byValue) {
+                                v = ((PointerType) v).getPointingType();
+                        }
 
                         // construct a synthetic VariableDef as param
                         VariableDef variable = new VariableDef(k, Collections.<Modifier>emptySet(), Collections.<AST.Anno>emptySet(), LineCol.SYNTHETIC);
-                        if (v instanceof SArrayTypeDef) {
-                                STypeDef x = ((SArrayTypeDef) v).type();
-                                AST.Access theType = new AST.Access(
-                                        x.pkg() == null
-                                                ? null
-                                                : new AST.PackageRef(x.pkg(), LineCol.SYNTHETIC),
-                                        x.fullName().contains(".")
-                                                ? x.fullName().substring(x.fullName().lastIndexOf('.') + 1)
-                                                : x.fullName(),
-                                        LineCol.SYNTHETIC
-                                );
-                                for (int ii = 0; ii < ((SArrayTypeDef) v).dimension(); ++ii) {
-                                        theType = new AST.Access(theType, "[]", LineCol.SYNTHETIC);
-                                }
-                                variable.setType(theType);
-                        } else {
-                                variable.setType(
-                                        new AST.Access(
-                                                v.pkg() == null
-                                                        ? null
-                                                        : new AST.PackageRef(v.pkg(), LineCol.SYNTHETIC),
-                                                v.fullName().contains(".")
-                                                        ? v.fullName().substring(v.fullName().lastIndexOf('.') + 1)
-                                                        : v.fullName(),
-                                                LineCol.SYNTHETIC
-                                        )
-                                );
+                        if (isPointerType(v)) {
+                                variable.setType(new AST.Access(new AST.PackageRef("lt::lang", LineCol.SYNTHETIC), "Pointer", LineCol.SYNTHETIC));
                                 if (v instanceof PointerType) {
                                         realPointerTypes.add((PointerType) v);
                                 }
+                                realTypes.add(null);
+                        } else {
+                                // the real type is set after the signature is parsed
+                                variable.setType(new AST.Access(new AST.PackageRef("java::lang", LineCol.SYNTHETIC), "Object", LineCol.SYNTHETIC));
+                                realTypes.add(v);
                         }
+                        readOnly.add(byValue || !scope.getLeftValue(k).canChange());
                         param4Locals.add(variable);
                 }
                 MethodDef newMethodDef = new MethodDef(
@@ -3593,9 +4043,11 @@ public class SemanticProcessor {
                 );
                 newMethodDef.params.addAll(0, param4Locals);
                 if (lambdaParam) {
+                        // `$` is read-only, so it's not wrapped into a pointer and it's `used` only when accessed
                         newMethodDef.params.add(
                                 new VariableDef("$",
-                                        Collections.<Modifier>emptySet(), Collections.<AST.Anno>emptySet(), LineCol.SYNTHETIC));
+                                        Collections.singleton(new Modifier(Modifier.Available.VAL, LineCol.SYNTHETIC)),
+                                        Collections.<AST.Anno>emptySet(), LineCol.SYNTHETIC));
                 }
 
                 // parse the method
@@ -3604,7 +4056,15 @@ public class SemanticProcessor {
                 SMethodDef m = methods.get(methods.size() - 1);
                 // set captured values
                 for (int x = 0; x < param4Locals.size(); ++x) {
-                        m.meta().pointerLocalVar.add(m.getParameters().get(x));
+                        SParameter p = m.getParameters().get(x);
+                        m.meta().pointerLocalVar.add(p);
+                        if (realTypes.get(x) != null) {
+                                p.setType(realTypes.get(x));
+                        }
+                        if (readOnly.get(x)) {
+                                // the value never changes, so it's not wrapped into a pointer
+                                p.setCanChange(false);
+                        }
                 }
 
                 // change the modifier
@@ -3635,6 +4095,9 @@ public class SemanticProcessor {
                 // generate a scope for the inner method
                 // the scope contains the inner method itself
                 SemanticScope innerMethodScope = new SemanticScope(theTopScope, m.meta());
+                m.meta().enclosing = scope.getMeta();
+                // the inner method is invoked with the name defined by user
+                m.meta().selfName = name;
                 for (Map.Entry<String, SemanticScope.MethodRecorder> srec : scope.getInnerMethods().entrySet()) {
                         innerMethodScope.addMethodDef(srec.getKey(), srec.getValue());
                 }
@@ -3842,7 +4305,7 @@ public class SemanticProcessor {
         /**
          * {@link LtRuntime#throwableWrapperObject(Throwable)}
          */
-        private SMethodDef Lang_throwableWrapperObject;
+        private volatile SMethodDef Lang_throwableWrapperObject;
 
         /**
          * @return {@link LtRuntime#throwableWrapperObject(Throwable)}
@@ -4193,7 +4656,7 @@ public class SemanticProcessor {
         /**
          * {@link LtIterator#getIterator(Object)}
          */
-        private SMethodDef LtIterator_getIterator;
+        private volatile SMethodDef LtIterator_getIterator;
 
         /**
          * @return {@link LtIterator#getIterator(Object)}
@@ -4216,7 +4679,7 @@ public class SemanticProcessor {
         /**
          * {@link LtIterator#hasNext()}
          */
-        private SMethodDef LtIterator_hasNext;
+        private volatile SMethodDef LtIterator_hasNext;
 
         /**
          * @return {@link LtIterator#hasNext()}
@@ -4239,7 +4702,7 @@ public class SemanticProcessor {
         /**
          * {@link LtIterator#next()}
          */
-        private SMethodDef LtIterator_next;
+        private volatile SMethodDef LtIterator_next;
 
         /**
          * @return {@link LtIterator#next()}
@@ -4295,10 +4758,16 @@ public class SemanticProcessor {
                                             SemanticScope scope,
                                             List<Instruction> instructions,
                                             List<ExceptionTable> exceptionTable) throws SyntaxException {
-                // LtIterator.get(aFor.exp)
-                Ins.InvokeStatic getIterator = new Ins.InvokeStatic(getLtIterator_Get(), LineCol.SYNTHETIC);
                 Value looper = parseValueFromExpression(aFor.exp, null, scope);
                 assert looper != null;
+                IntRange range = getIntRange(looper, scope);
+                if (range != null) {
+                        parseInstructionFromIntRangeFor(aFor, range, methodReturnType, scope, instructions, exceptionTable);
+                        return;
+                }
+
+                // LtIterator.get(aFor.exp)
+                Ins.InvokeStatic getIterator = new Ins.InvokeStatic(getLtIterator_Get(), LineCol.SYNTHETIC);
                 if (looper.type() instanceof PrimitiveTypeDef)
                         looper = boxPrimitive(looper, LineCol.SYNTHETIC);
                 getIterator.arguments().add(looper);
@@ -4342,6 +4811,223 @@ public class SemanticProcessor {
                 instructions.add(nop);
         }
 
+        /**
+         * bounds of <code>start to end</code> or <code>start until end</code>, both are int values
+         */
+        private static class IntRange {
+                final Value start;
+                final Value end;
+                final boolean inclusive;
+
+                IntRange(Value start, Value end, boolean inclusive) {
+                        this.start = start;
+                        this.end = end;
+                        this.inclusive = inclusive;
+                }
+        }
+
+        /**
+         * the implicit classes imported by default. {@link lt.lang.implicit.RichInt} is the only one
+         * providing <code>to</code> and <code>until</code> for Integer, and {@link lt.lang.implicit.RichString}
+         * is the only one providing <code>add</code> for String
+         */
+        static final Set<String> BUILT_IN_IMPLICIT = new HashSet<String>(Arrays.asList(
+                "lt.lang.implicit.PrimitivesImplicit",
+                "lt.lang.implicit.StringImplicit",
+                "lt.lang.implicit.CollectionImplicit",
+                "lt.lang.implicit.ObjectImplicit"
+        ));
+
+        /**
+         * check whether the value is <code>RichInt#to</code> or <code>RichInt#until</code>
+         * invoked dynamically on an int with an int argument.<br>
+         * the method is only taken when the caller file imports no other implicit class.
+         *
+         * @param v     the value to check
+         * @param scope current scope
+         * @return the range, or null if the value is not such invocation
+         * @throws SyntaxException compile error
+         */
+        private IntRange getIntRange(Value v, SemanticScope scope) throws SyntaxException {
+                if (!(v instanceof Ins.InvokeStatic)) return null;
+                Ins.InvokeStatic invoke = (Ins.InvokeStatic) v;
+                if (!invoke.invokable().equals(getDYNAMIC_invoke())) return null;
+                List<Value> args = invoke.arguments();
+                // (targetClass, o, isStatic, functionalObject, invoker, method, primitives, args, canInvokeImport)
+                if (!(args.get(5) instanceof StringConstantValue)) return null;
+                String method = ((StringConstantValue) args.get(5)).getStr();
+                if (!method.equals("to") && !method.equals("until")) return null;
+                // `isStatic` is ignored because the target is never null
+                if (!args.get(3).equals(NullValue.get())
+                        || !args.get(8).equals(new BoolValue(false))
+                        || !(args.get(7) instanceof Ins.ANewArray)) return null;
+                List<Value> invokeArgs = ((Ins.ANewArray) args.get(7)).initValues();
+                if (invokeArgs.size() != 1) return null;
+
+                Value start = unboxInt(args.get(1), scope);
+                if (start == null) return null;
+                Value end = unboxInt(invokeArgs.get(0), scope);
+                if (end == null) return null;
+
+                // the file should not import implicit classes which may provide other `to` or `until`
+                if (scope.type() == null) return null;
+                List<Import> imports = fileNameToImport.get(scope.type().line_col().fileName);
+                if (imports == null) return null;
+                boolean primitivesImplicit = false;
+                for (Import im : imports) {
+                        if (!im.implicit) continue;
+                        String name = getTypeWithAccess(im.access, Collections.<String, STypeDef>emptyMap(), Collections.<Import>emptyList()).fullName();
+                        if (!BUILT_IN_IMPLICIT.contains(name)) return null;
+                        if (name.equals("lt.lang.implicit.PrimitivesImplicit")) primitivesImplicit = true;
+                }
+                if (!primitivesImplicit) return null;
+
+                return new IntRange(start, end, method.equals("to"));
+        }
+
+        /**
+         * @param v     a value of type Integer
+         * @param scope current scope
+         * @return the int value, or null if the value is not an Integer
+         * @throws SyntaxException compile error
+         */
+        private Value unboxInt(Value v, SemanticScope scope) throws SyntaxException {
+                if (v instanceof Ins.InvokeStatic) {
+                        // the primitive boxed by Integer.valueOf(int)
+                        Ins.InvokeStatic invoke = (Ins.InvokeStatic) v;
+                        SInvokable m = invoke.invokable();
+                        if (m instanceof SMethodDef && ((SMethodDef) m).name().equals("valueOf")
+                                && m.declaringType().fullName().equals("java.lang.Integer")
+                                && invoke.arguments().size() == 1
+                                && invoke.arguments().get(0).type().equals(IntTypeDef.get())) {
+                                return invoke.arguments().get(0);
+                        }
+                }
+                if (v.type().fullName().equals("java.lang.Integer")) {
+                        return cast(IntTypeDef.get(), v, scope.type(), LineCol.SYNTHETIC);
+                }
+                return null;
+        }
+
+        /**
+         * parse for on an int range<br>
+         * the values are the same as {@link lt.util.RangeList}, but no object is created
+         * <pre>
+         * for i in start to/until end
+         *     A
+         * B
+         *
+         * ==&gt;
+         *
+         * *v = start
+         * *n = end
+         * *n = *n - *v
+         * *d = 1
+         * if eq (*n &gt;&gt;&gt; 31) goto C
+         * *d = -1
+         * *n = 0 - *n
+         * C
+         * *n = *n + 1 --- only for `to`
+         * here::
+         * if eq *n goto B
+         * i = new Pointer().set(*v)
+         * A
+         * nop --------- continue position
+         * *v = *v + *d
+         * *n = *n - 1
+         * goto here
+         * B ----------- break position
+         * </pre>
+         *
+         * @param aFor             for
+         * @param range            the int range
+         * @param methodReturnType method return type
+         * @param scope            scope
+         * @param instructions     instruction list
+         * @param exceptionTable   exception table
+         * @throws SyntaxException compile error
+         */
+        private void parseInstructionFromIntRangeFor(AST.For aFor,
+                                                     IntRange range,
+                                                     STypeDef methodReturnType,
+                                                     SemanticScope scope,
+                                                     List<Instruction> instructions,
+                                                     List<ExceptionTable> exceptionTable) throws SyntaxException {
+                LineCol lineCol = LineCol.SYNTHETIC;
+                // *v = start
+                LocalVariable current = new LocalVariable(IntTypeDef.get(), true);
+                scope.putLeftValue(scope.generateTempName(), current);
+                instructions.add(new Ins.TStore(current, range.start, scope, lineCol, err));
+                // *n = end
+                LocalVariable count = new LocalVariable(IntTypeDef.get(), true);
+                scope.putLeftValue(scope.generateTempName(), count);
+                instructions.add(new Ins.TStore(count, range.end, scope, lineCol, err));
+                // *n = *n - *v
+                instructions.add(new Ins.TStore(count, new Ins.TwoVarOp(
+                        new Ins.TLoad(count, scope, lineCol), new Ins.TLoad(current, scope, lineCol),
+                        Ins.TwoVarOp.Isub, IntTypeDef.get(), lineCol), scope, lineCol, err));
+                // *d = 1
+                LocalVariable step = new LocalVariable(IntTypeDef.get(), true);
+                scope.putLeftValue(scope.generateTempName(), step);
+                instructions.add(new Ins.TStore(step, new IntValue(1), scope, lineCol, err));
+                // if *n >= 0 goto C
+                Ins.Nop nopAscending = new Ins.Nop();
+                instructions.add(new Ins.IfEq(new Ins.TwoVarOp(
+                        new Ins.TLoad(count, scope, lineCol), new IntValue(31),
+                        Ins.TwoVarOp.Iushr, IntTypeDef.get(), lineCol), nopAscending, lineCol));
+                // *d = -1
+                instructions.add(new Ins.TStore(step, new IntValue(-1), scope, lineCol, err));
+                // *n = 0 - *n
+                instructions.add(new Ins.TStore(count, new Ins.TwoVarOp(
+                        new IntValue(0), new Ins.TLoad(count, scope, lineCol),
+                        Ins.TwoVarOp.Isub, IntTypeDef.get(), lineCol), scope, lineCol, err));
+                instructions.add(nopAscending);
+                if (range.inclusive) {
+                        // *n = *n + 1
+                        instructions.add(new Ins.TStore(count, new Ins.TwoVarOp(
+                                new Ins.TLoad(count, scope, lineCol), new IntValue(1),
+                                Ins.TwoVarOp.Iadd, IntTypeDef.get(), lineCol), scope, lineCol, err));
+                }
+
+                // if eq *n goto B
+                Ins.Nop nop = new Ins.Nop(); // B
+                Ins.IfEq ifEq = new Ins.IfEq(new Ins.TLoad(count, scope, lineCol), nop, aFor.line_col());
+                instructions.add(ifEq);
+                // i = new Pointer().set(*v)
+                // a new pointer for every iteration, it's an int local variable if not captured
+                SemanticScope subScope = new SemanticScope(scope, scope.getMeta());
+                LocalVariable newLocal = new LocalVariable(getPointerType(IntTypeDef.get()), true);
+                subScope.putLeftValue(aFor.name, newLocal);
+                Ins.TStore storePtr = new Ins.TStore(newLocal, invokePointerSet(
+                        constructPointer(false, false),
+                        new Ins.TLoad(current, scope, lineCol),
+                        lineCol), subScope, lineCol, err);
+                storePtr.flag |= Consts.IS_POINTER_NEW;
+                instructions.add(storePtr);
+
+                Ins.Nop nopForContinue = new Ins.Nop();
+
+                for (Statement stmt : aFor.body) {
+                        parseStatement(
+                                stmt,
+                                methodReturnType,
+                                subScope,
+                                instructions,
+                                exceptionTable, nop, nopForContinue, false);
+                }
+                instructions.add(nopForContinue);
+                // *v = *v + *d
+                instructions.add(new Ins.TStore(current, new Ins.TwoVarOp(
+                        new Ins.TLoad(current, scope, lineCol), new Ins.TLoad(step, scope, lineCol),
+                        Ins.TwoVarOp.Iadd, IntTypeDef.get(), lineCol), scope, lineCol, err));
+                // *n = *n - 1
+                instructions.add(new Ins.TStore(count, new Ins.TwoVarOp(
+                        new Ins.TLoad(count, scope, lineCol), new IntValue(1),
+                        Ins.TwoVarOp.Isub, IntTypeDef.get(), lineCol), scope, lineCol, err));
+                instructions.add(new Ins.Goto(ifEq));
+                instructions.add(nop);
+        }
+
         /**
          * parse while<br><br>
          * while:
@@ -4550,6 +5236,141 @@ public class SemanticProcessor {
                 instructions.add(nop); // nop
         }
 
+        /**
+         * parse switch<br><br>
+         * <pre>
+         * switch exp
+         *     k1 : A
+         *     k2 : B
+         *
+         * ==&gt;
+         *
+         * exp switch (k1 goto nop1, k2 goto nop2, default goto nop)
+         * nop1
+         * A
+         * goto nop
+         * nop2
+         * B
+         * goto nop
+         * nop
+         * </pre>
+         *
+         * @param aSwitch          switch
+         * @param methodReturnType method return type
+         * @param scope            current scope
+         * @param instructions     instruction list
+         * @param exceptionTable   exception table
+         * @param breakIns         jump to this position when meets break
+         * @param continueIns      to this position when meets continue
+         * @throws SyntaxException compile error
+         */
+        public void parseInstructionFromSwitch(AST.Switch aSwitch,
+                                               STypeDef methodReturnType,
+                                               SemanticScope scope,
+                                               List<Instruction> instructions,
+                                               List<ExceptionTable> exceptionTable,
+                                               Ins.Nop breakIns,
+                                               Ins.Nop continueIns) throws SyntaxException {
+                if (new HashSet<Integer>(aSwitch.keys).size() != aSwitch.keys.size()) {
+                        throw new LtBug("duplicate keys in switch " + aSwitch.keys);
+                }
+                Ins.Nop nop = new Ins.Nop();
+
+                Value key = parseValueFromExpression(aSwitch.exp, IntTypeDef.get(), scope);
+                List<Instruction> targets = new ArrayList<Instruction>();
+                List<Instruction> instructionList = new ArrayList<Instruction>();
+                for (List<Statement> statements : aSwitch.cases) {
+                        SemanticScope caseScope = new SemanticScope(scope, scope.getMeta());
+                        Ins.Nop thisNop = new Ins.Nop(); // nop1/nop2/...
+                        targets.add(thisNop);
+                        instructionList.add(thisNop);
+                        for (Statement stmt : statements) {
+                                parseStatement(stmt, methodReturnType, caseScope, instructionList,
+                                        exceptionTable, breakIns, continueIns, false);
+                        }
+                        instructionList.add(new Ins.Goto(nop)); // goto nop
+                }
+
+                instructions.add(new Ins.Switch(key, new ArrayList<Integer>(aSwitch.keys), targets, nop, aSwitch.line_col()));
+                instructions.addAll(instructionList);
+                instructions.add(nop); // nop
+        }
+
+        /**
+         * @param pm    the returned pattern matching
+         * @param scope current scope
+         * @return true if tail calls can be eliminated in the current method
+         * and the pattern matching invokes a method with the same name
+         */
+        private static boolean mayContainSelfTailCall(AST.PatternMatching pm, SemanticScope scope) {
+                final InvokableMeta meta = scope.getMeta();
+                if (meta.selfName == null || meta.tailCallBarrier != 0 || pm.patternsToStatements.isEmpty()) return false;
+                final boolean[] found = new boolean[]{false};
+                try {
+                        pm.foreachInnerStatements(new Function2<Boolean, Statement, boolean[]>() {
+                                @Override
+                                public Boolean apply(Statement statement, boolean[] result) throws Exception {
+                                        if (statement instanceof AST.Invocation
+                                                && ((AST.Invocation) statement).exp instanceof AST.Access) {
+                                                AST.Access access = (AST.Access) ((AST.Invocation) statement).exp;
+                                                if (access.name.equals(meta.selfName)
+                                                        && (access.exp == null || (access.exp instanceof AST.Access
+                                                        && ((AST.Access) access.exp).exp == null
+                                                        && ((AST.Access) access.exp).name.equals("this")))) {
+                                                        result[0] = true;
+                                                }
+                                        }
+                                        return !result[0];
+                                }
+                        }, found);
+                } catch (Exception e) {
+                        throw new LtBug(e);
+                }
+                return found[0];
+        }
+
+        /**
+         * parse a returned pattern matching whose cases may contain self tail calls.<br>
+         * the cases are inlined into the current method instead of a pattern matching method,
+         * each case returns from the current method, so the tail calls can be eliminated.
+         *
+         * @param pm               pattern matching
+         * @param methodReturnType method return type
+         * @param scope            current scope
+         * @param instructions     instruction list
+         * @param exceptionTable   exception table
+         * @param breakIns         jump to this position when meets break
+         * @param continueIns      to this position when meets continue
+         * @throws SyntaxException compile error
+         * @see #parseValueFromPatternMatching(AST.PatternMatching, STypeDef, SemanticScope)
+         */
+        private void parseInstructionFromReturnedPatternMatching(AST.PatternMatching pm,
+                                                                 STypeDef methodReturnType,
+                                                                 SemanticScope scope,
+                                                                 List<Instruction> instructions,
+                                                                 List<ExceptionTable> exceptionTable,
+                                                                 Ins.Nop breakIns,
+                                                                 Ins.Nop continueIns) throws SyntaxException {
+                SemanticScope matchScope = new SemanticScope(scope, scope.getMeta());
+
+                // store the value to match
+                Value valueToMatch = parseValueFromExpression(pm.expToMatch, null, matchScope);
+                if (valueToMatch.type() instanceof PrimitiveTypeDef) {
+                        valueToMatch = boxPrimitive(valueToMatch, pm.line_col());
+                }
+                String varName = matchScope.generateTempName();
+                LocalVariable local = new LocalVariable(getTypeWithName("java.lang.Object", pm.line_col()), false);
+                matchScope.putLeftValue(varName, local);
+                instructions.add(new Ins.TStore(local, valueToMatch, matchScope, pm.line_col(), err));
+
+                // generated names are prefixed with the name of the value, so they never conflict with inlined pattern matching inside cases
+                List<Statement> statements = new ArrayList<Statement>();
+                parsePatternMatchingCases(pm, statements, varName, varName + "_", pm.line_col().fileName);
+                for (Statement stmt : statements) {
+                        parseStatement(stmt, methodReturnType, matchScope, instructions, exceptionTable, breakIns, continueIns, false);
+                }
+        }
+
         /**
          * parse return
          *
@@ -4576,6 +5397,9 @@ public class SemanticProcessor {
                 } else {
                         Value v = parseValueFromExpression(ret.exp,
                                 methodReturnType.equals(VoidType.get()) ? null : methodReturnType, scope);
+                        if (eliminateTailCall(v, scope, instructions, ret.line_col())) {
+                                return;
+                        }
                         if (methodReturnType.equals(VoidType.get())) {
                                 if (v instanceof Instruction) {
                                         instructions.add((Instruction) v);
@@ -4591,7 +5415,7 @@ public class SemanticProcessor {
         /**
          * {@link LtRuntime#putField(Object, String, Object, Class)}
          */
-        private SMethodDef Lang_putField;
+        private volatile SMethodDef Lang_putField;
 
         /**
          * @return {@link LtRuntime#putField(Object, String, Object, Class)}
@@ -4952,6 +5776,10 @@ public class SemanticProcessor {
                                  * get and set
                                  */
                                 LocalVariable localVariable = (LocalVariable) scope.getLeftValue(variableDef.getName());
+                                // nonnull and nonempty check
+                                // (registered after parsing the init value, which cannot read the variable itself)
+                                if (nonnull) scope.getMeta().nonnullLocalVar.add(localVariable);
+                                if (nonempty) scope.getMeta().nonemptyLocalVar.add(localVariable);
 
                                 Ins.InvokeVirtual invokeSet = invokePointerSet(
                                         new Ins.TLoad(localVariable, scope, LineCol.SYNTHETIC),
@@ -4965,18 +5793,16 @@ public class SemanticProcessor {
 
                                 if (!localVariable.canChange()) {
                                         // set type for val values
-                                        PointerType tmp = new PointerType(v.type());
-                                        if (types.containsKey(tmp.toString())) {
-                                                tmp = (PointerType) types.get(tmp.toString());
-                                        } else {
-                                                types.put(tmp.toString(), tmp);
-                                        }
-                                        localVariable.setType(tmp);
-                                }
-
-                                // nonnull and nonempty check
-                                if (nonempty || nonnull) {
-                                        scope.getMeta().pointerLocalVar.add(localVariable);
+                                        localVariable.setType(getPointerType(v.type()));
+                                } else if (variableDef.getType() == null && isNeverReassigned(variableDef.getName(), scope)
+                                        && isFinalClass(v.type())) {
+                                        // the variable holds its init value for its whole life
+                                        // so it's treated as a val value.
+                                        // the runtime class of the value is exactly the final class,
+                                        // so overloads selected with the variable as an argument are the same as selected at runtime.
+                                        // this is not flow sensitive: variables assigned again keep Object,
+                                        // and `is` checks in branches don't narrow the type
+                                        localVariable.setType(getPointerType(v.type()));
                                 }
                         }
                         return pack;
@@ -4986,7 +5812,7 @@ public class SemanticProcessor {
                 return null;
         }
 
-        private SConstructorDef Pointer_con;
+        private volatile SConstructorDef Pointer_con;
 
         public SConstructorDef getPointer_con() throws SyntaxException {
                 if (Pointer_con == null) {
@@ -5010,7 +5836,7 @@ public class SemanticProcessor {
                 return aNew;
         }
 
-        private SMethodDef Pointer_set;
+        private volatile SMethodDef Pointer_set;
 
         public SMethodDef getPointer_set() throws SyntaxException {
                 if (Pointer_set == null) {
@@ -5027,7 +5853,16 @@ public class SemanticProcessor {
 
         public Ins.InvokeVirtual invokePointerSet(Value target, Value valueToSet, LineCol lineCol) throws SyntaxException {
                 assert isPointerType(target.type());
-                Ins.InvokeVirtual set = new Ins.InvokeVirtual(
+                if (target instanceof Ins.TLoad) {
+                        InvokableMeta meta = ((Ins.TLoad) target).getScope().getMeta();
+                        LeftValue v = ((Ins.TLoad) target).value();
+                        if ((meta.nonnullLocalVar.contains(v) && !isNotNullValue(valueToSet, meta))
+                                || (meta.nonemptyLocalVar.contains(v) && !isNotEmptyValue(valueToSet, meta))) {
+                                // the value might be invalid, keep the pointer to check it
+                                meta.pointerLocalVar.add(v);
+                        }
+                }
+                Ins.InvokeVirtual set = new Ins.InvokeVirtual(
                         target,
                         getPointer_set(),
                         lineCol);
@@ -5039,7 +5874,111 @@ public class SemanticProcessor {
                 return set;
         }
 
-        private SMethodDef Pointer_get;
+        /**
+         * @param v    the value
+         * @param meta meta of the current method
+         * @return true if the value is never null or Unit
+         * @throws SyntaxException compile error
+         */
+        private boolean isNotNullValue(Value v, InvokableMeta meta) throws SyntaxException {
+                if (v.type() instanceof PrimitiveTypeDef
+                        || v instanceof StringConstantValue
+                        || v instanceof Ins.New
+                        || v instanceof Ins.NewArray
+                        || v instanceof Ins.ANewArray
+                        || v instanceof Ins.NewList
+                        || v instanceof Ins.NewMap
+                        || v instanceof Ins.This) {
+                        return true;
+                }
+                if (v instanceof Ins.TLoad && !isPointerType(v.type())) {
+                        LeftValue l = ((Ins.TLoad) v).value();
+                        if (l instanceof SParameter) {
+                                // parameters are checked when the method starts
+                                return ((SParameter) l).isNotNull() || ((SParameter) l).isNotEmpty();
+                        }
+                        return meta.nonnullLocalVar.contains(l) || meta.nonemptyLocalVar.contains(l);
+                }
+                if (v instanceof Ins.CheckCast) {
+                        return isNotNullValue(((Ins.CheckCast) v).theValueToCheck(), meta);
+                }
+                if (v instanceof ValueAnotherType) {
+                        return isNotNullValue(((ValueAnotherType) v).value(), meta);
+                }
+                if (v instanceof Ins.InvokeStatic) {
+                        return isBoxing((Ins.InvokeStatic) v);
+                }
+                if (v instanceof Ins.InvokeVirtual) {
+                        return isGetFromLocalVar((Ins.InvokeVirtual) v, meta.nonnullLocalVar)
+                                || isGetFromLocalVar((Ins.InvokeVirtual) v, meta.nonemptyLocalVar)
+                                || ((Ins.InvokeVirtual) v).invokable().equals(getStringBuilder_toString());
+                }
+                return false;
+        }
+
+        /**
+         * @param v    the value
+         * @param meta meta of the current method
+         * @return true if the value is always considered as `true` by {@link lt.runtime.LtRuntime#castToBool(Object)}
+         */
+        private boolean isNotEmptyValue(Value v, InvokableMeta meta) {
+                if (v instanceof BoolValue) return ((BoolValue) v).getValue() != 0;
+                if (v instanceof IntValue) return ((IntValue) v).getValue() != 0;
+                if (v instanceof ShortValue) return ((ShortValue) v).getValue() != 0;
+                if (v instanceof ByteValue) return ((ByteValue) v).getValue() != 0;
+                if (v instanceof CharValue) return ((CharValue) v).getValue() != 0;
+                if (v instanceof LongValue) return ((LongValue) v).getValue() != 0;
+                if (v instanceof FloatValue) return ((FloatValue) v).getValue() != 0;
+                if (v instanceof DoubleValue) return ((DoubleValue) v).getValue() != 0;
+                if (v instanceof StringConstantValue) return !((StringConstantValue) v).getStr().isEmpty();
+                // the value is checked when it's assigned, so fresh collections with elements are valid
+                if (v instanceof Ins.NewList) return !((Ins.NewList) v).initValues().isEmpty();
+                if (v instanceof Ins.NewMap) return !((Ins.NewMap) v).initValues().isEmpty();
+                if (v instanceof ValueAnotherType) {
+                        return isNotEmptyValue(((ValueAnotherType) v).value(), meta);
+                }
+                if (v instanceof Ins.InvokeStatic) {
+                        return isBoxing((Ins.InvokeStatic) v)
+                                && isNotEmptyValue(((Ins.InvokeStatic) v).arguments().get(0), meta);
+                }
+                if (v instanceof Ins.TLoad && !isPointerType(v.type())) {
+                        return meta.nonemptyLocalVar.contains(((Ins.TLoad) v).value());
+                }
+                if (v instanceof Ins.PointerGetCastHelper) {
+                        // primitive values never change
+                        return isGetFromLocalVar(((Ins.PointerGetCastHelper) v).before(), meta.nonemptyLocalVar);
+                }
+                if (v instanceof Ins.CheckCast) {
+                        Value checked = ((Ins.CheckCast) v).theValueToCheck();
+                        if (checked instanceof Ins.TLoad) return isNotEmptyValue(checked, meta);
+                        // only immutable objects are still `nonempty` after they are checked
+                        String name = v.type().fullName();
+                        return (name.equals("java.lang.String")
+                                || name.equals("java.lang.Integer") || name.equals("java.lang.Long")
+                                || name.equals("java.lang.Short") || name.equals("java.lang.Byte")
+                                || name.equals("java.lang.Float") || name.equals("java.lang.Double")
+                                || name.equals("java.lang.Character") || name.equals("java.lang.Boolean"))
+                                && checked instanceof Ins.InvokeVirtual
+                                && isGetFromLocalVar((Ins.InvokeVirtual) checked, meta.nonemptyLocalVar);
+                }
+                return false;
+        }
+
+        private static boolean isBoxing(Ins.InvokeStatic invoke) {
+                return invoke.arguments().size() == 1
+                        && invoke.arguments().get(0).type() instanceof PrimitiveTypeDef
+                        && invoke.invokable() instanceof SMethodDef
+                        && ((SMethodDef) invoke.invokable()).name().equals("valueOf")
+                        && invoke.invokable().declaringType().fullName().startsWith("java.lang.");
+        }
+
+        private static boolean isGetFromLocalVar(Ins.InvokeVirtual invoke, Set<LeftValue> localVars) {
+                return Consts.flagMatch(invoke.flag, Consts.IS_POINTER_GET)
+                        && invoke.target() instanceof Ins.TLoad
+                        && localVars.contains(((Ins.TLoad) invoke.target()).value());
+        }
+
+        private volatile SMethodDef Pointer_get;
 
         public SMethodDef getPointer_get() throws SyntaxException {
                 if (Pointer_get == null) {
@@ -5080,7 +6019,7 @@ public class SemanticProcessor {
                 return pointingType;
         }
 
-        private SMethodDef LtRuntime_destruct;
+        private volatile SMethodDef LtRuntime_destruct;
 
         public SMethodDef getLtRuntime_destruct() throws SyntaxException {
                 if (LtRuntime_destruct == null) {
@@ -5097,7 +6036,7 @@ public class SemanticProcessor {
                 return LtRuntime_destruct;
         }
 
-        private SMethodDef List_get;
+        private volatile SMethodDef List_get;
 
         public SMethodDef getList_get() throws SyntaxException {
                 if (List_get == null) {
@@ -5114,7 +6053,7 @@ public class SemanticProcessor {
                 return List_get;
         }
 
-        private SMethodDef Map_get;
+        private volatile SMethodDef Map_get;
 
         private SMethodDef getMap_get() throws SyntaxException {
                 if (Map_get == null) {
@@ -5605,44 +6544,25 @@ public class SemanticProcessor {
                 vExp.setInit(exp);
                 procedure.statements.add(vExp);
 
-                // define some inner methods
-                // def patternMatching${hashCode}${count}
-                List<MethodDef> patternMethods = new ArrayList<MethodDef>();
-                int index = -1;
-                for (AST.PatternCondition ignore : pm.patternsToStatements.keySet()) {
-                        ++index;
-                        MethodDef methodDef = new MethodDef(
-                                "patternMatching$" + Integer.toHexString(Math.abs(pm.hashCode())) + "$" + index,
-                                Collections.<Modifier>emptySet(),
-                                null,
-                                Collections.singletonList(
-                                        new VariableDef("**", Collections.<Modifier>emptySet(), Collections.<AST.Anno>emptySet(), LineCol.SYNTHETIC_WITH_FILE(fileName))
-                                ),
-                                Collections.<AST.Anno>emptySet(),
-                                new ArrayList<Statement>(),
-                                LineCol.SYNTHETIC_WITH_FILE(fileName)
-                        );
-                        patternMethods.add(methodDef);
-                }
-                for (int i = patternMethods.size() - 1; i >= 0; --i) {
-                        procedure.statements.add(patternMethods.get(i));
-                }
-
-                // parse these methods
-                index = -1;
-                for (Map.Entry<AST.PatternCondition, List<Statement>> patternListEntry : pm.patternsToStatements.entrySet()) {
-                        ++index;
-                        MethodDef currentMethod = patternMethods.get(index);
-                        MethodDef nextMethod = null;
-                        if (index + 1 < patternMethods.size()) {
-                                nextMethod = patternMethods.get(index + 1);
-                        }
-                        parsePatternMatchingMethod(patternListEntry, currentMethod, nextMethod, pm.line_col().fileName);
-                }
+                // define one inner method for all cases
+                // def patternMatching${hashCode}(**)
+                MethodDef methodDef = new MethodDef(
+                        "patternMatching$" + Integer.toHexString(Math.abs(pm.hashCode())),
+                        Collections.<Modifier>emptySet(),
+                        null,
+                        Collections.singletonList(
+                                new VariableDef("**", Collections.<Modifier>emptySet(), Collections.<AST.Anno>emptySet(), LineCol.SYNTHETIC_WITH_FILE(fileName))
+                        ),
+                        Collections.<AST.Anno>emptySet(),
+                        new ArrayList<Statement>(),
+                        LineCol.SYNTHETIC_WITH_FILE(fileName)
+                );
+                parsePatternMatchingCases(pm, methodDef.body, "**", "**", fileName);
+                procedure.statements.add(methodDef);
 
-                // invoke first method
+                // invoke the method
                 AST.Invocation invocation = new AST.Invocation(
-                        new AST.Access(null, patternMethods.get(0).name, LineCol.SYNTHETIC_WITH_FILE(fileName)),
+                        new AST.Access(null, methodDef.name, LineCol.SYNTHETIC_WITH_FILE(fileName)),
                         Collections.<Expression>singletonList(new AST.Access(null, vExp.getName(), LineCol.SYNTHETIC_WITH_FILE(fileName))),
                         false, pm.line_col()
                 );
@@ -5651,11 +6571,15 @@ public class SemanticProcessor {
                 return parseValueFromProcedure(procedure, requiredType, scope);
         }
 
+        /**
+         * transform a pattern into statements testing the value.
+         * the statements end without doing anything when the test fails,
+         * so the control flow goes on to the next case.
+         */
         private interface PatternMatchingParser {
                 List<Statement> parse(
                         AST.Pattern pattern,
                         List<Statement> statements,
-                        AST.If.IfPair anElse,
                         String varName,
                         String fileName
                 );
@@ -5663,285 +6587,514 @@ public class SemanticProcessor {
 
         private class PatternMatchingDefaultParser implements PatternMatchingParser {
                 @Override
-                public List<Statement> parse(AST.Pattern pattern, List<Statement> statements, AST.If.IfPair anElse, String varName, String fileName) {
+                public List<Statement> parse(AST.Pattern pattern, List<Statement> statements, String varName, String fileName) {
                         return statements;
                 }
         }
 
         private class PatternMatchingTypeParser implements PatternMatchingParser {
                 @Override
-                public List<Statement> parse(AST.Pattern pattern, List<Statement> statements, AST.If.IfPair anElse, String varName, String fileName) {
-                        AST.If.IfPair testClass = new AST.If.IfPair(
-                                new TwoVariableOperation(
-                                        "is",
-                                        new AST.Access(null, varName, LineCol.SYNTHETIC_WITH_FILE(fileName)),
-                                        new AST.TypeOf(
-                                                ((AST.Pattern_Type) pattern).type,
-                                                LineCol.SYNTHETIC_WITH_FILE(fileName)),
-                                        LineCol.SYNTHETIC_WITH_FILE(fileName)
-                                ), statements, LineCol.SYNTHETIC_WITH_FILE(fileName)
-                        );
-                        AST.If anIf = new AST.If(Arrays.asList(testClass, anElse), LineCol.SYNTHETIC_WITH_FILE(fileName));
-                        return Collections.<Statement>singletonList(anIf);
+                public List<Statement> parse(AST.Pattern pattern, List<Statement> statements, String varName, String fileName) {
+                        return Collections.<Statement>singletonList(patternIf(
+                                patternIsType(varName, ((AST.Pattern_Type) pattern).type, fileName),
+                                statements, fileName));
                 }
         }
 
         private class PatternMatchingValueParser implements PatternMatchingParser {
                 @Override
-                public List<Statement> parse(AST.Pattern pattern, List<Statement> statements, AST.If.IfPair anElse, String varName, String fileName) {
-                        AST.If.IfPair testValue = new AST.If.IfPair(
+                public List<Statement> parse(AST.Pattern pattern, List<Statement> statements, String varName, String fileName) {
+                        return Collections.<Statement>singletonList(patternIf(
                                 new TwoVariableOperation(
                                         "is",
                                         new AST.Access(null, varName, LineCol.SYNTHETIC_WITH_FILE(fileName)),
                                         ((AST.Pattern_Value) pattern).exp,
                                         LineCol.SYNTHETIC_WITH_FILE(fileName)
-                                ), statements, LineCol.SYNTHETIC_WITH_FILE(fileName)
-                        );
-                        AST.If anIf = new AST.If(Arrays.asList(testValue, anElse), LineCol.SYNTHETIC_WITH_FILE(fileName));
-                        return Collections.<Statement>singletonList(anIf);
+                                ), statements, fileName));
                 }
         }
 
         private class PatternMatchingDefineParser implements PatternMatchingParser {
                 @Override
-                public List<Statement> parse(AST.Pattern pattern, List<Statement> statements, AST.If.IfPair anElse, String varName, String fileName) {
-                        // define value and assign it with **
-                        List<Statement> theList;
-                        if (!((AST.Pattern_Define) pattern).name.equals(varName)) {
-                                // val v = **
-                                VariableDef v = new VariableDef(((AST.Pattern_Define) pattern).name,
-                                        Collections.singleton(new Modifier(Modifier.Available.VAL, LineCol.SYNTHETIC_WITH_FILE(fileName))),
-                                        Collections.<AST.Anno>emptySet(), LineCol.SYNTHETIC_WITH_FILE(fileName));
-                                v.setType(((AST.Pattern_Define) pattern).type);
-                                v.setInit(new AST.Access(null, varName, LineCol.SYNTHETIC_WITH_FILE(fileName)));
-                                theList = new ArrayList<Statement>();
-                                theList.add(v);
-                                theList = new BindList<Statement>(theList, statements);
-                        } else {
-                                theList = statements;
-                        }
-
-                        if (((AST.Pattern_Define) pattern).type != null) {
-                                AST.If.IfPair testClass = new AST.If.IfPair(
-                                        new TwoVariableOperation(
-                                                "is",
-                                                new AST.Access(null, varName, LineCol.SYNTHETIC_WITH_FILE(fileName)),
-                                                new AST.TypeOf(
-                                                        ((AST.Pattern_Define) pattern).type,
-                                                        LineCol.SYNTHETIC_WITH_FILE(fileName)),
-                                                LineCol.SYNTHETIC_WITH_FILE(fileName)
-                                        ), theList, LineCol.SYNTHETIC_WITH_FILE(fileName)
-                                );
-                                AST.If anIf = new AST.If(Arrays.asList(testClass, anElse), LineCol.SYNTHETIC_WITH_FILE(fileName));
-                                return Collections.<Statement>singletonList(anIf);
+                public List<Statement> parse(AST.Pattern pattern, List<Statement> statements, String varName, String fileName) {
+                        AST.Pattern_Define define = (AST.Pattern_Define) pattern;
+                        List<Statement> theList = bindPatternVariable(define, varName, statements, fileName);
+                        if (define.type != null) {
+                                return Collections.<Statement>singletonList(patternIf(
+                                        patternIsType(varName, define.type, fileName),
+                                        theList, fileName));
                         } else {
-                                return statements;
+                                return theList;
                         }
                 }
         }
 
         private class PatternMatchingDestructParser implements PatternMatchingParser {
+                private final String tmpPrefix;
                 private final int initialCount;
 
-                private PatternMatchingDestructParser(int initialCount) {
+                private PatternMatchingDestructParser(String tmpPrefix, int initialCount) {
+                        this.tmpPrefix = tmpPrefix;
                         this.initialCount = initialCount;
                 }
 
                 @Override
-                public List<Statement> parse(AST.Pattern pattern, List<Statement> statements, AST.If.IfPair anElse, String varName, String fileName) {
-                        // check if null
-                        List<Statement> stmtsInCheckNull = new ArrayList<Statement>();
-                        AST.If checkNull = new AST.If(Arrays.asList(
-                                new AST.If.IfPair(
-                                        new TwoVariableOperation(
-                                                "not",
-                                                new AST.Access(null, varName, LineCol.SYNTHETIC),
-                                                new AST.Null(LineCol.SYNTHETIC),
-                                                LineCol.SYNTHETIC
-                                        ),
-                                        stmtsInCheckNull,
-                                        LineCol.SYNTHETIC
-                                ),
-                                anElse
-                        ), LineCol.SYNTHETIC);
-
-                        // use destruct <-
+                public List<Statement> parse(AST.Pattern pattern, List<Statement> statements, String varName, String fileName) {
                         AST.Pattern_Destruct patternDestruct = (AST.Pattern_Destruct) pattern;
                         // construct a destruct without type def
-                        // arg index
+                        // every sub pattern except `_` is destructed into a tmp variable
                         int count = initialCount;
-                        // tmpName count
-                        int tmpNameCount = 0;
+                        List<String> tmpNames = new ArrayList<String>();
                         List<AST.Pattern> tmpList = new ArrayList<AST.Pattern>();
                         for (AST.Pattern p : patternDestruct.subPatterns) {
                                 ++count;
-                                ++tmpNameCount;
-
-                                if (p.patternType == AST.PatternType.TYPE) {
-                                        tmpList.add(new AST.Pattern_Define("**" + count, null));
-                                        continue;
-                                }
-                                if (p.patternType == AST.PatternType.DEFINE && ((AST.Pattern_Define) p).type != null) {
-                                        tmpList.add(new AST.Pattern_Define(((AST.Pattern_Define) p).name, null));
-                                        continue;
-                                }
-                                if (p.patternType == AST.PatternType.VALUE) {
-                                        tmpList.add(new AST.Pattern_Define("**" + count, null));
-                                        continue;
-                                }
-                                if (p.patternType == AST.PatternType.DESTRUCT) {
-                                        tmpList.add(new AST.Pattern_Define("**" + count, null));
-                                        continue;
+                                if (p.patternType == AST.PatternType.DEFAULT) {
+                                        tmpNames.add(null);
+                                        tmpList.add(p);
+                                } else {
+                                        tmpNames.add(tmpPrefix + count);
+                                        tmpList.add(new AST.Pattern_Define(tmpPrefix + count, null));
                                 }
-
-                                --tmpNameCount;
-                                tmpList.add(p);
                         }
-                        AST.Pattern_Destruct patternDestructWithoutTypeDef = new AST.Pattern_Destruct(
-                                patternDestruct.type,
-                                tmpList
-                        );
 
-                        AST.Destruct doDestruct = new AST.Destruct(Collections.<Modifier>emptySet(), Collections.<AST.Anno>emptySet(),
-                                patternDestructWithoutTypeDef, new AST.Access(null, varName, LineCol.SYNTHETIC), LineCol.SYNTHETIC);
-                        List<Statement> stmtsInDestruct;
-                        if (tmpNameCount > 0) {
-                                stmtsInDestruct = new ArrayList<Statement>();
-                        } else {
-                                stmtsInDestruct = statements;
-                        }
-                        AST.If destructIf = new AST.If(
-                                Arrays.asList(
-                                        new AST.If.IfPair(doDestruct, stmtsInDestruct, LineCol.SYNTHETIC),
-                                        anElse
-                                ), LineCol.SYNTHETIC
-                        );
-                        stmtsInCheckNull.add(destructIf);
-
-                        if (tmpNameCount > 0) {
-                                // apply patterns on these variables
-                                List<Statement> currentStmts = stmtsInDestruct;
-                                for (int i = 0; i < patternDestruct.subPatterns.size(); ++i) {
-                                        AST.Pattern sub = patternDestruct.subPatterns.get(i);
-                                        AST.Pattern x = patternDestructWithoutTypeDef.subPatterns.get(i);
-                                        String tmpName = null;
-                                        if (x instanceof AST.Pattern_Define) {
-                                                tmpName = ((AST.Pattern_Define) x).name;
-                                        }
-                                        PatternMatchingParser parser;
-                                        if (sub.patternType == AST.PatternType.TYPE) {
-                                                parser = new PatternMatchingTypeParser();
-                                        } else if (sub.patternType == AST.PatternType.DEFINE) {
-                                                AST.Access type = ((AST.Pattern_Define) sub).type;
-                                                if (type == null) continue;
-                                                parser = new PatternMatchingDefineParser();
-                                        } else if (sub.patternType == AST.PatternType.VALUE) {
-                                                parser = new PatternMatchingValueParser();
-                                        } else if (sub.patternType == AST.PatternType.DESTRUCT) {
-                                                parser = new PatternMatchingDestructParser(count);
-                                        } else continue;
-
-                                        // handle
-                                        assert tmpName != null;
-                                        --tmpNameCount;
-
-                                        List<Statement> list;
-                                        if (tmpNameCount == 0) {
-                                                list = statements;
-                                        } else {
-                                                list = new ArrayList<Statement>();
-                                        }
-                                        currentStmts.addAll(parser.parse(
-                                                sub, list, anElse, tmpName, fileName
-                                        ));
+                        return Collections.<Statement>singletonList(patternDestructIf(
+                                varName, new AST.Pattern_Destruct(patternDestruct.type, tmpList),
+                                applySubPatterns(patternDestruct.subPatterns, tmpNames, tmpPrefix, count, statements, fileName),
+                                fileName));
+                }
+        }
 
-                                        currentStmts = list;
-                                }
-                        }
+        /**
+         * @return if condition then statements (without else)
+         */
+        private static AST.If patternIf(Expression condition, List<Statement> statements, String fileName) {
+                return new AST.If(Collections.singletonList(
+                        new AST.If.IfPair(condition, statements, LineCol.SYNTHETIC_WITH_FILE(fileName))
+                ), LineCol.SYNTHETIC_WITH_FILE(fileName));
+        }
+
+        /**
+         * @return a block with its own scope, so that names defined by different cases don't conflict
+         */
+        private static AST.If patternBlock(List<Statement> statements, String fileName) {
+                return new AST.If(Collections.singletonList(
+                        new AST.If.IfPair(null, statements, LineCol.SYNTHETIC_WITH_FILE(fileName))
+                ), LineCol.SYNTHETIC_WITH_FILE(fileName));
+        }
+
+        /**
+         * @return varName is type
+         */
+        private static Expression patternIsType(String varName, AST.Access type, String fileName) {
+                return new TwoVariableOperation(
+                        "is",
+                        new AST.Access(null, varName, LineCol.SYNTHETIC_WITH_FILE(fileName)),
+                        new AST.TypeOf(type, LineCol.SYNTHETIC_WITH_FILE(fileName)),
+                        LineCol.SYNTHETIC_WITH_FILE(fileName)
+                );
+        }
 
-                        return Collections.<Statement>singletonList(checkNull);
+        /**
+         * @return `val v = varName` followed by the statements
+         */
+        private static List<Statement> bindPatternVariable(AST.Pattern_Define define, String varName, List<Statement> statements, String fileName) {
+                if (define.name.equals(varName)) return statements;
+                VariableDef v = new VariableDef(define.name,
+                        Collections.singleton(new Modifier(Modifier.Available.VAL, LineCol.SYNTHETIC_WITH_FILE(fileName))),
+                        Collections.<AST.Anno>emptySet(), LineCol.SYNTHETIC_WITH_FILE(fileName));
+                v.setType(define.type);
+                v.setInit(new AST.Access(null, varName, LineCol.SYNTHETIC_WITH_FILE(fileName)));
+                List<Statement> theList = new ArrayList<Statement>();
+                theList.add(v);
+                return new BindList<Statement>(theList, statements);
+        }
+
+        /**
+         * <pre>
+         * if varName not null
+         *     if (destruct &lt;- varName)
+         *         statements
+         * </pre>
+         */
+        private static AST.If patternDestructIf(String varName, AST.Pattern_Destruct destruct,
+                                                List<Statement> statements, String fileName) {
+                AST.Destruct doDestruct = new AST.Destruct(Collections.<Modifier>emptySet(), Collections.<AST.Anno>emptySet(),
+                        destruct, new AST.Access(null, varName, LineCol.SYNTHETIC_WITH_FILE(fileName)), LineCol.SYNTHETIC_WITH_FILE(fileName));
+                return patternIf(
+                        new TwoVariableOperation(
+                                "not",
+                                new AST.Access(null, varName, LineCol.SYNTHETIC_WITH_FILE(fileName)),
+                                new AST.Null(LineCol.SYNTHETIC_WITH_FILE(fileName)),
+                                LineCol.SYNTHETIC_WITH_FILE(fileName)
+                        ),
+                        Collections.<Statement>singletonList(patternIf(doDestruct, statements, fileName)),
+                        fileName);
+        }
+
+        /**
+         * apply sub patterns on the destructed values
+         *
+         * @param subPatterns sub patterns
+         * @param tmpNames    names of the destructed values (null for `_`)
+         * @param tmpPrefix   prefix of names of the destructed values
+         * @param count       the last tmp name index
+         * @param statements  statements to run when all sub patterns match
+         * @param fileName    file name
+         * @return statements
+         */
+        private List<Statement> applySubPatterns(List<AST.Pattern> subPatterns, List<String> tmpNames, String tmpPrefix,
+                                                 int count, List<Statement> statements, String fileName) {
+                // built from the innermost sub pattern
+                List<Statement> stmts = statements;
+                for (int i = subPatterns.size() - 1; i >= 0; --i) {
+                        AST.Pattern sub = subPatterns.get(i);
+                        String tmpName = tmpNames.get(i);
+
+                        PatternMatchingParser parser;
+                        if (sub.patternType == AST.PatternType.TYPE) {
+                                parser = new PatternMatchingTypeParser();
+                        } else if (sub.patternType == AST.PatternType.DEFINE) {
+                                parser = new PatternMatchingDefineParser();
+                        } else if (sub.patternType == AST.PatternType.VALUE) {
+                                parser = new PatternMatchingValueParser();
+                        } else if (sub.patternType == AST.PatternType.DESTRUCT) {
+                                parser = new PatternMatchingDestructParser(tmpPrefix, count);
+                        } else continue;
+
+                        assert tmpName != null;
+                        stmts = parser.parse(sub, stmts, tmpName, fileName);
                 }
+                return stmts;
         }
 
-        private void parsePatternMatchingMethod(Map.Entry<AST.PatternCondition, List<Statement>> patternListEntry,
-                                                MethodDef currentMethod,
-                                                MethodDef nextMethod,
-                                                String fileName) throws SyntaxException {
-                AST.PatternCondition p = patternListEntry.getKey();
-                List<Statement> statements = patternListEntry.getValue();
+        /**
+         * @return the type tested by the pattern, or null if it doesn't test the type
+         */
+        private static AST.Access patternTestType(AST.Pattern pattern) {
+                if (pattern.patternType == AST.PatternType.TYPE) {
+                        return ((AST.Pattern_Type) pattern).type;
+                } else if (pattern.patternType == AST.PatternType.DEFINE) {
+                        return ((AST.Pattern_Define) pattern).type;
+                }
+                return null;
+        }
 
-                AST.If.IfPair anElse;
-                if (nextMethod == null) {
-                        // throw when else
-                        anElse = new AST.If.IfPair(
-                                null,
-                                Collections.<Statement>singletonList(
-                                        new AST.Throw(
-                                                new AST.Invocation(
-                                                        new AST.Access(
-                                                                new AST.PackageRef("lt::runtime", LineCol.SYNTHETIC_WITH_FILE(fileName)),
-                                                                "MatchError",
-                                                                LineCol.SYNTHETIC_WITH_FILE(fileName)),
-                                                        Collections.<Expression>emptyList(),
-                                                        false,
-                                                        LineCol.SYNTHETIC_WITH_FILE(fileName)
-                                                ), LineCol.SYNTHETIC_WITH_FILE(fileName)
-                                        )
-                                ),
-                                LineCol.SYNTHETIC_WITH_FILE(fileName));
-                } else {
-                        // invoke nextMethod
-                        anElse = new AST.If.IfPair(
-                                null,
-                                Collections.<Statement>singletonList(
-                                        new AST.Return(
-                                                new AST.Invocation(
-                                                        new AST.Access(null, nextMethod.name, LineCol.SYNTHETIC_WITH_FILE(fileName)),
-                                                        Collections.<Expression>singletonList(
-                                                                new AST.Access(null, "**", LineCol.SYNTHETIC_WITH_FILE(fileName))
-                                                        ),
-                                                        false,
-                                                        LineCol.SYNTHETIC_WITH_FILE(fileName)
-                                                ),
-                                                LineCol.SYNTHETIC_WITH_FILE(fileName)
-                                        )
-                                ),
-                                LineCol.SYNTHETIC_WITH_FILE(fileName));
+        /**
+         * @return true if b can reuse the type test or the destruct result of a
+         */
+        private static boolean canSharePatternTest(AST.Pattern a, AST.Pattern b) {
+                if (a.patternType == AST.PatternType.DESTRUCT && b.patternType == AST.PatternType.DESTRUCT) {
+                        AST.Pattern_Destruct da = (AST.Pattern_Destruct) a;
+                        AST.Pattern_Destruct db = (AST.Pattern_Destruct) b;
+                        return (da.type == null ? db.type == null : da.type.equals(db.type))
+                                && da.subPatterns.size() == db.subPatterns.size();
+                }
+                AST.Access type = patternTestType(a);
+                return type != null && type.equals(patternTestType(b));
+        }
+
+        /**
+         * @return statements of the case, which always return when the case matches
+         */
+        private List<Statement> patternMatchingCaseBody(Map.Entry<AST.PatternCondition, List<Statement>> patternListEntry,
+                                                        String fileName) {
+                AST.PatternCondition p = patternListEntry.getKey();
+                List<Statement> statements = new ArrayList<Statement>(patternListEntry.getValue());
+                transformLastExpToReturn(statements);
+                if (statements.isEmpty()
+                        || !(statements.get(statements.size() - 1) instanceof AST.Return
+                        || statements.get(statements.size() - 1) instanceof AST.Throw)) {
+                        // return Unit
+                        statements.add(new AST.Return(null, LineCol.SYNTHETIC_WITH_FILE(fileName)));
                 }
                 // statements should be packed into `if condition` if the condition exists
                 if (p.condition != null) {
                         statements = Collections.<Statement>singletonList(
-                                new AST.If(
-                                        Arrays.asList(
-                                                new AST.If.IfPair(p.condition, statements, p.condition.line_col()),
-                                                anElse
-                                        ), LineCol.SYNTHETIC_WITH_FILE(fileName)
-                                )
+                                new AST.If(Collections.singletonList(
+                                        new AST.If.IfPair(p.condition, statements, p.condition.line_col())
+                                ), LineCol.SYNTHETIC_WITH_FILE(fileName))
                         );
                 }
+                return statements;
+        }
 
-                PatternMatchingParser patternMatchingParser;
-                switch (p.pattern.patternType) {
-                        case DEFAULT:
-                                patternMatchingParser = new PatternMatchingDefaultParser();
-                                break;
-                        case TYPE:
-                                patternMatchingParser = new PatternMatchingTypeParser();
-                                break;
-                        case VALUE:
-                                patternMatchingParser = new PatternMatchingValueParser();
-                                break;
-                        case DEFINE:
-                                patternMatchingParser = new PatternMatchingDefineParser();
-                                break;
-                        case DESTRUCT:
-                                patternMatchingParser = new PatternMatchingDestructParser(-1);
-                                break;
-                        default:
-                                throw new LtBug("unknown pattern matching type " + p.pattern.patternType);
+        /**
+         * kinds of literal values which can be dispatched with a switch
+         */
+        private enum SwitchKind {
+                INT("java::lang", "Integer", "int"),
+                CHAR("java::lang", "Character", "char"),
+                STRING("java::lang", "String", null);
+
+                private final String pkg;
+                private final String boxed;
+                private final String primitive;
+
+                SwitchKind(String pkg, String boxed, String primitive) {
+                        this.pkg = pkg;
+                        this.boxed = boxed;
+                        this.primitive = primitive;
+                }
+        }
+
+        /**
+         * @param pattern pattern
+         * @return the switch kind of the literal value pattern, or null if it cannot be dispatched with a switch
+         * @throws SyntaxException compile error
+         */
+        private SwitchKind switchKindOf(AST.Pattern pattern) throws SyntaxException {
+                if (pattern.patternType != AST.PatternType.VALUE) return null;
+                Expression exp = ((AST.Pattern_Value) pattern).exp;
+                if (exp instanceof NumberLiteral) {
+                        String literal = ((NumberLiteral) exp).literal();
+                        if (literal.contains(".")) return null;
+                        try {
+                                Integer.parseInt(literal);
+                        } catch (NumberFormatException e) {
+                                return null;
+                        }
+                        return SwitchKind.INT;
+                } else if (exp instanceof StringLiteral) {
+                        String literal = ((StringLiteral) exp).literal();
+                        if (!canUnescape(literal.substring(1, literal.length() - 1))) return null;
+                        if (isChar((StringLiteral) exp, exp.line_col(), true)) return SwitchKind.CHAR;
+                        if (!literal.contains("${")) return SwitchKind.STRING;
+                }
+                return null;
+        }
+
+        /**
+         * @param s string to unescape
+         * @return true if {@link #unescape(String, LineCol)} would not report errors
+         */
+        private static boolean canUnescape(String s) {
+                for (int i = 0; i < s.length(); ++i) {
+                        if (s.charAt(i) == '\\') {
+                                ++i;
+                                if (i == s.length() || "ntr'\\\"".indexOf(s.charAt(i)) == -1) return false;
+                        }
+                }
+                return true;
+        }
+
+        /**
+         * @param pattern literal value pattern
+         * @param kind    switch kind of the pattern
+         * @return the int key of the literal, strings use the hash code
+         * @throws SyntaxException compile error
+         */
+        private int switchKeyOf(AST.Pattern pattern, SwitchKind kind) throws SyntaxException {
+                Expression exp = ((AST.Pattern_Value) pattern).exp;
+                if (kind == SwitchKind.INT) {
+                        return Integer.parseInt(((NumberLiteral) exp).literal());
+                }
+                String literal = ((StringLiteral) exp).literal();
+                String str = unescape(literal.substring(1, literal.length() - 1), exp.line_col());
+                assert str != null;
+                return kind == SwitchKind.CHAR ? str.charAt(0) : str.hashCode();
+        }
+
+        /**
+         * dispatch consecutive cases with literal values of the same kind using a switch
+         * <pre>
+         * var **key:int = (an int which is not a key)
+         * if ** is type Integer
+         *     **key = ** as int              # (** as String).hashCode() for strings
+         * elseif ** is 1                     # for subjects of other types, whose `equals` decides
+         *     **key = 1
+         * elseif ** is 2
+         *     **key = 2
+         * switch **key
+         *     1 : cases with value 1 (in order)
+         *     2 : cases with value 2 (in order)
+         * </pre>
+         * string cases test the value again, because different strings may have the same hash code.
+         *
+         * @param cases     the cases, all of them are literal value patterns of the kind
+         * @param kind      switch kind
+         * @param varName   name of the value to match
+         * @param tmpPrefix prefix of names of generated variables
+         * @param fileName  file name
+         * @return a block with its own scope
+         * @throws SyntaxException compile error
+         */
+        private AST.If patternSwitch(List<Map.Entry<AST.PatternCondition, List<Statement>>> cases,
+                                     SwitchKind kind, String varName, String tmpPrefix,
+                                     String fileName) throws SyntaxException {
+                LineCol lineCol = LineCol.SYNTHETIC_WITH_FILE(fileName);
+                LinkedHashMap<Integer, List<Statement>> keyToStatements = new LinkedHashMap<Integer, List<Statement>>();
+                LinkedHashMap<Integer, Expression> keyToExp = new LinkedHashMap<Integer, Expression>();
+                for (Map.Entry<AST.PatternCondition, List<Statement>> c : cases) {
+                        AST.Pattern p = c.getKey().pattern;
+                        int key = switchKeyOf(p, kind);
+                        if (!keyToStatements.containsKey(key)) {
+                                keyToStatements.put(key, new ArrayList<Statement>());
+                                keyToExp.put(key, ((AST.Pattern_Value) p).exp);
+                        }
+                        List<Statement> body = patternMatchingCaseBody(c, fileName);
+                        if (kind == SwitchKind.STRING) {
+                                body = new PatternMatchingValueParser().parse(p, body, varName, fileName);
+                        }
+                        keyToStatements.get(key).add(patternBlock(body, fileName));
+                }
+
+                // an int which is not a key
+                int defaultKey = Integer.MIN_VALUE;
+                while (keyToStatements.containsKey(defaultKey)) ++defaultKey;
+
+                List<Statement> stmts = new ArrayList<Statement>();
+                String keyName = tmpPrefix + "key";
+                VariableDef keyVar = new VariableDef(keyName, Collections.<Modifier>emptySet(), Collections.<AST.Anno>emptySet(), lineCol);
+                keyVar.setType(new AST.Access(null, "int", lineCol));
+                keyVar.setInit(new NumberLiteral(String.valueOf(defaultKey), lineCol));
+                stmts.add(keyVar);
+
+                Expression subject = new AST.AsType(
+                        new AST.Access(null, varName, lineCol),
+                        new AST.Access(kind.primitive == null ? new AST.PackageRef(kind.pkg, lineCol) : null,
+                                kind.primitive == null ? kind.boxed : kind.primitive, lineCol),
+                        lineCol);
+                if (kind == SwitchKind.STRING) {
+                        subject = new AST.Invocation(new AST.Access(subject, "hashCode", lineCol),
+                                Collections.<Expression>emptyList(), false, lineCol);
+                }
+                List<AST.If.IfPair> pairs = new ArrayList<AST.If.IfPair>();
+                pairs.add(new AST.If.IfPair(
+                        patternIsType(varName, new AST.Access(new AST.PackageRef(kind.pkg, lineCol), kind.boxed, lineCol), fileName),
+                        Collections.<Statement>singletonList(new AST.Assignment(
+                                new AST.Access(null, keyName, lineCol), "=", subject, lineCol)),
+                        lineCol));
+                for (Map.Entry<Integer, Expression> entry : keyToExp.entrySet()) {
+                        pairs.add(new AST.If.IfPair(
+                                new TwoVariableOperation("is", new AST.Access(null, varName, lineCol), entry.getValue(), lineCol),
+                                Collections.<Statement>singletonList(new AST.Assignment(
+                                        new AST.Access(null, keyName, lineCol), "=",
+                                        new NumberLiteral(String.valueOf(entry.getKey()), lineCol), lineCol)),
+                                lineCol));
+                }
+                stmts.add(new AST.If(pairs, lineCol));
+
+                stmts.add(new AST.Switch(new AST.Access(null, keyName, lineCol),
+                        new ArrayList<Integer>(keyToStatements.keySet()),
+                        new ArrayList<List<Statement>>(keyToStatements.values()),
+                        lineCol));
+                return patternBlock(stmts, fileName);
+        }
+
+        /**
+         * fill the statements of a pattern matching (the body of the pattern matching method,
+         * or the statements inlined into a method when the pattern matching is returned).
+         * all cases are tested one by one, a case returns when it matches, otherwise the next case is tested.
+         * consecutive cases testing the same type or destructing with the same type
+         * share the type test or the destruct result, and consecutive cases with
+         * int/char/string literals are dispatched with a switch. the statements throw
+         * {@link lt.runtime.MatchError} when no case matches.
+         *
+         * @param pm        pattern matching
+         * @param body      the statements to fill
+         * @param varName   name of the value to match
+         * @param tmpPrefix prefix of names of generated variables
+         * @param fileName  file name
+         * @throws SyntaxException compile error
+         */
+        private void parsePatternMatchingCases(AST.PatternMatching pm,
+                                               List<Statement> body,
+                                               String varName,
+                                               String tmpPrefix,
+                                               String fileName) throws SyntaxException {
+                List<Map.Entry<AST.PatternCondition, List<Statement>>> cases =
+                        new ArrayList<Map.Entry<AST.PatternCondition, List<Statement>>>(pm.patternsToStatements.entrySet());
+                int start = 0;
+                while (start < cases.size()) {
+                        AST.Pattern first = cases.get(start).getKey().pattern;
+                        SwitchKind kind = switchKindOf(first);
+                        if (kind != null) {
+                                int end = start + 1;
+                                while (end < cases.size() && switchKindOf(cases.get(end).getKey().pattern) == kind) {
+                                        ++end;
+                                }
+                                if (end - start > 1) {
+                                        body.add(patternSwitch(cases.subList(start, end), kind, varName, tmpPrefix, fileName));
+                                        start = end;
+                                        continue;
+                                }
+                        }
+
+                        int end = start + 1;
+                        while (end < cases.size() && canSharePatternTest(first, cases.get(end).getKey().pattern)) {
+                                ++end;
+                        }
+
+                        if (end - start == 1) {
+                                PatternMatchingParser patternMatchingParser;
+                                switch (first.patternType) {
+                                        case DEFAULT:
+                                                patternMatchingParser = new PatternMatchingDefaultParser();
+                                                break;
+                                        case TYPE:
+                                                patternMatchingParser = new PatternMatchingTypeParser();
+                                                break;
+                                        case VALUE:
+                                                patternMatchingParser = new PatternMatchingValueParser();
+                                                break;
+                                        case DEFINE:
+                                                patternMatchingParser = new PatternMatchingDefineParser();
+                                                break;
+                                        case DESTRUCT:
+                                                patternMatchingParser = new PatternMatchingDestructParser(tmpPrefix, -1);
+                                                break;
+                                        default:
+                                                throw new LtBug("unknown pattern matching type " + first.patternType);
+                                }
+                                body.add(patternBlock(patternMatchingParser.parse(
+                                        first, patternMatchingCaseBody(cases.get(start), fileName), varName, fileName
+                                ), fileName));
+                        } else if (first.patternType == AST.PatternType.DESTRUCT) {
+                                // destruct once, and apply sub patterns of each case on the result
+                                int size = ((AST.Pattern_Destruct) first).subPatterns.size();
+                                List<String> tmpNames = new ArrayList<String>();
+                                List<AST.Pattern> tmpList = new ArrayList<AST.Pattern>();
+                                for (int i = 0; i < size; ++i) {
+                                        tmpNames.add(tmpPrefix + i);
+                                        tmpList.add(new AST.Pattern_Define(tmpPrefix + i, null));
+                                }
+                                List<Statement> stmts = new ArrayList<Statement>();
+                                for (Map.Entry<AST.PatternCondition, List<Statement>> c : cases.subList(start, end)) {
+                                        stmts.add(patternBlock(applySubPatterns(
+                                                ((AST.Pattern_Destruct) c.getKey().pattern).subPatterns,
+                                                tmpNames, tmpPrefix, size - 1, patternMatchingCaseBody(c, fileName), fileName
+                                        ), fileName));
+                                }
+                                body.add(patternDestructIf(varName,
+                                        new AST.Pattern_Destruct(((AST.Pattern_Destruct) first).type, tmpList),
+                                        stmts, fileName));
+                        } else {
+                                // test the type once, and test each case inside
+                                List<Statement> stmts = new ArrayList<Statement>();
+                                for (Map.Entry<AST.PatternCondition, List<Statement>> c : cases.subList(start, end)) {
+                                        AST.Pattern p = c.getKey().pattern;
+                                        List<Statement> caseBody = patternMatchingCaseBody(c, fileName);
+                                        if (p.patternType == AST.PatternType.DEFINE) {
+                                                caseBody = bindPatternVariable((AST.Pattern_Define) p, varName, caseBody, fileName);
+                                        }
+                                        stmts.add(patternBlock(caseBody, fileName));
+                                }
+                                body.add(patternIf(patternIsType(varName, patternTestType(first), fileName), stmts, fileName));
+                        }
+                        start = end;
                 }
-                currentMethod.body.addAll(patternMatchingParser.parse(
-                        p.pattern, statements, anElse, "**", fileName
+
+                // throw when no case matches
+                body.add(new AST.Throw(
+                        new AST.Invocation(
+                                new AST.Access(
+                                        new AST.PackageRef("lt::runtime", LineCol.SYNTHETIC_WITH_FILE(fileName)),
+                                        "MatchError",
+                                        LineCol.SYNTHETIC_WITH_FILE(fileName)),
+                                Collections.<Expression>emptyList(),
+                                false,
+                                LineCol.SYNTHETIC_WITH_FILE(fileName)
+                        ), LineCol.SYNTHETIC_WITH_FILE(fileName)
                 ));
         }
 
@@ -6137,7 +7290,7 @@ public class SemanticProcessor {
         /**
          * {@link LtRuntime#getField(Object, String, Class)}
          */
-        private SMethodDef Lang_require = null;
+        private volatile SMethodDef Lang_require = null;
 
         /**
          * @return {@link LtRuntime#getField(Object, String, Class)}
@@ -6296,7 +7449,7 @@ public class SemanticProcessor {
                                                 for (SMethodDef m : cls.methods()) {
                                                         if (m.modifiers().contains(SModifier.ABSTRACT)) {
                                                                 boolean isOverridden = false;
-                                                                for (SMethodDef o : m.overridden()) {
+                                                                for (SMethodDef o : overriddenMethods(m)) {
                                                                         //noinspection SuspiciousMethodCalls
                                                                         if (classes.contains(o.declaringType())) {
                                                                                 isOverridden = true;
@@ -6332,7 +7485,7 @@ public class SemanticProcessor {
                                                         for (SMethodDef m : i.methods()) {
                                                                 if (m.modifiers().contains(SModifier.ABSTRACT)) {
                                                                         boolean isOverridden = false;
-                                                                        for (SMethodDef o : m.overridden()) {
+                                                                        for (SMethodDef o : overriddenMethods(m)) {
                                                                                 //noinspection SuspiciousMethodCalls
                                                                                 if (interfaces.contains(o.declaringType())
                                                                                         ||
@@ -6374,7 +7527,7 @@ public class SemanticProcessor {
                                         if (m.modifiers().contains(SModifier.ABSTRACT)) {
                                                 // check whether it's overridden
                                                 boolean isOverridden = false;
-                                                for (SMethodDef o : m.overridden()) {
+                                                for (SMethodDef o : overriddenMethods(m)) {
                                                         //noinspection SuspiciousMethodCalls
                                                         if (interfaces.contains(o.declaringType())) {
                                                                 // overridden
@@ -6503,8 +7656,13 @@ public class SemanticProcessor {
                                 continue;
                         }
 
-                        // mark the variable as `captured by lambda`
-                        scope.getMeta().pointerLocalVar.add(((Ins.TLoad) arg).value());
+                        if (isPointerType(innerMethod.getParameters().get(index).type())) {
+                                // mark the variable as `captured by lambda`
+                                scope.getMeta().pointerLocalVar.add(((Ins.TLoad) arg).value());
+                        } else if (isPointerType(arg.type())) {
+                                // captured by value
+                                arg = invokePointerGet(arg, LineCol.SYNTHETIC);
+                        }
 
                         if (arg.type() instanceof PrimitiveTypeDef) {
                                 arg = boxPrimitive(arg, LineCol.SYNTHETIC);
@@ -6525,10 +7683,31 @@ public class SemanticProcessor {
                 Ins.New aNew = new Ins.New(cons, LineCol.SYNTHETIC);
                 aNew.args().addAll(consArgs);
 
+                // the last parameter is `$`, the functional object itself
+                List<SParameter> innerParams = innerMethod.getParameters();
+                boolean selfUsed = innerParams.get(innerParams.size() - 1).isUsed();
+                if (isInterface && scope.getThis() == null && newMap.initValues().isEmpty() && !selfUsed) {
+                        // nothing is captured, so all evaluations of the lambda can share one instance
+                        // abstract classes are not shared because they may hold their own states
+                        // lambdas using `$` are not shared because `self` is set when adapted to other types (LambdaGen)
+                        SFieldDef singletonInstanceField = new SFieldDef(LineCol.SYNTHETIC);
+                        singletonInstanceField.setName(CompileUtil.SingletonFieldName);
+                        singletonInstanceField.setType(builtClass);
+                        singletonInstanceField.modifiers().add(SModifier.PUBLIC);
+                        singletonInstanceField.modifiers().add(SModifier.STATIC);
+                        singletonInstanceField.modifiers().add(SModifier.FINAL);
+                        builtClass.fields().add(singletonInstanceField);
+                        singletonInstanceField.setDeclaringType(builtClass);
+
+                        builtClass.staticStatements().add(new Ins.PutStatic(
+                                singletonInstanceField, aNew, LineCol.SYNTHETIC, err));
+                        return new Ins.GetStatic(singletonInstanceField, lambda.line_col());
+                }
+
                 return aNew;
         }
 
-        private SClassDef Object_Class;
+        private volatile SClassDef Object_Class;
 
         public SClassDef getObject_Class() throws SyntaxException {
                 if (Object_Class == null) {
@@ -6570,11 +7749,13 @@ public class SemanticProcessor {
                 }
                 sClassDef.setPkg(lambdaClassType.pkg());
                 String className = lambdaClassType.fullName() + "$Latte$Lambda$";
-                int i = 0;
-                while (typeExists(className + i)) ++i;
-                className += i;
-                sClassDef.setFullName(className);
-                types.put(className, sClassDef);
+                synchronized (this) {
+                        int i = 0;
+                        while (typeExists(className + i)) ++i;
+                        className += i;
+                        sClassDef.setFullName(className);
+                        types.put(className, sClassDef);
+                }
 
                 sClassDef.modifiers().add(SModifier.PUBLIC);
 
@@ -6679,8 +7860,12 @@ public class SemanticProcessor {
                                 getMap_get(), LineCol.SYNTHETIC
                         );
                         ii.arguments().add(boxPrimitive(new IntValue(index), LineCol.SYNTHETIC));
-                        Ins.CheckCast cc = new Ins.CheckCast(ii, innerMethod.getParameters().get(index).type(), LineCol.SYNTHETIC);
-                        capturedValues.add(cc);
+                        STypeDef capturedType = innerMethod.getParameters().get(index).type();
+                        if (capturedType instanceof PrimitiveTypeDef) {
+                                capturedValues.add(castObjToPrimitive((PrimitiveTypeDef) capturedType, ii, LineCol.SYNTHETIC));
+                        } else {
+                                capturedValues.add(new Ins.CheckCast(ii, capturedType, LineCol.SYNTHETIC));
+                        }
                 }
                 List<Value> methodArgs = new ArrayList<Value>();
                 // add parameters
@@ -6929,6 +8114,9 @@ public class SemanticProcessor {
                 assert assignFrom != null;
                 LocalVariable local = new LocalVariable(assignFrom.type(), false);
                 scope.putLeftValue(scope.generateTempName(), local);
+                // pass the proved facts to the variable to assign
+                if (isNotNullValue(assignFrom, scope.getMeta())) scope.getMeta().nonnullLocalVar.add(local);
+                if (isNotEmptyValue(assignFrom, scope.getMeta())) scope.getMeta().nonemptyLocalVar.add(local);
 
                 Ins.TStore tStore = new Ins.TStore(local, assignFrom, scope, LineCol.SYNTHETIC, err);
                 pack.instructions().add(tStore);
@@ -6953,7 +8141,7 @@ public class SemanticProcessor {
         /**
          * {@link Unit#get()}
          */
-        private SMethodDef Unit_get;
+        private volatile SMethodDef Unit_get;
 
         /**
          * invoke {@link Unit#get()}
@@ -7091,6 +8279,80 @@ public class SemanticProcessor {
                 }
         }
 
+        /**
+         * get the primitive type of a numeric type
+         *
+         * @param type primitive or boxed type
+         * @return int/long/short/byte/float/double, or null if it's not a number type
+         */
+        private PrimitiveTypeDef getNumericPrimitive(STypeDef type) {
+                if (type instanceof PrimitiveTypeDef) {
+                        if (type instanceof BoolTypeDef || type instanceof CharTypeDef) return null;
+                        return (PrimitiveTypeDef) type;
+                }
+                String name = type.fullName();
+                if ("java.lang.Integer".equals(name)) return IntTypeDef.get();
+                if ("java.lang.Long".equals(name)) return LongTypeDef.get();
+                if ("java.lang.Short".equals(name)) return ShortTypeDef.get();
+                if ("java.lang.Byte".equals(name)) return ByteTypeDef.get();
+                if ("java.lang.Float".equals(name)) return FloatTypeDef.get();
+                if ("java.lang.Double".equals(name)) return DoubleTypeDef.get();
+                return null;
+        }
+
+        private static boolean isFloating(PrimitiveTypeDef type) {
+                return type instanceof FloatTypeDef || type instanceof DoubleTypeDef;
+        }
+
+        private static boolean isIntegral(STypeDef type) {
+                return type instanceof IntTypeDef || type instanceof LongTypeDef || type instanceof ShortTypeDef
+                        || type instanceof ByteTypeDef || type instanceof CharTypeDef;
+        }
+
+        private static boolean isShift(int baseOp) {
+                return baseOp == Ins.TwoVarOp.Ishl || baseOp == Ins.TwoVarOp.Ishr || baseOp == Ins.TwoVarOp.Iushr;
+        }
+
+        /**
+         * check whether the RichXxx result of the operation is the same as the primitive operation
+         *
+         * @param baseOp operation on int
+         * @param l      left type
+         * @param r      right type
+         * @return true if the operation can be calculated with unboxed values
+         */
+        private static boolean canCalculateUnboxed(int baseOp, PrimitiveTypeDef l, PrimitiveTypeDef r) {
+                if (baseOp == Ins.TwoVarOp.Iand || baseOp == Ins.TwoVarOp.Ior || baseOp == Ins.TwoVarOp.Ixor) {
+                        // no bit operations for float/double
+                        return !isFloating(l) && !isFloating(r);
+                }
+                if (isShift(baseOp)) {
+                        // no shift operations for float/double
+                        return !isFloating(l) && !isFloating(r);
+                }
+                return true;
+        }
+
+        /**
+         * unbox the number with xxxValue() method
+         *
+         * @param v       primitive or boxed value
+         * @param type    the primitive type
+         * @param lineCol line column info
+         * @return primitive value
+         * @throws SyntaxException compile error
+         */
+        private Value unboxNumber(Value v, PrimitiveTypeDef type, LineCol lineCol) throws SyntaxException {
+                if (v.type() instanceof PrimitiveTypeDef) return v;
+                String name = type.fullName() + "Value";
+                for (SMethodDef m : ((SClassDef) v.type()).methods()) {
+                        if (m.name().equals(name) && m.getParameters().isEmpty()) {
+                                return new Ins.InvokeVirtual(v, m, lineCol);
+                        }
+                }
+                return cast(type, v, null, lineCol);
+        }
+
         /**
          * parse two variable operation for int/long/float/double
          *
@@ -7104,8 +8366,29 @@ public class SemanticProcessor {
          * @throws SyntaxException compile error
          */
         public Value parseValueFromTwoVarOpILFD(Value left, int baseOp, String methodName, Value right, SemanticScope scope, LineCol lineCol) throws SyntaxException {
+                if (!(left.type() instanceof PrimitiveTypeDef) || !(right.type() instanceof PrimitiveTypeDef)) {
+                        // boxed numbers are calculated as primitives instead of invoking RichXxx methods
+                        PrimitiveTypeDef l = getNumericPrimitive(left.type());
+                        PrimitiveTypeDef r = getNumericPrimitive(right.type());
+                        if (l != null && r != null && canCalculateUnboxed(baseOp, l, r)) {
+                                return parseValueFromTwoVarOpILFD(unboxNumber(left, l, lineCol), baseOp, methodName,
+                                        unboxNumber(right, r, lineCol), scope, lineCol);
+                        }
+                }
                 if (left.type() instanceof PrimitiveTypeDef) {
                         if (right.type() instanceof PrimitiveTypeDef) {
+                                if (isShift(baseOp) && isIntegral(left.type()) && isIntegral(right.type())) {
+                                        // the result type is decided by the left value only (same as RichInt/RichLong)
+                                        // and the shift distance is always int
+                                        Value b = right instanceof LongValue
+                                                ? new IntValue((int) ((LongValue) right).getValue())
+                                                : cast(IntTypeDef.get(), right, scope.type(), lineCol);
+                                        if (left.type().equals(LongTypeDef.get())) {
+                                                return new Ins.TwoVarOp(left, b, baseOp + 1, LongTypeDef.get(), lineCol);
+                                        }
+                                        Value a = cast(IntTypeDef.get(), left, scope.type(), lineCol);
+                                        return new Ins.TwoVarOp(a, b, baseOp, IntTypeDef.get(), lineCol);
+                                }
                                 if (left.type().equals(DoubleTypeDef.get()) || right.type().equals(DoubleTypeDef.get())) {
                                         // cast to double
                                         Value a = cast(DoubleTypeDef.get(), left, scope.type(), lineCol);
@@ -7148,7 +8431,7 @@ public class SemanticProcessor {
         /**
          * {@link LtRuntime#compare(int, int)}
          */
-        private SMethodDef Lang_compare;
+        private volatile SMethodDef Lang_compare;
 
         /**
          * @return {@link LtRuntime#compare(int, int)}
@@ -7175,7 +8458,7 @@ public class SemanticProcessor {
         /**
          * {@link Comparable#compareTo(Object)}
          */
-        private SMethodDef Comparable_compareTo;
+        private volatile SMethodDef Comparable_compareTo;
 
         /**
          * @return {@link Comparable#compareTo(Object)}
@@ -7209,6 +8492,16 @@ public class SemanticProcessor {
          * @throws SyntaxException compile error
          */
         public Value parseValueFromTwoVarOpCompare(Value left, int compare_mode, String methodName, Value right, SemanticScope scope, LineCol lineCol) throws SyntaxException {
+                if (!(left.type() instanceof PrimitiveTypeDef) || !(right.type() instanceof PrimitiveTypeDef)) {
+                        // boxed integers are compared as primitives
+                        // floating numbers are not, Double/Float.compareTo treat NaN and -0.0 differently
+                        PrimitiveTypeDef l = getNumericPrimitive(left.type());
+                        PrimitiveTypeDef r = getNumericPrimitive(right.type());
+                        if (l != null && r != null && !isFloating(l) && !isFloating(r)) {
+                                return parseValueFromTwoVarOpCompare(unboxNumber(left, l, lineCol), compare_mode, methodName,
+                                        unboxNumber(right, r, lineCol), scope, lineCol);
+                        }
+                }
                 if (left.type() instanceof PrimitiveTypeDef) {
                         if (right.type() instanceof PrimitiveTypeDef) {
                                 Ins.TwoVarOp twoVarOp;
@@ -7267,7 +8560,7 @@ public class SemanticProcessor {
         /**
          * {@link LtRuntime#compareRef(Object, Object)}
          */
-        private SMethodDef Lang_compareRef;
+        private volatile SMethodDef Lang_compareRef;
 
         /**
          * @return {@link LtRuntime#compareRef(Object, Object)}
@@ -7539,7 +8832,7 @@ public class SemanticProcessor {
         /**
          * {@link LtRuntime#is(Object, Object, Class)}
          */
-        private SMethodDef Lang_is;
+        private volatile SMethodDef Lang_is;
 
         /**
          * @return {@link LtRuntime#is(Object, Object, Class)}
@@ -7564,7 +8857,7 @@ public class SemanticProcessor {
         /**
          * {@link LtRuntime#not(Object, Object, Class)}
          */
-        private SMethodDef Lang_not;
+        private volatile SMethodDef Lang_not;
 
         /**
          * @return {@link LtRuntime#not(Object, Object, Class)}
@@ -7994,7 +9287,7 @@ public class SemanticProcessor {
                                 return new Ins.TLoad(v, scope, access.line_col());
                         }
 
-                        if (enableTypeAccess) {
+                        if (enableTypeAccess.get()) {
                                 // check whether it's a type and construct a new object
                                 try {
                                         return parseValueFromAccessType(access, imports, scope.type());
@@ -8049,7 +9342,7 @@ public class SemanticProcessor {
                                                 return null;
                                         }
                                 }
-                        } else if (access.exp instanceof AST.PackageRef && enableTypeAccess) {
+                        } else if (access.exp instanceof AST.PackageRef && enableTypeAccess.get()) {
                                 try {
                                         assert scope != null;
                                         return parseValueFromAccessType(access, imports, scope.type());
@@ -8079,7 +9372,7 @@ public class SemanticProcessor {
                                 if (type != null) {
                                         // the access.exp can be type, so in this step firstly try not constructing the object
                                         // if it cannot be type, the inner part of access.exp might need to construct.
-                                        enableTypeAccess = false;
+                                        enableTypeAccess.set(false);
                                 }
                                 v = parseValueFromExpression(access.exp, null, scope);
                         } catch (Throwable e) {
@@ -8087,7 +9380,7 @@ public class SemanticProcessor {
                                         ex = (SyntaxException) e;
                         } finally {
                                 if (type != null) {
-                                        enableTypeAccess = true;
+                                        enableTypeAccess.set(true);
                                 }
                         }
 
@@ -8169,7 +9462,7 @@ public class SemanticProcessor {
         /**
          * {@link LtRuntime#getField(Object, String, Class)}
          */
-        private SMethodDef Lang_getField = null;
+        private volatile SMethodDef Lang_getField = null;
 
         /**
          * @return {@link LtRuntime#getField(Object, String, Class)}
@@ -8814,10 +10107,62 @@ public class SemanticProcessor {
         }
 
         /**
-         * find method from type with arguments<br>
-         * it redirects to {@link #findMethodFromClassWithArguments(String, List, STypeDef, SClassDef, int, List, boolean)}<br>
-         * or {@link #findMethodFromInterfaceWithArguments(String, List, SInterfaceDef, int, List, boolean)}<br>
-         * or get methods from annotation
+         * key of {@link #methodLookupCache}
+         */
+        private static class MethodLookupKey {
+                private final String name;
+                private final List<STypeDef> argTypes;
+                private final STypeDef invokeOn;
+                private final STypeDef sTypeDef;
+                private final int mode;
+                private final boolean checkSuper;
+                private final int hashCode;
+
+                MethodLookupKey(String name, List<Value> argList, STypeDef invokeOn, STypeDef sTypeDef, int mode, boolean checkSuper) {
+                        this.name = name;
+                        this.argTypes = new ArrayList<STypeDef>(argList.size());
+                        for (Value v : argList) {
+                                argTypes.add(v.type());
+                        }
+                        this.invokeOn = invokeOn;
+                        this.sTypeDef = sTypeDef;
+                        this.mode = mode;
+                        this.checkSuper = checkSuper;
+
+                        int h = name.hashCode();
+                        h = 31 * h + argTypes.hashCode();
+                        h = 31 * h + (invokeOn == null ? 0 : invokeOn.hashCode());
+                        h = 31 * h + sTypeDef.hashCode();
+                        h = 31 * h + mode;
+                        h = 31 * h + (checkSuper ? 1 : 0);
+                        this.hashCode = h;
+                }
+
+                @Override
+                public boolean equals(Object o) {
+                        if (this == o) return true;
+                        if (!(o instanceof MethodLookupKey)) return false;
+                        MethodLookupKey that = (MethodLookupKey) o;
+                        return hashCode == that.hashCode
+                                && mode == that.mode
+                                && checkSuper == that.checkSuper
+                                && name.equals(that.name)
+                                && sTypeDef.equals(that.sTypeDef)
+                                && (invokeOn == null ? that.invokeOn == null : invokeOn.equals(that.invokeOn))
+                                && argTypes.equals(that.argTypes);
+                }
+
+                @Override
+                public int hashCode() {
+                        return hashCode;
+                }
+        }
+
+        /**
+         * find method from type with arguments<br>
+         * it redirects to {@link #findMethodFromClassWithArguments(String, List, STypeDef, SClassDef, int, List, boolean)}<br>
+         * or {@link #findMethodFromInterfaceWithArguments(String, List, SInterfaceDef, int, List, boolean)}<br>
+         * or get methods from annotation
          *
          * @param lineCol        file_line_col
          * @param name           method name
@@ -8834,7 +10179,24 @@ public class SemanticProcessor {
                         // ignore any invocation on `Object#clone` at compile time
                         return;
                 }
-                if (sTypeDef instanceof SClassDef) {
+                if (matchedMethods.isEmpty()
+                        && (sTypeDef instanceof SClassDef || sTypeDef instanceof SInterfaceDef)
+                        && !typeDefSet.contains(sTypeDef)) {
+                        // the type is loaded from class path, its hierarchy never changes
+                        // so the found methods only depend on the argument types
+                        MethodLookupKey key = new MethodLookupKey(name, argList, invokeOn, sTypeDef, mode, checkSuper);
+                        List<SMethodDef> methods = methodLookupCache.get(key);
+                        if (methods == null) {
+                                methods = new ArrayList<SMethodDef>();
+                                if (sTypeDef instanceof SClassDef) {
+                                        findMethodFromClassWithArguments(name, argList, invokeOn, (SClassDef) sTypeDef, mode, methods, checkSuper);
+                                } else {
+                                        findMethodFromInterfaceWithArguments(name, argList, (SInterfaceDef) sTypeDef, mode, methods, checkSuper);
+                                }
+                                methodLookupCache.put(key, methods);
+                        }
+                        matchedMethods.addAll(methods);
+                } else if (sTypeDef instanceof SClassDef) {
                         findMethodFromClassWithArguments(name, argList, invokeOn, (SClassDef) sTypeDef, mode, matchedMethods, checkSuper);
                 } else if (sTypeDef instanceof SInterfaceDef) {
                         findMethodFromInterfaceWithArguments(name, argList, (SInterfaceDef) sTypeDef, mode, matchedMethods, checkSuper);
@@ -8920,7 +10282,7 @@ public class SemanticProcessor {
                 return callFunctionalObject(possibleFunctionalObject, scope.type(), arguments, invocation.line_col());
         }
 
-        private SClassDef DYNAMIC_CLASS;
+        private volatile SClassDef DYNAMIC_CLASS;
 
         public SClassDef getDynamicClass() throws SyntaxException {
                 if (DYNAMIC_CLASS == null) {
@@ -8929,7 +10291,7 @@ public class SemanticProcessor {
                 return DYNAMIC_CLASS;
         }
 
-        private SMethodDef DYNAMIC_callFunctionalObject;
+        private volatile SMethodDef DYNAMIC_callFunctionalObject;
 
         public SMethodDef getDYNAMIC_callFunctionalObject() throws SyntaxException {
                 if (DYNAMIC_callFunctionalObject == null) {
@@ -8944,7 +10306,7 @@ public class SemanticProcessor {
                 return DYNAMIC_callFunctionalObject;
         }
 
-        private SMethodDef DYNAMIC_invoke;
+        private volatile SMethodDef DYNAMIC_invoke;
 
         public SMethodDef getDYNAMIC_invoke() throws SyntaxException {
                 if (DYNAMIC_invoke == null) {
@@ -8959,7 +10321,7 @@ public class SemanticProcessor {
                 return DYNAMIC_invoke;
         }
 
-        private SMethodDef DYNAMIC_construct;
+        private volatile SMethodDef DYNAMIC_construct;
 
         public SMethodDef getDYNAMIC_construct() throws SyntaxException {
                 if (DYNAMIC_construct == null) {
@@ -9096,14 +10458,14 @@ public class SemanticProcessor {
                 Map<String, STypeDef> genericTypeMap = getGenericMap(scope.type());
                 // parse args
                 List<Value> argList = new ArrayList<Value>();
-                boolean tmpEnableTypeAccess = enableTypeAccess;
+                boolean tmpEnableTypeAccess = enableTypeAccess.get();
                 for (Expression arg : invocation.args) {
-                        enableTypeAccess = true;
+                        enableTypeAccess.set(true);
                         Value v;
                         try {
                                 v = parseValueFromExpression(arg, null, scope);
                         } finally {
-                                enableTypeAccess = tmpEnableTypeAccess;
+                                enableTypeAccess.set(tmpEnableTypeAccess);
                         }
                         if (v == null) {
                                 err.SyntaxException(arg + " is not method argument", arg.line_col());
@@ -9288,7 +10650,7 @@ public class SemanticProcessor {
                                         Throwable throwableWhenTryValue = null;
                                         try {
                                                 if (type != null) {
-                                                        enableTypeAccess = false;
+                                                        enableTypeAccess.set(false);
                                                 }
                                                 target = parseValueFromExpression(access.exp, null, scope);
                                         } catch (Throwable e) {
@@ -9297,7 +10659,7 @@ public class SemanticProcessor {
                                                 throwableWhenTryValue = e;
                                         } finally {
                                                 if (type != null) {
-                                                        enableTypeAccess = true;
+                                                        enableTypeAccess.set(true);
                                                 }
                                         }
 
@@ -9518,7 +10880,7 @@ public class SemanticProcessor {
 
                         if (invokeInnerMethod) {
                                 List<Value> values = new ArrayList<Value>();
-                                List<Ins.TLoad> capturedValues = new ArrayList<Ins.TLoad>();
+                                List<Value> capturedValues = new ArrayList<Value>();
                                 int inc = innerMethod.method.getParameters().size() - innerMethod.paramCount;
                                 for (int i = 0; i < argList.size(); ++i) {
                                         STypeDef requiredType = innerMethod.method.getParameters().get(i + inc).type();
@@ -9541,19 +10903,23 @@ public class SemanticProcessor {
                                 if (leftValues.size() != requiredLocalVariableCount)
                                         throw new LtBug("require " + requiredLocalVariableCount + " local variable(s), got " + leftValues.size());
 
-                                for (LeftValue v : leftValues) {
-                                        capturedValues.add(new Ins.TLoad(v, scope, LineCol.SYNTHETIC));
-                                }
-                                invoke.arguments().addAll(values);
-                                invoke.capturedArguments().addAll(capturedValues);
-                                for (int i = 0; i < innerMethod.method.getParameters().size() - innerMethod.paramCount; ++i) {
+                                for (int i = 0; i < requiredLocalVariableCount; ++i) {
+                                        LeftValue v = leftValues.get(i);
                                         SParameter p = innerMethod.method.getParameters().get(i);
                                         assert p.isCapture();
-                                        if (p.isUsed()) {
-                                                Ins.TLoad v = capturedValues.get(i);
-                                                scope.getMeta().pointerLocalVar.add(v.value());
+                                        Value captured = new Ins.TLoad(v, scope, LineCol.SYNTHETIC);
+                                        if (isPointerType(p.type())) {
+                                                if (p.isUsed()) {
+                                                        scope.getMeta().pointerLocalVar.add(v);
+                                                }
+                                        } else if (isPointerType(v.type())) {
+                                                // captured by value
+                                                captured = invokePointerGet(captured, LineCol.SYNTHETIC);
                                         }
+                                        capturedValues.add(captured);
                                 }
+                                invoke.arguments().addAll(values);
+                                invoke.capturedArguments().addAll(capturedValues);
 
                                 if (invoke.type().equals(VoidType.get()))
                                         return new ValueAnotherType(
@@ -9705,6 +11071,14 @@ public class SemanticProcessor {
          */
         public SMethodDef findBestMatch(List<Value> argList, List<SMethodDef> methods, LineCol lineCol) throws SyntaxException {
                 if (null == methods || methods.isEmpty()) return null;
+                if (methods.size() == 1) return methods.get(0);
+                // the result only depends on the parameter types of the candidates
+                List<Object> key = new ArrayList<Object>(methods.size() + 1);
+                key.addAll(methods);
+                key.add(argList.size());
+                SMethodDef cached = bestMatchCache.get(key);
+                if (cached != null) return cached;
+
                 Iterator<SMethodDef> it = methods.iterator();
                 SMethodDef method = it.next();
                 while (it.hasNext()) {
@@ -9740,6 +11114,7 @@ public class SemanticProcessor {
                                 method = methodCurrent;
                         }
                 }
+                bestMatchCache.put(key, method);
                 return method;
         }
 
@@ -9972,7 +11347,9 @@ public class SemanticProcessor {
                 char[] chars = str.toCharArray();
                 SClassDef STRING = (SClassDef) getTypeWithName("java.lang.String", lineCol);
 
-                List<Value> elemsToConcat = new ArrayList<Value>();
+                // String for string pieces, Integer for index of the expression
+                List<Object> pieces = new ArrayList<Object>();
+                List<String> expStrings = new ArrayList<String>();
                 StringBuilder sb = new StringBuilder();
                 StringBuilder evalStr = new StringBuilder();
 
@@ -9990,25 +11367,9 @@ public class SemanticProcessor {
 
                         if (evaluatingStack.isEmpty()) {
                                 if (isEvaluating) {
-                                        String expStr = evalStr.toString();
+                                        pieces.add(expStrings.size());
+                                        expStrings.add(evalStr.toString());
                                         evalStr.delete(0, evalStr.length());
-                                        List<Statement> statements;
-                                        try {
-                                                ErrorManager subErr = new ErrorManager(true);
-                                                Scanner scanner = new ScannerSwitcher("eval",
-                                                        new StringReader(expStr), new Properties(), subErr);
-                                                Parser parser = new Parser(scanner.scan(), subErr);
-                                                statements = parser.parse();
-                                        } catch (IOException e) {
-                                                // this can never happen for the reader is a StringReader
-                                                throw new LtBug(e);
-                                        }
-                                        if (statements.size() != 1 || !(statements.get(0) instanceof Expression)) {
-                                                err.SyntaxException("the string can only concat an expression, but got " + statements, lineCol);
-                                                throw new LtBug("code won't reach here");
-                                        }
-                                        Expression exp = (Expression) statements.get(0);
-                                        elemsToConcat.add(parseValueFromExpression(exp, null, scope));
                                 } else {
                                         sb.append(c);
                                 }
@@ -10021,55 +11382,205 @@ public class SemanticProcessor {
                                         }
                                         evalStr.append(c);
                                 } else {
-                                        StringConstantValue s = new StringConstantValue(sb.toString());
-                                        s.setType(STRING);
-                                        elemsToConcat.add(s);
+                                        pieces.add(sb.toString());
                                         sb.delete(0, sb.length());
                                 }
                                 isEvaluating = true;
                         }
                 }
-                if (sb.length() != 0 || elemsToConcat.isEmpty()) {
+                if (sb.length() != 0 || pieces.isEmpty()) {
                         // append last piece of value to the list
-                        StringConstantValue s = new StringConstantValue(sb.toString());
-                        s.setType(STRING);
-                        elemsToConcat.add(s);
+                        pieces.add(sb.toString());
+                }
+
+                List<Expression> expressions = parseExpressionsInString(expStrings, lineCol);
+                List<Value> elemsToConcat = new ArrayList<Value>();
+                for (Object piece : pieces) {
+                        if (piece instanceof String) {
+                                StringConstantValue s = new StringConstantValue((String) piece);
+                                s.setType(STRING);
+                                elemsToConcat.add(s);
+                        } else {
+                                elemsToConcat.add(parseValueFromExpression(expressions.get((Integer) piece), null, scope));
+                        }
                 }
 
                 return concatValuesToString(elemsToConcat, scope, lineCol);
         }
 
         /**
-         * concat the values as one string
+         * parse the expressions inside `${ }` of a string.<br>
+         * the expressions are put into separate lines and parsed by one scanner and parser.
+         * if it fails, they are parsed one by one to report the error
+         *
+         * @param expStrings source of the expressions
+         * @param lineCol    lineCol of the string
+         * @return parsed expressions
+         * @throws SyntaxException compiling error
+         */
+        private List<Expression> parseExpressionsInString(List<String> expStrings, LineCol lineCol) throws SyntaxException {
+                List<Expression> expressions = new ArrayList<Expression>();
+                if (expStrings.size() > 1) {
+                        StringBuilder lines = new StringBuilder();
+                        for (String expStr : expStrings) {
+                                lines.append(expStr.trim()).append('\n');
+                        }
+                        try {
+                                List<Statement> statements = parseEvalString(lines.toString());
+                                // each expression should start at its own line
+                                for (int i = 0; i < statements.size() && i < expStrings.size(); ++i) {
+                                        Statement stmt = statements.get(i);
+                                        if (!(stmt instanceof Expression) || stmt.line_col().line != i + 1) break;
+                                        expressions.add((Expression) stmt);
+                                }
+                                if (statements.size() == expStrings.size() && expressions.size() == expStrings.size()) {
+                                        return expressions;
+                                }
+                        } catch (SyntaxException ignore) {
+                                // the error is reported when parsing them one by one
+                        }
+                        expressions.clear();
+                }
+                for (String expStr : expStrings) {
+                        List<Statement> statements = parseEvalString(expStr);
+                        if (statements.size() != 1 || !(statements.get(0) instanceof Expression)) {
+                                err.SyntaxException("the string can only concat an expression, but got " + statements, lineCol);
+                                throw new LtBug("code won't reach here");
+                        }
+                        expressions.add((Expression) statements.get(0));
+                }
+                return expressions;
+        }
+
+        private List<Statement> parseEvalString(String code) throws SyntaxException {
+                try {
+                        ErrorManager subErr = new ErrorManager(true);
+                        Scanner scanner = new ScannerSwitcher("eval",
+                                new StringReader(code), new Properties(), subErr);
+                        Parser parser = new Parser(scanner.scan(), subErr);
+                        return parser.parse();
+                } catch (IOException e) {
+                        // this can never happen for the reader is a StringReader
+                        throw new LtBug(e);
+                }
+        }
+
+        /**
+         * concat the values as one string.<br>
+         * constants are concatenated at compile time, other values are appended to a presized StringBuilder
          *
          * @param values  value list
          * @param scope   scope
          * @param lineCol lineCol
-         * @return StringConstantValue or 'xx+yy+zz+...'
+         * @return StringConstantValue or <code>new StringBuilder(n).append(xx).append(yy)...toString()</code>
          * @throws SyntaxException compiling error
          */
         public Value concatValuesToString(List<Value> values, SemanticScope scope, LineCol lineCol) throws SyntaxException {
-                if (values.size() == 1 && values.get(0) instanceof StringConstantValue) {
+                SClassDef STRING = (SClassDef) getTypeWithName("java.lang.String", LineCol.SYNTHETIC);
+                // merge constants
+                List<Value> toAppend = new ArrayList<Value>();
+                StringBuilder constant = new StringBuilder();
+                int capacity = 0;
+                for (Value v : values) {
+                        String str = Optimizer.constantToString(v);
+                        if (str != null) {
+                                constant.append(str);
+                                continue;
+                        }
+                        if (constant.length() != 0) {
+                                StringConstantValue s = new StringConstantValue(constant.toString());
+                                s.setType(STRING);
+                                toAppend.add(s);
+                                capacity += constant.length();
+                                constant.delete(0, constant.length());
+                        }
+                        toAppend.add(v);
+                        capacity += 16;
+                }
+                if (toAppend.isEmpty()) {
                         // plain string
-                        return values.get(0);
-                } else {
-                        if (!(values.get(0) instanceof StringConstantValue) && !(values.get(1) instanceof StringConstantValue)) {
-                                StringConstantValue emptyString = new StringConstantValue("");
-                                emptyString.setType((SClassDef) getTypeWithName("java.lang.String", LineCol.SYNTHETIC));
-                                values.add(0, emptyString);
-                        }
-                        Iterator<Value> it = values.iterator();
-                        Value finalValue = it.next();
-                        while (it.hasNext()) {
-                                finalValue = parseValueFromTwoVarOp(finalValue, "+", it.next(), scope, lineCol);
-                        }
-                        STypeDef STRING = getTypeWithName("java.lang.String", LineCol.SYNTHETIC);
-                        if (finalValue.type().equals(STRING)) {
-                                return finalValue;
-                        } else {
-                                return new Ins.CheckCast(finalValue, STRING, LineCol.SYNTHETIC);
+                        StringConstantValue s = new StringConstantValue(constant.toString());
+                        s.setType(STRING);
+                        return s;
+                }
+                if (constant.length() != 0) {
+                        StringConstantValue s = new StringConstantValue(constant.toString());
+                        s.setType(STRING);
+                        toAppend.add(s);
+                        capacity += constant.length();
+                }
+
+                Ins.New aNew = new Ins.New(getStringBuilder_con(), lineCol);
+                aNew.args().add(new IntValue(capacity));
+                Value sb = aNew;
+                for (Value v : toAppend) {
+                        Ins.InvokeVirtual append = new Ins.InvokeVirtual(sb, getStringBuilder_append(v.type()), lineCol);
+                        append.arguments().add(v);
+                        sb = append;
+                }
+                return new Ins.InvokeVirtual(sb, getStringBuilder_toString(), lineCol);
+        }
+
+        private volatile SConstructorDef StringBuilder_con;
+
+        private SConstructorDef getStringBuilder_con() throws SyntaxException {
+                if (StringBuilder_con == null) {
+                        SClassDef StringBuilder = (SClassDef) getTypeWithName("java.lang.StringBuilder", LineCol.SYNTHETIC);
+                        for (SConstructorDef con : StringBuilder.constructors()) {
+                                if (con.getParameters().size() == 1
+                                        && con.getParameters().get(0).type().equals(IntTypeDef.get())) {
+                                        StringBuilder_con = con;
+                                        break;
+                                }
+                        }
+                }
+                return StringBuilder_con;
+        }
+
+        private volatile Map<STypeDef, SMethodDef> StringBuilder_append;
+
+        /**
+         * get StringBuilder.append which is used for concatenating strings
+         *
+         * @param type type of the value to append
+         * @return append(type) if the type is a primitive type (except byte and short) or String, otherwise append(Object)
+         * @throws SyntaxException compiling error
+         */
+        private SMethodDef getStringBuilder_append(STypeDef type) throws SyntaxException {
+                if (StringBuilder_append == null) {
+                        SClassDef StringBuilder = (SClassDef) getTypeWithName("java.lang.StringBuilder", LineCol.SYNTHETIC);
+                        Map<STypeDef, SMethodDef> map = new HashMap<STypeDef, SMethodDef>();
+                        for (SMethodDef m : StringBuilder.methods()) {
+                                if (m.name().equals("append")
+                                        && m.getParameters().size() == 1
+                                        && m.getReturnType().equals(StringBuilder)) {
+                                        map.put(m.getParameters().get(0).type(), m);
+                                }
+                        }
+                        StringBuilder_append = map;
+                }
+                if (type instanceof ShortTypeDef || type instanceof ByteTypeDef) {
+                        type = IntTypeDef.get();
+                } else if (!(type instanceof PrimitiveTypeDef) && !type.fullName().equals("java.lang.String")) {
+                        // char[] and CharSequence should be appended as objects, the same as `string + o`
+                        type = getTypeWithName("java.lang.Object", LineCol.SYNTHETIC);
+                }
+                return StringBuilder_append.get(type);
+        }
+
+        private volatile SMethodDef StringBuilder_toString;
+
+        private SMethodDef getStringBuilder_toString() throws SyntaxException {
+                if (StringBuilder_toString == null) {
+                        SClassDef StringBuilder = (SClassDef) getTypeWithName("java.lang.StringBuilder", LineCol.SYNTHETIC);
+                        for (SMethodDef m : StringBuilder.methods()) {
+                                if (m.name().equals("toString") && m.getParameters().isEmpty()) {
+                                        StringBuilder_toString = m;
+                                        break;
+                                }
                         }
                 }
+                return StringBuilder_toString;
         }
 
         /**
@@ -10182,9 +11693,67 @@ public class SemanticProcessor {
                         return arr;
                 } else if (o instanceof DummyValue) {
                         return (Value) o;
+                } else if (o instanceof lt.dependencies.asm.Type) {
+                        // class read from class file
+                        return new Ins.GetClass(
+                                getTypeWithName(ClassFileInfo.typeName((lt.dependencies.asm.Type) o), LineCol.SYNTHETIC),
+                                (SClassDef) getTypeWithName("java.lang.Class", LineCol.SYNTHETIC));
+                } else if (o instanceof ClassFileInfo.EnumInfo) {
+                        // enum read from class file
+                        ClassFileInfo.EnumInfo enumInfo = (ClassFileInfo.EnumInfo) o;
+                        EnumValue e = new EnumValue();
+                        e.setType(getTypeWithName(enumInfo.type, LineCol.SYNTHETIC));
+                        e.setEnumStr(enumInfo.name);
+                        return e;
+                } else if (o instanceof ClassFileInfo.AnnotationInfo) {
+                        // annotation read from class file
+                        ClassFileInfo.AnnotationInfo annoInfo = (ClassFileInfo.AnnotationInfo) o;
+                        SAnno a = new SAnno();
+                        a.setAnnoDef((SAnnoDef) getTypeWithName(annoInfo.type, LineCol.SYNTHETIC));
+                        Map<String, Object> defaults = compiledAnnotationDefaults(annoInfo.type);
+                        Map<SAnnoField, Value> map = new HashMap<SAnnoField, Value>();
+                        for (SAnnoField f : a.type().annoFields()) {
+                                Object obj = annoInfo.values.get(f.name());
+                                if (obj == null && defaults != null) obj = defaults.get(f.name());
+                                if (obj == null) throw new LtBug("missing value " + f.name() + " in annotation " + annoInfo.type);
+                                Value v = parseValueFromObject(obj, f.type());
+                                v = checkAndCastAnnotationValues(v, LineCol.SYNTHETIC);
+                                map.put(f, v);
+                        }
+                        a.values().putAll(map);
+
+                        return a;
                 } else throw new LtBug("cannot parse " + o + " into Value");
         }
 
+        /**
+         * parse the annotation value retrieved from a compiled class into Value object.<br>
+         * arrays read from class files ({@link ClassFileInfo.ArrayInfo}) don't record their types,
+         * so the type should be provided.
+         *
+         * @param o    the input object
+         * @param type type of the value
+         * @return Value object
+         * @throws SyntaxException exception
+         */
+        public Value parseValueFromObject(Object o, STypeDef type) throws SyntaxException {
+                if (o instanceof ClassFileInfo.ArrayInfo) {
+                        // the element type is not recorded in class file
+                        SArrayTypeDef arrayType = (SArrayTypeDef) type;
+                        List<Object> elements = ((ClassFileInfo.ArrayInfo) o).values;
+                        Value[] values = new Value[elements.size()];
+                        for (int i = 0; i < values.length; ++i) {
+                                values[i] = parseValueFromObject(elements.get(i), arrayType.type());
+                        }
+                        SArrayValue arr = new SArrayValue();
+                        arr.setType(arrayType);
+                        arr.setDimension(1);
+                        arr.setValues(values);
+                        return arr;
+                }
+                return parseValueFromObject(o);
+        }
+
         /**
          * record abstract methods for override check. methods are retrieved from interfaces.
          *
@@ -10290,10 +11859,31 @@ public class SemanticProcessor {
                         err.SyntaxException("Trying to override " + overriddenMethod + " but return type mismatch", method.line_col());
                 }
 
-                overriddenMethod.overridden().add(method);
+                if (isSharedType(overriddenMethod.declaringType())) {
+                        List<SMethodDef> list = overriddenSharedMethods.get(overriddenMethod);
+                        if (list == null) {
+                                list = new ArrayList<SMethodDef>();
+                                overriddenSharedMethods.put(overriddenMethod, list);
+                        }
+                        list.add(method);
+                } else {
+                        overriddenMethod.overridden().add(method);
+                }
                 method.overRide().add(overriddenMethod);
         }
 
+        /**
+         * @param method the method
+         * @return methods overriding the given method, including the ones recorded by this processor for shared methods
+         */
+        private List<SMethodDef> overriddenMethods(SMethodDef method) {
+                List<SMethodDef> list = overriddenSharedMethods.get(method);
+                if (list == null) return method.overridden();
+                List<SMethodDef> result = new ArrayList<SMethodDef>(method.overridden());
+                result.addAll(list);
+                return result;
+        }
+
         /**
          * check whether the method overrides method in the class (and its parent classes and interfaces)
          *
@@ -10472,7 +12062,7 @@ public class SemanticProcessor {
                 return null;
         }
 
-        public Map<SAnno, AST.Anno> annotationRecorder = new HashMap<SAnno, AST.Anno>();
+        public Map<SAnno, AST.Anno> annotationRecorder = new ConcurrentHashMap<SAnno, AST.Anno>();
 
         /**
          * parse the annotations<br>
@@ -10966,11 +12556,33 @@ public class SemanticProcessor {
          * @return STypeDef (not null)
          * @throws SyntaxException exception
          */
-        public STypeDef getTypeWithName(String clsName, List<? extends STypeDef> generics, boolean allowException, LineCol lineCol) throws SyntaxException {
+        public synchronized STypeDef getTypeWithName(String clsName, List<? extends STypeDef> generics, boolean allowException, LineCol lineCol) throws SyntaxException {
                 clsName = buildTemplateAppliedName(clsName, generics);
                 if (types.containsKey(clsName)) {
                         return types.get(clsName);
                 } else {
+                        if (sharedProcessor != null) {
+                                STypeDef type = sharedProcessor.getSharedType(clsName);
+                                if (type != null) {
+                                        types.put(clsName, type);
+                                        return type;
+                                }
+                        }
+                        // read the class file directly, so the class is neither loaded nor initialized
+                        // fall back to reflection if the class file is not available (e.g. defined in memory) or it's a generic template
+                        if (!clsName.startsWith("[")) {
+                                ClassFileInfo info = ClassFileInfo.read(clsName, SemanticProcessor.class.getClassLoader(), classLoader);
+                                if (info != null && !info.isAnnotationPresent(GenericTemplate.class.getName())) {
+                                        return getTypeFromClassFile(info, lineCol);
+                                }
+                                if (info != null && info.templateAST != null) {
+                                        // it's a generic template
+                                        // decode and record the AST
+                                        recordGenericTemplate(TemplateCodec.decode(clsName, info.templateAST),
+                                                clsName.contains(".") ? clsName.substring(0, clsName.lastIndexOf('.')) : "");
+                                        return getTypeFromClassFile(info, lineCol);
+                                }
+                        }
                         // check already compiled class
                         try {
                                 Class<?> cls = loadClass(clsName);
@@ -10990,8 +12602,8 @@ public class SemanticProcessor {
                                         return arrType;
                                 } else {
                                         if (cls.isAnnotationPresent(GenericTemplate.class)) {
-                                                // it's a generic template
-                                                // retrieve and record the AST
+                                                // it's a generic template compiled by older versions
+                                                // retrieve and record the AST from the static field
                                                 Field astField;
                                                 try {
                                                         astField = cls.getField(Consts.AST_FIELD);
@@ -11027,10 +12639,6 @@ public class SemanticProcessor {
                                                                 }
                                                         }
                                                 }
-                                                if (!(defi instanceof ClassDef) && !(defi instanceof InterfaceDef) && !(defi instanceof ObjectDef)
-                                                        && !(defi instanceof FunDef) && !(defi instanceof AnnotationDef)) {
-                                                        throw new LtBug("invalid definition for generic template type: " + defi);
-                                                }
                                                 String pkg;
                                                 if (cls.getPackage() != null) {
                                                         pkg = cls.getPackage().getName();
@@ -11040,17 +12648,7 @@ public class SemanticProcessor {
                                                 } else {
                                                         pkg = "";
                                                 }
-                                                if (defi instanceof ClassDef) {
-                                                        recordClass((ClassDef) defi, pkg, Collections.<STypeDef>emptyList(), true);
-                                                } else if (defi instanceof InterfaceDef) {
-                                                        recordInterface((InterfaceDef) defi, pkg, Collections.<STypeDef>emptyList(), true);
-                                                } else if (defi instanceof ObjectDef) {
-                                                        recordObject((ObjectDef) defi, pkg, Collections.<STypeDef>emptyList(), true);
-                                                } else if (defi instanceof FunDef) {
-                                                        recordFun((FunDef) defi, pkg, Collections.<STypeDef>emptyList(), true);
-                                                } else /*if (defi instanceof AnnotationDef)*/ {
-                                                        recordAnnotation((AnnotationDef) defi, pkg, Collections.<STypeDef>emptyList(), true);
-                                                }
+                                                recordGenericTemplate(defi, pkg);
                                         }
 
                                         List<SModifier> modifiers; // modifiers
@@ -11142,6 +12740,339 @@ public class SemanticProcessor {
                 }
         }
 
+        /**
+         * record the AST of a compiled generic template
+         *
+         * @param defi the definition
+         * @param pkg  package of the template
+         * @throws SyntaxException compiling error
+         */
+        private void recordGenericTemplate(Definition defi, String pkg) throws SyntaxException {
+                if (defi instanceof ClassDef) {
+                        recordClass((ClassDef) defi, pkg, Collections.<STypeDef>emptyList(), true);
+                } else if (defi instanceof InterfaceDef) {
+                        recordInterface((InterfaceDef) defi, pkg, Collections.<STypeDef>emptyList(), true);
+                } else if (defi instanceof ObjectDef) {
+                        recordObject((ObjectDef) defi, pkg, Collections.<STypeDef>emptyList(), true);
+                } else if (defi instanceof FunDef) {
+                        recordFun((FunDef) defi, pkg, Collections.<STypeDef>emptyList(), true);
+                } else if (defi instanceof AnnotationDef) {
+                        recordAnnotation((AnnotationDef) defi, pkg, Collections.<STypeDef>emptyList(), true);
+                } else {
+                        throw new LtBug("invalid definition for generic template type: " + defi);
+                }
+        }
+
+        /**
+         * fills fields, methods and constructors of a type read from class file.
+         * most members of the imported types are never referred,
+         * so they are only built when the members of the type are retrieved for the first time
+         */
+        private class ClassFileMemberLoader implements SRefTypeDef.MemberLoader {
+                private final ClassFileInfo info;
+
+                ClassFileMemberLoader(ClassFileInfo info) {
+                        this.info = info;
+                }
+
+                @Override
+                public void load(SRefTypeDef type) {
+                        // the loader may be invoked from the parallel step 4
+                        // types are retrieved with the processor locked, so lock it here as well
+                        synchronized (SemanticProcessor.this) {
+                                if (!type.startLoadingMembers()) return;
+                                // the members are published when all of them are built
+                                List<SFieldDef> fields = new ArrayList<SFieldDef>();
+                                List<SMethodDef> methods = new ArrayList<SMethodDef>();
+                                List<SConstructorDef> constructors = new ArrayList<SConstructorDef>();
+                                try {
+                                        getFieldsAndMethodsFromClassFile(info, type, fields, methods);
+                                        if (type instanceof SClassDef) {
+                                                SClassDef c = (SClassDef) type;
+                                                for (ClassFileInfo.MemberInfo m : info.methods) {
+                                                        if (!m.name.equals("<init>")) continue;
+                                                        SConstructorDef constructorDef = new SConstructorDef(LineCol.SYNTHETIC);
+                                                        constructorDef.setDeclaringType(c);
+
+                                                        getAnnotationFromClassFile(m.annotations, constructorDef);
+                                                        getParameterFromDescriptor(m.desc, constructorDef);
+                                                        getModifierFromAccess(m.access, constructorDef.modifiers());
+
+                                                        constructors.add(constructorDef);
+                                                }
+                                        }
+                                } catch (SyntaxException e) {
+                                        throw new LtBug("failed to load members of " + type.fullName(), e);
+                                } finally {
+                                        if (type instanceof SClassDef) {
+                                                ((SClassDef) type).finishLoadingMembers(fields, methods, constructors);
+                                        } else {
+                                                type.finishLoadingMembers(fields, methods);
+                                        }
+                                }
+                        }
+                }
+        }
+
+        /**
+         * build the type with info read from the class file
+         *
+         * @param info    class file info
+         * @param lineCol file_line_col
+         * @return the type
+         * @throws SyntaxException exception
+         */
+        private STypeDef getTypeFromClassFile(ClassFileInfo info, LineCol lineCol) throws SyntaxException {
+                String clsName = info.name;
+                List<SModifier> modifiers;
+                STypeDef typeDef;
+                if (info.isAnnotation()) {
+                        SAnnoDef a = new SAnnoDef(LineCol.SYNTHETIC);
+                        a.setFullName(clsName);
+
+                        typeDef = a;
+                        modifiers = a.modifiers();
+                } else if (info.isInterface()) {
+                        SInterfaceDef i = new SInterfaceDef(LineCol.SYNTHETIC);
+                        i.setFullName(clsName);
+
+                        typeDef = i;
+                        modifiers = i.modifiers();
+                } else {
+                        // check class type (normal/fun/object)
+                        int classType;
+                        if (info.isAnnotationPresent(LatteFun.class.getName())) classType = SClassDef.FUN;
+                        else if (info.isAnnotationPresent(LatteObject.class.getName())) classType = SClassDef.OBJECT;
+                        else classType = SClassDef.NORMAL;
+                        SClassDef c = new SClassDef(classType, LineCol.SYNTHETIC);
+                        c.setFullName(clsName);
+
+                        typeDef = c;
+                        modifiers = c.modifiers();
+                }
+                typeDef.setPkg(clsName.contains(".") ? clsName.substring(0, clsName.lastIndexOf('.')) : "");
+                // put into map
+                putNameAndTypeDef(typeDef, lineCol);
+                if (info.isAnnotation()) {
+                        // record default values before parsing annotations, the annotation may be present on itself
+                        Map<String, Object> defaults = new HashMap<String, Object>();
+                        for (ClassFileInfo.MemberInfo m : info.methods) {
+                                if (m.annotationDefault != null) {
+                                        defaults.put(m.name, m.annotationDefault);
+                                }
+                        }
+                        compiledAnnotationDefaults.put(clsName, defaults);
+                }
+                // annos
+                getAnnotationFromClassFile(info.annotations, typeDef);
+                // modifiers
+                getModifierFromAccess(info.access, modifiers);
+
+                if (typeDef instanceof SInterfaceDef) {
+                        SInterfaceDef i = (SInterfaceDef) typeDef;
+                        // super interfaces
+                        getSuperInterfaceFromClassFile(info, i.superInterfaces());
+                        // fields methods are loaded when retrieved
+                        i.setMemberLoader(new ClassFileMemberLoader(info));
+                } else if (typeDef instanceof SClassDef) {
+                        SClassDef c = (SClassDef) typeDef;
+                        // super interfaces
+                        getSuperInterfaceFromClassFile(info, c.superInterfaces());
+                        if (info.superName != null) {
+                                // super class
+                                c.setParent((SClassDef) getTypeWithName(info.superName, lineCol));
+                        }
+                        // fields methods constructors are loaded when retrieved
+                        c.setMemberLoader(new ClassFileMemberLoader(info));
+                } else {
+                        // typeDef instanceof SAnnoDef;
+
+                        SAnnoDef annoDef = (SAnnoDef) typeDef;
+                        // parse anno fields
+                        for (ClassFileInfo.MemberInfo m : info.methods) {
+                                SAnnoField annoField = new SAnnoField();
+                                annoField.setName(m.name);
+                                annoField.setType(getTypeWithName(
+                                        ClassFileInfo.typeName(lt.dependencies.asm.Type.getReturnType(m.desc)), lineCol));
+
+                                annoDef.annoFields().add(annoField);
+                        }
+                }
+                return typeDef;
+        }
+
+        /**
+         * parse the annotations read from class file.
+         * the values which are not explicitly set are filled with default values
+         *
+         * @param annotations annotations
+         * @param presentable compiler presentable object
+         * @throws SyntaxException exception
+         */
+        private void getAnnotationFromClassFile(List<ClassFileInfo.AnnotationInfo> annotations, SAnnotationPresentable presentable) throws SyntaxException {
+                for (ClassFileInfo.AnnotationInfo a : annotations) {
+                        STypeDef type = getTypeWithName(a.type, Collections.<STypeDef>emptyList(), true, LineCol.SYNTHETIC);
+                        // the annotation is ignored if it's not in class-path, which is the same as reflection
+                        if (!(type instanceof SAnnoDef)) continue;
+
+                        SAnno sAnno = new SAnno();
+                        sAnno.setPresent(presentable);
+                        sAnno.setAnnoDef((SAnnoDef) type);
+
+                        presentable.annos().add(sAnno);
+
+                        Map<String, Object> defaults = compiledAnnotationDefaults(a.type);
+                        if (defaults != null) {
+                                sAnno.alreadyCompiledAnnotationValueMap().putAll(defaults);
+                        }
+                        sAnno.alreadyCompiledAnnotationValueMap().putAll(a.values);
+                }
+        }
+
+        /**
+         * @param annoType annotation type name
+         * @return default values of the annotation read from class file, or null if it's not recorded
+         */
+        private Map<String, Object> compiledAnnotationDefaults(String annoType) {
+                Map<String, Object> defaults = compiledAnnotationDefaults.get(annoType);
+                if (defaults == null && sharedProcessor != null) {
+                        defaults = sharedProcessor.compiledAnnotationDefaults.get(annoType);
+                }
+                return defaults;
+        }
+
+        /**
+         * get modifiers from access flags
+         *
+         * @param access    access flags
+         * @param modifiers modifiers
+         */
+        private void getModifierFromAccess(int access, List<SModifier> modifiers) {
+                if (java.lang.reflect.Modifier.isAbstract(access)) {
+                        modifiers.add(SModifier.ABSTRACT);
+                }
+                if (java.lang.reflect.Modifier.isFinal(access)) {
+                        modifiers.add(SModifier.FINAL);
+                }
+                if (java.lang.reflect.Modifier.isNative(access)) {
+                        modifiers.add(SModifier.NATIVE);
+                }
+                if (java.lang.reflect.Modifier.isPrivate(access)) {
+                        modifiers.add(SModifier.PRIVATE);
+                }
+                if (java.lang.reflect.Modifier.isProtected(access)) {
+                        modifiers.add(SModifier.PROTECTED);
+                }
+                if (java.lang.reflect.Modifier.isPublic(access)) {
+                        modifiers.add(SModifier.PUBLIC);
+                }
+                if (java.lang.reflect.Modifier.isStatic(access)) {
+                        modifiers.add(SModifier.STATIC);
+                }
+                if (java.lang.reflect.Modifier.isStrict(access)) {
+                        modifiers.add(SModifier.STRICT);
+                }
+                if (java.lang.reflect.Modifier.isSynchronized(access)) {
+                        modifiers.add(SModifier.SYNCHRONIZED);
+                }
+                if (java.lang.reflect.Modifier.isTransient(access)) {
+                        modifiers.add(SModifier.TRANSIENT);
+                }
+                if (java.lang.reflect.Modifier.isVolatile(access)) {
+                        modifiers.add(SModifier.VOLATILE);
+                }
+        }
+
+        /**
+         * get super interfaces from class file info
+         *
+         * @param info       class file info
+         * @param interfaces interfaces
+         * @throws SyntaxException exception
+         */
+        private void getSuperInterfaceFromClassFile(ClassFileInfo info, List<SInterfaceDef> interfaces) throws SyntaxException {
+                for (String i : info.interfaces) {
+                        STypeDef type = getTypeWithName(i, LineCol.SYNTHETIC);
+                        if (!(type instanceof SAnnoDef)) {
+                                interfaces.add((SInterfaceDef) type);
+                        }
+                }
+        }
+
+        /**
+         * get fields and methods from class file info
+         *
+         * @param info          class file info
+         * @param declaringType field/method is defined in this type
+         * @param fields        field list
+         * @param methods       method list
+         * @throws SyntaxException exception
+         */
+        private void getFieldsAndMethodsFromClassFile(ClassFileInfo info, STypeDef declaringType, List<SFieldDef> fields, List<SMethodDef> methods) throws SyntaxException {
+                for (ClassFileInfo.MemberInfo f : info.fields) {
+                        SFieldDef fieldDef = new SFieldDef(LineCol.SYNTHETIC);
+                        fieldDef.setName(f.name);
+                        fieldDef.setType(getTypeWithName(ClassFileInfo.typeName(lt.dependencies.asm.Type.getType(f.desc)), LineCol.SYNTHETIC));
+                        getModifierFromAccess(f.access, fieldDef.modifiers());
+
+                        getAnnotationFromClassFile(f.annotations, fieldDef);
+
+                        fieldDef.setDeclaringType(declaringType);
+                        fields.add(fieldDef);
+                }
+
+                for (ClassFileInfo.MemberInfo m : info.methods) {
+                        if (m.name.equals("<init>")) continue;
+                        SMethodDef methodDef = new SMethodDef(LineCol.SYNTHETIC);
+                        methodDef.setName(m.name);
+                        methodDef.setDeclaringType(declaringType);
+                        lt.dependencies.asm.Type returnType = lt.dependencies.asm.Type.getReturnType(m.desc);
+                        if (returnType.getSort() == lt.dependencies.asm.Type.VOID) {
+                                methodDef.setReturnType(VoidType.get());
+                        } else {
+                                methodDef.setReturnType(
+                                        getRealReturnType(getTypeWithName(ClassFileInfo.typeName(returnType), LineCol.SYNTHETIC), true));
+                        }
+
+                        getAnnotationFromClassFile(m.annotations, methodDef);
+
+                        getModifierFromAccess(m.access, methodDef.modifiers());
+
+                        // parameters
+                        getParameterFromDescriptor(m.desc, methodDef);
+
+                        methods.add(methodDef);
+                }
+        }
+
+        /**
+         * get parameters from method descriptor
+         *
+         * @param desc      method descriptor
+         * @param invokable the parameters belong to this invokable
+         * @throws SyntaxException exception
+         */
+        private void getParameterFromDescriptor(String desc, SInvokable invokable) throws SyntaxException {
+                for (lt.dependencies.asm.Type paramType : lt.dependencies.asm.Type.getArgumentTypes(desc)) {
+                        SParameter param = new SParameter();
+                        param.setName("?");
+                        param.setTarget(invokable);
+                        STypeDef type = getTypeWithName(ClassFileInfo.typeName(paramType), LineCol.SYNTHETIC);
+                        param.setType(type);
+
+                        // same as getParameterFromClassArray, the annotations are retrieved from the parameter type
+                        for (SAnno a : type.annos()) {
+                                SAnno sAnno = new SAnno();
+                                sAnno.setPresent(param);
+                                sAnno.setAnnoDef(a.type());
+                                sAnno.alreadyCompiledAnnotationValueMap().putAll(a.alreadyCompiledAnnotationValueMap());
+                                param.annos().add(sAnno);
+                        }
+
+                        invokable.getParameters().add(param);
+                }
+        }
+
         /**
          * parse the annotations
          *
@@ -11315,6 +13246,8 @@ public class SemanticProcessor {
                         fields.add(fieldDef);
                 }
 
+                // the method list is copy-on-write, so add all methods at once
+                List<SMethodDef> methodDefs = new ArrayList<SMethodDef>();
                 for (Method m : cls.getDeclaredMethods()) {
                         SMethodDef methodDef = new SMethodDef(LineCol.SYNTHETIC);
                         methodDef.setName(m.getName());
@@ -11333,8 +13266,9 @@ public class SemanticProcessor {
                         // parameters
                         getParameterFromClassArray(m.getParameterTypes(), methodDef);
 
-                        methods.add(methodDef);
+                        methodDefs.add(methodDef);
                 }
+                methods.addAll(methodDefs);
         }
 
         /**
@@ -11367,6 +13301,7 @@ public class SemanticProcessor {
          */
         public boolean typeExists(String type) {
                 if (!types.containsKey(type)) {
+                        if (classFileExists(type)) return true;
                         try {
                                 loadClass(type);
                         } catch (ClassNotFoundException e) {
@@ -11378,6 +13313,20 @@ public class SemanticProcessor {
                 return true;
         }
 
+        /**
+         * check whether the class file exists in class-path
+         *
+         * @param type class name
+         * @return true if the class file is found
+         */
+        private boolean classFileExists(String type) {
+                if (type.startsWith("[")) return false;
+                String resource = type.replace('.', '/') + ".class";
+                ClassLoader selfLoader = SemanticProcessor.class.getClassLoader();
+                return (selfLoader != null && selfLoader.getResource(resource) != null)
+                        || classLoader.getResource(resource) != null;
+        }
+
         /**
          * get class name from Access object.<br>
          * the access object may contain package or class only
@@ -11408,14 +13357,19 @@ public class SemanticProcessor {
          * @throws SyntaxException compile error
          */
         public String findClassNameWithImport(String name, List<Import> imports) throws SyntaxException {
-                if (typeExists(name)) return name;
+                if (typeExists(name)) {
+                        recordDependency(imports, name);
+                        return name;
+                }
                 // first try to find those classes with the same simple name
                 // e.g. import java.util.List
                 for (Import i : imports) {
                         if (!i.importAll) {
                                 if (i.access.name.equals(name)) {
                                         // use this name
-                                        return getClassNameFromAccess(i.access);
+                                        String className = getClassNameFromAccess(i.access);
+                                        recordDependency(imports, className);
+                                        return className;
                                 }
                         }
                 }
@@ -11423,13 +13377,44 @@ public class SemanticProcessor {
                 for (Import i : imports) {
                         if (i.importAll && i.pkg != null) {
                                 String possibleClassName = i.pkg.pkg.replace("::", ".") + "." + name;
-                                if (typeExists(possibleClassName)) return possibleClassName;
+                                if (typeExists(possibleClassName)) {
+                                        recordDependency(imports, possibleClassName);
+                                        return possibleClassName;
+                                }
                         }
                 }
 
                 return null;
         }
 
+        /**
+         * record that the file which the imports belong to refers to the type
+         *
+         * @param imports   import list of the file
+         * @param className the referred class name
+         */
+        private void recordDependency(List<Import> imports, String className) {
+                if (!recordDependencies || className == null || imports == null) return;
+                String fileName = importToFileName.get(imports);
+                if (fileName == null) return;
+                Set<String> dependencies = fileNameToDependencies.get(fileName);
+                if (dependencies == null) {
+                        synchronized (fileNameToDependencies) {
+                                dependencies = fileNameToDependencies.get(fileName);
+                                if (dependencies == null) {
+                                        dependencies = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                                        fileNameToDependencies.put(fileName, dependencies);
+                                }
+                        }
+                }
+                // the generic template is the dependency of the applied type
+                int splitIndex = className.indexOf(Consts.GENERIC_NAME_SPLIT);
+                if (splitIndex != -1) {
+                        dependencies.add(className.substring(0, splitIndex));
+                }
+                dependencies.add(className);
+        }
+
         /**
          * get type with access
          *
@@ -11484,11 +13469,13 @@ public class SemanticProcessor {
                         SArrayTypeDef a = new SArrayTypeDef();
                         a.setType(type);
                         a.setDimension(dimension);
-                        if (types.containsKey(a.fullName())) {
-                                resultType = types.get(a.fullName());
-                        } else {
-                                putNameAndTypeDef(a, access.line_col());
-                                resultType = a;
+                        synchronized (this) {
+                                if (types.containsKey(a.fullName())) {
+                                        resultType = types.get(a.fullName());
+                                } else {
+                                        putNameAndTypeDef(a, access.line_col());
+                                        resultType = a;
+                                }
                         }
                 } else {
                         String className = accessToClassName(access, genericMap, imports, allowException);
@@ -11499,6 +13486,7 @@ public class SemanticProcessor {
                                 }
                                 return null;
                         }
+                        recordDependency(imports, className);
                         resultType = getTypeWithName(className, Collections.<STypeDef>emptyList(), allowException, access.line_col());
                 }
 
@@ -11515,7 +13503,7 @@ public class SemanticProcessor {
          * @param lineCol file_line_col
          * @throws SyntaxException exception
          */
-        public void putNameAndTypeDef(STypeDef type, LineCol lineCol) throws SyntaxException {
+        public synchronized void putNameAndTypeDef(STypeDef type, LineCol lineCol) throws SyntaxException {
                 if (types.containsKey(type.fullName())) {
                         err.SyntaxException("duplicate type names " + type.fullName(), lineCol);
                         // code won't reach here
@@ -11549,7 +13537,8 @@ public class SemanticProcessor {
 
                 Class<?> cls;
                 try {
-                        cls = Class.forName(name);
+                        // the class is not initialized
+                        cls = Class.forName(name, false, SemanticProcessor.class.getClassLoader());
                 } catch (ClassNotFoundException e) {
                         cls = classLoader.loadClass(name);
                 }
@@ -11562,6 +13551,22 @@ public class SemanticProcessor {
                 }
         }
 
+        /**
+         * get the pointer type pointing to the given type.<br>
+         * the pointer types are recorded in the types map, so one type only has one pointer type
+         *
+         * @param pointingType the type that the pointer points to
+         * @return the pointer type
+         */
+        public synchronized PointerType getPointerType(STypeDef pointingType) {
+                PointerType t = new PointerType(pointingType);
+                if (types.containsKey(t.toString())) {
+                        return (PointerType) types.get(t.toString());
+                }
+                types.put(t.toString(), t);
+                return t;
+        }
+
         /**
          * the given type is a pointer type (SClassDef lt.lang.Pointer) or (PointerType)
          *
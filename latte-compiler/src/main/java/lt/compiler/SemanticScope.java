@@ -48,8 +48,67 @@ public class SemanticScope {
 
         private final InvokableMeta meta;
 
+        /**
+         * left values visible in a scope chain. the lists and the map are shared by
+         * the scope and its children, and never modified after construction.
+         */
+        private static class Visible {
+                /**
+                 * sum of modCount of the scope chain when this object was built
+                 */
+                final int version;
+                /**
+                 * name to the nearest left value, ordered by the first occurrence from the outermost scope
+                 */
+                final LinkedHashMap<String, LeftValue> flat;
+                /**
+                 * left values with valid names (including duplicated names), from the outermost scope
+                 */
+                final List<LeftValue> captures;
+                /**
+                 * same as {@link #captures}, but without the lambda param `$`
+                 */
+                final List<LeftValue> lambdaCaptures;
+
+                Visible(int version, Visible parent, Map<String, LeftValue> leftValueMap) {
+                        this.version = version;
+                        if (parent == null) {
+                                flat = new LinkedHashMap<String, LeftValue>();
+                                captures = new ArrayList<LeftValue>();
+                                lambdaCaptures = new ArrayList<LeftValue>();
+                        } else {
+                                flat = new LinkedHashMap<String, LeftValue>(parent.flat);
+                                captures = new ArrayList<LeftValue>(parent.captures);
+                                lambdaCaptures = new ArrayList<LeftValue>(parent.lambdaCaptures);
+                        }
+                        for (Map.Entry<String, LeftValue> entry : leftValueMap.entrySet()) {
+                                String k = entry.getKey();
+                                LeftValue v = entry.getValue();
+                                flat.put(k, v);
+                                if (k != null && CompileUtil.isValidName(k)) {
+                                        captures.add(v);
+                                        if (!k.equals("$")) {
+                                                lambdaCaptures.add(v);
+                                        }
+                                }
+                        }
+                }
+        }
+
         private final Map<String, LeftValue> leftValueMap = new LinkedHashMap<String, LeftValue>();
         private final Map<String, MethodRecorder> innerMethodMap = new HashMap<String, MethodRecorder>();
+        /**
+         * increased when a left value is put into this scope
+         */
+        private int modCount = 0;
+        /**
+         * cached left values of the scope chain, rebuilt when any scope in the chain is modified
+         */
+        private Visible visible;
+        /**
+         * temp names from `*0` to `*(tempNameCount-1)` are already defined in this scope chain
+         */
+        private int tempNameCount = 0;
 
         private final STypeDef sTypeDef;
 
@@ -72,47 +131,56 @@ public class SemanticScope {
         }
 
         public LeftValue getLeftValue(String name) {
-                if (leftValueMap.containsKey(name)) {
-                        return leftValueMap.get(name);
-                } else if (parent != null) {
-                        return parent.getLeftValue(name);
-                } else {
-                        return null;
+                SemanticScope scope = this;
+                while (scope != null) {
+                        LeftValue v = scope.leftValueMap.get(name);
+                        if (v != null) return v;
+                        scope = scope.parent;
                 }
+                return null;
         }
 
-        public LinkedHashMap<String, STypeDef> getLocalVariables() {
-                LinkedHashMap<String, STypeDef> map;
-                if (parent != null) {
-                        map = parent.getLocalVariables();
-                } else {
-                        map = new LinkedHashMap<String, STypeDef>();
-                }
-                for (Map.Entry<String, LeftValue> entry : leftValueMap.entrySet()) {
-                        String k = entry.getKey();
-                        LeftValue v = entry.getValue();
-                        map.put(k, v.type());
+        private int chainVersion() {
+                int version = 0;
+                SemanticScope scope = this;
+                while (scope != null) {
+                        version += scope.modCount;
+                        scope = scope.parent;
                 }
-                return map;
+                return version;
         }
 
-        public LinkedHashMap<String, LeftValue> getRawLocalVariables() {
-                LinkedHashMap<String, LeftValue> map;
-                if (parent != null) {
-                        map = parent.getRawLocalVariables();
-                } else {
-                        map = new LinkedHashMap<String, LeftValue>();
+        private Visible visible() {
+                int version = chainVersion();
+                if (visible == null || visible.version != version) {
+                        visible = new Visible(version, parent == null ? null : parent.visible(), leftValueMap);
                 }
-                for (Map.Entry<String, LeftValue> entry : leftValueMap.entrySet()) {
-                        String k = entry.getKey();
-                        LeftValue v = entry.getValue();
-                        map.put(k, v);
+                return visible;
+        }
+
+        public LinkedHashMap<String, STypeDef> getLocalVariables() {
+                LinkedHashMap<String, STypeDef> map = new LinkedHashMap<String, STypeDef>();
+                for (Map.Entry<String, LeftValue> entry : visible().flat.entrySet()) {
+                        map.put(entry.getKey(), entry.getValue().type());
                 }
                 return map;
         }
 
+        public LinkedHashMap<String, LeftValue> getRawLocalVariables() {
+                return new LinkedHashMap<String, LeftValue>(visible().flat);
+        }
+
+        /**
+         * @return the nearest left values of all visible names, ordered from the outermost scope.
+         * the collection is shared and should not be modified
+         */
+        public Collection<LeftValue> getVisibleLeftValues() {
+                return Collections.unmodifiableCollection(visible().flat.values());
+        }
+
         public void putLeftValue(String name, LeftValue v) {
                 leftValueMap.put(name, v);
+                ++modCount;
         }
 
         public void addMethodDef(String name, MethodRecorder innerMethod) {
@@ -127,18 +195,9 @@ public class SemanticScope {
          * @return a list of LeftValue(s)
          */
         public List<LeftValue> getLeftValues(int count, boolean lambdaParam) {
-                List<LeftValue> list;
-                if (parent != null) list = parent.getLeftValues(count, lambdaParam);
-                else list = new ArrayList<LeftValue>();
-                Iterator<Map.Entry<String, LeftValue>> it = leftValueMap.entrySet().iterator();
-                while (list.size() != count && it.hasNext()) {
-                        Map.Entry<String, LeftValue> entry = it.next();
-                        if ((!lambdaParam || !entry.getKey().equals("$"))
-                                && CompileUtil.isValidName(entry.getKey())) {
-                                list.add(entry.getValue());
-                        }
-                }
-                return list;
+                Visible v = visible();
+                List<LeftValue> list = lambdaParam ? v.lambdaCaptures : v.captures;
+                return new ArrayList<LeftValue>(list.subList(0, Math.min(count, list.size())));
         }
 
         public MethodRecorder getInnerMethod(String name) {
@@ -181,9 +240,21 @@ public class SemanticScope {
                 return null;
         }
 
+        private int visibleTempNameCount() {
+                int count = 0;
+                SemanticScope scope = this;
+                while (scope != null) {
+                        if (scope.tempNameCount > count) count = scope.tempNameCount;
+                        scope = scope.parent;
+                }
+                return count;
+        }
+
         public String generateTempName() {
-                int i = 0;
+                // names are never removed from a scope, so the search can start after the known ones
+                int i = visibleTempNameCount();
                 while (getLeftValue("*" + i) != null) ++i;
+                tempNameCount = i;
                 return "*" + i;
         }
 }
@@ -0,0 +1,109 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 KuiGang Wang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package lt.compiler;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * types of the jdk and other classes visible from the compiler's class loader.<br>
+ * these classes are always looked up before the given class loader, so the types are the same for all processors
+ * created with the same instance, and can be shared instead of being built again in each compiling process.
+ * the types are held by an internal processor, which is dropped when it holds more than {@link #maxTypes} types,
+ * or when a type fails to be built. the types are not shared with processors created with other instances.
+ */
+public class SharedTypes {
+        /**
+         * default max count of types held by the shared processor
+         */
+        public static final int DEFAULT_MAX_TYPES = 4096;
+
+        private final int maxTypes;
+        private SemanticProcessor processor;
+        /**
+         * names of the types that failed to be built by the shared processor, they are built by each processor
+         */
+        private final Set<String> unsharedTypes = new HashSet<String>();
+
+        public SharedTypes() {
+                this(DEFAULT_MAX_TYPES);
+        }
+
+        /**
+         * @param maxTypes the shared processor is dropped after it holds more types than this value
+         */
+        public SharedTypes(int maxTypes) {
+                this.maxTypes = maxTypes;
+        }
+
+        /**
+         * @return the shared processor, a new one is created if it's dropped
+         */
+        synchronized SemanticProcessor processor() {
+                if (processor == null) {
+                        processor = SemanticProcessor.newSharedProcessor(this);
+                }
+                return processor;
+        }
+
+        int maxTypes() {
+                return maxTypes;
+        }
+
+        synchronized boolean isUnshared(String clsName) {
+                return unsharedTypes.contains(clsName);
+        }
+
+        /**
+         * the type cannot be built by the shared processor, types built by the processor may be incomplete,
+         * so the processor is dropped
+         *
+         * @param clsName   the class name
+         * @param processor the shared processor
+         */
+        synchronized void unshare(String clsName, SemanticProcessor processor) {
+                unsharedTypes.add(clsName);
+                drop(processor);
+        }
+
+        /**
+         * drop the processor. processors already retrieved types from it keep using it
+         *
+         * @param processor the shared processor
+         */
+        synchronized void drop(SemanticProcessor processor) {
+                if (this.processor == processor) this.processor = null;
+        }
+
+        /**
+         * drop all shared types
+         */
+        public synchronized void clear() {
+                processor = null;
+                unsharedTypes.clear();
+        }
+}
@@ -338,7 +338,7 @@ public class Ins {
          * goto
          */
         public static class Goto implements Instruction {
-                private final Instruction gotoIns;
+                private Instruction gotoIns;
 
                 public Goto(Instruction gotoIns) {
                         this.gotoIns = gotoIns;
@@ -352,6 +352,10 @@ public class Ins {
                 public Instruction gotoIns() {
                         return gotoIns;
                 }
+
+                public void setGotoIns(Instruction gotoIns) {
+                        this.gotoIns = gotoIns;
+                }
         }
 
         /**
@@ -392,7 +396,7 @@ public class Ins {
          * ifEq (i == 0)
          */
         public static class IfEq implements Instruction {
-                private final Value condition;
+                private Value condition;
                 private final Instruction gotoIns;
                 private final LineCol lineCol;
 
@@ -411,6 +415,10 @@ public class Ins {
                         return condition;
                 }
 
+                public void setCondition(Value condition) {
+                        this.condition = condition;
+                }
+
                 public Instruction gotoIns() {
                         return gotoIns;
                 }
@@ -420,7 +428,7 @@ public class Ins {
          * ifNe (if i != 0)
          */
         public static class IfNe implements Instruction {
-                private final Value condition;
+                private Value condition;
                 private Instruction gotoIns;
                 private final LineCol lineCol;
 
@@ -439,6 +447,10 @@ public class Ins {
                         return condition;
                 }
 
+                public void setCondition(Value condition) {
+                        this.condition = condition;
+                }
+
                 public Instruction gotoIns() {
                         return gotoIns;
                 }
@@ -1003,7 +1015,7 @@ public class Ins {
          * put non-static field
          */
         public static class PutField implements Instruction {
-                private final Value value;
+                private Value value;
                 private final SFieldDef field;
                 private final Value obj;
                 private final LineCol lineCol;
@@ -1024,6 +1036,10 @@ public class Ins {
                         return value;
                 }
 
+                public void setValue(Value value) {
+                        this.value = value;
+                }
+
                 public SFieldDef field() {
                         return field;
                 }
@@ -1042,7 +1058,7 @@ public class Ins {
          * put static field
          */
         public static class PutStatic implements Instruction {
-                private final Value value;
+                private Value value;
                 private final SFieldDef field;
                 private final LineCol lineCol;
 
@@ -1061,6 +1077,10 @@ public class Ins {
                         return value;
                 }
 
+                public void setValue(Value value) {
+                        this.value = value;
+                }
+
                 public SFieldDef field() {
                         return field;
                 }
@@ -1071,6 +1091,51 @@ public class Ins {
                 }
         }
 
+        /**
+         * tableswitch/lookupswitch. jumps to the target of the key,
+         * or to the default target if the key is not in the list
+         */
+        public static class Switch implements Instruction {
+                private Value key;
+                private final List<Integer> keys;
+                private final List<Instruction> targets;
+                private final Instruction defaultTarget;
+                private final LineCol lineCol;
+
+                public Switch(Value key, List<Integer> keys, List<Instruction> targets, Instruction defaultTarget, LineCol lineCol) {
+                        this.key = key;
+                        this.keys = keys;
+                        this.targets = targets;
+                        this.defaultTarget = defaultTarget;
+                        this.lineCol = lineCol;
+                }
+
+                public Value key() {
+                        return key;
+                }
+
+                public void setKey(Value key) {
+                        this.key = key;
+                }
+
+                public List<Integer> keys() {
+                        return keys;
+                }
+
+                public List<Instruction> targets() {
+                        return targets;
+                }
+
+                public Instruction defaultTarget() {
+                        return defaultTarget;
+                }
+
+                @Override
+                public LineCol line_col() {
+                        return lineCol;
+                }
+        }
+
         /**
          * TALoad
          */
@@ -1334,7 +1399,7 @@ public class Ins {
                 public static final int Istore = 0x36;
 
                 private final LeftValue leftValue;
-                private final Value newValue;
+                private Value newValue;
                 private final int mode;
                 private final LineCol lineCol;
                 private final SemanticScope scope;
@@ -1375,6 +1440,10 @@ public class Ins {
                         return newValue;
                 }
 
+                public void setNewValue(Value newValue) {
+                        this.newValue = newValue;
+                }
+
                 @SuppressWarnings("unused")
                 public LeftValue leftValue() {
                         return leftValue;
@@ -1,6 +1,8 @@
 package lt.compiler.semantic;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -8,4 +10,40 @@ import java.util.Set;
  */
 public class InvokableMeta {
         public final Set<LeftValue> pointerLocalVar = new HashSet<LeftValue>();
+        /**
+         * local variables declared with nonnull/nonempty.
+         * they are added into {@link #pointerLocalVar} (and checked by the pointer)
+         * only when a value assigned to them is not proved to be valid
+         */
+        public final Set<LeftValue> nonnullLocalVar = new HashSet<LeftValue>();
+        public final Set<LeftValue> nonemptyLocalVar = new HashSet<LeftValue>();
+        /**
+         * names of local variables that might be assigned more than once,
+         * null means unknown and every captured variable should be shared by pointer
+         */
+        public Set<String> reassignedNames;
+        /**
+         * the beginning of the method, self tail calls jump here.
+         * null means no tail call is eliminated
+         */
+        public Ins.Nop tailCallStart;
+        /**
+         * count of try/synchronized blocks being parsed,
+         * tail calls inside them are not eliminated
+         */
+        public int tailCallBarrier;
+        /**
+         * the name to invoke the method itself, null if self tail calls cannot be eliminated.
+         * it's used to find pattern matching with self tail calls, which are inlined into the method
+         */
+        public String selfName;
+        /**
+         * self invocations left in the instructions after tail calls are eliminated,
+         * including those in inner methods and pattern matching defined in the method
+         */
+        public final List<Ins.Invoke> selfInvocations = new ArrayList<Ins.Invoke>();
+        /**
+         * meta of the method in which the inner method is defined, null if it's not an inner method
+         */
+        public InvokableMeta enclosing;
 }
@@ -45,6 +45,10 @@ public class SClassDef extends SRefTypeDef {
         private final List<ExceptionTable> staticExceptionTable = new ArrayList<ExceptionTable>();
         private final InvokableMeta staticInvokableMeta = new InvokableMeta();
         private boolean isDataClass;
+        /**
+         * encoded AST if the class is a generic template, written as a class attribute
+         */
+        private byte[] templateAST;
 
         public SClassDef(int type, LineCol lineCol) {
                 super(lineCol);
@@ -57,9 +61,24 @@ public class SClassDef extends SRefTypeDef {
         }
 
         public List<SConstructorDef> constructors() {
+                loadMembers();
                 return constructors;
         }
 
+        /**
+         * publish the loaded members and constructors
+         *
+         * @param loadedFields       fields
+         * @param loadedMethods      methods
+         * @param loadedConstructors constructors
+         * @see #finishLoadingMembers(List, List)
+         */
+        public void finishLoadingMembers(List<SFieldDef> loadedFields, List<SMethodDef> loadedMethods,
+                                         List<SConstructorDef> loadedConstructors) {
+                constructors.addAll(loadedConstructors);
+                finishLoadingMembers(loadedFields, loadedMethods);
+        }
+
         public SClassDef parent() {
                 return parent;
         }
@@ -92,6 +111,14 @@ public class SClassDef extends SRefTypeDef {
                 return staticInvokableMeta;
         }
 
+        public byte[] templateAST() {
+                return templateAST;
+        }
+
+        public void setTemplateAST(byte[] templateAST) {
+                this.templateAST = templateAST;
+        }
+
         @Override
         public String toString() {
                 StringBuilder sb = new StringBuilder();
@@ -1,27 +1,94 @@
 package lt.compiler.semantic;
 
 import lt.compiler.LineCol;
+import lt.compiler.LtBug;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * reference types
  */
 public abstract class SRefTypeDef extends STypeDef {
-        private final List<SFieldDef> fields = new ArrayList<SFieldDef>();
-        private final List<SMethodDef> methods = new ArrayList<SMethodDef>();
+        /**
+         * inner methods, lambda methods and lambda fields are appended while other types are being parsed in parallel,
+         * so the lists should support concurrent iteration
+         */
+        private final List<SFieldDef> fields = new CopyOnWriteArrayList<SFieldDef>();
+        private final List<SMethodDef> methods = new CopyOnWriteArrayList<SMethodDef>();
         private final List<SModifier> modifiers = new ArrayList<SModifier>();
 
+        /**
+         * fills the members of a type when they are retrieved for the first time
+         */
+        public interface MemberLoader {
+                /**
+                 * load the members. the loader should call {@link #startLoadingMembers()} and
+                 * {@link #finishLoadingMembers(List, List)} while holding its own lock,
+                 * and build the members into its own lists instead of retrieving them from the type
+                 *
+                 * @param type the type to fill
+                 */
+                void load(SRefTypeDef type);
+        }
+
+        private MemberLoader memberLoader;
+        private boolean membersLoading;
+        private volatile boolean membersLoaded = true;
+
         public SRefTypeDef(LineCol lineCol) {
                 super(lineCol);
         }
 
+        /**
+         * members of the type will be filled by the loader when they are retrieved for the first time
+         *
+         * @param memberLoader member loader
+         */
+        public void setMemberLoader(MemberLoader memberLoader) {
+                this.memberLoader = memberLoader;
+                this.membersLoaded = false;
+        }
+
+        /**
+         * @return true if the caller should fill the members, false if they are loaded
+         * @throws LtBug the members are retrieved while they are being loaded, which would give partial lists
+         */
+        public boolean startLoadingMembers() {
+                if (membersLoaded) return false;
+                if (membersLoading) throw new LtBug("members of " + fullName() + " are retrieved while being loaded");
+                membersLoading = true;
+                return true;
+        }
+
+        /**
+         * publish the loaded members. the lists are added at once, so they are never seen partially
+         *
+         * @param loadedFields  fields
+         * @param loadedMethods methods
+         */
+        public void finishLoadingMembers(List<SFieldDef> loadedFields, List<SMethodDef> loadedMethods) {
+                fields.addAll(loadedFields);
+                methods.addAll(loadedMethods);
+                membersLoaded = true;
+                memberLoader = null;
+        }
+
+        protected final void loadMembers() {
+                if (!membersLoaded) {
+                        MemberLoader loader = memberLoader;
+                        if (loader != null) loader.load(this);
+                }
+        }
+
         public List<SFieldDef> fields() {
+                loadMembers();
                 return fields;
         }
 
         public List<SMethodDef> methods() {
+                loadMembers();
                 return methods;
         }
 
@@ -0,0 +1,445 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 KuiGang Wang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package lt.compiler.semantic.helper;
+
+import lt.compiler.util.Consts;
+import lt.dependencies.asm.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * signatures and annotations of a class, read from the class file directly.
+ * the class is not loaded or initialized.<br>
+ * annotation values are represented by boxed primitives, Strings, primitive arrays,
+ * {@link Type} (class), {@link EnumInfo}, {@link AnnotationInfo} and {@link ArrayInfo}
+ */
+public class ClassFileInfo {
+        /**
+         * an annotation and the values explicitly set
+         */
+        public static class AnnotationInfo {
+                /**
+                 * class name of the annotation
+                 */
+                public final String type;
+                public final Map<String, Object> values = new LinkedHashMap<String, Object>();
+
+                public AnnotationInfo(String type) {
+                        this.type = type;
+                }
+        }
+
+        /**
+         * an enum constant
+         */
+        public static class EnumInfo {
+                /**
+                 * class name of the enum
+                 */
+                public final String type;
+                public final String name;
+
+                public EnumInfo(String type, String name) {
+                        this.type = type;
+                        this.name = name;
+                }
+        }
+
+        /**
+         * an array of String/Class/Enum/Annotation values
+         */
+        public static class ArrayInfo {
+                public final List<Object> values = new ArrayList<Object>();
+        }
+
+        /**
+         * a field, method or constructor
+         */
+        public static class MemberInfo {
+                public final int access;
+                public final String name;
+                public final String desc;
+                public final List<AnnotationInfo> annotations = new ArrayList<AnnotationInfo>();
+                /**
+                 * default value of an annotation method, or <tt>null</tt>
+                 */
+                public Object annotationDefault;
+
+                public MemberInfo(int access, String name, String desc) {
+                        this.access = access;
+                        this.name = name;
+                        this.desc = desc;
+                }
+        }
+
+        /**
+         * a class attribute holding raw bytes
+         */
+        public static class BytesAttribute extends Attribute {
+                public final byte[] bytes;
+
+                public BytesAttribute(String type, byte[] bytes) {
+                        super(type);
+                        this.bytes = bytes;
+                }
+
+                @Override
+                protected Attribute read(ClassReader cr, int off, int len, char[] buf, int codeOff, Label[] labels) {
+                        return new BytesAttribute(type, Arrays.copyOfRange(cr.b, off, off + len));
+                }
+
+                @Override
+                protected ByteVector write(ClassWriter cw, byte[] code, int len, int maxStack, int maxLocals) {
+                        return new ByteVector(bytes.length).putByteArray(bytes, 0, bytes.length);
+                }
+        }
+
+        /**
+         * the highest class file version that the bundled asm accepts
+         */
+        private static final int SUPPORTED_VERSION = Opcodes.V1_8;
+        private static final int CONSTANT_DYNAMIC = 17;
+
+        /**
+         * class name, e.g. java.util.Map$Entry
+         */
+        public String name;
+        /**
+         * modifiers (retrieved from the inner class attribute if it's a member class)
+         */
+        public int access;
+        /**
+         * super class name, or <tt>null</tt>
+         */
+        public String superName;
+        public final List<String> interfaces = new ArrayList<String>();
+        /**
+         * runtime visible annotations
+         */
+        public final List<AnnotationInfo> annotations = new ArrayList<AnnotationInfo>();
+        public final List<MemberInfo> fields = new ArrayList<MemberInfo>();
+        /**
+         * methods and constructors (named &lt;init&gt;), static initializer is not recorded
+         */
+        public final List<MemberInfo> methods = new ArrayList<MemberInfo>();
+        /**
+         * encoded AST of the generic template, or <tt>null</tt>
+         */
+        public byte[] templateAST;
+
+        public boolean isInterface() {
+                return (access & Opcodes.ACC_INTERFACE) != 0;
+        }
+
+        public boolean isAnnotation() {
+                return (access & Opcodes.ACC_ANNOTATION) != 0;
+        }
+
+        public boolean isAnnotationPresent(String annotationType) {
+                for (AnnotationInfo a : annotations) {
+                        if (a.type.equals(annotationType)) return true;
+                }
+                return false;
+        }
+
+        /**
+         * get the type name in the form of {@link Class#getName()}
+         *
+         * @param type asm type
+         * @return the name
+         */
+        public static String typeName(Type type) {
+                if (type.getSort() == Type.ARRAY) {
+                        return type.getDescriptor().replace('/', '.');
+                }
+                return type.getClassName();
+        }
+
+        /**
+         * read the class file
+         *
+         * @param className    class name
+         * @param classLoaders search the class file in these class loaders in order
+         * @return the class info, or <tt>null</tt> if the class file is not found or cannot be read
+         */
+        public static ClassFileInfo read(String className, ClassLoader... classLoaders) {
+                String resource = className.replace('.', '/') + ".class";
+                byte[] bytes = null;
+                for (ClassLoader loader : classLoaders) {
+                        if (loader == null) continue;
+                        InputStream is = loader.getResourceAsStream(resource);
+                        if (is != null) {
+                                try {
+                                        bytes = readAll(is);
+                                } catch (IOException e) {
+                                        return null;
+                                }
+                                break;
+                        }
+                }
+                if (bytes == null || !prepare(bytes)) return null;
+
+                ClassReader reader;
+                try {
+                        reader = new ClassReader(bytes);
+                } catch (RuntimeException e) {
+                        return null;
+                }
+                ClassFileInfo info = new ClassFileInfo();
+                try {
+                        reader.accept(info.new InfoVisitor(), new Attribute[]{new BytesAttribute(Consts.AST_ATTRIBUTE, null)},
+                                ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+                } catch (RuntimeException e) {
+                        return null;
+                }
+                if (!className.equals(info.name)) return null;
+                return info;
+        }
+
+        /**
+         * the class files newer than java 8 only differ in constant pool entries and attributes,
+         * which are not used when reading signatures. the version is lowered so that asm accepts it.
+         *
+         * @param bytes class file
+         * @return false if the class file contains constants that asm cannot parse
+         */
+        private static boolean prepare(byte[] bytes) {
+                if (bytes.length < 10) return false;
+                int major = ((bytes[6] & 0xFF) << 8) | (bytes[7] & 0xFF);
+                if (major <= SUPPORTED_VERSION) return true;
+                // check the constant pool
+                int count = ((bytes[8] & 0xFF) << 8) | (bytes[9] & 0xFF);
+                int index = 10;
+                for (int i = 1; i < count; ++i) {
+                        if (index >= bytes.length) return false;
+                        int tag = bytes[index];
+                        switch (tag) {
+                                case 1: // utf8
+                                        index += 3 + (((bytes[index + 1] & 0xFF) << 8) | (bytes[index + 2] & 0xFF));
+                                        break;
+                                case 3: // int
+                                case 4: // float
+                                case 9: // field
+                                case 10: // method
+                                case 11: // interface method
+                                case 12: // name and type
+                                case 18: // invoke dynamic
+                                        index += 5;
+                                        break;
+                                case 5: // long
+                                case 6: // double
+                                        index += 9;
+                                        ++i;
+                                        break;
+                                case 15: // method handle
+                                        index += 4;
+                                        break;
+                                case 7: // class
+                                case 8: // string
+                                case 16: // method type
+                                case 19: // module
+                                case 20: // package
+                                        index += 3;
+                                        break;
+                                case CONSTANT_DYNAMIC:
+                                default:
+                                        return false;
+                        }
+                }
+                bytes[6] = (byte) (SUPPORTED_VERSION >> 8);
+                bytes[7] = (byte) SUPPORTED_VERSION;
+                return true;
+        }
+
+        private static byte[] readAll(InputStream is) throws IOException {
+                try {
+                        ByteArrayOutputStream baos = new ByteArrayOutputStream(4096);
+                        byte[] buf = new byte[4096];
+                        int n;
+                        while ((n = is.read(buf)) != -1) {
+                                baos.write(buf, 0, n);
+                        }
+                        return baos.toByteArray();
+                } finally {
+                        is.close();
+                }
+        }
+
+        private static String javaName(String internalName) {
+                return internalName.replace('/', '.');
+        }
+
+        private static String descToName(String desc) {
+                return typeName(Type.getType(desc));
+        }
+
+        private class InfoVisitor extends ClassVisitor {
+                InfoVisitor() {
+                        super(Opcodes.ASM5);
+                }
+
+                @Override
+                public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+                        ClassFileInfo.this.name = javaName(name);
+                        // Class#getModifiers() doesn't contain ACC_SUPER
+                        ClassFileInfo.this.access = access & ~Opcodes.ACC_SUPER & 0xFFFF;
+                        ClassFileInfo.this.superName = superName == null ? null : javaName(superName);
+                        if (interfaces != null) {
+                                for (String i : interfaces) {
+                                        ClassFileInfo.this.interfaces.add(javaName(i));
+                                }
+                        }
+                }
+
+                @Override
+                public void visitInnerClass(String name, String outerName, String innerName, int access) {
+                        if (javaName(name).equals(ClassFileInfo.this.name)) {
+                                // keep the interface/annotation flags
+                                ClassFileInfo.this.access = (access & ~Opcodes.ACC_SUPER & 0xFFFF)
+                                        | (ClassFileInfo.this.access & (Opcodes.ACC_INTERFACE | Opcodes.ACC_ANNOTATION));
+                        }
+                }
+
+                @Override
+                public void visitAttribute(Attribute attr) {
+                        if (attr instanceof BytesAttribute && attr.type.equals(Consts.AST_ATTRIBUTE)) {
+                                templateAST = ((BytesAttribute) attr).bytes;
+                        }
+                }
+
+                @Override
+                public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+                        if (!visible) return null;
+                        AnnotationInfo a = new AnnotationInfo(descToName(desc));
+                        annotations.add(a);
+                        return new ValueVisitor(a.values);
+                }
+
+                @Override
+                public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+                        final MemberInfo f = new MemberInfo(access & 0xFFFF, name, desc);
+                        fields.add(f);
+                        return new FieldVisitor(Opcodes.ASM5) {
+                                @Override
+                                public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+                                        if (!visible) return null;
+                                        AnnotationInfo a = new AnnotationInfo(descToName(desc));
+                                        f.annotations.add(a);
+                                        return new ValueVisitor(a.values);
+                                }
+                        };
+                }
+
+                @Override
+                public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+                        if (name.equals("<clinit>")) return null;
+                        final MemberInfo m = new MemberInfo(access & 0xFFFF, name, desc);
+                        methods.add(m);
+                        return new MethodVisitor(Opcodes.ASM5) {
+                                @Override
+                                public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+                                        if (!visible) return null;
+                                        AnnotationInfo a = new AnnotationInfo(descToName(desc));
+                                        m.annotations.add(a);
+                                        return new ValueVisitor(a.values);
+                                }
+
+                                @Override
+                                public AnnotationVisitor visitAnnotationDefault() {
+                                        final Map<String, Object> holder = new LinkedHashMap<String, Object>();
+                                        return new ValueVisitor(holder) {
+                                                @Override
+                                                public void visitEnd() {
+                                                        if (!holder.isEmpty()) {
+                                                                m.annotationDefault = holder.values().iterator().next();
+                                                        }
+                                                }
+                                        };
+                                }
+                        };
+                }
+        }
+
+        /**
+         * records annotation values into a map (or an array when name is null)
+         */
+        private static class ValueVisitor extends AnnotationVisitor {
+                private final Map<String, Object> values;
+                private final ArrayInfo array;
+
+                ValueVisitor(Map<String, Object> values) {
+                        super(Opcodes.ASM5);
+                        this.values = values;
+                        this.array = null;
+                }
+
+                ValueVisitor(ArrayInfo array) {
+                        super(Opcodes.ASM5);
+                        this.values = null;
+                        this.array = array;
+                }
+
+                private void put(String name, Object value) {
+                        if (array == null) {
+                                // the annotation default value has null name
+                                values.put(name == null ? "" : name, value);
+                        } else {
+                                array.values.add(value);
+                        }
+                }
+
+                @Override
+                public void visit(String name, Object value) {
+                        put(name, value);
+                }
+
+                @Override
+                public void visitEnum(String name, String desc, String value) {
+                        put(name, new EnumInfo(descToName(desc), value));
+                }
+
+                @Override
+                public AnnotationVisitor visitAnnotation(String name, String desc) {
+                        AnnotationInfo a = new AnnotationInfo(descToName(desc));
+                        put(name, a);
+                        return new ValueVisitor(a.values);
+                }
+
+                @Override
+                public AnnotationVisitor visitArray(String name) {
+                        ArrayInfo a = new ArrayInfo();
+                        put(name, a);
+                        return new ValueVisitor(a);
+                }
+        }
+}
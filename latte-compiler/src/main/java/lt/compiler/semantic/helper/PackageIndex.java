@@ -0,0 +1,329 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 KuiGang Wang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package lt.compiler.semantic.helper;
+
+import lt.compiler.SemanticProcessor;
+
+import java.io.*;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * package names contained in jar/jmod files.<br>
+ * the package set of a group of files is built once and shared by all compilers in the process.
+ * it's also stored in {@link #cacheDir()}, keyed by the file paths, their length and last modified time,
+ * so the jre is not scanned again by later processes.
+ * entries of modified or removed files are evicted when a new entry is stored.
+ */
+public class PackageIndex {
+        /**
+         * system property to specify the cache directory
+         */
+        public static final String CACHE_DIR_PROPERTY = "latte.package-index.dir";
+        /**
+         * max count of entries in the cache directory
+         */
+        public static final int MAX_CACHED_ENTRIES = 256;
+        /**
+         * the first line of an entry, followed by the indexed file paths
+         */
+        private static final String HEADER = "#files:";
+
+        private static final Map<String, Set<String>> indexes = new ConcurrentHashMap<String, Set<String>>();
+        private static volatile File cacheDir;
+
+        private PackageIndex() {
+        }
+
+        /**
+         * @return the directory set by {@link #setCacheDir(File)}, or the {@value #CACHE_DIR_PROPERTY} property,
+         * or ~/.latte/package-index
+         */
+        public static File cacheDir() {
+                File dir = cacheDir;
+                if (dir != null) return dir;
+                String prop = System.getProperty(CACHE_DIR_PROPERTY);
+                if (prop != null && !prop.isEmpty()) return new File(prop);
+                return new File(System.getProperty("user.home") + File.separator + ".latte" + File.separator + "package-index");
+        }
+
+        /**
+         * set the cache directory
+         *
+         * @param dir the directory, or null to use the default one
+         */
+        public static void setCacheDir(File dir) {
+                cacheDir = dir;
+        }
+
+        /**
+         * get packages in the files. a package `a.b.c` also makes `a` and `a.b` exist
+         *
+         * @param files jar/jmod files
+         * @return package names (separated by `.`)
+         * @throws IOException failed to read the files
+         */
+        public static Set<String> of(List<File> files) throws IOException {
+                String key = key(files);
+                Set<String> packages = indexes.get(key);
+                if (packages != null) return packages;
+                synchronized (PackageIndex.class) {
+                        packages = indexes.get(key);
+                        if (packages != null) return packages;
+
+                        File cache = new File(cacheDir(), key);
+                        String header = header(files);
+                        packages = load(cache, header);
+                        if (packages == null) {
+                                packages = new HashSet<String>();
+                                for (File f : files) {
+                                        index(f, packages);
+                                }
+                                packages = Collections.unmodifiableSet(packages);
+                                prune(cache.getParentFile(), header);
+                                save(cache, header, packages);
+                        } else {
+                                // mark as recently used
+                                //noinspection ResultOfMethodCallIgnored
+                                cache.setLastModified(System.currentTimeMillis());
+                        }
+                        indexes.put(key, packages);
+                        return packages;
+                }
+        }
+
+        /**
+         * check whether the package exists in the class loader or its parents.
+         * jars in {@link URLClassLoader}s are indexed, directories are checked directly,
+         * and other class loaders are asked for the resource
+         *
+         * @param pkg         package name (separated by `.`)
+         * @param classLoader class loader
+         * @return true if the package exists
+         */
+        public static boolean existsInClassPath(String pkg, ClassLoader classLoader) {
+                String path = pkg.replace('.', '/');
+                for (ClassLoader cl = classLoader; cl != null; cl = cl.getParent()) {
+                        List<File> files = classPathFiles(cl);
+                        if (files == null) {
+                                // the resource is retrieved from parents as well
+                                return cl.getResource(path) != null;
+                        }
+                        for (File f : files) {
+                                if (f.isDirectory()) {
+                                        if (new File(f, path).isDirectory()) return true;
+                                } else if (f.isFile()) {
+                                        try {
+                                                if (of(Collections.singletonList(f)).contains(pkg)) return true;
+                                        } catch (IOException ignore) {
+                                                // not a valid jar
+                                        }
+                                }
+                        }
+                }
+                return false;
+        }
+
+        /**
+         * @param cl class loader
+         * @return local files of the class loader, or null if it's not a {@link URLClassLoader} with only `file:` urls
+         */
+        private static List<File> classPathFiles(ClassLoader cl) {
+                if (!(cl instanceof URLClassLoader)) return null;
+                List<File> files = new ArrayList<File>();
+                for (URL url : ((URLClassLoader) cl).getURLs()) {
+                        if (!url.getProtocol().equals("file")) return null;
+                        try {
+                                files.add(new File(url.toURI()));
+                        } catch (Exception e) {
+                                files.add(new File(url.getPath()));
+                        }
+                }
+                return files;
+        }
+
+        private static String key(List<File> files) {
+                StringBuilder sb = new StringBuilder();
+                for (File f : files) {
+                        sb.append(f.getAbsolutePath()).append('|')
+                                .append(f.length()).append('|')
+                                .append(f.lastModified()).append('\n');
+                }
+                try {
+                        MessageDigest md = MessageDigest.getInstance("SHA-1");
+                        return SemanticProcessor.byte2hex(md.digest(sb.toString().getBytes("UTF-8")));
+                } catch (Exception e) {
+                        return Integer.toHexString(sb.toString().hashCode());
+                }
+        }
+
+        private static String header(List<File> files) {
+                StringBuilder sb = new StringBuilder(HEADER);
+                boolean isFirst = true;
+                for (File f : files) {
+                        if (isFirst) isFirst = false;
+                        else sb.append(File.pathSeparatorChar);
+                        sb.append(f.getAbsolutePath());
+                }
+                return sb.toString();
+        }
+
+        private static String readHeader(File cache) {
+                try {
+                        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(cache), "UTF-8"));
+                        try {
+                                return reader.readLine();
+                        } finally {
+                                reader.close();
+                        }
+                } catch (IOException e) {
+                        return null;
+                }
+        }
+
+        /**
+         * remove entries of the same files (they are modified), entries of removed files, and the least recently used
+         * entries exceeding {@link #MAX_CACHED_ENTRIES}
+         *
+         * @param dir    cache directory
+         * @param header header of the entry to be stored
+         */
+        private static void prune(File dir, String header) {
+                File[] entries = dir.listFiles();
+                if (entries == null) return;
+                List<File> alive = new ArrayList<File>();
+                for (File entry : entries) {
+                        // temporary files being written
+                        if (!entry.isFile() || entry.getName().endsWith(".tmp")) continue;
+                        String h = readHeader(entry);
+                        boolean stale = h == null || !h.startsWith(HEADER) || h.equals(header);
+                        if (!stale) {
+                                for (String path : h.substring(HEADER.length()).split(File.pathSeparator)) {
+                                        if (!new File(path).exists()) {
+                                                stale = true;
+                                                break;
+                                        }
+                                }
+                        }
+                        if (stale) {
+                                //noinspection ResultOfMethodCallIgnored
+                                entry.delete();
+                        } else {
+                                alive.add(entry);
+                        }
+                }
+                if (alive.size() < MAX_CACHED_ENTRIES) return;
+                Collections.sort(alive, new Comparator<File>() {
+                        @Override
+                        public int compare(File a, File b) {
+                                long x = a.lastModified();
+                                long y = b.lastModified();
+                                return x < y ? -1 : (x == y ? 0 : 1);
+                        }
+                });
+                // leave a place for the new entry
+                for (int i = 0; i <= alive.size() - MAX_CACHED_ENTRIES; ++i) {
+                        //noinspection ResultOfMethodCallIgnored
+                        alive.get(i).delete();
+                }
+        }
+
+        private static void index(File file, Set<String> packages) throws IOException {
+                // classes in jmod files are in `classes/`
+                String prefix = file.getName().endsWith(".jmod") ? "classes/" : "";
+                ZipFile zip = new ZipFile(file);
+                try {
+                        Enumeration<? extends ZipEntry> entries = zip.entries();
+                        while (entries.hasMoreElements()) {
+                                String name = entries.nextElement().getName();
+                                if (!name.startsWith(prefix)) continue;
+                                int end = name.lastIndexOf('/');
+                                if (end <= prefix.length()) continue;
+                                addPackage(name.substring(prefix.length(), end).replace('/', '.'), packages);
+                        }
+                } finally {
+                        zip.close();
+                }
+        }
+
+        private static void addPackage(String pkg, Set<String> packages) {
+                while (packages.add(pkg)) {
+                        int index = pkg.lastIndexOf('.');
+                        if (index == -1) return;
+                        pkg = pkg.substring(0, index);
+                }
+        }
+
+        private static Set<String> load(File cache, String header) {
+                if (!cache.isFile()) return null;
+                try {
+                        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(cache), "UTF-8"));
+                        try {
+                                if (!header.equals(reader.readLine())) return null;
+                                Set<String> packages = new HashSet<String>();
+                                String line;
+                                while ((line = reader.readLine()) != null) {
+                                        if (!line.isEmpty()) packages.add(line);
+                                }
+                                return Collections.unmodifiableSet(packages);
+                        } finally {
+                                reader.close();
+                        }
+                } catch (IOException e) {
+                        return null;
+                }
+        }
+
+        private static void save(File cache, String header, Set<String> packages) {
+                // the index is only an optimization, ignore failures
+                File dir = cache.getParentFile();
+                if (!dir.isDirectory() && !dir.mkdirs()) return;
+                try {
+                        File tmp = File.createTempFile(cache.getName(), ".tmp", dir);
+                        Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+                        try {
+                                writer.write(header);
+                                writer.write('\n');
+                                for (String pkg : packages) {
+                                        writer.write(pkg);
+                                        writer.write('\n');
+                                }
+                        } finally {
+                                writer.close();
+                        }
+                        if (!tmp.renameTo(cache)) {
+                                //noinspection ResultOfMethodCallIgnored
+                                tmp.delete();
+                        }
+                } catch (IOException ignore) {
+                }
+        }
+}
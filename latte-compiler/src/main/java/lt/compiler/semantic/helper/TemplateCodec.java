@@ -0,0 +1,230 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 KuiGang Wang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package lt.compiler.semantic.helper;
+
+import lt.compiler.LtBug;
+import lt.compiler.syntactic.Definition;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * encode/decode AST of generic templates.<br>
+ * the format is <code>'L' 'T' version</code> followed by a deflated object stream.
+ * class descriptors in the stream are written as class names and schema hashes of the serialized fields,
+ * repeated objects and strings are back references, which forms the string table.
+ * decoding fails if an AST class in the stream does not match the schema hash,
+ * or if the class is not one of the compiler's classes or the java.lang/java.util classes the AST is built from.
+ */
+public class TemplateCodec {
+        /**
+         * increase it when the format changes. changes of the AST classes are detected by the schema hashes
+         */
+        public static final int VERSION = 2;
+        private static final int CACHE_SIZE = 256;
+        /**
+         * decoded templates, keyed by class name and checksum of the encoded bytes.
+         * the template ASTs are never modified (they are shared by all generic instances)
+         */
+        private static final Map<String, Definition> cache = new LinkedHashMap<String, Definition>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Definition> eldest) {
+                        return size() > CACHE_SIZE;
+                }
+        };
+
+        private TemplateCodec() {
+        }
+
+        public static byte[] encode(Definition definition) {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                baos.write('L');
+                baos.write('T');
+                baos.write(VERSION);
+                try {
+                        DeflaterOutputStream dos = new DeflaterOutputStream(baos, new Deflater(Deflater.BEST_COMPRESSION));
+                        ObjectOutputStream oos = new CompactObjectOutputStream(dos);
+                        oos.writeObject(definition);
+                        oos.close();
+                } catch (IOException e) {
+                        throw new LtBug(e);
+                }
+                return baos.toByteArray();
+        }
+
+        /**
+         * decode the template. the result is cached
+         *
+         * @param className name of the template class
+         * @param bytes     encoded AST
+         * @return the definition
+         */
+        public static Definition decode(String className, byte[] bytes) {
+                CRC32 crc = new CRC32();
+                crc.update(bytes);
+                String key = className + "@" + bytes.length + "@" + Long.toHexString(crc.getValue());
+                synchronized (cache) {
+                        Definition d = cache.get(key);
+                        if (d != null) return d;
+                }
+                Definition d = decode(bytes);
+                synchronized (cache) {
+                        cache.put(key, d);
+                }
+                return d;
+        }
+
+        private static Definition decode(byte[] bytes) {
+                if (bytes.length < 3 || bytes[0] != 'L' || bytes[1] != 'T') {
+                        throw new LtBug("invalid generic template AST");
+                }
+                if (bytes[2] != VERSION) {
+                        throw new LtBug("unsupported generic template AST version " + bytes[2] + ", expecting " + VERSION);
+                }
+                try {
+                        ObjectInputStream ois = new CompactObjectInputStream(
+                                new InflaterInputStream(new ByteArrayInputStream(bytes, 3, bytes.length - 3)));
+                        try {
+                                return (Definition) ois.readObject();
+                        } finally {
+                                ois.close();
+                        }
+                } catch (ClassCastException e) {
+                        throw new LtBug("the generic template AST is not a definition", e);
+                } catch (ClassNotFoundException e) {
+                        throw new LtBug(e);
+                } catch (IOException e) {
+                        throw new LtBug(e);
+                }
+        }
+
+        /**
+         * hash of the class name and names and types of the serialized fields
+         *
+         * @param desc class descriptor
+         * @return the first 8 bytes of the sha-1 digest
+         */
+        private static long schemaHash(ObjectStreamClass desc) {
+                StringBuilder sb = new StringBuilder(desc.getName());
+                // the fields are sorted by the serialization
+                for (ObjectStreamField f : desc.getFields()) {
+                        sb.append('|').append(f.getName()).append(':')
+                                .append(f.isPrimitive() ? String.valueOf(f.getTypeCode()) : f.getTypeString());
+                }
+                try {
+                        byte[] digest = MessageDigest.getInstance("SHA-1").digest(sb.toString().getBytes("UTF-8"));
+                        long hash = 0;
+                        for (int i = 0; i < 8; ++i) {
+                                hash = (hash << 8) | (digest[i] & 0xff);
+                        }
+                        return hash;
+                } catch (NoSuchAlgorithmException e) {
+                        throw new LtBug(e);
+                } catch (UnsupportedEncodingException e) {
+                        throw new LtBug(e);
+                }
+        }
+
+        /**
+         * @param name class name, or name of an array class
+         * @return true if the class is a compiler class, a java.lang or java.util class, or an array of them
+         */
+        private static boolean isAllowed(String name) {
+                int i = 0;
+                while (i < name.length() && name.charAt(i) == '[') ++i;
+                if (i > 0) {
+                        // primitive arrays
+                        if (name.length() == i + 1) return true;
+                        if (name.charAt(i) != 'L' || !name.endsWith(";")) return false;
+                        name = name.substring(i + 1, name.length() - 1);
+                }
+                return name.startsWith("lt.compiler.") || name.startsWith("java.lang.") || name.startsWith("java.util.");
+        }
+
+        private static class CompactObjectOutputStream extends ObjectOutputStream {
+                CompactObjectOutputStream(OutputStream out) throws IOException {
+                        super(out);
+                }
+
+                @Override
+                protected void writeStreamHeader() throws IOException {
+                        // the header is replaced by the format header
+                }
+
+                @Override
+                protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+                        writeUTF(desc.getName());
+                        writeLong(schemaHash(desc));
+                }
+        }
+
+        private static class CompactObjectInputStream extends ObjectInputStream {
+                CompactObjectInputStream(InputStream in) throws IOException {
+                        super(in);
+                }
+
+                @Override
+                protected void readStreamHeader() throws IOException {
+                        // the header is checked before creating the stream
+                }
+
+                @Override
+                protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+                        String name = readUTF();
+                        long hash = readLong();
+                        if (!isAllowed(name)) {
+                                throw new InvalidClassException(name, "the class cannot appear in a generic template AST");
+                        }
+                        ObjectStreamClass desc = ObjectStreamClass.lookupAny(resolve(name));
+                        if (hash != schemaHash(desc)) {
+                                throw new InvalidClassException(name, "the generic template AST does not match the class, " +
+                                        "the template should be compiled again");
+                        }
+                        return desc;
+                }
+
+                @Override
+                protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+                        return resolve(desc.getName());
+                }
+
+                @Override
+                protected Class<?> resolveProxyClass(String[] interfaces) throws IOException, ClassNotFoundException {
+                        throw new InvalidClassException("proxy classes cannot appear in a generic template AST");
+                }
+
+                private static Class<?> resolve(String name) throws ClassNotFoundException {
+                        return Class.forName(name, false, TemplateCodec.class.getClassLoader());
+                }
+        }
+}
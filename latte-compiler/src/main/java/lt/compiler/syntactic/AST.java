@@ -1508,6 +1508,65 @@ public class AST {
                 }
         }
 
+        /**
+         * switch on an int value, it's generated by the compiler (e.g. for pattern matching).<br>
+         * the statements of the matching key are executed, or nothing is executed if no key matches
+         */
+        public static class Switch implements Statement {
+                public final Expression exp;
+                public final List<Integer> keys;
+                public final List<List<Statement>> cases;
+                private final LineCol lineCol;
+
+                public Switch(Expression exp, List<Integer> keys, List<List<Statement>> cases, LineCol lineCol) {
+                        this.exp = exp;
+                        this.keys = keys;
+                        this.cases = cases;
+                        this.lineCol = lineCol;
+                }
+
+                @Override
+                public String toString() {
+                        StringBuilder sb = new StringBuilder("(switch (").append(exp).append(")");
+                        for (int i = 0; i < keys.size(); ++i) {
+                                sb.append(" (").append(keys.get(i)).append(" ").append(cases.get(i)).append(")");
+                        }
+                        sb.append(")");
+                        return sb.toString();
+                }
+
+                @Override
+                public boolean equals(Object o) {
+                        if (this == o) return true;
+                        if (o == null || getClass() != o.getClass()) return false;
+
+                        Switch that = (Switch) o;
+
+                        return exp.equals(that.exp) && keys.equals(that.keys) && cases.equals(that.cases);
+                }
+
+                @Override
+                public int hashCode() {
+                        int result = exp.hashCode();
+                        result = 31 * result + keys.hashCode();
+                        result = 31 * result + cases.hashCode();
+                        return result;
+                }
+
+                @Override
+                public LineCol line_col() {
+                        return lineCol;
+                }
+
+                @Override
+                public <T> void foreachInnerStatements(Function2<Boolean, ? super Statement, T> f, T t) throws Exception {
+                        visitStmt(exp, f, t);
+                        for (List<Statement> c : cases) {
+                                visitStmt(c, f, t);
+                        }
+                }
+        }
+
         /**
          * synchronized
          */
@@ -8,7 +8,14 @@ public class Consts {
         public static final int IS_POINTER_GET = 2; // 0010
         public static final int IS_POINTER_NEW = 4; // 0100
 
+        /**
+         * the static field holding hex encoded AST of generic templates compiled by older versions
+         */
         public static final String AST_FIELD = "_LATTE$AST";
+        /**
+         * the class attribute holding encoded AST of generic templates
+         */
+        public static final String AST_ATTRIBUTE = "LatteAST";
         public static final String GENERIC_NAME_SPLIT = "_$G$_";
 
         private Consts() {
@@ -28,7 +28,7 @@ public class LocalVariables {
 
         public static int calculateIndexForLocalVariable(LeftValue theVar, SemanticScope scope, boolean isStatic) {
                 InvokableMeta meta = scope.getMeta();
-                Collection<LeftValue> localVariables = scope.getRawLocalVariables().values();
+                Collection<LeftValue> localVariables = scope.getVisibleLeftValues();
 
                 Iterator<LeftValue> localVarIte = localVariables.iterator();
                 if (!localVarIte.hasNext())
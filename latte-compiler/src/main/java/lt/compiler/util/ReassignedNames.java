@@ -0,0 +1,194 @@
+package lt.compiler.util;
+
+import lt.compiler.syntactic.AST;
+import lt.compiler.syntactic.Expression;
+import lt.compiler.syntactic.Literal;
+import lt.compiler.syntactic.Operation;
+import lt.compiler.syntactic.Statement;
+import lt.compiler.syntactic.def.MethodDef;
+import lt.compiler.syntactic.def.VariableDef;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * collect names of local variables that might be assigned more than once in a method body,
+ * including the bodies of inner methods and lambdas. a variable not in the result
+ * holds its first value for its whole life, so it can be captured by value.
+ */
+public class ReassignedNames {
+        private final Set<String> reassigned = new HashSet<String>();
+        private Set<String> referenced = new HashSet<String>();
+        private boolean closure = false;
+        private boolean unknown = false;
+
+        private ReassignedNames() {
+        }
+
+        /**
+         * @param statements method body
+         * @return the names, or null if the body contains a statement that cannot be analyzed
+         */
+        public static Set<String> of(List<Statement> statements) {
+                ReassignedNames r = new ReassignedNames();
+                r.statements(statements);
+                return r.unknown ? null : r.reassigned;
+        }
+
+        private void statements(List<? extends Statement> statements) {
+                if (statements == null) return;
+                for (Statement s : statements) {
+                        statement(s);
+                }
+        }
+
+        private void assignTo(AST.Access access) {
+                if (access.exp == null) {
+                        reassigned.add(access.name);
+                } else {
+                        statement(access.exp);
+                }
+        }
+
+        private void pattern(AST.Pattern pattern) {
+                if (pattern instanceof AST.Pattern_Define) {
+                        reassigned.add(((AST.Pattern_Define) pattern).name);
+                } else if (pattern instanceof AST.Pattern_Destruct) {
+                        for (AST.Pattern p : ((AST.Pattern_Destruct) pattern).subPatterns) {
+                                pattern(p);
+                        }
+                } else if (pattern instanceof AST.Pattern_Value) {
+                        statement(((AST.Pattern_Value) pattern).exp);
+                }
+        }
+
+        private void statement(Statement s) {
+                if (s == null || unknown) return;
+                if (s instanceof Literal
+                        || s instanceof AST.Null
+                        || s instanceof AST.PackageRef
+                        || s instanceof AST.TypeOf
+                        || s instanceof AST.Pass
+                        || s instanceof AST.Continue
+                        || s instanceof AST.Break
+                        || s instanceof AST.Anno
+                        || s instanceof AST.AnnoExpression) {
+                        return;
+                }
+                if (s instanceof VariableDef) {
+                        VariableDef def = (VariableDef) s;
+                        // the variable is visible in its own initializer, e.g. `f = ()->f`,
+                        // and it's captured by closures in the initializer before it's assigned
+                        Set<String> outer = referenced;
+                        boolean outerClosure = closure;
+                        referenced = new HashSet<String>();
+                        closure = false;
+                        statement(def.getInit());
+                        if (closure || referenced.contains(def.getName())) {
+                                reassigned.add(def.getName());
+                        }
+                        outer.addAll(referenced);
+                        referenced = outer;
+                        closure = closure || outerClosure;
+                } else if (s instanceof MethodDef) {
+                        MethodDef m = (MethodDef) s;
+                        closure = true;
+                        statements(m.params);
+                        statements(m.body);
+                } else if (s instanceof AST.Access) {
+                        AST.Access access = (AST.Access) s;
+                        if (access.exp == null) {
+                                referenced.add(access.name);
+                        } else {
+                                statement(access.exp);
+                        }
+                } else if (s instanceof AST.Assignment) {
+                        AST.Assignment a = (AST.Assignment) s;
+                        assignTo(a.assignTo);
+                        statement(a.assignFrom);
+                } else if (s instanceof Operation) {
+                        Operation op = (Operation) s;
+                        List<Expression> expressions = op.expressions();
+                        if ((op.operator().equals("++") || op.operator().equals("--"))
+                                && expressions.size() == 1 && expressions.get(0) instanceof AST.Access) {
+                                assignTo((AST.Access) expressions.get(0));
+                        }
+                        statements(expressions);
+                } else if (s instanceof AST.ArrayExp) {
+                        statements(((AST.ArrayExp) s).list);
+                } else if (s instanceof AST.AsType) {
+                        statement(((AST.AsType) s).exp);
+                } else if (s instanceof AST.Destruct) {
+                        pattern(((AST.Destruct) s).pattern);
+                        statement(((AST.Destruct) s).exp);
+                } else if (s instanceof AST.PatternMatching) {
+                        AST.PatternMatching pm = (AST.PatternMatching) s;
+                        statement(pm.expToMatch);
+                        for (Map.Entry<AST.PatternCondition, List<Statement>> entry : pm.patternsToStatements.entrySet()) {
+                                pattern(entry.getKey().pattern);
+                                statement(entry.getKey().condition);
+                                statements(entry.getValue());
+                        }
+                } else if (s instanceof AST.Procedure) {
+                        statements(((AST.Procedure) s).statements);
+                } else if (s instanceof AST.For) {
+                        AST.For f = (AST.For) s;
+                        reassigned.add(f.name);
+                        statement(f.exp);
+                        statements(f.body);
+                } else if (s instanceof AST.GeneratorSpec) {
+                        statements(((AST.GeneratorSpec) s).ast);
+                } else if (s instanceof AST.If) {
+                        for (AST.If.IfPair pair : ((AST.If) s).ifs) {
+                                statement(pair.condition);
+                                statements(pair.body);
+                        }
+                } else if (s instanceof AST.Index) {
+                        statement(((AST.Index) s).exp);
+                        statements(((AST.Index) s).args);
+                } else if (s instanceof AST.Invocation) {
+                        statement(((AST.Invocation) s).exp);
+                        statements(((AST.Invocation) s).args);
+                } else if (s instanceof AST.Lambda) {
+                        closure = true;
+                        statements(((AST.Lambda) s).params);
+                        statements(((AST.Lambda) s).statements);
+                } else if (s instanceof AST.MapExp) {
+                        for (Map.Entry<Expression, Expression> entry : ((AST.MapExp) s).map.entrySet()) {
+                                statement(entry.getKey());
+                                statement(entry.getValue());
+                        }
+                } else if (s instanceof AST.New) {
+                        statement(((AST.New) s).invocation);
+                } else if (s instanceof AST.Require) {
+                        statement(((AST.Require) s).required);
+                } else if (s instanceof AST.Return) {
+                        statement(((AST.Return) s).exp);
+                } else if (s instanceof AST.StaticScope) {
+                        statements(((AST.StaticScope) s).statements);
+                } else if (s instanceof AST.Switch) {
+                        statement(((AST.Switch) s).exp);
+                        for (List<Statement> c : ((AST.Switch) s).cases) {
+                                statements(c);
+                        }
+                } else if (s instanceof AST.Synchronized) {
+                        statements(((AST.Synchronized) s).toSync);
+                        statements(((AST.Synchronized) s).statements);
+                } else if (s instanceof AST.Throw) {
+                        statement(((AST.Throw) s).exp);
+                } else if (s instanceof AST.Try) {
+                        AST.Try t = (AST.Try) s;
+                        reassigned.add(t.varName);
+                        statements(t.statements);
+                        statements(t.catchStatements);
+                        statements(t.fin);
+                } else if (s instanceof AST.While) {
+                        statement(((AST.While) s).condition);
+                        statements(((AST.While) s).statements);
+                } else {
+                        unknown = true;
+                }
+        }
+}
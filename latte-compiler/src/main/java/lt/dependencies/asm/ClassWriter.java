@@ -787,6 +787,19 @@ public class ClassWriter extends ClassVisitor {
         return new FieldWriter(this, access, name, desc, signature, value);
     }
 
+    /**
+     * Sets whether the stack map frames of the methods visited afterwards must
+     * be computed. If not, the maximum stack size and number of local
+     * variables are still computed.
+     *
+     * @param computeFrames
+     *            <tt>true</tt> to compute the frames of the next methods.
+     */
+    public void setComputeFrames(final boolean computeFrames) {
+        this.computeFrames = computeFrames;
+        this.computeMaxs = !computeFrames;
+    }
+
     @Override
     public final MethodVisitor visitMethod(final int access, final String name,
             final String desc, final String signature, final String[] exceptions) {
@@ -0,0 +1,392 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 KuiGang Wang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package lt.repl;
+
+import lt.compiler.SemanticProcessor;
+import lt.compiler.SharedTypes;
+import lt.compiler.SyntaxException;
+import lt.runtime.Wrapper;
+
+import java.io.*;
+import java.net.*;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * a long-lived compiler daemon listening on the loopback address.<br>
+ * the daemon keeps a warmed-up JVM, JRE package info, jdk types and class loaders of unchanged jars across compilations.
+ * the port and a random token are written into the info file ({@link #infoFile()} by default),
+ * the client must send the token before the request.<br>
+ * use {@link #compile(Map, File, List, boolean, boolean)} to delegate a compilation to the running daemon.
+ */
+public class CompileDaemon {
+        /**
+         * result of a compilation in the daemon
+         */
+        public static class Result {
+                /**
+                 * whether the compilation succeeded
+                 */
+                public final boolean success;
+                /**
+                 * messages printed by the compiler
+                 */
+                public final String output;
+                /**
+                 * error message, or empty string if succeeded
+                 */
+                public final String error;
+
+                public Result(boolean success, String output, String error) {
+                        this.success = success;
+                        this.output = output;
+                        this.error = error;
+                }
+        }
+
+        /**
+         * max count of cached class loaders
+         */
+        private static final int MAX_CACHED_LOADERS = 8;
+
+        private final int port;
+        private final File infoFile;
+        private final String token;
+        private final ExecutorService pool;
+        /**
+         * jar paths and last modified time =&gt; class loader
+         */
+        private final Map<String, ClassLoader> loaderCache = new LinkedHashMap<String, ClassLoader>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ClassLoader> eldest) {
+                        return size() > MAX_CACHED_LOADERS;
+                }
+        };
+        /**
+         * types of the compiler's class loader, shared by all compilations in the daemon
+         */
+        private final SharedTypes sharedTypes = new SharedTypes();
+        private ServerSocket serverSocket;
+
+        /**
+         * construct the daemon
+         *
+         * @param port    the port to listen on, 0 means any free port
+         * @param threads max count of compilations running at the same time
+         */
+        public CompileDaemon(int port, int threads) {
+                this(port, threads, infoFile());
+        }
+
+        /**
+         * construct the daemon
+         *
+         * @param port     the port to listen on, 0 means any free port
+         * @param threads  max count of compilations running at the same time
+         * @param infoFile the file recording port and token of the daemon
+         */
+        public CompileDaemon(int port, int threads, File infoFile) {
+                this.port = port;
+                this.infoFile = infoFile;
+                this.pool = Executors.newFixedThreadPool(threads);
+                byte[] bytes = new byte[16];
+                new SecureRandom().nextBytes(bytes);
+                this.token = SemanticProcessor.byte2hex(bytes);
+        }
+
+        /**
+         * the file recording port and token of the running daemon
+         *
+         * @return ~/.latte/compile-daemon
+         */
+        public static File infoFile() {
+                return new File(System.getProperty("user.home") + File.separator + ".latte" + File.separator + "compile-daemon");
+        }
+
+        /**
+         * bind the port and record the daemon info
+         *
+         * @return the port
+         * @throws IOException exception
+         */
+        public int start() throws IOException {
+                serverSocket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+                File info = infoFile;
+                if (!info.getParentFile().exists() && !info.getParentFile().mkdirs())
+                        throw new IOException("cannot create directory " + info.getParentFile());
+                FileOutputStream fos = new FileOutputStream(info);
+                try {
+                        // only the owner can read the token
+                        //noinspection ResultOfMethodCallIgnored
+                        info.setReadable(false, false);
+                        //noinspection ResultOfMethodCallIgnored
+                        info.setReadable(true, true);
+                        fos.write((serverSocket.getLocalPort() + "\n" + token + "\n").getBytes("UTF-8"));
+                } finally {
+                        fos.close();
+                }
+                return serverSocket.getLocalPort();
+        }
+
+        /**
+         * accept requests until the daemon is stopped
+         */
+        public void serve() {
+                while (!serverSocket.isClosed()) {
+                        final Socket socket;
+                        try {
+                                socket = serverSocket.accept();
+                        } catch (IOException e) {
+                                // closed
+                                break;
+                        }
+                        pool.submit(new Runnable() {
+                                @Override
+                                public void run() {
+                                        try {
+                                                handle(socket);
+                                        } catch (IOException ignore) {
+                                                // the client is gone
+                                        } finally {
+                                                try {
+                                                        socket.close();
+                                                } catch (IOException ignore) {
+                                                }
+                                        }
+                                }
+                        });
+                }
+        }
+
+        /**
+         * stop the daemon
+         *
+         * @throws IOException exception
+         */
+        public void stop() throws IOException {
+                pool.shutdown();
+                if (serverSocket != null) serverSocket.close();
+                //noinspection ResultOfMethodCallIgnored
+                infoFile.delete();
+        }
+
+        private void handle(Socket socket) throws IOException {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+                // compare in constant time
+                if (!MessageDigest.isEqual(token.getBytes("UTF-8"), in.readUTF().getBytes("UTF-8"))) {
+                        writeResult(out, new Result(false, "", "invalid token"));
+                        return;
+                }
+
+                Map<String, File> files = new HashMap<String, File>();
+                int fileCount = in.readInt();
+                for (int i = 0; i < fileCount; ++i) {
+                        String name = in.readUTF();
+                        files.put(name, new File(in.readUTF()));
+                }
+                File outputDir = new File(in.readUTF());
+                List<URL> classpath = new ArrayList<URL>();
+                int classpathCount = in.readInt();
+                for (int i = 0; i < classpathCount; ++i) {
+                        classpath.add(new URL(in.readUTF()));
+                }
+                boolean fastFail = in.readBoolean();
+                boolean incremental = in.readBoolean();
+
+                writeResult(out, compileLocally(files, outputDir, classpath, fastFail, incremental));
+        }
+
+        private Result compileLocally(Map<String, File> files, File outputDir, List<URL> classpath,
+                                      boolean fastFail, boolean incremental) {
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                PrintStream ps = new PrintStream(output, true);
+
+                // jars are loaded by cached class loaders
+                // directories may change between requests, so they are loaded by the compiler every time
+                List<URL> jars = new ArrayList<URL>();
+                for (URL url : classpath) {
+                        if (url.getPath().endsWith(".jar")) jars.add(url);
+                }
+
+                Compiler compiler = new Compiler(getJarLoader(jars));
+                // the whole class-path is given to the compiler to be recorded by the incremental compiling state,
+                // classes in the jars are still found by the cached parent loader first
+                compiler.config.classpath = classpath;
+                compiler.config.sharedTypes = sharedTypes;
+                compiler.config.fastFail = fastFail;
+                compiler.config.result.outputDir = outputDir;
+                compiler.config.result.incremental = incremental;
+                compiler.config.out.info = ps;
+                compiler.config.out.warn = ps;
+                compiler.config.out.err = ps;
+
+                try {
+                        compiler.compile(files);
+                        return new Result(true, output.toString(), "");
+                } catch (SyntaxException e) {
+                        return new Result(false, output.toString(), e.getMessage());
+                } catch (Wrapper e) {
+                        return new Result(false, output.toString(), "compilation failed");
+                } catch (Throwable t) {
+                        StringWriter sw = new StringWriter();
+                        t.printStackTrace(new PrintWriter(sw));
+                        return new Result(false, output.toString(), sw.toString());
+                }
+        }
+
+        /**
+         * get the class loader of the jars. the loader is reused if none of the jars is modified
+         *
+         * @param jars jar urls
+         * @return class loader
+         */
+        private ClassLoader getJarLoader(List<URL> jars) {
+                ClassLoader parent = CompileDaemon.class.getClassLoader();
+                if (jars.isEmpty()) return parent;
+
+                StringBuilder key = new StringBuilder();
+                for (URL url : jars) {
+                        File f;
+                        try {
+                                f = new File(url.toURI());
+                        } catch (URISyntaxException e) {
+                                f = new File(url.getPath());
+                        }
+                        key.append(url).append('@').append(f.lastModified()).append(':').append(f.length()).append('\n');
+                }
+                synchronized (loaderCache) {
+                        ClassLoader loader = loaderCache.get(key.toString());
+                        if (loader == null) {
+                                loader = new URLClassLoader(jars.toArray(new URL[jars.size()]), parent);
+                                loaderCache.put(key.toString(), loader);
+                        }
+                        return loader;
+                }
+        }
+
+        private static void writeResult(DataOutputStream out, Result result) throws IOException {
+                out.writeBoolean(result.success);
+                writeString(out, result.output);
+                writeString(out, result.error);
+                out.flush();
+        }
+
+        private static void writeString(DataOutputStream out, String s) throws IOException {
+                byte[] bytes = s.getBytes("UTF-8");
+                out.writeInt(bytes.length);
+                out.write(bytes);
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                return new String(bytes, "UTF-8");
+        }
+
+        /**
+         * delegate the compilation to the running daemon
+         *
+         * @param files       file name =&gt; source file
+         * @param outputDir   output directory
+         * @param classpath   class-path
+         * @param fastFail    fast fail
+         * @param incremental compile incrementally
+         * @return the compiling result, or <tt>null</tt> if the daemon is not running
+         * @throws IOException the connection is broken when compiling
+         */
+        public static Result compile(Map<String, File> files, File outputDir, List<URL> classpath,
+                                     boolean fastFail, boolean incremental) throws IOException {
+                return compile(infoFile(), files, outputDir, classpath, fastFail, incremental);
+        }
+
+        /**
+         * delegate the compilation to the daemon recorded in the given info file
+         *
+         * @param info        the file recording port and token of the daemon
+         * @param files       file name =&gt; source file
+         * @param outputDir   output directory
+         * @param classpath   class-path
+         * @param fastFail    fast fail
+         * @param incremental compile incrementally
+         * @return the compiling result, or <tt>null</tt> if the daemon is not running
+         * @throws IOException the connection is broken when compiling
+         */
+        public static Result compile(File info, Map<String, File> files, File outputDir, List<URL> classpath,
+                                     boolean fastFail, boolean incremental) throws IOException {
+                if (!info.isFile()) return null;
+                int port;
+                String token;
+                BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(info), "UTF-8"));
+                try {
+                        port = Integer.parseInt(br.readLine().trim());
+                        token = br.readLine().trim();
+                } catch (RuntimeException e) {
+                        // NullPointerException or NumberFormatException
+                        return null;
+                } finally {
+                        br.close();
+                }
+
+                Socket socket = new Socket();
+                try {
+                        try {
+                                socket.connect(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 1000);
+                        } catch (IOException e) {
+                                // the daemon is not running
+                                return null;
+                        }
+                        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+                        out.writeUTF(token);
+                        out.writeInt(files.size());
+                        for (Map.Entry<String, File> entry : files.entrySet()) {
+                                out.writeUTF(entry.getKey());
+                                out.writeUTF(entry.getValue().getAbsolutePath());
+                        }
+                        out.writeUTF(outputDir.getAbsolutePath());
+                        out.writeInt(classpath.size());
+                        for (URL url : classpath) {
+                                out.writeUTF(url.toString());
+                        }
+                        out.writeBoolean(fastFail);
+                        out.writeBoolean(incremental);
+                        out.flush();
+
+                        boolean success = in.readBoolean();
+                        String output = readString(in);
+                        String error = readString(in);
+                        return new Result(success, output, error);
+                } finally {
+                        socket.close();
+                }
+        }
+}
@@ -0,0 +1,328 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 KuiGang Wang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package lt.repl;
+
+import lt.compiler.SemanticProcessor;
+import lt.compiler.util.Consts;
+
+import java.io.*;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * state of an incremental compilation. it's persisted next to the output directory after a successful compilation,
+ * so it's never packaged with the classes.<br>
+ * the state records fingerprint of each source file, classes generated from the file and types that the file refers to.
+ * a file is compiled again if it's modified, or any type it refers to is defined in a file that would be compiled again.
+ */
+public class CompileState implements Serializable {
+        private static final long serialVersionUID = 2L;
+        /**
+         * suffix of the default state file, see {@link #defaultStateFile(File)}
+         */
+        public static final String FILE_SUFFIX = ".latte-compile-state";
+
+        /**
+         * state of a source file
+         */
+        public static class FileState implements Serializable {
+                private static final long serialVersionUID = 2L;
+                /**
+                 * digest of the source code
+                 */
+                public String fingerprint;
+                /**
+                 * names of the classes generated from the file
+                 */
+                public Set<String> classes = new HashSet<String>();
+                /**
+                 * names of the types referred to by the file
+                 */
+                public Set<String> dependencies = new HashSet<String>();
+                /**
+                 * names of the generic templates defined in the file
+                 */
+                public Set<String> templates = new HashSet<String>();
+        }
+
+        /**
+         * class-path entries of the compilation with their modification info, see {@link #classpathEntries(List, File, Set)}.
+         * all files are compiled if class-path changes
+         */
+        public List<String> classpath = new ArrayList<String>();
+        /**
+         * file name =&gt; file state
+         */
+        public final Map<String, FileState> files = new HashMap<String, FileState>();
+
+        /**
+         * get fingerprint of the source code
+         *
+         * @param code source code
+         * @return hex string of the digest
+         */
+        public static String fingerprint(String code) {
+                try {
+                        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+                        return SemanticProcessor.byte2hex(digest.digest(code.getBytes("UTF-8")));
+                } catch (NoSuchAlgorithmException e) {
+                        throw new RuntimeException(e);
+                } catch (UnsupportedEncodingException e) {
+                        throw new RuntimeException(e);
+                }
+        }
+
+        /**
+         * get the default state file of the output directory, which is <tt>{outputDir}.latte-compile-state</tt>
+         * in the parent directory of the output directory
+         *
+         * @param outputDir output directory
+         * @return the state file
+         */
+        public static File defaultStateFile(File outputDir) {
+                File dir = outputDir.getAbsoluteFile();
+                File parent = dir.getParentFile();
+                if (parent == null) parent = dir;
+                return new File(parent, dir.getName() + FILE_SUFFIX);
+        }
+
+        /**
+         * describe the class-path entries. a jar is described by its path, size and modification time,
+         * and a directory is described by a digest of all files inside it. class files generated by latte
+         * into the output directory are ignored, since the output directory might be in the class-path as well.
+         *
+         * @param classpath        class-path
+         * @param outputDir        output directory
+         * @param generatedClasses classes generated by latte
+         * @return the entries
+         */
+        public static List<String> classpathEntries(List<URL> classpath, File outputDir, Set<String> generatedClasses) {
+                Set<String> generatedFiles = new HashSet<String>();
+                for (String cls : generatedClasses) {
+                        generatedFiles.add(cls.replace('.', '/') + ".class");
+                }
+                List<String> entries = new ArrayList<String>();
+                for (URL url : classpath) {
+                        File file;
+                        try {
+                                file = new File(url.toURI());
+                        } catch (Exception e) {
+                                // not a local file
+                                entries.add(url.toString());
+                                continue;
+                        }
+                        if (file.isFile()) {
+                                entries.add(file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified());
+                        } else if (file.isDirectory()) {
+                                List<String> files = new ArrayList<String>();
+                                boolean isOutputDir = file.getAbsoluteFile().equals(outputDir.getAbsoluteFile());
+                                listFiles(file, "", files, isOutputDir ? generatedFiles : Collections.<String>emptySet());
+                                Collections.sort(files);
+                                StringBuilder sb = new StringBuilder();
+                                for (String f : files) {
+                                        sb.append(f).append("\n");
+                                }
+                                entries.add(file.getAbsolutePath() + ":" + fingerprint(sb.toString()));
+                        } else {
+                                entries.add(file.getAbsolutePath() + ":missing");
+                        }
+                }
+                return entries;
+        }
+
+        private static void listFiles(File dir, String prefix, List<String> result, Set<String> ignored) {
+                File[] files = dir.listFiles();
+                if (files == null) return;
+                for (File f : files) {
+                        String name = prefix + f.getName();
+                        if (f.isDirectory()) {
+                                listFiles(f, name + "/", result, ignored);
+                        } else if (!ignored.contains(name)) {
+                                result.add(name + ":" + f.length() + ":" + f.lastModified());
+                        }
+                }
+        }
+
+        /**
+         * get names of all classes recorded in the state
+         *
+         * @return class names
+         */
+        public Set<String> classes() {
+                Set<String> classes = new HashSet<String>();
+                for (FileState state : files.values()) {
+                        classes.addAll(state.classes);
+                }
+                return classes;
+        }
+
+        /**
+         * load the state from the file
+         *
+         * @param file the state file
+         * @return the recorded state, or <tt>null</tt> if the state doesn't exist or cannot be read
+         */
+        public static CompileState load(File file) {
+                if (!file.isFile()) return null;
+                ObjectInputStream ois = null;
+                try {
+                        ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+                        return (CompileState) ois.readObject();
+                } catch (Exception e) {
+                        // treat as a full compilation
+                        return null;
+                } finally {
+                        if (ois != null) try {
+                                ois.close();
+                        } catch (IOException ignore) {
+                        }
+                }
+        }
+
+        /**
+         * save the state into the file
+         *
+         * @param file the state file
+         * @throws IOException exception
+         */
+        public void save(File file) throws IOException {
+                File dir = file.getAbsoluteFile().getParentFile();
+                if (dir != null && !dir.exists() && !dir.mkdirs()) throw new IOException("cannot create directory " + dir);
+                ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+                try {
+                        oos.writeObject(this);
+                } finally {
+                        oos.close();
+                }
+        }
+
+        /**
+         * get the class file of the given class in the output directory
+         *
+         * @param outputDir output directory
+         * @param className class name
+         * @return the class file
+         */
+        public static File classFile(File outputDir, String className) {
+                return new File(outputDir, className.replace('.', File.separatorChar) + ".class");
+        }
+
+        /**
+         * get files that should be compiled. a file is compiled when
+         * <ol>
+         * <li>it's not recorded or its fingerprint changes</li>
+         * <li>any class generated from it is missing in the output directory</li>
+         * <li>it refers to a type generated from a file that would be compiled or is removed</li>
+         * <li>it defines a generic template, and any other file would be compiled</li>
+         * </ol>
+         *
+         * @param fingerprints file name =&gt; fingerprint of all source files
+         * @param outputDir    output directory
+         * @return names of the files to compile
+         */
+        public Set<String> filesToCompile(Map<String, String> fingerprints, File outputDir) {
+                Set<String> result = new HashSet<String>();
+                Set<String> dirtyTypes = new HashSet<String>();
+                for (Map.Entry<String, FileState> entry : files.entrySet()) {
+                        if (!fingerprints.containsKey(entry.getKey())) {
+                                // removed
+                                dirtyTypes.addAll(entry.getValue().classes);
+                        }
+                }
+                for (Map.Entry<String, String> entry : fingerprints.entrySet()) {
+                        String fileName = entry.getKey();
+                        FileState state = files.get(fileName);
+                        if (state == null || !state.fingerprint.equals(entry.getValue()) || classMissing(state, outputDir)) {
+                                result.add(fileName);
+                                if (state != null) dirtyTypes.addAll(state.classes);
+                        }
+                }
+                // expand to the files depending on the dirty types
+                boolean changed = true;
+                while (changed) {
+                        changed = false;
+                        for (String fileName : fingerprints.keySet()) {
+                                if (result.contains(fileName)) continue;
+                                FileState state = files.get(fileName);
+                                if (dependsOn(state, dirtyTypes)) {
+                                        result.add(fileName);
+                                        dirtyTypes.addAll(state.classes);
+                                        changed = true;
+                                }
+                        }
+                }
+                // templates are applied from their source AST, and the recorded dependencies of modified files are stale,
+                // so the files defining templates are compiled with any other file. their classes are not changed
+                if (!result.isEmpty()) {
+                        for (Map.Entry<String, FileState> entry : files.entrySet()) {
+                                if (!entry.getValue().templates.isEmpty() && fingerprints.containsKey(entry.getKey())) {
+                                        result.add(entry.getKey());
+                                }
+                        }
+                }
+                return result;
+        }
+
+        private static boolean classMissing(FileState state, File outputDir) {
+                for (String cls : state.classes) {
+                        if (!classFile(outputDir, cls).isFile()) return true;
+                }
+                return false;
+        }
+
+        private static boolean dependsOn(FileState state, Set<String> types) {
+                for (String dependency : state.dependencies) {
+                        if (types.contains(dependency)) return true;
+                }
+                return false;
+        }
+
+        /**
+         * find the file that the class is generated from. lambda classes and applied generic types
+         * are generated from the file defining the enclosing type or the template
+         *
+         * @param className      the generated class name
+         * @param typeToFileName type name =&gt; file name of types defined in source files
+         * @return the file name, or <tt>null</tt> if not found
+         */
+        public static String fileOfClass(String className, Map<String, String> typeToFileName) {
+                String name = className;
+                while (true) {
+                        String fileName = typeToFileName.get(name);
+                        if (fileName != null) return fileName;
+                        int genericIndex = name.indexOf(Consts.GENERIC_NAME_SPLIT);
+                        if (genericIndex != -1) {
+                                name = name.substring(0, genericIndex);
+                                continue;
+                        }
+                        int index = name.lastIndexOf('$');
+                        if (index == -1) return null;
+                        name = name.substring(0, index);
+                }
+        }
+}
@@ -34,6 +34,8 @@ import lt.runtime.Wrapper;
 
 import java.io.*;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.zip.ZipEntry;
@@ -43,12 +45,25 @@ import java.util.zip.ZipOutputStream;
  * a compiler with full functions provided. lt.repl.Compiler is a small set of this compiler<br>
  * first record all necessary info<br>
  * then creates a ThreadPool to run Scanner and Parser<br>
- * then summaries these AST to do semantic analysis in a single thread<br>
+ * then summaries these AST to do semantic analysis, method bodies are parsed with a ThreadPool<br>
  * finally creates a ThreadPool to run Code Generation and write files to disk (or store these byte code for loading)<br>
  * if requires loading, then load all these generated classes
  */
 public class Compiler {
         private static final int availableProcessors = Runtime.getRuntime().availableProcessors();
+        /**
+         * threads writing class files don't keep the jvm alive
+         */
+        private static final ThreadFactory writerThreadFactory = new ThreadFactory() {
+                private final ThreadFactory defaultFactory = Executors.defaultThreadFactory();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                        Thread t = defaultFactory.newThread(r);
+                        t.setDaemon(true);
+                        return t;
+                }
+        };
 
         public static class Config {
                 /**
@@ -68,6 +83,10 @@ public class Compiler {
                          * thread count for parsers
                          */
                         public int parser = availableProcessors;
+                        /**
+                         * thread count for semantic analysis (parsing method bodies)
+                         */
+                        public int semantic = availableProcessors;
                         /**
                          * thread count for codeGen
                          */
@@ -116,6 +135,30 @@ public class Compiler {
                  */
                 public boolean fastFail = true;
 
+                /**
+                 * release token trees, ASTs and instruction trees as soon as they are used,
+                 * so large projects can be compiled with a small heap
+                 */
+                public boolean lowMemory = false;
+
+                /**
+                 * record wall time, cpu time and allocated bytes of each phase, file and type.
+                 * the report is written into this file in json format, and a summary is printed as info.
+                 * nothing is recorded if it's null
+                 */
+                public File profile = null;
+
+                /**
+                 * fold constants and remove dead branches before generating byte code
+                 */
+                public boolean optimize = true;
+
+                /**
+                 * types of the compiler's own class loader, shared by compilations using the same instance.
+                 * long-lived hosts (e.g. the compile daemon) can set one instance into all of their compilers
+                 */
+                public SharedTypes sharedTypes = new SharedTypes();
+
                 /**
                  * configuration about the result
                  */
@@ -136,6 +179,22 @@ public class Compiler {
                          * include Latte runtime libraries
                          */
                         public boolean with_lib = false;
+                        /**
+                         * only compile modified files and files depending on them.
+                         * it only takes effect when outputDir is set and package is not set.
+                         * the compiling state is stored in {@link #stateFile}, see {@link CompileState}
+                         */
+                        public boolean incremental = false;
+                        /**
+                         * the file storing the incremental compiling state.
+                         * {@link CompileState#defaultStateFile(File)} is used when it's not set
+                         */
+                        public File stateFile = null;
+                        /**
+                         * only compute stack map frames for methods that may branch.
+                         * the frames of branching methods are still computed by asm
+                         */
+                        public boolean selectiveFrames = false;
                 }
 
                 /**
@@ -211,6 +270,9 @@ public class Compiler {
                         Config.Code code = new Config.Code();
                         ErrorManager.Out out = new ErrorManager.Out();
                         boolean fastFail = true;
+                        boolean lowMemory = false;
+                        File profile = null;
+                        boolean optimize = true;
                         Config.Result result = new Config.Result();
 
                         if (config.containsKey("classpath")) {
@@ -247,6 +309,13 @@ public class Compiler {
                                                 } else
                                                         throw new IllegalArgumentException("config.threads.parser should be Integer and >= 1");
                                         }
+                                        if (t.containsKey("semantic")) {
+                                                Object semantic = t.get("semantic");
+                                                if (semantic instanceof Integer && ((Integer) semantic) >= 1) {
+                                                        threads.semantic = (Integer) semantic;
+                                                } else
+                                                        throw new IllegalArgumentException("config.threads.semantic should be Integer and >=1");
+                                        }
                                         if (t.containsKey("codeGen")) {
                                                 Object codeGen = t.get("codeGen");
                                                 if (codeGen instanceof Integer && ((Integer) codeGen) >= 1) {
@@ -255,7 +324,7 @@ public class Compiler {
                                                         throw new IllegalArgumentException("config.threads.codeGen should be Integer and >=1");
                                         }
                                 } else
-                                        throw new IllegalArgumentException("config.threads should be {scanner:?, parser:?, codeGen:?}");
+                                        throw new IllegalArgumentException("config.threads should be {scanner:?, parser:?, semantic:?, codeGen:?}");
                         }
                         if (config.containsKey("code")) {
                                 Object o = config.get("code");
@@ -339,6 +408,28 @@ public class Compiler {
                                         fastFail = (Boolean) f;
                                 } else throw new IllegalArgumentException("config.fastFail should be Boolean");
                         }
+                        if (config.containsKey("lowMemory")) {
+                                Object l = config.get("lowMemory");
+                                if (l instanceof Boolean) {
+                                        lowMemory = (Boolean) l;
+                                } else throw new IllegalArgumentException("config.lowMemory should be Boolean");
+                        }
+                        if (config.containsKey("profile")) {
+                                Object p = config.get("profile");
+                                if (p instanceof String) {
+                                        profile = new File((String) p);
+                                } else if (p instanceof File) {
+                                        profile = (File) p;
+                                } else if (p != null) {
+                                        throw new IllegalArgumentException("config.profile should be File/String");
+                                }
+                        }
+                        if (config.containsKey("optimize")) {
+                                Object o = config.get("optimize");
+                                if (o instanceof Boolean) {
+                                        optimize = (Boolean) o;
+                                } else throw new IllegalArgumentException("config.optimize should be Boolean");
+                        }
                         if (config.containsKey("result")) {
                                 Object r = config.get("result");
                                 if (r instanceof Map) {
@@ -386,6 +477,20 @@ public class Compiler {
                                                 } else
                                                         throw new IllegalArgumentException("config.result.with-lib should be bool");
                                         }
+                                        if (re.containsKey("incremental")) {
+                                                Object o = re.get("incremental");
+                                                if (o instanceof Boolean) {
+                                                        result.incremental = (Boolean) o;
+                                                } else
+                                                        throw new IllegalArgumentException("config.result.incremental should be bool");
+                                        }
+                                        if (re.containsKey("selective-frames")) {
+                                                Object o = re.get("selective-frames");
+                                                if (o instanceof Boolean) {
+                                                        result.selectiveFrames = (Boolean) o;
+                                                } else
+                                                        throw new IllegalArgumentException("config.result.selective-frames should be bool");
+                                        }
                                 } else
                                         throw new IllegalArgumentException("config.result should be {outputDir:?, statistic:?}");
                         }
@@ -395,6 +500,9 @@ public class Compiler {
                         this.config.code = code;
                         this.config.out = out;
                         this.config.fastFail = fastFail;
+                        this.config.lowMemory = lowMemory;
+                        this.config.profile = profile;
+                        this.config.optimize = optimize;
                         this.config.result = result;
                 }
 
@@ -472,6 +580,8 @@ public class Compiler {
 
                 // validate configuration
                 if (config.threads.codeGen < 1) throw new IllegalArgumentException("config.threads.codeGen should >=1");
+                if (config.threads.semantic < 1)
+                        throw new IllegalArgumentException("config.threads.semantic should >=1");
                 if (config.threads.parser < 1) throw new IllegalArgumentException("config.threads.parser should >=1");
                 if (config.threads.scanner < 1) throw new IllegalArgumentException("config.threads.scanner should >=1");
 
@@ -487,19 +597,72 @@ public class Compiler {
                         classPathLoader.load(url);
                 }
 
+                // incremental compiling
+                CompileState compileState = null;
+                Map<String, String> fingerprints = null;
+                File stateFile = null;
+                if (config.result.incremental && config.result.outputDir != null && config.result.pkg == null) {
+                        stateFile = config.result.stateFile == null
+                                ? CompileState.defaultStateFile(config.result.outputDir)
+                                : config.result.stateFile;
+                        fingerprints = new HashMap<String, String>();
+                        for (Map.Entry<String, Reader> entry : input.entrySet()) {
+                                String code = readAll(entry.getValue());
+                                fingerprints.put(entry.getKey(), CompileState.fingerprint(code));
+                                entry.setValue(new StringReader(code));
+                        }
+
+                        // older versions stored the state in the output directory, which would be packaged
+                        File legacyStateFile = new File(config.result.outputDir, CompileState.FILE_SUFFIX);
+                        if (legacyStateFile.isFile() && !legacyStateFile.delete())
+                                throw new IOException("cannot delete file " + legacyStateFile);
+
+                        compileState = new CompileState();
+                        CompileState lastState = CompileState.load(stateFile);
+                        if (lastState != null && lastState.classpath.equals(
+                                CompileState.classpathEntries(config.classpath, config.result.outputDir, lastState.classes()))) {
+                                Set<String> filesToCompile = lastState.filesToCompile(fingerprints, config.result.outputDir);
+                                for (Map.Entry<String, CompileState.FileState> entry : lastState.files.entrySet()) {
+                                        String fileName = entry.getKey();
+                                        if (fingerprints.containsKey(fileName) && !filesToCompile.contains(fileName)) {
+                                                compileState.files.put(fileName, entry.getValue());
+                                        } else {
+                                                // the classes would be generated again (or the file is removed)
+                                                for (String cls : entry.getValue().classes) {
+                                                        File classFile = CompileState.classFile(config.result.outputDir, cls);
+                                                        if (classFile.exists() && !classFile.delete())
+                                                                throw new IOException("cannot delete file " + classFile);
+                                                }
+                                        }
+                                }
+                                input.keySet().retainAll(filesToCompile);
+                                // classes of the unchanged files are retrieved from the output directory
+                                classPathLoader.load(config.result.outputDir.toURI().toURL());
+                        } else if (lastState != null) {
+                                // the class-path changes, all files are compiled again
+                                // stale classes are removed since the output directory might be in the class-path
+                                for (String cls : lastState.classes()) {
+                                        File classFile = CompileState.classFile(config.result.outputDir, cls);
+                                        if (classFile.exists() && !classFile.delete())
+                                                throw new IOException("cannot delete file " + classFile);
+                                }
+                        }
+                }
+
                 // construct thread pool for scanners and parsers
                 ExecutorService scannerPool = Executors.newFixedThreadPool(config.threads.scanner);
                 final ExecutorService parserPool = Executors.newFixedThreadPool(config.threads.parser);
 
                 final ErrorManager errorManager = new ErrorManager(config.fastFail);
                 errorManager.out = config.out;
+                final CompileProfile profile = config.profile == null ? null : new CompileProfile();
 
                 List<Scan> scans = new ArrayList<Scan>();
                 Properties properties = new Properties();
                 properties._COLUMN_BASE_ = config.code.columnBase;
                 properties._LINE_BASE_ = config.code.lineBase;
                 for (Map.Entry<String, Reader> entry : input.entrySet()) {
-                        Scan scan = new Scan(entry.getKey(), entry.getValue(), properties, errorManager);
+                        Scan scan = new Scan(entry.getKey(), entry.getValue(), properties, errorManager, profile);
                         scans.add(scan);
                 }
 
@@ -521,7 +684,9 @@ public class Compiler {
                                                         caughtException[0] = (Exception) e.getCause();
                                                         return;
                                                 }
-                                                Future<Map<String, List<Statement>>> future = parserPool.submit(new Parse(root.fileName, root.root, errorManager));
+                                                Future<Map<String, List<Statement>>> future = parserPool.submit(new Parse(root.fileName, root.root, errorManager, profile));
+                                                // the token tree is only referenced by the parser from now on
+                                                root.root = null;
                                                 parseState.add(future);
                                         } catch (InterruptedException ignore) {
                                         }
@@ -555,6 +720,8 @@ public class Compiler {
                 }
 
                 // all parsing finished
+                // the futures hold the statements as well
+                parseState.clear();
 
                 scannerPool.shutdown();
                 parserPool.shutdown();
@@ -563,10 +730,18 @@ public class Compiler {
                         throw new Wrapper(errorManager.errorList);
                 }
 
-                final SemanticProcessor processor = new SemanticProcessor(parseRes, classPathLoader, errorManager);
+                final SemanticProcessor processor = new SemanticProcessor(parseRes, classPathLoader, errorManager, config.sharedTypes);
+                processor.threads = config.threads.semantic;
+                processor.recordDependencies = compileState != null;
+                processor.releaseAST = config.lowMemory;
+                processor.profile = profile;
                 Set<STypeDef> types = processor.parse();
+                if (config.lowMemory) {
+                        processor.releaseAST();
+                }
 
                 // code gen
+                CompileProfile.Mark mark = profile == null ? null : profile.start();
                 int size = types.size() / config.threads.codeGen + types.size() % config.threads.codeGen;
                 List<Set<STypeDef>> toGenerate = new ArrayList<Set<STypeDef>>();
                 for (int i = 0; i < size; ++i) toGenerate.add(new HashSet<STypeDef>());
@@ -586,6 +761,10 @@ public class Compiler {
                                 @Override
                                 public void run() {
                                         CodeGenerator codeGenerator = new CodeGenerator(toGen, processor.getTypes());
+                                        codeGenerator.selectiveFrames = config.result.selectiveFrames;
+                                        codeGenerator.releaseInstructions = config.lowMemory;
+                                        codeGenerator.optimize = config.optimize;
+                                        codeGenerator.profile = profile;
                                         byteCodes.putAll(codeGenerator.generate());
                                 }
                         });
@@ -596,8 +775,13 @@ public class Compiler {
                 for (Thread t : threads) {
                         t.join();
                 }
+                if (mark != null) profile.record(CompileProfile.CODE_GEN, null, mark);
 
                 // codes are generated
+                if (compileState != null) {
+                        recordCompileState(compileState, fingerprints, processor, types, byteCodes.keySet());
+                }
+
                 ClassLoader loader = new ClassLoader(classPathLoader) {
                         @Override
                         protected Class<?> findClass(String name) throws ClassNotFoundException {
@@ -607,9 +791,19 @@ public class Compiler {
                                         return defineClass(name, bytes, 0, bytes.length);
                                 } else throw new ClassNotFoundException(name);
                         }
+
+                        @Override
+                        public InputStream getResourceAsStream(String name) {
+                                if (name.endsWith(".class")) {
+                                        byte[] bytes = byteCodes.get(name.substring(0, name.length() - ".class".length()).replace('/', '.'));
+                                        if (bytes != null) return new ByteArrayInputStream(bytes);
+                                }
+                                return super.getResourceAsStream(name);
+                        }
                 };
 
                 if (config.result.outputDir != null) {
+                        mark = profile == null ? null : profile.start();
                         // the jar file
                         ZipOutputStream zipOutputStream = null;
                         if (config.result.pkg != null) {
@@ -623,36 +817,41 @@ public class Compiler {
                                 zipOutputStream = new ZipOutputStream(new FileOutputStream(jarPath));
                         }
 
-                        for (Map.Entry<String, byte[]> result : byteCodes.entrySet()) {
-                                String className = result.getKey();
-                                byte[] bytes = result.getValue();
-
-                                File outputDir = config.result.outputDir;
-
-                                // the root dir
-                                String dir = outputDir.getAbsolutePath();
-                                // the sub directory relevant to root
-                                String theDir = (className.contains(".") ? className.substring(0, className.lastIndexOf('.')).replace(".", "/") : "");
-                                // the file
-                                File path = new File(dir + File.separator + (File.separator.equals("/") ? theDir : theDir.replace("/", File.separator)));
-                                if (!path.exists())
-                                        if (!path.mkdirs()) throw new IOException("cannot create directory " + path);
-
-                                // simple name
-                                String simpleName = (className.contains(".") ? className.substring(className.lastIndexOf('.') + 1) : className) + ".class";
-                                File newFile = new File(path.getAbsolutePath() + File.separator + simpleName);
-                                if (!newFile.exists()) if (!newFile.createNewFile())
-                                        throw new IOException("cannot create file " + newFile);
-
-                                FileOutputStream fos = new FileOutputStream(newFile);
-                                fos.write(bytes);
-
-                                // classes in jar file
-                                if (zipOutputStream != null) {
-                                        putZipEntry(zipOutputStream, theDir.isEmpty() ? simpleName : (theDir + "/" + simpleName), bytes);
-                                }
+                        // class files are written in parallel while the jar is being built
+                        ExecutorService writerPool = Executors.newFixedThreadPool(config.threads.codeGen, writerThreadFactory);
+                        try {
+                                List<Future<Void>> writes = new ArrayList<Future<Void>>();
+                                for (Map.Entry<String, byte[]> result : byteCodes.entrySet()) {
+                                        final String className = result.getKey();
+                                        final File classFile = CompileState.classFile(config.result.outputDir, className);
+                                        final byte[] bytes = result.getValue();
+                                        writes.add(writerPool.submit(new Callable<Void>() {
+                                                @Override
+                                                public Void call() throws Exception {
+                                                        CompileProfile.Mark mark = profile == null ? null : profile.start();
+                                                        writeClassFile(classFile, bytes);
+                                                        if (mark != null) profile.record(CompileProfile.WRITE, className, mark);
+                                                        return null;
+                                                }
+                                        }));
 
-                                fos.close();
+                                        // classes in jar file
+                                        if (zipOutputStream != null) {
+                                                putZipEntry(zipOutputStream, result.getKey().replace('.', '/') + ".class", bytes);
+                                        }
+                                }
+                                for (Future<Void> f : writes) {
+                                        try {
+                                                f.get();
+                                        } catch (ExecutionException e) {
+                                                if (zipOutputStream != null) {
+                                                        zipOutputStream.close();
+                                                }
+                                                throw causeOf(e);
+                                        }
+                                }
+                        } finally {
+                                writerPool.shutdown();
                         }
 
                         // manifest.mf
@@ -686,15 +885,10 @@ public class Compiler {
 
                                                 Collections.sort(CLASSES);
 
+                                                byte[] buffer = new byte[8192];
                                                 for (String C : CLASSES) {
                                                         InputStream is = Compiler.class.getClassLoader().getResourceAsStream(C);
-                                                        ByteArrayOutputStream baos = new ByteArrayOutputStream(1024);
-                                                        byte[] bs = new byte[1024];
-                                                        int n;
-                                                        while ((n = is.read(bs)) != -1) {
-                                                                baos.write(bs, 0, n);
-                                                        }
-                                                        putZipEntry(zipOutputStream, C, baos.toByteArray());
+                                                        putZipEntry(zipOutputStream, C, is, buffer);
                                                 }
                                         }
                                 }
@@ -707,23 +901,113 @@ public class Compiler {
                                 for (String f : requireFiles) {
                                         InputStream is = Compiler.class.getClassLoader().getResourceAsStream(f);
                                         if (is != null) {
-                                                ByteArrayOutputStream baos = new ByteArrayOutputStream(1024);
-                                                byte[] bs = new byte[1024];
-                                                int n;
-                                                while ((n = is.read(bs)) != -1) {
-                                                        baos.write(bs, 0, n);
-                                                }
-                                                putZipEntry(zipOutputStream, f, baos.toByteArray());
+                                                putZipEntry(zipOutputStream, f, is, new byte[8192]);
                                         }
                                 }
 
                                 zipOutputStream.close();
                         }
+
+                        if (compileState != null) {
+                                // class files are written, so the output directory is recorded with the new classes
+                                compileState.classpath = CompileState.classpathEntries(
+                                        config.classpath, config.result.outputDir, compileState.classes());
+                                compileState.save(stateFile);
+                        }
+                        if (mark != null) profile.record(CompileProfile.WRITE, null, mark);
+                }
+
+                if (profile != null) {
+                        writeProfile(profile, config.profile);
+                        profile.printSummary(errorManager);
                 }
 
                 return loader;
         }
 
+        private static void writeProfile(CompileProfile profile, File file) throws IOException {
+                File dir = file.getAbsoluteFile().getParentFile();
+                if (dir != null && !dir.exists() && !dir.mkdirs()) {
+                        throw new IOException("cannot create directory " + dir);
+                }
+                Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+                try {
+                        writer.write(profile.toJson());
+                } finally {
+                        writer.close();
+                }
+        }
+
+        /**
+         * record states of the compiled files
+         *
+         * @param compileState state of this compilation, which already contains the files not compiled
+         * @param fingerprints file name =&gt; fingerprint
+         * @param processor    the semantic processor
+         * @param types        the compiled types
+         * @param classNames   the generated classes
+         */
+        private void recordCompileState(CompileState compileState, Map<String, String> fingerprints,
+                                        SemanticProcessor processor, Set<STypeDef> types, Set<String> classNames) {
+                for (String fileName : processor.fileNameToImport.keySet()) {
+                        CompileState.FileState fileState = new CompileState.FileState();
+                        fileState.fingerprint = fingerprints.get(fileName);
+                        Set<String> dependencies = processor.fileNameToDependencies.get(fileName);
+                        if (dependencies != null) {
+                                fileState.dependencies.addAll(dependencies);
+                        }
+                        compileState.files.put(fileName, fileState);
+                }
+                Map<String, String> typeToFileName = new HashMap<String, String>();
+                for (STypeDef type : types) {
+                        String fileName = type.line_col().fileName;
+                        if (fileName != null && compileState.files.containsKey(fileName)) {
+                                typeToFileName.put(type.fullName(), fileName);
+                        }
+                }
+                // the generated template classes are synthetic
+                for (Map.Entry<String, String> entry : processor.templateToFileName.entrySet()) {
+                        CompileState.FileState fileState = compileState.files.get(entry.getValue());
+                        if (fileState != null) {
+                                fileState.templates.add(entry.getKey());
+                                typeToFileName.put(entry.getKey(), entry.getValue());
+                        }
+                }
+                // classes generated from files not compiled this time (e.g. applied generic types)
+                for (Map.Entry<String, CompileState.FileState> entry : compileState.files.entrySet()) {
+                        for (String cls : entry.getValue().classes) {
+                                typeToFileName.put(cls, entry.getKey());
+                        }
+                }
+                for (String className : classNames) {
+                        String fileName = CompileState.fileOfClass(className, typeToFileName);
+                        if (fileName != null) {
+                                compileState.files.get(fileName).classes.add(className);
+                        }
+                }
+        }
+
+        /**
+         * read all content from the reader
+         *
+         * @param reader reader
+         * @return the content
+         * @throws IOException exception
+         */
+        private static String readAll(Reader reader) throws IOException {
+                StringBuilder sb = new StringBuilder();
+                char[] buf = new char[4096];
+                int n;
+                try {
+                        while ((n = reader.read(buf)) != -1) {
+                                sb.append(buf, 0, n);
+                        }
+                } finally {
+                        reader.close();
+                }
+                return sb.toString();
+        }
+
         /**
          * put the zip entry into the zip output stream
          *
@@ -738,6 +1022,75 @@ public class Compiler {
                 zos.closeEntry();
         }
 
+        /**
+         * copy the stream into the jar entry, the stream is closed
+         */
+        private void putZipEntry(ZipOutputStream zos, String file, InputStream is, byte[] buffer) throws IOException {
+                try {
+                        zos.putNextEntry(new ZipEntry(file));
+                        int n;
+                        while ((n = is.read(buffer)) != -1) {
+                                zos.write(buffer, 0, n);
+                        }
+                        zos.closeEntry();
+                } finally {
+                        is.close();
+                }
+        }
+
+        /**
+         * get the exception to throw for a failed task.
+         * errors are thrown directly, and causes which are neither errors nor exceptions are kept in the ExecutionException
+         *
+         * @param e the exception thrown by {@link Future#get()}
+         * @return the exception to throw
+         */
+        private static Exception causeOf(ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Error) throw (Error) cause;
+                if (cause instanceof Exception) return (Exception) cause;
+                return e;
+        }
+
+        /**
+         * write the class file. the file is not touched if its content is the same,
+         * so the last modified time stays stable for tools watching the output directory
+         *
+         * @param classFile the class file
+         * @param bytes     content
+         * @throws IOException exception when writing the file
+         */
+        private static void writeClassFile(File classFile, byte[] bytes) throws IOException {
+                if (classFile.length() == bytes.length && classFile.isFile()) {
+                        FileInputStream fis = new FileInputStream(classFile);
+                        try {
+                                FileChannel channel = fis.getChannel();
+                                ByteBuffer existing = ByteBuffer.allocate(bytes.length);
+                                while (existing.hasRemaining()) {
+                                        if (channel.read(existing) == -1) break;
+                                }
+                                existing.flip();
+                                if (existing.equals(ByteBuffer.wrap(bytes))) return;
+                        } finally {
+                                fis.close();
+                        }
+                }
+                File dir = classFile.getParentFile();
+                if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+                        throw new IOException("cannot create directory " + dir);
+                }
+                FileOutputStream fos = new FileOutputStream(classFile);
+                try {
+                        FileChannel channel = fos.getChannel();
+                        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                        while (buffer.hasRemaining()) {
+                                channel.write(buffer);
+                        }
+                } finally {
+                        fos.close();
+                }
+        }
+
         private class FileRoot {
                 public String fileName;
                 public ElementStartNode root;
@@ -748,45 +1101,56 @@ public class Compiler {
                 private final Reader reader;
                 private final Properties properties;
                 private final ErrorManager err;
+                private final CompileProfile profile;
 
-                private Scan(String fileName, Reader reader, Properties properties, ErrorManager err) {
+                private Scan(String fileName, Reader reader, Properties properties, ErrorManager err, CompileProfile profile) {
                         this.fileName = fileName;
                         this.reader = reader;
                         this.properties = properties;
                         this.err = err;
+                        this.profile = profile;
                 }
 
                 @Override
                 public FileRoot call() throws Exception {
+                        CompileProfile.Mark mark = profile == null ? null : profile.start();
                         Scanner scanner = new ScannerSwitcher(fileName, reader, properties, err);
                         FileRoot fileRoot = new FileRoot();
                         fileRoot.fileName = fileName;
                         fileRoot.root = scanner.scan();
+                        if (mark != null) profile.record(CompileProfile.SCAN, fileName, mark);
                         return fileRoot;
                 }
         }
 
         private class Parse implements Callable<Map<String, List<Statement>>> {
                 private final String fileName;
-                private final ElementStartNode root;
+                private ElementStartNode root;
                 private final ErrorManager err;
+                private final CompileProfile profile;
 
                 private Parse(String fileName,
                               ElementStartNode root,
-                              ErrorManager err) {
+                              ErrorManager err,
+                              CompileProfile profile) {
                         this.fileName = fileName;
                         this.root = root;
                         this.err = err;
+                        this.profile = profile;
                 }
 
                 @Override
                 public Map<String, List<Statement>> call() throws Exception {
+                        CompileProfile.Mark mark = profile == null ? null : profile.start();
                         Parser parser = new Parser(root, err);
+                        // the task may be retained after it's done
+                        root = null;
                         Map<String, List<Statement>> resultMap = new HashMap<String, List<Statement>>();
                         resultMap.put(
                                 fileName,
                                 parser.parse()
                         );
+                        if (mark != null) profile.record(CompileProfile.PARSE, fileName, mark);
                         return resultMap;
                 }
         }
@@ -326,7 +326,7 @@ public class ScriptCompiler {
 
                 SemanticProcessor sp = new SemanticProcessor(new HashMap<String, List<Statement>>() {{
                         put(name, defsAndImports);
-                }}, theCompiledClasses, err);
+                }}, theCompiledClasses, err, compiler.config.sharedTypes);
                 CodeGenerator cg = new CodeGenerator(sp.parse(), sp.getTypes());
                 final Map<String, byte[]> map = cg.generate();
                 ClassLoader loader = new ClassLoader(theCompiledClasses) {
@@ -337,6 +337,15 @@ public class ScriptCompiler {
                                         return defineClass(name, bs, 0, bs.length);
                                 } else throw new ClassNotFoundException(name);
                         }
+
+                        @Override
+                        public InputStream getResourceAsStream(String name) {
+                                if (name.endsWith(".class")) {
+                                        byte[] bytes = map.get(name.substring(0, name.length() - ".class".length()).replace('/', '.'));
+                                        if (bytes != null) return new ByteArrayInputStream(bytes);
+                                }
+                                return super.getResourceAsStream(name);
+                        }
                 };
 
                 Class<?> scriptCls = loader.loadClass(nameForTheScript);
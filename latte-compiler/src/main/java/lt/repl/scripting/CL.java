@@ -1,5 +1,7 @@
 package lt.repl.scripting;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -17,6 +19,16 @@ public class CL extends ClassLoader {
                 return defineClass(name, byteCode, 0, byteCode.length);
         }
 
+        @Override
+        public InputStream getResourceAsStream(String name) {
+                // the compiler reads class files of defined classes
+                if (name.endsWith(".class")) {
+                        byte[] byteCode = byteCodes.get(name.substring(0, name.length() - ".class".length()).replace('/', '.'));
+                        if (byteCode != null) return new ByteArrayInputStream(byteCode);
+                }
+                return super.getResourceAsStream(name);
+        }
+
         public void addByteCodes(String name, byte[] bytes) {
                 byteCodes.put(name, bytes);
         }
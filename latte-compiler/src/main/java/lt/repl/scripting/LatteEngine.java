@@ -31,6 +31,10 @@ public class LatteEngine implements ScriptEngine {
         private final LatteEngineFactory factory;
         private ScriptContext context;
         private final ClassLoader classLoader;
+        /**
+         * types of the compiler's class loader, shared by the evaluations of this engine
+         */
+        private final SharedTypes sharedTypes = new SharedTypes();
 
         LatteEngine(LatteEngineFactory factory) {
                 this.factory = factory;
@@ -247,7 +251,7 @@ public class LatteEngine implements ScriptEngine {
 
                         SemanticProcessor processor = new SemanticProcessor(new HashMap<String, List<Statement>>() {{
                                 put(scriptName, defList);
-                        }}, cl, err);
+                        }}, cl, err, sharedTypes);
                         CodeGenerator codeGen = new CodeGenerator(processor.parse(), processor.getTypes());
                         // the imports are valid now, add into import list
                         imports.addAll(readyToAddIntoImport);
@@ -34,6 +34,11 @@ import lt.compiler.syntactic.Statement;
 import lt.compiler.syntactic.literal.NumberLiteral;
 import lt.compiler.syntactic.operation.TwoVariableOperation;
 import lt.compiler.util.Consts;
+import lt.dependencies.asm.ClassReader;
+import lt.dependencies.asm.ClassVisitor;
+import lt.dependencies.asm.Label;
+import lt.dependencies.asm.MethodVisitor;
+import lt.dependencies.asm.Opcodes;
 import lt.generator.SourceGenerator;
 import lt.lang.Pointer;
 import lt.lang.Unit;
@@ -60,6 +65,10 @@ import static org.junit.Assert.*;
  */
 public class TestCodeGen {
         public static Map<String, byte[]> retrieveByteCode(String code) throws IOException, SyntaxException, ClassNotFoundException {
+                return retrieveByteCode(code, false);
+        }
+
+        public static Map<String, byte[]> retrieveByteCode(String code, boolean selectiveFrames) throws IOException, SyntaxException, ClassNotFoundException {
                 ErrorManager err = new ErrorManager(true);
                 Scanner lexicalProcessor = new ScannerSwitcher("test.lt", new StringReader(code), new Properties(), err);
                 Parser syntacticProcessor = new Parser(lexicalProcessor.scan(), err);
@@ -69,6 +78,7 @@ public class TestCodeGen {
                 Set<STypeDef> types = semanticProcessor.parse();
 
                 CodeGenerator codeGenerator = new CodeGenerator(types, semanticProcessor.getTypes());
+                codeGenerator.selectiveFrames = selectiveFrames;
                 return codeGenerator.generate();
         }
 
@@ -4007,8 +4017,8 @@ public class TestCodeGen {
                         , "TestTakeOnlyUsedVariablesInInnerMethods");
                 Method method = cls.getMethod("method", int.class);
                 assertEquals("abcde5", method.invoke(null, 3));
-                // only capture two variables
-                cls.getDeclaredMethod("inner$Latte$InnerMethod$0", Pointer.class, Pointer.class, long.class);
+                // only capture two variables, `b` is never assigned again so it's captured by value
+                cls.getDeclaredMethod("inner$Latte$InnerMethod$0", Pointer.class, String.class, long.class);
         }
 
         @Test
@@ -4026,8 +4036,8 @@ public class TestCodeGen {
                 Object inst = cls.newInstance();
                 Method method = cls.getMethod("method", int.class);
                 assertEquals("abcde5", method.invoke(inst, 3));
-                // only capture two variables
-                cls.getDeclaredMethod("inner$Latte$InnerMethod$0", Pointer.class, Pointer.class, long.class);
+                // only capture two variables, `b` is never assigned again so it's captured by value
+                cls.getDeclaredMethod("inner$Latte$InnerMethod$0", Pointer.class, String.class, long.class);
         }
 
         @Test
@@ -4284,4 +4294,664 @@ public class TestCodeGen {
                  */
                 assertEquals(1, m.invoke(o, o));
         }
+
+        @Test
+        public void testParallelSemanticAnalysis() throws Exception {
+                StringBuilder code = new StringBuilder();
+                for (int i = 0; i < 16; ++i) {
+                        code.append("class TestParallel").append(i).append("\n")
+                                .append("  def m(x:int)\n")
+                                .append("    def inner(y) = y + x\n")
+                                .append("    f = (a)->inner(a) + ").append(i).append("\n")
+                                .append("    f(x)\n")
+                                .append("  def n = TestParallel").append((i + 1) % 16).append("().m(1)\n");
+                }
+                ErrorManager err = new ErrorManager(true);
+                Scanner lexicalProcessor = new ScannerSwitcher("test.lt", new StringReader(code.toString()), new Properties(), err);
+                Parser syntacticProcessor = new Parser(lexicalProcessor.scan(), err);
+                Map<String, List<Statement>> map = new HashMap<String, List<Statement>>();
+                map.put("test.lt", syntacticProcessor.parse());
+                SemanticProcessor semanticProcessor = new SemanticProcessor(map, Thread.currentThread().getContextClassLoader(), err);
+                semanticProcessor.threads = 4;
+                Set<STypeDef> types = semanticProcessor.parse();
+
+                final Map<String, byte[]> byteCodes = new CodeGenerator(types, semanticProcessor.getTypes()).generate();
+                ClassLoader classLoader = new ClassLoader() {
+                        @Override
+                        protected Class<?> findClass(String name) throws ClassNotFoundException {
+                                byte[] bs = byteCodes.get(name);
+                                if (bs == null) throw new ClassNotFoundException(name);
+                                return defineClass(name, bs, 0, bs.length);
+                        }
+                };
+                for (int i = 0; i < 16; ++i) {
+                        Class<?> cls = classLoader.loadClass("TestParallel" + i);
+                        Object o = cls.newInstance();
+                        assertEquals(2 + (i + 1) % 16, cls.getMethod("n").invoke(o));
+                }
+        }
+
+        @Test
+        public void testParallelSemanticAnalysisError() throws Exception {
+                StringBuilder code = new StringBuilder();
+                for (int i = 0; i < 16; ++i) {
+                        code.append("class TestParallelError").append(i).append("\n")
+                                .append("  def m:int = ").append(i % 3 == 0 ? "\"a\"" : "1").append("\n");
+                }
+                for (int n = 0; n < 8; ++n) {
+                        ErrorManager err = new ErrorManager(true);
+                        Scanner lexicalProcessor = new ScannerSwitcher("test.lt", new StringReader(code.toString()), new Properties(), err);
+                        Parser syntacticProcessor = new Parser(lexicalProcessor.scan(), err);
+                        Map<String, List<Statement>> map = new HashMap<String, List<Statement>>();
+                        map.put("test.lt", syntacticProcessor.parse());
+                        SemanticProcessor semanticProcessor = new SemanticProcessor(map, Thread.currentThread().getContextClassLoader(), err);
+                        semanticProcessor.threads = 4;
+                        try {
+                                semanticProcessor.parse();
+                                fail();
+                        } catch (SyntaxException e) {
+                                // the error of the first failing type is reported, the same as parsing the types one by one
+                                int first = -1;
+                                for (STypeDef type : semanticProcessor.typeDefSet) {
+                                        int i = Integer.parseInt(type.fullName().substring("TestParallelError".length()));
+                                        if (i % 3 == 0) {
+                                                first = i;
+                                                break;
+                                        }
+                                }
+                                assertEquals(first * 2 + 2, e.lineCol.line);
+                        }
+                }
+        }
+
+        @Test
+        public void testReferredClassNotInitializedWhenCompiling() throws Exception {
+                System.clearProperty(StaticInit.PROPERTY);
+                Class<?> cls = retrieveClass("" +
+                                "import lt::compiler::StaticInit\n" +
+                                "class TestReferredClassNotInitializedWhenCompiling\n" +
+                                "  def m:int = StaticInit.value()",
+                        "TestReferredClassNotInitializedWhenCompiling");
+                assertNull(System.getProperty(StaticInit.PROPERTY));
+                assertEquals(1, cls.getMethod("m").invoke(cls.newInstance()));
+                assertEquals("true", System.getProperty(StaticInit.PROPERTY));
+        }
+
+        @Test
+        public void testSelectiveFrames() throws Exception {
+                final Map<String, byte[]> byteCodes = retrieveByteCode("" +
+                                "class TestSelectiveFrames\n" +
+                                "  def straight(a:int) = a + 1\n" +
+                                "  def branch(a:int)\n" +
+                                "    if a > 0\n" +
+                                "      return 1\n" +
+                                "    return 2",
+                        true);
+                final Set<String> methodsWithFrames = new HashSet<String>();
+                new ClassReader(byteCodes.get("TestSelectiveFrames")).accept(new ClassVisitor(Opcodes.ASM5) {
+                        @Override
+                        public MethodVisitor visitMethod(int access, final String name, String desc, String signature, String[] exceptions) {
+                                return new MethodVisitor(Opcodes.ASM5) {
+                                        @Override
+                                        public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack) {
+                                                methodsWithFrames.add(name);
+                                        }
+                                };
+                        }
+                }, 0);
+                assertEquals(Collections.singleton("branch"), methodsWithFrames);
+
+                Class<?> cls = new ClassLoader() {
+                        @Override
+                        protected Class<?> findClass(String name) throws ClassNotFoundException {
+                                byte[] bs = byteCodes.get(name);
+                                if (bs == null) throw new ClassNotFoundException(name);
+                                return defineClass(name, bs, 0, bs.length);
+                        }
+                }.loadClass("TestSelectiveFrames");
+                Object o = cls.newInstance();
+                assertEquals(2, cls.getMethod("straight", int.class).invoke(o, 1));
+                assertEquals(1, cls.getMethod("branch", int.class).invoke(o, 1));
+                assertEquals(2, cls.getMethod("branch", int.class).invoke(o, 0));
+        }
+
+        /**
+         * a map counting the successful retrievals
+         */
+        @Test
+        public void testRepeatedOverloadResolution() throws Exception {
+                String code = "" +
+                        "class TestRepeatedOverloadResolution\n" +
+                        "    static\n" +
+                        "        def method()\n" +
+                        "            sb:StringBuilder = StringBuilder()\n" +
+                        "            sb.append(Math.max(1, 2))\n" +
+                        "            sb.append(Math.max(1.5, 2.5))\n" +
+                        "            sb.append(Math.max(3, 4))\n" +
+                        "            sb.append(Math.max(1 as long, 5 as long))\n" +
+                        "            sb.append(Math.max(0.5, 0.25))\n" +
+                        "            sb.append('a')\n" +
+                        "            sb.append(null as Object)\n" +
+                        "            return sb.toString()";
+                Map<String, byte[]> byteCodes = retrieveByteCode(code);
+                // the memoized lookups and best matches select the overload of the argument types every time
+                final List<String> maxDescriptors = new ArrayList<String>();
+                new ClassReader(byteCodes.get("TestRepeatedOverloadResolution")).accept(new ClassVisitor(Opcodes.ASM5) {
+                        @Override
+                        public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+                                return new MethodVisitor(Opcodes.ASM5) {
+                                        @Override
+                                        public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+                                                if (owner.equals("java/lang/Math") && name.equals("max")) {
+                                                        maxDescriptors.add(desc);
+                                                }
+                                        }
+                                };
+                        }
+                }, 0);
+                assertEquals(Arrays.asList("(II)I", "(DD)D", "(II)I", "(JJ)J", "(DD)D"), maxDescriptors);
+
+                Class<?> cls = retrieveClass(code, "TestRepeatedOverloadResolution");
+                Method method = cls.getMethod("method");
+                assertEquals("22.5450.5anull", method.invoke(null));
+        }
+
+        @Test
+        public void testIntRangeFor() throws Exception {
+                String code = "" +
+                        "class TestIntRangeFor\n" +
+                        "    static\n" +
+                        "        def method(n:int)\n" +
+                        "            res = []\n" +
+                        "            for i in 0 until n\n" +
+                        "                if i == 1\n" +
+                        "                    continue\n" +
+                        "                res + i\n" +
+                        "            for i in (n-1) to 0\n" +
+                        "                if i == 0\n" +
+                        "                    break\n" +
+                        "                res + (()->i)()\n" +
+                        "            for i in n to n\n" +
+                        "                i = i + 10\n" +
+                        "                res + i\n" +
+                        "            for i in n until n\n" +
+                        "                res + i\n" +
+                        "            return res";
+                Map<String, byte[]> byteCodes = retrieveByteCode(code);
+                assertFalse(new String(byteCodes.get("TestIntRangeFor"), "ISO-8859-1").contains("lt/runtime/LtIterator"));
+
+                Class<?> cls = retrieveClass(code, "TestIntRangeFor");
+                Method method = cls.getMethod("method", int.class);
+                assertEquals(Arrays.asList(0, 2, 2, 1, 13), method.invoke(null, 3));
+                assertEquals(Arrays.asList(-1, 10), method.invoke(null, 0));
+        }
+
+        @Test
+        public void testCaptureByValue() throws Exception {
+                Class<?> cls = retrieveClass("" +
+                                "class TestCaptureByValue\n" +
+                                "    static\n" +
+                                "        def method(n:int)\n" +
+                                "            a:int = n + 1\n" +
+                                "            s:String = \"x\"\n" +
+                                "            c = 0\n" +
+                                "            f = ()->a * 2\n" +
+                                "            g = ()->c += a\n" +
+                                "            def inner(m) = s + m + a\n" +
+                                "            g()\n" +
+                                "            g()\n" +
+                                "            return [f(), c, inner(n), ((x)->x + s)(1)]"
+                        , "TestCaptureByValue");
+                Method method = cls.getMethod("method", int.class);
+                assertEquals(Arrays.asList(8, 8, "x34", "1x"), method.invoke(null, 3));
+                // `a` and `s` are never assigned again, they are passed by value
+                cls.getDeclaredMethod("inner$Latte$InnerMethod$0", int.class, String.class, Object.class);
+        }
+
+        @Test
+        public void testNarrowUntypedLocal() throws Exception {
+                String code = "" +
+                        "class TestNarrowUntypedLocal\n" +
+                        "    static\n" +
+                        "        def method(n:int)\n" +
+                        "            sb = StringBuilder()\n" +
+                        "            sb.append(n)\n" +
+                        "            return sb.append(TestNarrowUntypedLocal2.method(sb.toString())).toString()\n" +
+                        "class TestNarrowUntypedLocal2\n" +
+                        "    static\n" +
+                        "        def method(s:String)\n" +
+                        "            o = StringBuilder()\n" +
+                        "            o = s\n" +
+                        "            return o.length()";
+                Map<String, byte[]> byteCodes = retrieveByteCode(code);
+                // `sb` is never assigned again, all invocations on it are bound at compile time
+                assertFalse(new String(byteCodes.get("TestNarrowUntypedLocal"), "ISO-8859-1").contains("lt/runtime/Dynamic"));
+                // `o` is assigned again and still invoked at runtime
+                assertTrue(new String(byteCodes.get("TestNarrowUntypedLocal2"), "ISO-8859-1").contains("lt/runtime/Dynamic"));
+
+                Class<?> cls = retrieveClass(code, "TestNarrowUntypedLocal");
+                Method method = cls.getMethod("method", int.class);
+                assertEquals("122", method.invoke(null, 12));
+        }
+
+        @Test
+        public void testNarrowUntypedLocalOverload() throws Exception {
+                String code = "" +
+                        "class TestNarrowUntypedLocalOverload\n" +
+                        "    static\n" +
+                        "        def mk():java::util::List = java::util::ArrayList()\n" +
+                        "        def g(l:java::util::List) = \"list\"\n" +
+                        "        def g(l:java::util::ArrayList) = \"arraylist\"\n" +
+                        "        def method\n" +
+                        "            y = mk()\n" +
+                        "            return g(y)";
+                // `y` is not narrowed to List, the overload is selected with its runtime class
+                Class<?> cls = retrieveClass(code, "TestNarrowUntypedLocalOverload");
+                Method method = cls.getMethod("method");
+                assertEquals("arraylist", method.invoke(null));
+        }
+
+        @Test
+        public void testUnboxedArithmetic() throws Exception {
+                String code = "" +
+                        "class TestUnboxedArithmetic\n" +
+                        "    static\n" +
+                        "        def add(a:Integer, b:Integer) = a + b\n" +
+                        "        def sub(a:Double, b:Long) = a - b\n" +
+                        "        def mul(a:Short, b:int) = a * b\n" +
+                        "        def lt(a:Integer, b:Long) = a < b\n" +
+                        "        def eq(a:Integer, b:Integer) = a == b";
+                Map<String, byte[]> byteCodes = retrieveByteCode(code);
+                assertFalse(new String(byteCodes.get("TestUnboxedArithmetic"), "ISO-8859-1").contains("lt/runtime/Dynamic"));
+
+                Class<?> cls = retrieveClass(code, "TestUnboxedArithmetic");
+                assertEquals(7, cls.getMethod("add", Integer.class, Integer.class).invoke(null, 3, 4));
+                assertEquals(-0.5, cls.getMethod("sub", Double.class, Long.class).invoke(null, 1.5, 2L));
+                assertEquals(6, cls.getMethod("mul", Short.class, int.class).invoke(null, (short) 2, 3));
+                assertEquals(true, cls.getMethod("lt", Integer.class, Long.class).invoke(null, 1, 2L));
+                assertEquals(true, cls.getMethod("eq", Integer.class, Integer.class).invoke(null, 1000, 1000));
+        }
+
+        @Test
+        public void testUnboxedShift() throws Exception {
+                String code = "" +
+                        "class TestUnboxedShift\n" +
+                        "    static\n" +
+                        "        def boxedLong\n" +
+                        "            b:Long = 2\n" +
+                        "            return b << 3\n" +
+                        "        def untypedLong\n" +
+                        "            x = 2 as long\n" +
+                        "            return x << 3\n" +
+                        "        def intByLong(a:Integer, b:Long) = a << b\n" +
+                        "        def longByLong(a:long, b:Long) = a >>> b\n" +
+                        "        def longByInt(a:Long, b:int) = a >> b";
+                Class<?> cls = retrieveClass(code, "TestUnboxedShift");
+                assertEquals(16L, cls.getMethod("boxedLong").invoke(null));
+                assertEquals(16L, cls.getMethod("untypedLong").invoke(null));
+                // the result type is decided by the left value
+                assertEquals(2, cls.getMethod("intByLong", Integer.class, Long.class).invoke(null, 1, 33L));
+                assertEquals(15L, cls.getMethod("longByLong", long.class, Long.class).invoke(null, -16L, 60L));
+                assertEquals(-4L, cls.getMethod("longByInt", Long.class, int.class).invoke(null, -16L, 2));
+        }
+
+        @Test
+        public void testPatternMatchingInOneMethod() throws Exception {
+                Class<?> cls = retrieveClass("" +
+                                "class TestPatternMatchingInOneMethod\n" +
+                                "    static\n" +
+                                "        def method(o) = o match\n" +
+                                "            case 1 => \"one\"\n" +
+                                "            case X(1, b) => \"X1\" + b\n" +
+                                "            case X(2, b:String) => \"X2\" + b\n" +
+                                "            case X(_, X(c, _)) => \"XX\" + c\n" +
+                                "            case s:String if s.length() > 3 => \"long \" + s\n" +
+                                "            case s:String => \"str \" + s\n" +
+                                "            case x => \"x\" + x\n" +
+                                "        def count = X.count\n" +
+                                "class X\n" +
+                                "    static\n" +
+                                "        count = 0\n" +
+                                "        def unapply(ls:java::util::List)\n" +
+                                "            count += 1\n" +
+                                "            return ls"
+                        , "TestPatternMatchingInOneMethod");
+                int patternMatchingMethods = 0;
+                for (Method m : cls.getDeclaredMethods()) {
+                        if (m.getName().startsWith("patternMatching$")) ++patternMatchingMethods;
+                }
+                assertEquals(1, patternMatchingMethods);
+
+                Method method = cls.getMethod("method", Object.class);
+                assertEquals("one", method.invoke(null, 1));
+                assertEquals("X1a", method.invoke(null, Arrays.asList(1, "a")));
+                assertEquals("X2b", method.invoke(null, Arrays.asList(2, "b")));
+                assertEquals("long hello", method.invoke(null, "hello"));
+                assertEquals("str hi", method.invoke(null, "hi"));
+                assertEquals("x5", method.invoke(null, 5));
+
+                // the three X cases share one destruct
+                Method count = cls.getMethod("count");
+                int before = (Integer) count.invoke(null);
+                assertEquals("XX9", method.invoke(null, Arrays.asList(2, Arrays.asList(9, 0))));
+                assertEquals(before + 2, count.invoke(null));
+        }
+
+        @Test
+        public void testLiteralPatternMatchingSwitch() throws Exception {
+                String code = "" +
+                        "class TestLiteralPatternMatchingSwitch\n" +
+                        "    static\n" +
+                        "        def dense(o) = o match\n" +
+                        "            case 1 if false => \"never\"\n" +
+                        "            case 2 => \"two\"\n" +
+                        "            case 1 => \"one\"\n" +
+                        "            case 3 => \"three\"\n" +
+                        "            case _ => \"other\"\n" +
+                        "        def sparse(o) = o match\n" +
+                        "            case 1 => \"one\"\n" +
+                        "            case 1000 => \"thousand\"\n" +
+                        "            case 1000000 => \"million\"\n" +
+                        "            case _ => \"other\"\n" +
+                        "        def chars(o) = o match\n" +
+                        "            case 'a' => \"a\"\n" +
+                        "            case '\\n' => \"newline\"\n" +
+                        "            case _ => \"other\"\n" +
+                        "        def strings(o) = o match\n" +
+                        "            case \"Aa\" => \"Aa\"\n" +
+                        "            case \"BB\" => \"BB\"\n" +
+                        "            case 'str' => \"str\"\n" +
+                        "            case _ => \"other\"\n" +
+                        "class Two\n" +
+                        "    def equals(o):bool = o is 2";
+                Map<String, byte[]> byteCodes = retrieveByteCode(code);
+                final List<Integer> switches = new ArrayList<Integer>();
+                new ClassReader(byteCodes.get("TestLiteralPatternMatchingSwitch")).accept(new ClassVisitor(Opcodes.ASM5) {
+                        @Override
+                        public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+                                return new MethodVisitor(Opcodes.ASM5) {
+                                        @Override
+                                        public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+                                                switches.add(Opcodes.TABLESWITCH);
+                                        }
+
+                                        @Override
+                                        public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+                                                switches.add(Opcodes.LOOKUPSWITCH);
+                                        }
+                                };
+                        }
+                }, 0);
+                assertEquals(4, switches.size());
+                assertTrue(switches.contains(Opcodes.TABLESWITCH));
+                assertTrue(switches.contains(Opcodes.LOOKUPSWITCH));
+
+                Class<?> cls = retrieveClass(code, "TestLiteralPatternMatchingSwitch");
+                Method dense = cls.getMethod("dense", Object.class);
+                assertEquals("one", dense.invoke(null, 1));
+                assertEquals("two", dense.invoke(null, 2));
+                assertEquals("three", dense.invoke(null, 3));
+                assertEquals("other", dense.invoke(null, 4));
+                assertEquals("other", dense.invoke(null, 2L));
+                assertEquals("other", dense.invoke(null, (Object) null));
+                // subjects of other types are compared with `equals`
+                assertEquals("two", dense.invoke(null, cls.getClassLoader().loadClass("Two").newInstance()));
+
+                Method sparse = cls.getMethod("sparse", Object.class);
+                assertEquals("one", sparse.invoke(null, 1));
+                assertEquals("thousand", sparse.invoke(null, 1000));
+                assertEquals("million", sparse.invoke(null, 1000000));
+                assertEquals("other", sparse.invoke(null, 2));
+
+                Method chars = cls.getMethod("chars", Object.class);
+                assertEquals("a", chars.invoke(null, 'a'));
+                assertEquals("newline", chars.invoke(null, '\n'));
+                assertEquals("other", chars.invoke(null, "a"));
+
+                // "Aa" and "BB" have the same hash code
+                Method strings = cls.getMethod("strings", Object.class);
+                assertEquals("Aa", strings.invoke(null, "Aa"));
+                assertEquals("BB", strings.invoke(null, "BB"));
+                assertEquals("str", strings.invoke(null, "str"));
+                assertEquals("other", strings.invoke(null, "C#"));
+                assertEquals("other", strings.invoke(null, 'a'));
+        }
+
+        @Test
+        public void testTailCallElimination() throws Exception {
+                Class<?> cls = retrieveClass("" +
+                                "class TestTailCallElimination\n" +
+                                "    static\n" +
+                                "        @TailRec\n" +
+                                "        def sum(n:int, acc:long):long\n" +
+                                "            if n == 0\n" +
+                                "                return acc\n" +
+                                "            return sum(n - 1, acc + n)\n" +
+                                "        def lastExp(n:int)\n" +
+                                "            if n == 0\n" +
+                                "                'done'\n" +
+                                "            else\n" +
+                                "                lastExp(n - 1)\n" +
+                                "        def inner(m:int)\n" +
+                                "            def loop(i:int, acc:int):int\n" +
+                                "                if i == 0\n" +
+                                "                    return acc + m\n" +
+                                "                return loop(i - 1, acc + 2)\n" +
+                                "            return loop(1000000, 0)\n" +
+                                "        def closures(n:int, fs:java::util::List):java::util::List\n" +
+                                "            if n == 0\n" +
+                                "                return fs\n" +
+                                "            fs.add(()->n)\n" +
+                                "            return closures(n - 1, fs)\n" +
+                                "    val def count(n:int, acc:int):int\n" +
+                                "        if n == 0\n" +
+                                "            return acc\n" +
+                                "        return count(n - 1, acc + 1)"
+                        , "TestTailCallElimination");
+                assertEquals(500000500000L, cls.getMethod("sum", int.class, long.class).invoke(null, 1000000, 0L));
+                assertEquals("done", cls.getMethod("lastExp", int.class).invoke(null, 1000000));
+                assertEquals(2000005, cls.getMethod("inner", int.class).invoke(null, 5));
+                assertEquals(1000000, cls.getMethod("count", int.class, int.class).invoke(cls.newInstance(), 1000000, 0));
+
+                List<?> closures = (List<?>) cls.getMethod("closures", int.class, List.class).invoke(null, 3, new ArrayList<Object>());
+                List<Object> results = new ArrayList<Object>();
+                for (Object f : closures) {
+                        results.add(f.getClass().getMethod("apply").invoke(f));
+                }
+                assertEquals(Arrays.<Object>asList(3, 2, 1), results);
+        }
+
+        @Test
+        public void testTailCallEliminationInPatternMatching() throws Exception {
+                Class<?> cls = retrieveClass("" +
+                                "class TestTailCallEliminationInPatternMatching\n" +
+                                "    static\n" +
+                                "        @TailRec\n" +
+                                "        def sum(n:int, acc:long):long = n match\n" +
+                                "            case 0 => acc\n" +
+                                "            case _ => sum(n - 1, acc + n)\n" +
+                                "        @TailRec\n" +
+                                "        def count(o, acc:int):int = o match\n" +
+                                "            case l if l.isEmpty() => acc\n" +
+                                "            case Cons(_, tail) => count(tail, acc + 1)\n" +
+                                "        def nested(a:int, b:int, acc:int):int = a match\n" +
+                                "            case 0 => acc\n" +
+                                "            case _ =>\n" +
+                                "                b match\n" +
+                                "                    case 0 => nested(a - 1, 10, acc)\n" +
+                                "                    case _ => nested(a, b - 1, acc + 1)\n" +
+                                "        def inner(m:int)\n" +
+                                "            def loop(i:int, acc:int):int = i match\n" +
+                                "                case 0 => acc + m\n" +
+                                "                case _ => loop(i - 1, acc + 2)\n" +
+                                "            return loop(1000000, 0)\n" +
+                                "class Cons\n" +
+                                "    static\n" +
+                                "        def unapply(o:java::util::List) = [o.get(0), o.subList(1, o.size())]"
+                        , "TestTailCallEliminationInPatternMatching");
+                for (Method m : cls.getDeclaredMethods()) {
+                        assertFalse(m.getName(), m.getName().startsWith("patternMatching$"));
+                }
+                assertEquals(500000500000L, cls.getMethod("sum", int.class, long.class).invoke(null, 1000000, 0L));
+                List<Integer> list = new ArrayList<Integer>();
+                for (int i = 0; i < 100000; ++i) list.add(i);
+                assertEquals(100000, cls.getMethod("count", Object.class, int.class).invoke(null, list, 0));
+                assertEquals(1000000, cls.getMethod("nested", int.class, int.class, int.class).invoke(null, 100000, 10, 0));
+                assertEquals(2000005, cls.getMethod("inner", int.class).invoke(null, 5));
+        }
+
+        @Test
+        public void testConstantFolding() throws Exception {
+                String code = "" +
+                        "class TestConstantFolding\n" +
+                        "    static\n" +
+                        "        def method(n:int)\n" +
+                        "            res:java::util::ArrayList = []\n" +
+                        "            res + 60 * 60 * 1000\n" +
+                        "            res + (\"ab\" + \"cd\" + 1 + 'e' + true + 1.5)\n" +
+                        "            res + (-(3) + (7 as long) % 4)\n" +
+                        "            if false\n" +
+                        "                res + \"dead\"\n" +
+                        "            if true and n > 1\n" +
+                        "                res + n\n" +
+                        "            while true\n" +
+                        "                if n < 3\n" +
+                        "                    break\n" +
+                        "                n -= 1\n" +
+                        "            if n < 0\n" +
+                        "                res + 1 / 0\n" +
+                        "            res + n\n" +
+                        "            return res";
+                Map<String, byte[]> byteCodes = retrieveByteCode(code);
+                String byteCode = new String(byteCodes.get("TestConstantFolding"), "ISO-8859-1");
+                // the strings are concatenated, and the dead branch is removed
+                assertTrue(byteCode.contains("abcd1etrue1.5"));
+                assertFalse(byteCode.contains("lt/runtime/Dynamic"));
+                assertFalse(byteCode.contains("dead"));
+
+                Class<?> cls = retrieveClass(code, "TestConstantFolding");
+                Method method = cls.getMethod("method", int.class);
+                assertEquals(Arrays.asList(3600000, "abcd1etrue1.5", 0L, 5, 2), method.invoke(null, 5));
+                assertEquals(Arrays.asList(3600000, "abcd1etrue1.5", 0L, 1), method.invoke(null, 1));
+        }
+
+        @Test
+        public void testConstantFoldingWithImplicitImports() throws Exception {
+                // the string is converted by the imported implicit class at runtime, so it's not concatenated
+                Class<?> cls = retrieveClass("" +
+                                "import implicit SI\n" +
+                                "class TestConstantFoldingWithImplicitImports\n" +
+                                "    static\n" +
+                                "        def method = \"ab\" + 1\n" +
+                                "class S(s:String)\n" +
+                                "    def add(o) = \"custom\"\n" +
+                                "implicit object SI\n" +
+                                "    implicit def cast(s:String):S=S(s)"
+                        , "TestConstantFoldingWithImplicitImports");
+                assertEquals("custom", cls.getMethod("method").invoke(null));
+        }
+
+        @Test
+        public void testStringInterpolationWithStringBuilder() throws Exception {
+                String code = "" +
+                        "class TestStringInterpolationWithStringBuilder\n" +
+                        "    static\n" +
+                        "        def method(i:int, c:char, s:String, o, arr:[]char)\n" +
+                        "            return \"i=${i} c=${c} s=${s} o=${o} ${1}${true} ${arr.length} ${i + 1 as short}\"";
+                Map<String, byte[]> byteCodes = retrieveByteCode(code);
+                String byteCode = new String(byteCodes.get("TestStringInterpolationWithStringBuilder"), "ISO-8859-1");
+                assertTrue(byteCode.contains("java/lang/StringBuilder"));
+                assertFalse(byteCode.contains("lt/runtime/Dynamic"));
+                // constant expressions are concatenated at compile time
+                assertTrue(byteCode.contains(" 1true "));
+
+                Class<?> cls = retrieveClass(code, "TestStringInterpolationWithStringBuilder");
+                Method method = cls.getMethod("method", int.class, char.class, String.class, Object.class, char[].class);
+                assertEquals("i=1 c=x s=str o=null 1true 2 2", method.invoke(null, 1, 'x', "str", null, new char[]{'a', 'b'}));
+                assertEquals("i=-1 c=y s=null o=[1] 1true 0 0", method.invoke(null, -1, 'y', null, Collections.singletonList(1), new char[0]));
+        }
+
+        @Test
+        public void testNonCapturingLambdaSingleton() throws Exception {
+                Class<?> cls = retrieveClass("" +
+                                "class TestNonCapturingLambdaSingleton\n" +
+                                "    static\n" +
+                                "        def nonCapturing()=(a)->a + 1\n" +
+                                "        def capturing(x:int)=(a)->a + x\n" +
+                                "        def usingSelf()=(a)->$",
+                        "TestNonCapturingLambdaSingleton");
+                Method nonCapturing = cls.getMethod("nonCapturing");
+                Object f1 = nonCapturing.invoke(null);
+                Object f2 = nonCapturing.invoke(null);
+                assertSame(f1, f2);
+                assertEquals(2, ((Function1) f1).apply(1));
+
+                Method capturing = cls.getMethod("capturing", int.class);
+                Object g1 = capturing.invoke(null, 1);
+                Object g2 = capturing.invoke(null, 2);
+                assertNotSame(g1, g2);
+                assertEquals(3, ((Function1) g2).apply(1));
+
+                // `$` is set when the lambda is adapted to other types, so the instance is not shared
+                Method usingSelf = cls.getMethod("usingSelf");
+                Object h1 = usingSelf.invoke(null);
+                Object h2 = usingSelf.invoke(null);
+                assertNotSame(h1, h2);
+                assertSame(h1, ((Function1) h1).apply(1));
+        }
+
+        @Test
+        public void testRedundantNonnullCheckElimination() throws Exception {
+                String code = "" +
+                        "class TestRedundantNonnullCheckElimination\n" +
+                        "    static\n" +
+                        "        def proved(nonnull a, i:int)\n" +
+                        "            nonnull b = a\n" +
+                        "            nonempty c = \"c\"\n" +
+                        "            nonnull d = i + 1\n" +
+                        "            b = c\n" +
+                        "            b = \"${i}\"\n" +
+                        "            c = \"cc\"\n" +
+                        "            return [b, c, d]\n" +
+                        "        def notProved(a, s:String)\n" +
+                        "            nonnull b = 1\n" +
+                        "            b = a\n" +
+                        "            nonempty c = \"c\"\n" +
+                        "            c = s\n" +
+                        "            return [b, c]";
+                Map<String, byte[]> byteCodes = retrieveByteCode(code);
+                final List<String> methodsUsingPointer = new ArrayList<String>();
+                new ClassReader(byteCodes.get("TestRedundantNonnullCheckElimination")).accept(new ClassVisitor(Opcodes.ASM5) {
+                        @Override
+                        public MethodVisitor visitMethod(int access, final String name, String desc, String signature, String[] exceptions) {
+                                return new MethodVisitor(Opcodes.ASM5) {
+                                        @Override
+                                        public void visitTypeInsn(int opcode, String type) {
+                                                if (type.equals("lt/lang/Pointer")) methodsUsingPointer.add(name);
+                                        }
+                                };
+                        }
+                }, 0);
+                assertFalse(methodsUsingPointer.contains("proved"));
+                assertTrue(methodsUsingPointer.contains("notProved"));
+
+                Class<?> cls = retrieveClass(code, "TestRedundantNonnullCheckElimination");
+                Method proved = cls.getMethod("proved", Object.class, int.class);
+                assertEquals(Arrays.asList("1", "cc", 2), proved.invoke(null, "a", 1));
+
+                Method notProved = cls.getMethod("notProved", Object.class, String.class);
+                assertEquals(Arrays.asList("a", "s"), notProved.invoke(null, "a", "s"));
+                try {
+                        notProved.invoke(null, null, "s");
+                        fail();
+                } catch (InvocationTargetException e) {
+                        assertTrue(e.getTargetException() instanceof NullPointerException);
+                }
+                try {
+                        notProved.invoke(null, "a", "");
+                        fail();
+                } catch (InvocationTargetException e) {
+                        assertTrue(e.getTargetException() instanceof IllegalArgumentException);
+                }
+        }
 }
@@ -38,6 +38,7 @@ import lt.compiler.syntactic.literal.StringLiteral;
 import lt.compiler.util.LocalVariables;
 import org.junit.Test;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.StringReader;
 import java.lang.reflect.InvocationTargetException;
@@ -51,6 +52,10 @@ import static org.junit.Assert.*;
  */
 public class TestSemantic {
         private Set<STypeDef> parse(Map<String, String> fileMap) throws IOException, SyntaxException {
+                return parse(fileMap, null);
+        }
+
+        private Set<STypeDef> parse(Map<String, String> fileMap, SharedTypes sharedTypes) throws IOException, SyntaxException {
                 ErrorManager err = new ErrorManager(true);
 
                 Map<String, List<Statement>> map = new HashMap<String, List<Statement>>();
@@ -61,7 +66,7 @@ public class TestSemantic {
                         List<Statement> stmts = syntacticProcessor.parse();
                         map.put(fileName, stmts);
                 }
-                SemanticProcessor semanticProcessor = new SemanticProcessor(map, Thread.currentThread().getContextClassLoader(), err);
+                SemanticProcessor semanticProcessor = new SemanticProcessor(map, Thread.currentThread().getContextClassLoader(), err, sharedTypes);
                 return semanticProcessor.parse();
         }
 
@@ -1358,9 +1363,10 @@ public class TestSemantic {
                 testTwoVarOp("1 as long * 2 as long", new LongValue(1), Ins.TwoVarOp.Lmul, new LongValue(2));
                 testTwoVarOp("1 as long / 2 as long", new LongValue(1), Ins.TwoVarOp.Ldiv, new LongValue(2));
                 testTwoVarOp("1 as long % 2 as long", new LongValue(1), Ins.TwoVarOp.Lrem, new LongValue(2));
-                testTwoVarOp("1 as long << 2 as long", new LongValue(1), Ins.TwoVarOp.Lshl, new LongValue(2));
-                testTwoVarOp("1 as long >> 2 as long", new LongValue(1), Ins.TwoVarOp.Lshr, new LongValue(2));
-                testTwoVarOp("1 as long >>> 2 as long", new LongValue(1), Ins.TwoVarOp.Lushr, new LongValue(2));
+                // the shift distance is always int
+                testTwoVarOp("1 as long << 2 as long", new LongValue(1), Ins.TwoVarOp.Lshl, new IntValue(2));
+                testTwoVarOp("1 as long >> 2 as long", new LongValue(1), Ins.TwoVarOp.Lshr, new IntValue(2));
+                testTwoVarOp("1 as long >>> 2 as long", new LongValue(1), Ins.TwoVarOp.Lushr, new IntValue(2));
                 testTwoVarOp("1 as long | 2 as long", new LongValue(1), Ins.TwoVarOp.Lor, new LongValue(2));
                 testTwoVarOp("1 as long & 2 as long", new LongValue(1), Ins.TwoVarOp.Land, new LongValue(2));
                 testTwoVarOp("1 as long ^ 2 as long", new LongValue(1), Ins.TwoVarOp.Lxor, new LongValue(2));
@@ -2273,7 +2279,8 @@ public class TestSemantic {
                 assertEquals("inner$Latte$InnerMethod$0", innerMethod.name());
 
                 assertEquals(1, innerMethod.getParameters().size());
-                assertTrue(innerMethod.getParameters().get(0).type().fullName().equals("lt.lang.Pointer"));
+                // `i` is never assigned again, so it's captured by value
+                assertEquals("int", innerMethod.getParameters().get(0).type().fullName());
                 assertEquals("i", innerMethod.getParameters().get(0).name());
         }
 
@@ -2897,4 +2904,356 @@ public class TestSemantic {
                 // only capture one argument
                 assertEquals(1, newMap.initValues().size());
         }
-}
\ No newline at end of file
+
+        @Test
+        public void testMembersOfImportedTypeLoadedWhenRetrieved() throws Exception {
+                Map<String, String> map = new HashMap<String, String>();
+                map.put("test", "" +
+                        "package test\n" +
+                        "import java::util::_\n" +
+                        "class A:ArrayList");
+                Set<STypeDef> set = parse(map);
+                SClassDef classDef = (SClassDef) set.iterator().next();
+                SClassDef arrayList = classDef.parent();
+                assertEquals("java.util.ArrayList", arrayList.fullName());
+
+                assertEquals(ArrayList.class.getConstructors().length, arrayList.constructors().size());
+                boolean found = false;
+                for (SMethodDef m : arrayList.methods()) {
+                        if (m.name().equals("ensureCapacity")) {
+                                found = true;
+                                assertEquals(1, m.getParameters().size());
+                                assertEquals(IntTypeDef.get(), m.getParameters().get(0).type());
+                                assertTrue(m.declaringType() == arrayList);
+                        }
+                }
+                assertTrue(found);
+        }
+
+        @Test
+        public void testMembersRetrievedWhileLoading() throws Exception {
+                SClassDef c = new SClassDef(SClassDef.NORMAL, LineCol.SYNTHETIC);
+                c.setFullName("test.C");
+                c.setMemberLoader(new SRefTypeDef.MemberLoader() {
+                        @Override
+                        public void load(SRefTypeDef type) {
+                                if (!type.startLoadingMembers()) return;
+                                List<SMethodDef> methods = new ArrayList<SMethodDef>();
+                                try {
+                                        SMethodDef m = new SMethodDef(LineCol.SYNTHETIC);
+                                        m.setName("m");
+                                        methods.add(m);
+                                        // a partial list would be returned without the check
+                                        type.methods();
+                                        fail();
+                                } catch (LtBug ignore) {
+                                } finally {
+                                        type.finishLoadingMembers(Collections.<SFieldDef>emptyList(), methods);
+                                }
+                        }
+                });
+                assertEquals(1, c.methods().size());
+                assertEquals("m", c.methods().get(0).name());
+        }
+
+        @Test
+        public void testImportedTypesSharedByProcessors() throws Exception {
+                Map<String, String> map = new HashMap<String, String>();
+                map.put("test", "" +
+                        "package test\n" +
+                        "import java::util::_\n" +
+                        "class A:ArrayList");
+                SharedTypes sharedTypes = new SharedTypes();
+                SClassDef a1 = (SClassDef) parse(map, sharedTypes).iterator().next();
+                SClassDef a2 = (SClassDef) parse(map, sharedTypes).iterator().next();
+
+                assertNotSame(a1, a2);
+                assertSame(a1.parent(), a2.parent());
+                assertSame(a1.parent().parent(), a2.parent().parent());
+
+                // not shared with other instances
+                SClassDef a3 = (SClassDef) parse(map, new SharedTypes()).iterator().next();
+                assertNotSame(a1.parent(), a3.parent());
+                SClassDef a4 = (SClassDef) parse(map).iterator().next();
+                assertNotSame(a1.parent(), a4.parent());
+
+                // dropped after the max type count is exceeded
+                sharedTypes.clear();
+                SClassDef a5 = (SClassDef) parse(map, sharedTypes).iterator().next();
+                assertNotSame(a1.parent(), a5.parent());
+                SharedTypes small = new SharedTypes(1);
+                SClassDef a6 = (SClassDef) parse(map, small).iterator().next();
+                SClassDef a7 = (SClassDef) parse(map, small).iterator().next();
+                assertNotSame(a6.parent(), a7.parent());
+        }
+
+        @Test
+        public void testSharedTypesNotModifiedByProcessors() throws Exception {
+                Map<String, String> map = new HashMap<String, String>();
+                map.put("test", "" +
+                        "package test\n" +
+                        "class A:Runnable\n" +
+                        "    @Override\n" +
+                        "    def toString():String = 'a'\n" +
+                        "    def run():Unit = ...");
+                SharedTypes sharedTypes = new SharedTypes();
+                SClassDef a = null;
+                for (int i = 0; i < 50; ++i) {
+                        a = (SClassDef) parse(map, sharedTypes).iterator().next();
+                }
+                SMethodDef toString = null;
+                for (SMethodDef m : a.methods()) {
+                        if (m.name().equals("toString")) toString = m;
+                }
+                assertNotNull(toString);
+                assertEquals(1, toString.overRide().size());
+                SMethodDef objectToString = toString.overRide().get(0);
+                assertSame(a.parent(), objectToString.declaringType());
+                assertTrue(objectToString.overridden().isEmpty());
+                assertTrue(a.superInterfaces().get(0).methods().get(0).overridden().isEmpty());
+
+                // abstract methods of shared types are still checked
+                map.put("test", "" +
+                        "package test\n" +
+                        "class B:Runnable");
+                try {
+                        parse(map, sharedTypes);
+                        fail();
+                } catch (SyntaxException ignore) {
+                }
+        }
+
+        @Test
+        public void testPackageIndexOfJar() throws Exception {
+                File cacheDir = File.createTempFile("package-index", "");
+                assertTrue(cacheDir.delete());
+                File jar = File.createTempFile("package-index", ".jar");
+                File jar2 = File.createTempFile("package-index", ".jar");
+                lt.compiler.semantic.helper.PackageIndex.setCacheDir(cacheDir);
+                try {
+                        writeJar(jar, "a/b/c/X.class");
+
+                        java.net.URLClassLoader loader = new java.net.URLClassLoader(new java.net.URL[]{jar.toURI().toURL()}, null);
+                        assertTrue(SemanticProcessor.packageExistsInClassPath("a.b.c", loader));
+                        assertTrue(SemanticProcessor.packageExistsInClassPath("a.b", loader));
+                        assertTrue(SemanticProcessor.packageExistsInClassPath("a", loader));
+                        assertFalse(SemanticProcessor.packageExistsInClassPath("a.b.c.X", loader));
+                        assertFalse(SemanticProcessor.packageExistsInClassPath("a.x", loader));
+                        File[] entries = cacheDir.listFiles();
+                        assertNotNull(entries);
+                        assertEquals(1, entries.length);
+
+                        // the entry of the modified jar is replaced
+                        writeJar(jar, "d/Y.class");
+                        assertTrue(jar.setLastModified(1000));
+                        assertTrue(SemanticProcessor.packageExistsInClassPath("d", loader));
+                        assertFalse(SemanticProcessor.packageExistsInClassPath("a", loader));
+                        assertEquals(1, cacheDir.listFiles().length);
+                        assertFalse(entries[0].exists());
+
+                        // the entry of the removed jar is evicted
+                        writeJar(jar2, "e/Z.class");
+                        assertTrue(jar.delete());
+                        loader = new java.net.URLClassLoader(new java.net.URL[]{jar2.toURI().toURL()}, null);
+                        assertTrue(SemanticProcessor.packageExistsInClassPath("e", loader));
+                        assertEquals(1, cacheDir.listFiles().length);
+                } finally {
+                        lt.compiler.semantic.helper.PackageIndex.setCacheDir(null);
+                        //noinspection ResultOfMethodCallIgnored
+                        jar.delete();
+                        //noinspection ResultOfMethodCallIgnored
+                        jar2.delete();
+                        File[] files = cacheDir.listFiles();
+                        if (files != null) {
+                                for (File f : files) {
+                                        //noinspection ResultOfMethodCallIgnored
+                                        f.delete();
+                                }
+                        }
+                        //noinspection ResultOfMethodCallIgnored
+                        cacheDir.delete();
+                }
+        }
+
+        @Test
+        public void testTemplateCodecSchemaHash() throws Exception {
+                ErrorManager err = new ErrorManager(true);
+                IndentScanner scanner = new IndentScanner("test", new StringReader("class T\n  def t = 1\n"), new Properties(), err);
+                Parser parser = new Parser(scanner.scan(), err);
+                lt.compiler.syntactic.Definition defi = (lt.compiler.syntactic.Definition) parser.parse().get(0);
+
+                byte[] bytes = lt.compiler.semantic.helper.TemplateCodec.encode(defi);
+                assertEquals(defi, lt.compiler.semantic.helper.TemplateCodec.decode("T", bytes));
+
+                // change the schema hash following the class name
+                java.io.ByteArrayOutputStream stream = new java.io.ByteArrayOutputStream();
+                java.util.zip.InflaterInputStream in = new java.util.zip.InflaterInputStream(
+                        new java.io.ByteArrayInputStream(bytes, 3, bytes.length - 3));
+                int b;
+                while ((b = in.read()) != -1) stream.write(b);
+                byte[] raw = stream.toByteArray();
+                byte[] name = "lt.compiler.syntactic.def.ClassDef".getBytes("UTF-8");
+                int index = -1;
+                for (int i = 0; index == -1 && i + name.length <= raw.length; ++i) {
+                        if (Arrays.equals(name, Arrays.copyOfRange(raw, i, i + name.length))) index = i;
+                }
+                assertTrue(index != -1);
+                byte[] renamed = raw.clone();
+                raw[index + name.length] ^= 1;
+
+                java.io.ByteArrayOutputStream tampered = new java.io.ByteArrayOutputStream();
+                tampered.write(bytes, 0, 3);
+                java.util.zip.DeflaterOutputStream out = new java.util.zip.DeflaterOutputStream(tampered);
+                out.write(raw);
+                out.close();
+                try {
+                        lt.compiler.semantic.helper.TemplateCodec.decode("T2", tampered.toByteArray());
+                        fail();
+                } catch (LtBug e) {
+                        assertTrue(e.getCause() instanceof java.io.InvalidClassException);
+                }
+
+                // classes out of the compiler and java.lang/java.util are rejected before they are loaded
+                renamed[index] = 'x';
+                tampered = new java.io.ByteArrayOutputStream();
+                tampered.write(bytes, 0, 3);
+                out = new java.util.zip.DeflaterOutputStream(tampered);
+                out.write(renamed);
+                out.close();
+                try {
+                        lt.compiler.semantic.helper.TemplateCodec.decode("T3", tampered.toByteArray());
+                        fail();
+                } catch (LtBug e) {
+                        assertTrue(e.getCause() instanceof java.io.InvalidClassException);
+                        assertEquals("xt.compiler.syntactic.def.ClassDef", ((java.io.InvalidClassException) e.getCause()).classname);
+                }
+        }
+
+        private static void writeJar(File jar, String entry) throws Exception {
+                java.util.zip.ZipOutputStream zos = new java.util.zip.ZipOutputStream(new java.io.FileOutputStream(jar));
+                // no directory entries
+                zos.putNextEntry(new java.util.zip.ZipEntry(entry));
+                zos.closeEntry();
+                zos.close();
+        }
+
+        @Test
+        public void testScopeLookupAndCaptures() throws Exception {
+                SemanticScope top = new SemanticScope((STypeDef) null, null);
+                LocalVariable a = new LocalVariable(IntTypeDef.get(), false);
+                LocalVariable b = new LocalVariable(IntTypeDef.get(), false);
+                LocalVariable $ = new LocalVariable(IntTypeDef.get(), false);
+                top.putLeftValue("a", a);
+                top.putLeftValue("$", $);
+                top.putLeftValue(top.generateTempName(), new LocalVariable(IntTypeDef.get(), false));
+                assertEquals("*1", top.generateTempName());
+
+                SemanticScope sub = new SemanticScope(top, null);
+                assertEquals(Arrays.<LeftValue>asList(a, $), sub.getLeftValues(10, false));
+                assertEquals(Arrays.<LeftValue>asList(a), sub.getLeftValues(10, true));
+
+                // the cached result is refreshed when the chain is modified
+                sub.putLeftValue("b", b);
+                LocalVariable a2 = new LocalVariable(IntTypeDef.get(), false);
+                sub.putLeftValue("a", a2);
+                assertEquals(Arrays.<LeftValue>asList(a, $, b, a2), sub.getLeftValues(10, false));
+                assertEquals(Arrays.<LeftValue>asList(a, b), sub.getLeftValues(2, true));
+                assertSame(a2, sub.getLeftValue("a"));
+                assertSame(a, top.getLeftValue("a"));
+                assertEquals(Arrays.asList("a", "$", "*0", "b"), new ArrayList<String>(sub.getRawLocalVariables().keySet()));
+                assertEquals(Arrays.<LeftValue>asList(a2, $, top.getLeftValue("*0"), b), new ArrayList<LeftValue>(sub.getVisibleLeftValues()));
+
+                top.putLeftValue("c", b);
+                assertTrue(sub.getLocalVariables().containsKey("c"));
+                sub.putLeftValue(sub.generateTempName(), b);
+                assertEquals("*2", sub.generateTempName());
+                assertEquals("*1", top.generateTempName());
+        }
+
+        @Test
+        public void testTailRecNotInTailPosition() throws Exception {
+                Map<String, String> map = new HashMap<String, String>();
+                map.put("test", "" +
+                        "package test\n" +
+                        "class A\n" +
+                        "    static\n" +
+                        "        @TailRec\n" +
+                        "        def fact(n:int):long\n" +
+                        "            if n == 0\n" +
+                        "                return 1\n" +
+                        "            return n * fact(n - 1)");
+                try {
+                        parse(map);
+                        fail();
+                } catch (SyntaxException e) {
+                        assertEquals(8, e.lineCol.line);
+                        assertEquals(28, e.lineCol.column);
+                }
+        }
+
+        @Test
+        public void testTailRecInPatternMatching() throws Exception {
+                Map<String, String> map = new HashMap<String, String>();
+                map.put("test", "" +
+                        "package test\n" +
+                        "class A\n" +
+                        "    static\n" +
+                        "        @TailRec\n" +
+                        "        def f(n:int):int\n" +
+                        "            return n match\n" +
+                        "                case 0 => 0\n" +
+                        "                case 1 => f(n - 1)\n" +
+                        "                case _ => 1 + f(n - 1)");
+                // the returned pattern matching is inlined, only the call in `case 1` is eliminated
+                try {
+                        parse(map);
+                        fail();
+                } catch (SyntaxException e) {
+                        assertTrue(e.getMessage(), e.getMessage().contains("recursive call is not in tail position"));
+                        assertEquals(9, e.lineCol.line);
+                }
+        }
+
+        @Test
+        public void testTailRecInMatchNotReturned() throws Exception {
+                Map<String, String> map = new HashMap<String, String>();
+                map.put("test", "" +
+                        "package test\n" +
+                        "class A\n" +
+                        "    static\n" +
+                        "        @TailRec\n" +
+                        "        def f(n:int):int\n" +
+                        "            r = n match\n" +
+                        "                case 0 => 0\n" +
+                        "                case _ => f(n - 1)\n" +
+                        "            return r");
+                // the pattern matching is not returned, so it's compiled into a separate method
+                try {
+                        parse(map);
+                        fail();
+                } catch (SyntaxException e) {
+                        assertTrue(e.getMessage(), e.getMessage().contains("recursive call is not in tail position"));
+                        assertEquals(8, e.lineCol.line);
+                }
+        }
+
+        @Test
+        public void testTailRecOverridable() throws Exception {
+                Map<String, String> map = new HashMap<String, String>();
+                map.put("test", "" +
+                        "package test\n" +
+                        "class A\n" +
+                        "    @TailRec\n" +
+                        "    def f(n:int):int\n" +
+                        "        if n == 0\n" +
+                        "            return 0\n" +
+                        "        return f(n - 1)");
+                try {
+                        parse(map);
+                        fail();
+                } catch (SyntaxException e) {
+                        assertEquals(4, e.lineCol.line);
+                        assertEquals(9, e.lineCol.column);
+                }
+        }
+}
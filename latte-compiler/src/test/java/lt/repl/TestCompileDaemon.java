@@ -0,0 +1,190 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 KuiGang Wang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package lt.repl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+import static org.junit.Assert.*;
+
+/**
+ * test compile daemon
+ */
+public class TestCompileDaemon {
+        private File root;
+        private File outputDir;
+        private File infoFile;
+        private CompileDaemon daemon;
+        private int port;
+
+        @Before
+        public void setUp() throws Exception {
+                root = File.createTempFile("latte-test-compile-daemon", "");
+                assertTrue(root.delete());
+                outputDir = new File(root, "classes");
+                assertTrue(outputDir.mkdirs());
+                infoFile = new File(root, "compile-daemon");
+
+                daemon = new CompileDaemon(0, 2, infoFile);
+                port = daemon.start();
+                Thread t = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                                daemon.serve();
+                        }
+                });
+                t.setDaemon(true);
+                t.start();
+        }
+
+        @After
+        public void tearDown() throws Exception {
+                daemon.stop();
+                delete(root);
+        }
+
+        private static void delete(File file) {
+                File[] files = file.listFiles();
+                if (files != null) {
+                        for (File f : files) {
+                                delete(f);
+                        }
+                }
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+        }
+
+        private File source(String name, String code) throws Exception {
+                File f = new File(root, name);
+                FileOutputStream out = new FileOutputStream(f);
+                try {
+                        out.write(code.getBytes("UTF-8"));
+                } finally {
+                        out.close();
+                }
+                return f;
+        }
+
+        @Test
+        public void testCompile() throws Exception {
+                assertTrue(infoFile.isFile());
+
+                Map<String, File> files = new HashMap<String, File>();
+                files.put("a.lt", source("a.lt", "class A\n  def a = 1\n"));
+                CompileDaemon.Result result = CompileDaemon.compile(infoFile, files, outputDir, new ArrayList<URL>(), true, false);
+                assertNotNull(result);
+                assertTrue(result.error, result.success);
+                assertEquals("", result.error);
+                assertTrue(new File(outputDir, "A.class").isFile());
+
+                files.put("b.lt", source("b.lt", "class B\n  def b = (\n"));
+                result = CompileDaemon.compile(infoFile, files, outputDir, new ArrayList<URL>(), true, false);
+                assertNotNull(result);
+                assertFalse(result.success);
+                assertFalse(result.error.isEmpty());
+        }
+
+        @Test
+        public void testInvalidToken() throws Exception {
+                File fakeInfo = new File(root, "fake-compile-daemon");
+                FileOutputStream out = new FileOutputStream(fakeInfo);
+                try {
+                        out.write((port + "\n" + "0123456789abcdef0123456789abcdef" + "\n").getBytes("UTF-8"));
+                } finally {
+                        out.close();
+                }
+
+                Map<String, File> files = new HashMap<String, File>();
+                files.put("a.lt", source("a.lt", "class A\n  def a = 1\n"));
+                CompileDaemon.Result result = CompileDaemon.compile(fakeInfo, files, outputDir, new ArrayList<URL>(), true, false);
+                assertNotNull(result);
+                assertFalse(result.success);
+                assertEquals("invalid token", result.error);
+                assertFalse(new File(outputDir, "A.class").exists());
+        }
+
+        @Test
+        public void testNotRunning() throws Exception {
+                Map<String, File> files = new HashMap<String, File>();
+                assertNull(CompileDaemon.compile(new File(root, "not-exist"), files, outputDir, new ArrayList<URL>(), true, false));
+        }
+
+        /**
+         * compile after overwriting the class file of A, which is restored only if a.lt is compiled again
+         *
+         * @return true if a.lt is compiled
+         */
+        private boolean aCompiled(Map<String, File> files, List<URL> classpath) throws Exception {
+                File A = new File(outputDir, "A.class");
+                if (A.exists()) {
+                        FileOutputStream out = new FileOutputStream(A);
+                        out.write(0);
+                        out.close();
+                }
+                CompileDaemon.Result result = CompileDaemon.compile(infoFile, files, outputDir, classpath, true, true);
+                assertNotNull(result);
+                assertTrue(result.error, result.success);
+                return A.length() > 1;
+        }
+
+        @Test
+        public void testIncrementalCompileJarChanged() throws Exception {
+                File jar = new File(root, "lib.jar");
+                JarOutputStream jos = new JarOutputStream(new FileOutputStream(jar));
+                try {
+                        jos.putNextEntry(new ZipEntry("res.txt"));
+                        jos.write(1);
+                        jos.closeEntry();
+                } finally {
+                        jos.close();
+                }
+                List<URL> classpath = new ArrayList<URL>();
+                classpath.add(jar.toURI().toURL());
+
+                Map<String, File> files = new HashMap<String, File>();
+                files.put("a.lt", source("a.lt", "class A\n  def a = 1\n"));
+
+                assertTrue(aCompiled(files, classpath));
+                assertFalse(aCompiled(files, classpath));
+
+                // the jar is modified
+                assertTrue(jar.setLastModified(1000));
+                assertTrue(aCompiled(files, classpath));
+                assertFalse(aCompiled(files, classpath));
+        }
+}
@@ -0,0 +1,301 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 KuiGang Wang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package lt.repl;
+
+import lt.compiler.CompileProfile;
+import lt.compiler.ErrorManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * test compiler
+ */
+public class TestCompiler {
+        private File root;
+        private File outputDir;
+
+        @Before
+        public void setUp() throws Exception {
+                root = File.createTempFile("latte-test-compiler", "");
+                assertTrue(root.delete());
+                outputDir = new File(root, "classes");
+                assertTrue(outputDir.mkdirs());
+        }
+
+        @After
+        public void tearDown() throws Exception {
+                delete(root);
+        }
+
+        private static void delete(File file) {
+                File[] files = file.listFiles();
+                if (files != null) {
+                        for (File f : files) {
+                                delete(f);
+                        }
+                }
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+        }
+
+        private static String read(File file) throws Exception {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                FileInputStream in = new FileInputStream(file);
+                try {
+                        byte[] buf = new byte[1024];
+                        int n;
+                        while ((n = in.read(buf)) != -1) {
+                                out.write(buf, 0, n);
+                        }
+                } finally {
+                        in.close();
+                }
+                return out.toString("UTF-8");
+        }
+
+        private ClassLoader compileIncrementally(Map<String, String> files) throws Exception {
+                return compileIncrementally(files, new ArrayList<URL>());
+        }
+
+        private ClassLoader compileIncrementally(Map<String, String> files, List<URL> classpath) throws Exception {
+                Compiler compiler = new Compiler(ClassLoader.getSystemClassLoader());
+                compiler.config.classpath = classpath;
+                compiler.config.result.outputDir = outputDir;
+                compiler.config.result.incremental = true;
+                return compiler.compile(files);
+        }
+
+        /**
+         * compile after overwriting the class file of A, which is restored only if a.lt is compiled again
+         *
+         * @return true if a.lt is compiled
+         */
+        private boolean aCompiled(Map<String, String> files, List<URL> classpath) throws Exception {
+                File A = new File(outputDir, "A.class");
+                if (A.exists()) {
+                        FileOutputStream out = new FileOutputStream(A);
+                        out.write(0);
+                        out.close();
+                }
+                compileIncrementally(files, classpath);
+                return A.length() > 1;
+        }
+
+        @Test
+        public void testIncrementalCompileClasspathChanged() throws Exception {
+                Map<String, String> files = new HashMap<String, String>();
+                files.put("a.lt", "class A\n  def a = 1\n");
+                File lib = new File(root, "lib");
+                assertTrue(lib.mkdirs());
+                File libFile = new File(lib, "res.txt");
+                assertTrue(libFile.createNewFile());
+                List<URL> classpath = new ArrayList<URL>();
+                classpath.add(lib.toURI().toURL());
+                // the output directory might be in the class-path, its own classes are ignored
+                classpath.add(outputDir.toURI().toURL());
+
+                assertTrue(aCompiled(files, classpath));
+                assertFalse(aCompiled(files, classpath));
+
+                // a file in the class-path is modified
+                assertTrue(libFile.setLastModified(1000));
+                assertTrue(aCompiled(files, classpath));
+                assertFalse(aCompiled(files, classpath));
+
+                // a file which is not generated by latte is added into the output directory
+                assertTrue(new File(outputDir, "J.class").createNewFile());
+                assertTrue(aCompiled(files, classpath));
+                assertFalse(aCompiled(files, classpath));
+
+                // the class-path itself changes
+                classpath.remove(0);
+                assertTrue(aCompiled(files, classpath));
+        }
+
+        @Test
+        public void testIncrementalCompile() throws Exception {
+                Map<String, String> files = new HashMap<String, String>();
+                files.put("a.lt", "class A\n  def a = 1\n");
+                files.put("b.lt", "class B\n  def b = A().a() + 1\n");
+                files.put("c.lt", "class C\n  def c = 3\n");
+                compileIncrementally(files);
+
+                File A = new File(outputDir, "A.class");
+                File B = new File(outputDir, "B.class");
+                File C = new File(outputDir, "C.class");
+                assertTrue(A.isFile());
+                assertTrue(B.isFile());
+                assertTrue(C.isFile());
+                // the state is not stored in the output directory
+                assertTrue(CompileState.defaultStateFile(outputDir).isFile());
+                assertFalse(new File(outputDir, CompileState.FILE_SUFFIX).exists());
+
+                assertTrue(B.setLastModified(1000));
+                assertTrue(C.setLastModified(1000));
+
+                // modify a.lt, then b.lt should be compiled again but c.lt shouldn't
+                files.put("a.lt", "class A\n  def a = 10\n");
+                ClassLoader loader = compileIncrementally(files);
+
+                Class<?> cls = loader.loadClass("B");
+                assertEquals(11, cls.getMethod("b").invoke(cls.newInstance()));
+                assertNotEquals(1000, B.lastModified());
+                assertEquals(1000, C.lastModified());
+
+                // remove c.lt
+                files.remove("c.lt");
+                compileIncrementally(files);
+                assertFalse(C.exists());
+                assertTrue(A.isFile());
+                assertTrue(B.isFile());
+        }
+
+        @Test
+        public void testIncrementalCompileApplyingGenericTemplate() throws Exception {
+                Map<String, String> files = new HashMap<String, String>();
+                files.put("g.lt", "class G<:T:>\n  def m(t:T):T=t\n");
+                files.put("u.lt", "class U\n  def u = G<:int:>().m(1)\n");
+                compileIncrementally(files);
+
+                // only u.lt is modified, the template is defined in g.lt
+                files.put("u.lt", "class U\n  def u = G<:int:>().m(2)\n");
+                ClassLoader loader = compileIncrementally(files);
+                Class<?> cls = loader.loadClass("U");
+                assertEquals(2, cls.getMethod("u").invoke(cls.newInstance()));
+
+                // apply the template with another type in a new file
+                files.put("v.lt", "class V\n  def v = G<:String:>().m(\"x\")\n");
+                loader = compileIncrementally(files);
+                cls = loader.loadClass("V");
+                assertEquals("x", cls.getMethod("v").invoke(cls.newInstance()));
+
+                // the template class is recorded, it's removed with its file
+                files.remove("g.lt");
+                files.remove("u.lt");
+                files.remove("v.lt");
+                compileIncrementally(files);
+                assertFalse(new File(outputDir, "G.class").exists());
+        }
+
+        @Test
+        public void testIncrementalCompileUseClassesOfUnchangedFiles() throws Exception {
+                Map<String, String> files = new HashMap<String, String>();
+                files.put("a.lt", "class A\n  def a = 1\n");
+                files.put("b.lt", "class B\n  def b = A().a() + 1\n");
+                compileIncrementally(files);
+
+                File A = new File(outputDir, "A.class");
+                assertTrue(A.setLastModified(1000));
+
+                // A is loaded from the output directory
+                files.put("b.lt", "class B\n  def b = A().a() + 2\n");
+                ClassLoader loader = compileIncrementally(files);
+                assertEquals(1000, A.lastModified());
+
+                Class<?> cls = loader.loadClass("B");
+                assertEquals(3, cls.getMethod("b").invoke(cls.newInstance()));
+        }
+
+        @Test
+        public void testUnchangedClassFileNotRewritten() throws Exception {
+                Map<String, String> files = new HashMap<String, String>();
+                files.put("a.lt", "class A\n  def a = 1\n");
+                files.put("b.lt", "class B\n  def b = 2\n");
+                Compiler compiler = new Compiler(ClassLoader.getSystemClassLoader());
+                compiler.config.result.outputDir = outputDir;
+                compiler.compile(files);
+
+                File A = new File(outputDir, "A.class");
+                File B = new File(outputDir, "B.class");
+                assertTrue(A.setLastModified(1000));
+                assertTrue(B.setLastModified(1000));
+
+                files.put("b.lt", "class B\n  def b = 3\n");
+                compiler = new Compiler(ClassLoader.getSystemClassLoader());
+                compiler.config.result.outputDir = outputDir;
+                ClassLoader loader = compiler.compile(files);
+
+                assertEquals(1000, A.lastModified());
+                assertNotEquals(1000, B.lastModified());
+                Class<?> cls = loader.loadClass("B");
+                assertEquals(3, cls.getMethod("b").invoke(cls.newInstance()));
+        }
+
+        @Test
+        public void testLowMemory() throws Exception {
+                Map<String, String> files = new HashMap<String, String>();
+                files.put("a.lt", "class A\n  def a(x = 1) = x + 1\n");
+                files.put("b.lt", "" +
+                        "class B\n" +
+                        "  def b = A().a() + (it -> it * 2)(3)\n" +
+                        "  static\n" +
+                        "    s = 4\n");
+                Compiler compiler = new Compiler(ClassLoader.getSystemClassLoader());
+                compiler.config.result.outputDir = outputDir;
+                compiler.config.lowMemory = true;
+                ClassLoader loader = compiler.compile(files);
+
+                Class<?> cls = loader.loadClass("B");
+                assertEquals(8, cls.getMethod("b").invoke(cls.newInstance()));
+                assertEquals(4, cls.getField("s").get(null));
+        }
+
+        @Test
+        public void testProfile() throws Exception {
+                Map<String, String> files = new HashMap<String, String>();
+                files.put("a.lt", "class A\n  def a = 1\n");
+                files.put("b.lt", "class B\n  def b = A().a() + 1\n");
+                File profile = new File(outputDir, "profile.json");
+                Compiler compiler = new Compiler(ClassLoader.getSystemClassLoader());
+                compiler.config.out = ErrorManager.Out.allNull();
+                compiler.config.result.outputDir = outputDir;
+                compiler.config.profile = profile;
+                compiler.compile(files);
+
+                assertTrue(profile.isFile());
+                String json = read(profile);
+                for (String phase : CompileProfile.PHASES) {
+                        assertTrue(phase, json.contains("{\"phase\": \"" + phase + "\", \"items\": "));
+                }
+                assertTrue(json.contains("{\"phase\": \"scan\", \"name\": \"a.lt\""));
+                assertTrue(json.contains("{\"phase\": \"semantic.step4\", \"name\": \"B\""));
+                assertTrue(json.contains("{\"phase\": \"codegen\", \"name\": \"A\""));
+                assertTrue(json.contains("{\"phase\": \"write\", \"name\": \"B\""));
+        }
+}
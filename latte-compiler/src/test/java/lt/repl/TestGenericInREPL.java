@@ -1,5 +1,6 @@
 package lt.repl;
 
+import lt.compiler.semantic.helper.ClassFileInfo;
 import lt.compiler.util.Consts;
 import lt.lang.GenericTemplate;
 import lt.repl.scripting.EvalEntry;
@@ -33,7 +34,9 @@ public class TestGenericInREPL {
                         assertEquals("A", templateA.getName());
                         assertTrue(templateA.isAnnotationPresent(GenericTemplate.class));
 
-                        assertTrue(templateA.getField(Consts.AST_FIELD).get(null) instanceof String);
+                        ClassFileInfo info = ClassFileInfo.read(templateA.getName(), templateA.getClassLoader());
+                        assertNotNull(info);
+                        assertNotNull(info.templateAST);
 
                         entry = evaluator.eval("" +
                                 "type A<:int:>");
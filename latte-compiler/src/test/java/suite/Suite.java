@@ -63,7 +63,9 @@ import org.junit.runner.RunWith;
         TestJsr223.class,
         TestDotPackage.class,
         TestLambdaGen.class,
-        TestGenericInREPL.class
+        TestGenericInREPL.class,
+        TestCompiler.class,
+        TestCompileDaemon.class
 })
 public class Suite extends TestSuite {
 }
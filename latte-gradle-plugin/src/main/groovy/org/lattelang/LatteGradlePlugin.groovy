@@ -26,6 +26,7 @@ package org.lattelang
 
 import lt.compiler.SyntaxException
 import lt.util.Utils
+import lt.repl.CompileDaemon
 import lt.repl.Compiler
 import org.gradle.api.Action
 import org.gradle.api.Plugin
@@ -78,14 +79,34 @@ class LatteGradlePlugin implements Plugin<Project> {
         }
     }
 
-    private static void doCompile(Logger logger, ClassLoader cl, File[] sourceDirs, File outputDir, boolean fastFail) {
+    private static void doCompile(Logger logger, Collection<URL> compileURLs, File[] sourceDirs, File outputDir,
+                                  boolean fastFail, boolean incremental, boolean daemon) {
         Map<String, File> fileMap = new HashMap<>()
         for (File dir : sourceDirs) {
             fileMap.putAll(Utils.filesInDirectory(dir, '.*\\.(lt|latte)', true))
         }
-        Compiler compiler = new Compiler(cl)
+
+        if (daemon) {
+            logger.println("Compiling latte source files from " + Arrays.toString(sourceDirs) + " to [" + outputDir.absolutePath + "] with the compile daemon")
+            CompileDaemon.Result result = CompileDaemon.compile(fileMap, outputDir, new ArrayList<URL>(compileURLs), fastFail, incremental)
+            if (result != null) {
+                if (!result.output.isEmpty()) logger.println(result.output)
+                if (!result.success) {
+                    logger.error("Compilation failed!")
+                    throw new Exception(result.error)
+                }
+                logger.info("Compilation succeeded!")
+                return
+            }
+            logger.info("The compile daemon is not running, compile in the current process")
+        }
+
+        Compiler compiler = new Compiler()
+        // the class-path is recorded by the incremental compiling state
+        compiler.config.classpath = new ArrayList<URL>(compileURLs)
         compiler.config.fastFail = fastFail
         compiler.config.result.outputDir = outputDir
+        compiler.config.result.incremental = incremental
 
         logger.println("Compiling latte source files from " + Arrays.toString(sourceDirs) + " to [" + outputDir.absolutePath + "]")
         try {
@@ -99,7 +120,7 @@ class LatteGradlePlugin implements Plugin<Project> {
     }
 
     private
-    static void compile(Project project, boolean fastFail, boolean isTest) {
+    static void compile(Project project, boolean fastFail, boolean incremental, boolean daemon, boolean isTest) {
         def mainSrc = project.sourceSets.main.latte.srcDirs
         def testSrc = project.sourceSets.test.latte.srcDirs
 
@@ -141,8 +162,7 @@ class LatteGradlePlugin implements Plugin<Project> {
                 compileURLs.add(testOutputDir.toURI().toURL())
             }
             compileURLs.add(mainOutputDir.toURI().toURL())
-            ClassLoader classpath = LoaderUtil.loadClassesIn(compileURLs)
-            doCompile(project.logger, classpath, sourceDirs, theOutputDir, fastFail)
+            doCompile(project.logger, compileURLs, sourceDirs, theOutputDir, fastFail, incremental, daemon)
         }
     }
 
@@ -166,11 +186,11 @@ class LatteGradlePlugin implements Plugin<Project> {
     private void registerExtensionAndTasks() {
         def ext = project.extensions.create('latteConfig', LatteGradlePluginExtension)
         def compileLatte = project.task('compileLatte').doLast { t ->
-            compile(project, ext.fastFail, false)
+            compile(project, ext.fastFail, ext.incremental, ext.daemon, false)
         }
 
         def compileTestLatte = project.tasks.create('compileTestLatte').doLast { t ->
-            compile(project, ext.fastFail, true)
+            compile(project, ext.fastFail, ext.incremental, ext.daemon, true)
         }
 
         // dependencies
@@ -211,4 +231,6 @@ class LatteGradlePluginExtension {
     boolean afterJava = true
     boolean afterGroovy = false
     boolean fastFail = false
+    boolean incremental = false
+    boolean daemon = false
 }